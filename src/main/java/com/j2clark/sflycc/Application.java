@@ -2,11 +2,32 @@ package com.j2clark.sflycc;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializationFeature;
+import com.j2clark.sflycc.controllers.AdmissionFilter;
+import com.j2clark.sflycc.controllers.NonBlockingIngestServlet;
+import com.j2clark.sflycc.reports.Leaderboard;
+import com.j2clark.sflycc.reports.SpendSketch;
+import com.j2clark.sflycc.services.AdmissionController;
+import com.j2clark.sflycc.services.EventHistory;
+import com.j2clark.sflycc.services.IngestPipeline;
+import com.j2clark.sflycc.services.IngestService;
+import com.j2clark.sflycc.store.EventStoreFactory;
+import com.j2clark.sflycc.store.WriteAheadLog;
 
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.web.servlet.FilterRegistrationBean;
+import org.springframework.boot.web.servlet.ServletRegistrationBean;
 import org.springframework.context.annotation.Bean;
 import org.springframework.http.converter.json.MappingJackson2HttpMessageConverter;
+import org.springframework.util.StringUtils;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 
 @SpringBootApplication
 public class Application {
@@ -23,4 +44,99 @@ public class Application {
         return new MappingJackson2HttpMessageConverter(mapper);
     }
 
+    /**
+     * Events are kept on heap unless sflycc.store.dir is set, in which case each request gets
+     * a memory mapped store in its own directory
+     */
+    @Bean
+    public EventStoreFactory eventStoreFactory(@Value("${sflycc.store.dir:}") String storeDir) {
+        if (StringUtils.isEmpty(storeDir)) {
+            return EventStoreFactory.heap();
+        }
+        return EventStoreFactory.mapped(Paths.get(storeDir));
+    }
+
+    /**
+     * Only created when sflycc.wal.dir is set, see IngestService.process
+     * Durability is one of PER_REQUEST (default), INTERVAL or NONE
+     */
+    @Bean(destroyMethod = "close")
+    @ConditionalOnProperty("sflycc.wal.dir")
+    public WriteAheadLog writeAheadLog(@Value("${sflycc.wal.dir}") String walDir,
+                                       @Value("${sflycc.wal.durability:PER_REQUEST}") WriteAheadLog.Durability durability,
+                                       @Value("${sflycc.wal.interval-ms:10}") long intervalMillis) throws IOException {
+        return WriteAheadLog.open(Paths.get(walDir), durability, intervalMillis);
+    }
+
+    /**
+     * History of all accepted events, recovered from the latest snapshot plus the log tail on startup
+     * Snapshots go to sflycc.snapshot.dir (default: a snapshots directory within the log directory)
+     */
+    @Bean(destroyMethod = "close")
+    @ConditionalOnProperty("sflycc.wal.dir")
+    public EventHistory eventHistory(WriteAheadLog writeAheadLog,
+                                     @Value("${sflycc.wal.dir}") String walDir,
+                                     @Value("${sflycc.snapshot.dir:}") String snapshotDir,
+                                     @Value("${sflycc.snapshot.interval-ms:300000}") long snapshotIntervalMillis) throws IOException {
+        return EventHistory.recover(writeAheadLog,
+                                    StringUtils.isEmpty(snapshotDir) ? Paths.get(walDir, "snapshots") : Paths.get(snapshotDir),
+                                    snapshotIntervalMillis);
+    }
+
+    /**
+     * Top LTV customers across the whole history, kept up to date as events arrive
+     */
+    @Bean
+    @ConditionalOnProperty("sflycc.wal.dir")
+    public Leaderboard leaderboard(EventHistory eventHistory) {
+        return Leaderboard.follow(eventHistory.data().customers());
+    }
+
+    /**
+     * Approximate top spenders across the whole history, kept up to date as events arrive
+     * Sized by sflycc.report.sketch.memory-mb when set, otherwise by sflycc.report.sketch.epsilon (see SpendSketch)
+     */
+    @Bean
+    @ConditionalOnProperty("sflycc.wal.dir")
+    public SpendSketch spendSketch(EventHistory eventHistory,
+                                   @Value("${sflycc.report.sketch.memory-mb:0}") int memoryMegabytes,
+                                   @Value("${sflycc.report.sketch.epsilon:0.0001}") double epsilon) {
+        SpendSketch sketch = memoryMegabytes > 0 ? SpendSketch.withMemory(memoryMegabytes) : SpendSketch.withError(epsilon);
+        return sketch.follow(eventHistory.data());
+    }
+
+    /**
+     * Non blocking event upload at /event/nio, same payloads and response as /event/stream
+     * Uploads held open at once are bounded by server.tomcat.max-connections rather than the request threads
+     */
+    @Bean
+    public ServletRegistrationBean nonBlockingIngestServlet(IngestService ingestService,
+                                                            @Value("${sflycc.ingest.nio.timeout-ms:300000}") long timeoutMillis,
+                                                            @Value("${sflycc.ingest.nio.max-event-bytes:1048576}") int maxEventBytes,
+                                                            @Value("${sflycc.ingest.nio.max-upload-bytes:67108864}") long maxUploadBytes) {
+        ObjectMapper mapper = new ObjectMapper();
+        mapper.configure(SerializationFeature.FAIL_ON_EMPTY_BEANS, false);
+        ServletRegistrationBean registration = new ServletRegistrationBean(
+                new NonBlockingIngestServlet(ingestService, mapper, timeoutMillis, maxEventBytes, maxUploadBytes), "/event/nio");
+        registration.setName("nonBlockingIngest");
+        registration.setAsyncSupported(true);
+        return registration;
+    }
+
+    /**
+     * Admission control for every upload, budgets are set with the sflycc.admission.* properties (see AdmissionController)
+     * Bodies of unknown length, and streamed bodies, are charged at most sflycc.admission.unknown-length-bytes
+     */
+    @Bean
+    public FilterRegistrationBean admissionFilter(AdmissionController admissionController, IngestPipeline ingestPipeline,
+                                                  @Value("${sflycc.admission.unknown-length-bytes:1048576}") long unknownLengthBytes) {
+        AdmissionFilter filter = new AdmissionFilter(admissionController, unknownLengthBytes,
+                new HashSet<>(Arrays.asList("/event/stream", "/event/nio")),
+                Collections.singletonMap("/event/async", ingestPipeline));
+        FilterRegistrationBean registration = new FilterRegistrationBean(filter);
+        registration.setName("admissionFilter");
+        registration.addUrlPatterns("/event", "/event/*");
+        return registration;
+    }
+
 }
@@ -0,0 +1,265 @@
+package com.j2clark.sflycc.controllers;
+
+import com.j2clark.sflycc.services.AdmissionController;
+import com.j2clark.sflycc.services.OverloadedException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.FilterChain;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Admission control for uploads, see AdmissionController
+ *
+ * Runs before the body is read, so a request turned away costs us next to nothing. The permit is left on the
+ * request (PERMIT) for the events to be charged to once parsed, and released when the request is done.
+ * A body of unknown length (chunked) is charged unknownLengthBytes, and goes in the bulk lane.
+ *
+ * The body can only be read up to the bytes charged for it: reading past them fails with an OverloadedException
+ * (TOO_LARGE), answered with a 413 - by EventController's handler, or here should it get past the servlet.
+ *
+ * Two kinds of path are charged differently:
+ * - streamed paths (streamEvents, the NonBlockingIngestServlet) only ever hold a batch in memory, so they are
+ *   charged no more than unknownLengthBytes however large the body, and may be read to the end. The permit is
+ *   held until an asynchronous request completes, rather than until the servlet returns.
+ * - queued paths (pushEventAsync) hand the body on to a queue once read, and are turned away up front should
+ *   the queue be full, see AdmissionController.admit(Lane, long, Queue).
+ */
+public class AdmissionFilter extends OncePerRequestFilter {
+
+    public static final String PERMIT = AdmissionFilter.class.getName() + ".PERMIT";
+
+    private Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final AdmissionController admissionController;
+    private final long unknownLengthBytes;
+    private final Set<String> streamed;
+    private final Map<String, AdmissionController.Queue> queues;
+
+    public AdmissionFilter(AdmissionController admissionController, long unknownLengthBytes) {
+        this(admissionController, unknownLengthBytes, Collections.emptySet(), Collections.emptyMap());
+    }
+
+    /**
+     * @param streamed paths (within the application) whose bodies are read a batch at a time
+     * @param queues paths (within the application) whose requests are handed on to the given queue once read
+     */
+    public AdmissionFilter(AdmissionController admissionController, long unknownLengthBytes,
+                           Set<String> streamed, Map<String, AdmissionController.Queue> queues) {
+        this.admissionController = admissionController;
+        this.unknownLengthBytes = unknownLengthBytes;
+        this.streamed = streamed;
+        this.queues = queues;
+    }
+
+    /**
+     * 429 when only the request's lane is full (others are still getting in), 503 when we are full,
+     * and 413 for a request which will never fit - retrying that is pointless
+     */
+    static HttpStatus status(OverloadedException e) {
+        switch (e.getReason()) {
+            case LANE_FULL:
+                return HttpStatus.TOO_MANY_REQUESTS;
+            case TOO_LARGE:
+                return HttpStatus.PAYLOAD_TOO_LARGE;
+            default:
+                return HttpStatus.SERVICE_UNAVAILABLE;
+        }
+    }
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) {
+        return !"POST".equals(request.getMethod());
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+            throws ServletException, IOException {
+        String path = request.getRequestURI().substring(request.getContextPath().length());
+        boolean stream = streamed.contains(path);
+        AdmissionController.Queue queue = queues.get(path);
+
+        long length = request.getContentLengthLong();
+        AdmissionController.Lane lane = admissionController.lane(length);
+
+        long charged = length >= 0 ? length : unknownLengthBytes;
+        if (stream) {
+            charged = Math.min(charged, unknownLengthBytes);
+        }
+        AdmissionController.Permit permit;
+        try {
+            permit = queue != null
+                     ? admissionController.admit(lane, charged, queue)
+                     : admissionController.admit(lane, charged);
+        } catch (OverloadedException e) {
+            reject(request, response, e);
+            return;
+        }
+
+        boolean held = false;
+        try {
+            request.setAttribute(PERMIT, permit);
+            chain.doFilter(stream ? request : new ChargedRequest(request, charged), response);
+            if (request.isAsyncStarted()) {
+                request.getAsyncContext().addListener(new Release(permit));
+                held = true;
+            }
+        } catch (OverloadedException e) {
+            if (response.isCommitted()) {
+                throw e;
+            }
+            reject(request, response, e);
+        } finally {
+            if (!held) {
+                permit.close();
+            }
+        }
+    }
+
+    private void reject(HttpServletRequest request, HttpServletResponse response, OverloadedException e) throws IOException {
+        HttpStatus status = status(e);
+        logger.warn("Request from[" + request.getRemoteAddr() + "] rejected with[" + status.value() + "]: " + e.getMessage());
+        if (status != HttpStatus.PAYLOAD_TOO_LARGE) {
+            response.setHeader(HttpHeaders.RETRY_AFTER, String.valueOf(e.getRetryAfterSeconds()));
+        }
+        response.sendError(status.value(), e.getMessage());
+    }
+
+    /**
+     * Releases the permit of an asynchronous request once it is done with
+     */
+    private static class Release implements AsyncListener {
+
+        private final AdmissionController.Permit permit;
+
+        Release(AdmissionController.Permit permit) {
+            this.permit = permit;
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) {
+            permit.close();
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) {
+            // completed by whoever handles the timeout, or else by the container
+        }
+
+        @Override
+        public void onError(AsyncEvent event) {
+            permit.close();
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+            // listeners are dropped when async is started again, stay on
+            event.getAsyncContext().addListener(this);
+        }
+    }
+
+    /**
+     * A request whose body may only be read up to the bytes charged for it
+     */
+    private static class ChargedRequest extends HttpServletRequestWrapper {
+
+        private final long charged;
+        private ServletInputStream input;
+        private BufferedReader reader;
+
+        ChargedRequest(HttpServletRequest request, long charged) {
+            super(request);
+            this.charged = charged;
+        }
+
+        @Override
+        public ServletInputStream getInputStream() throws IOException {
+            if (input == null) {
+                input = new ChargedInputStream(super.getInputStream(), charged);
+            }
+            return input;
+        }
+
+        @Override
+        public BufferedReader getReader() throws IOException {
+            if (reader == null) {
+                String encoding = getCharacterEncoding();
+                reader = new BufferedReader(new InputStreamReader(getInputStream(),
+                        encoding != null ? encoding : StandardCharsets.ISO_8859_1.name()));
+            }
+            return reader;
+        }
+    }
+
+    private static class ChargedInputStream extends ServletInputStream {
+
+        private final ServletInputStream input;
+        private final long charged;
+        private long read = 0;
+
+        ChargedInputStream(ServletInputStream input, long charged) {
+            this.input = input;
+            this.charged = charged;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = input.read();
+            if (b >= 0) {
+                count(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = input.read(b, off, len);
+            if (n > 0) {
+                count(n);
+            }
+            return n;
+        }
+
+        private void count(int n) {
+            read += n;
+            if (read > charged) {
+                throw new OverloadedException(OverloadedException.Reason.TOO_LARGE, 0,
+                        "request body exceeds the[" + charged + "] bytes admitted for it");
+            }
+        }
+
+        @Override
+        public boolean isFinished() {
+            return input.isFinished();
+        }
+
+        @Override
+        public boolean isReady() {
+            return input.isReady();
+        }
+
+        @Override
+        public void setReadListener(ReadListener readListener) {
+            input.setReadListener(readListener);
+        }
+    }
+}
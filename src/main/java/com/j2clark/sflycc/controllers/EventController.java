@@ -1,19 +1,38 @@
 package com.j2clark.sflycc.controllers;
 
 import com.j2clark.sflycc.domain.Data;
+import com.j2clark.sflycc.domain.IngestStatus;
+import com.j2clark.sflycc.domain.IngestSummary;
+import com.j2clark.sflycc.services.AdmissionController;
+import com.j2clark.sflycc.services.IngestPipeline;
 import com.j2clark.sflycc.services.IngestService;
+import com.j2clark.sflycc.services.OverloadedException;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.ResponseBody;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.RequestContextHolder;
 
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
 import java.util.UUID;
 
+import javax.servlet.http.HttpServletRequest;
+
 @Controller
 @RequestMapping(value = "/event", consumes = "application/json", produces = "application/json")
 public class EventController {
@@ -22,14 +41,19 @@ public class EventController {
     private Logger eventLogger = LoggerFactory.getLogger("events");
 
     private final IngestService ingestService;
+    private final IngestPipeline ingestPipeline;
 
     @Autowired
-    public EventController(final IngestService ingestService) {
+    public EventController(final IngestService ingestService, final IngestPipeline ingestPipeline) {
         this.ingestService = ingestService;
+        this.ingestPipeline = ingestPipeline;
     }
 
+    /**
+     * Subject to admission control (see AdmissionFilter), an overloaded service answers 429/503 with Retry-After
+     */
     @RequestMapping(method = RequestMethod.POST)
-    public @ResponseBody Data pushEvent(final @RequestBody String rawRequestBody) {
+    public @ResponseBody Data pushEvent(final @RequestBody String rawRequestBody, final HttpServletRequest request) {
 
         // add request client details, so we know who published event
 
@@ -39,7 +63,78 @@ public class EventController {
 
         eventLogger.info("RAW EVENT["+transactionId+"]: " + rawRequestBody);
 
-        return ingestService.ingest(transactionId, rawRequestBody);
+        AdmissionController.Permit permit = (AdmissionController.Permit) request.getAttribute(AdmissionFilter.PERMIT);
+        Data data = permit != null
+                    ? ingestService.ingest(transactionId, rawRequestBody, permit)
+                    : ingestService.ingest(transactionId, rawRequestBody);
+
+        // the data is echoed back, so can only be released once the response has been written
+        RequestContextHolder.currentRequestAttributes().registerDestructionCallback(
+            Data.class.getName() + "." + transactionId, data::close, RequestAttributes.SCOPE_REQUEST);
+        return data;
+    }
+
+    /**
+     * Streaming alternative to pushEvent
+     *
+     * Accepts either newline delimited json (one event per line) or a json array of events.
+     * The request body is read incrementally, events are ingested while the upload is still in flight,
+     * and the client receives an accept/reject summary rather than the echoed events - so, unlike pushEvent,
+     * nothing is kept per request once a batch of events has been logged.
+     */
+    @RequestMapping(value = "/stream", method = RequestMethod.POST, consumes = {"application/x-ndjson", "application/json"})
+    public @ResponseBody IngestSummary streamEvents(final HttpServletRequest request) throws IOException {
+
+        UUID transactionId = UUID.randomUUID();
+
+        // we deliberately do not log the raw body here, it may be very large
+        eventLogger.info("STREAMED EVENT["+transactionId+"]: from[" + request.getRemoteAddr() + "] length[" + request.getContentLengthLong() + "]");
+
+        Reader body = new InputStreamReader(request.getInputStream(), StandardCharsets.UTF_8);
+        return ingestService.ingestStream(transactionId, body);
+    }
+
+    /**
+     * Asynchronous alternative to pushEvent
+     *
+     * The request is only queued (see IngestPipeline), the response is a 202 carrying the transaction id to poll
+     * status with. When the queue is full we answer 503 straight away, rather than tying up a request thread -
+     * usually from the AdmissionFilter, before the body is even read (or 429 for a bulk request, see AdmissionController).
+     */
+    @RequestMapping(value = "/async", method = RequestMethod.POST)
+    public ResponseEntity<IngestStatus> pushEventAsync(final @RequestBody String rawRequestBody) {
+
+        UUID transactionId = UUID.randomUUID();
+
+        eventLogger.info("RAW EVENT["+transactionId+"]: " + rawRequestBody);
+
+        if (!ingestPipeline.submit(transactionId, rawRequestBody)) {
+            logger.warn("Request["+transactionId+"] rejected, ingest queue full");
+            HttpHeaders headers = new HttpHeaders();
+            headers.set(HttpHeaders.RETRY_AFTER, "1");
+            return new ResponseEntity<>(headers, HttpStatus.SERVICE_UNAVAILABLE);
+        }
+        return new ResponseEntity<>(new IngestStatus(transactionId, IngestStatus.State.QUEUED, null, null), HttpStatus.ACCEPTED);
+    }
+
+    /**
+     * Status of a request submitted through pushEventAsync, 404 if unknown or too old to still be tracked
+     */
+    @RequestMapping(value = "/status/{transactionId}", method = RequestMethod.GET, consumes = MediaType.ALL_VALUE)
+    public ResponseEntity<IngestStatus> status(final @PathVariable UUID transactionId) {
+        IngestStatus status = ingestPipeline.status(transactionId);
+        return status != null ? ResponseEntity.ok(status) : ResponseEntity.notFound().build();
+    }
+
+    @ExceptionHandler(OverloadedException.class)
+    public ResponseEntity<Void> overloaded(OverloadedException e) {
+        HttpStatus status = AdmissionFilter.status(e);
+        logger.warn("Request rejected with[" + status.value() + "]: " + e.getMessage());
+        HttpHeaders headers = new HttpHeaders();
+        if (status != HttpStatus.PAYLOAD_TOO_LARGE) {
+            headers.set(HttpHeaders.RETRY_AFTER, String.valueOf(e.getRetryAfterSeconds()));
+        }
+        return new ResponseEntity<>(headers, status);
     }
 
 }
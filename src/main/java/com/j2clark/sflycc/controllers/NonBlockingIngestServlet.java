@@ -0,0 +1,264 @@
+package com.j2clark.sflycc.controllers;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.j2clark.sflycc.domain.Event;
+import com.j2clark.sflycc.domain.IngestSummary;
+import com.j2clark.sflycc.processors.UnsupportedEventException;
+import com.j2clark.sflycc.services.IngestService;
+import com.j2clark.sflycc.services.JsonObjectFramer;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Non blocking alternative to EventController.streamEvents
+ *
+ * Uses servlet 3.1 non blocking reads: no thread is held while we wait on a client, only while we work through
+ * bytes which have already arrived. A slow producer therefore costs a connection and a small buffer rather than
+ * a request thread, and the number of uploads held open is bounded by the connector's max connections
+ * (server.tomcat.max-connections) instead of its thread pool.
+ *
+ * Events are adapted and committed (see IngestService.commit) a batch at a time before we go back for more bytes,
+ * so a producer outrunning ingest waits on its TCP window rather than piling up unread bytes. Committed events are
+ * dropped, only the summary's counters are kept, so memory stays at one batch however large the upload.
+ *
+ * Responds with the same IngestSummary as streamEvents. An upload cut short - past maxUploadBytes (413), past the
+ * timeout (408) or failing to commit a batch (500) - still gets the summary of what was committed up to that point,
+ * whose lastAccepted tells the client where to pick up again.
+ */
+public class NonBlockingIngestServlet extends HttpServlet {
+
+    private static final Logger logger = LoggerFactory.getLogger(NonBlockingIngestServlet.class);
+    private static final Logger eventLogger = LoggerFactory.getLogger("events");
+
+    // number of events we adapt before appending them
+    private static final int BATCH_SIZE = 256;
+
+    private static final int READ_BUFFER_BYTES = 8 * 1024;
+
+    private final IngestService ingestService;
+    private final ObjectMapper objectMapper;
+    private final long timeoutMillis;
+    private final int maxEventBytes;
+    private final long maxUploadBytes;
+
+    /**
+     * @param timeoutMillis how long an upload may take in total
+     * @param maxEventBytes largest single event accepted
+     * @param maxUploadBytes largest upload accepted
+     */
+    public NonBlockingIngestServlet(IngestService ingestService, ObjectMapper objectMapper, long timeoutMillis,
+                                    int maxEventBytes, long maxUploadBytes) {
+        this.ingestService = ingestService;
+        this.objectMapper = objectMapper;
+        this.timeoutMillis = timeoutMillis;
+        this.maxEventBytes = maxEventBytes;
+        this.maxUploadBytes = maxUploadBytes;
+    }
+
+    @Override
+    protected void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        UUID transactionId = UUID.randomUUID();
+        eventLogger.info("NON BLOCKING EVENT[" + transactionId + "]: from[" + request.getRemoteAddr() + "] length[" + request.getContentLengthLong() + "]");
+        if (request.getContentLengthLong() > maxUploadBytes) {
+            // chunked uploads are counted as they are read instead
+            response.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+            return;
+        }
+
+        AsyncContext async = request.startAsync();
+        async.setTimeout(timeoutMillis);
+        Upload upload = new Upload(transactionId, async);
+        async.addListener(upload);
+        request.getInputStream().setReadListener(upload);
+    }
+
+    /**
+     * State of a single upload, the container never calls us concurrently for the same request
+     */
+    private class Upload implements ReadListener, AsyncListener, JsonObjectFramer.Listener {
+
+        private final UUID transactionId;
+        private final AsyncContext async;
+        private final ServletInputStream input;
+        private final IngestSummary summary;
+        private final JsonObjectFramer framer;
+        // adapted events not yet committed, with the index and line of the entry each came from
+        private final List<Event> batch = new ArrayList<>(BATCH_SIZE);
+        private final int[] batchIndexes = new int[BATCH_SIZE];
+        private final int[] batchLines = new int[BATCH_SIZE];
+        private final byte[] buffer = new byte[READ_BUFFER_BYTES];
+        private int index = 0;
+        private long received = 0;
+        private boolean done = false;
+        // why a batch could not be committed, the upload ends there
+        private RuntimeException failed;
+
+        Upload(UUID transactionId, AsyncContext async) throws IOException {
+            this.transactionId = transactionId;
+            this.async = async;
+            this.input = async.getRequest().getInputStream();
+            this.summary = new IngestSummary(transactionId);
+            this.framer = new JsonObjectFramer(this, maxEventBytes);
+        }
+
+        @Override
+        public void onDataAvailable() throws IOException {
+            try {
+                // only read what is there, returning once isReady says we would block - we are called again when there is more
+                while (!done && input.isReady()) {
+                    int read = input.read(buffer);
+                    if (read < 0) {
+                        return;
+                    }
+                    received += read;
+                    if (received > maxUploadBytes) {
+                        logger.warn("Request[" + transactionId + "] exceeds[" + maxUploadBytes + "] bytes");
+                        complete(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+                        return;
+                    }
+                    framer.feed(buffer, 0, read);
+                    if (failed != null) {
+                        complete(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+                        return;
+                    }
+                }
+            } catch (IllegalStateException e) {
+                // a malformed payload ends the upload, everything accepted up to this point is kept
+                logger.error("Request[" + transactionId + "]", e);
+                summary.rejected(index + 1, 0, "malformed payload: " + e.getMessage());
+                complete(HttpServletResponse.SC_OK);
+            }
+        }
+
+        @Override
+        public void onAllDataRead() throws IOException {
+            if (done) {
+                return;
+            }
+            try {
+                framer.finish();
+            } catch (IllegalStateException e) {
+                summary.rejected(index + 1, 0, "malformed payload: " + e.getMessage());
+            }
+            complete(HttpServletResponse.SC_OK);
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            logger.error("Request[" + transactionId + "] upload failed", t);
+            if (!done) {
+                done = true;
+                async.complete();
+            }
+        }
+
+        @Override
+        public void onObject(String json, int line) {
+            if (failed != null) {
+                return;
+            }
+            index++;
+            try {
+                Event event = ingestService.adapt(transactionId, new JSONObject(json));
+                batchIndexes[batch.size()] = index;
+                batchLines[batch.size()] = line;
+                batch.add(event);
+            } catch (JSONException | UnsupportedEventException e) {
+                summary.rejected(index, line, e.getMessage());
+            }
+            if (batch.size() >= BATCH_SIZE) {
+                flush();
+            }
+        }
+
+        @Override
+        public void onValue(String json, int line) {
+            if (failed != null) {
+                return;
+            }
+            index++;
+            summary.rejected(index, line, "expecting JSONObject, instead found[" + json + "]");
+        }
+
+        /**
+         * Commit the batch, its entries count as accepted once it is - or as rejected when it can not be,
+         * which ends the upload (see failed)
+         */
+        private void flush() {
+            if (batch.isEmpty() || failed != null) {
+                return;
+            }
+            try {
+                ingestService.commit(transactionId, batch);
+                for (int i = 0; i < batch.size(); i++) {
+                    summary.accepted(batchIndexes[i]);
+                }
+            } catch (RuntimeException e) {
+                logger.error("Request[" + transactionId + "] unable to commit[" + batch.size() + "] events", e);
+                failed = e;
+                for (int i = 0; i < batch.size(); i++) {
+                    summary.rejected(batchIndexes[i], batchLines[i], "not committed: " + e.getMessage());
+                }
+            }
+            batch.clear();
+        }
+
+        /**
+         * Commit what is left and answer with the summary, a 500 rather than the given status if anything
+         * could not be committed
+         */
+        private void complete(int status) throws IOException {
+            done = true;
+            try {
+                flush();
+                logger.info("Request[" + transactionId + "] accepted[" + summary.getAccepted() + "] rejected[" + summary.getRejected() + "] events");
+
+                HttpServletResponse response = (HttpServletResponse) async.getResponse();
+                response.setStatus(failed != null ? HttpServletResponse.SC_INTERNAL_SERVER_ERROR : status);
+                response.setContentType("application/json");
+                response.setCharacterEncoding("UTF-8");
+                objectMapper.writeValue(response.getOutputStream(), summary);
+            } finally {
+                async.complete();
+            }
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) {
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) throws IOException {
+            logger.warn("Request[" + transactionId + "] timed out after[" + timeoutMillis + " ms]");
+            if (!done) {
+                // whatever arrived in time is kept
+                complete(HttpServletResponse.SC_REQUEST_TIMEOUT);
+            }
+        }
+
+        @Override
+        public void onError(AsyncEvent event) {
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package com.j2clark.sflycc.controllers;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.j2clark.sflycc.domain.EventType;
+import com.j2clark.sflycc.reports.CustomerPageWriter;
+import com.j2clark.sflycc.reports.CustomerReportService;
+import com.j2clark.sflycc.reports.DistinctCustomerCount;
+import com.j2clark.sflycc.reports.Leaderboard;
+import com.j2clark.sflycc.reports.RankedCustomers;
+import com.j2clark.sflycc.reports.SpendSketch;
+import com.j2clark.sflycc.reports.SpenderEstimate;
+import com.j2clark.sflycc.services.EventHistory;
+
+import org.joda.money.CurrencyMismatchException;
+import org.joda.money.Money;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.ResponseBody;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+import java.io.IOException;
+import java.util.List;
+
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Customer reports over the whole event history, only available when the history is (sflycc.wal.dir is set)
+ */
+@Controller
+@ConditionalOnProperty("sflycc.wal.dir")
+@RequestMapping(value = "/report", produces = "application/json")
+public class ReportController {
+
+    private static final JsonFactory JSON = new JsonFactory();
+
+    private Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final CustomerReportService customerReportService;
+    private final EventHistory eventHistory;
+    private final Leaderboard leaderboard;
+    private final SpendSketch spendSketch;
+
+    @Autowired
+    public ReportController(final CustomerReportService customerReportService,
+                            final EventHistory eventHistory,
+                            final Leaderboard leaderboard,
+                            final SpendSketch spendSketch) {
+        this.customerReportService = customerReportService;
+        this.eventHistory = eventHistory;
+        this.leaderboard = leaderboard;
+        this.spendSketch = spendSketch;
+    }
+
+    /**
+     * Customers by LTV, highest first, a page at a time - pass the previous page's next cursor to get the following one
+     *
+     * Without days the whole history is ranked (straight off the leaderboard), otherwise only the last given
+     * number of days up to the latest event. A large limit is fine for exports, the response is streamed.
+     */
+    @RequestMapping(value = "/ltv", method = RequestMethod.GET)
+    public void ltv(@RequestParam(value = "limit", defaultValue = "100") int limit,
+                    @RequestParam(value = "cursor", required = false) String cursor,
+                    @RequestParam(value = "days", required = false) Integer days,
+                    final HttpServletResponse response) throws IOException {
+
+        RankedCustomers ranking = days == null
+                                  ? leaderboard
+                                  // cached while no events arrive, so paging through does not recompute
+                                  : customerReportService.rankLTVCustomersLastDays(eventHistory.data(), days);
+
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        CustomerPageWriter.write(ranking, cursor, limit, response.getOutputStream());
+    }
+
+    /**
+     * Approximate top spenders across the whole history, off a sketch which follows it - see SpendSketch
+     *
+     *      {"epsilon": 0.0001, "spenders": [{"rank": 1, "customerId": "...", "spend": {"currency": "USD", "amount": 123.45},
+     *                                        "error": {"currency": "USD", "amount": 0.00}, "guaranteed": true}, ...]}
+     */
+    @RequestMapping(value = "/spenders", method = RequestMethod.GET)
+    public void spenders(@RequestParam(value = "limit", defaultValue = "10") int limit,
+                         final HttpServletResponse response) throws IOException {
+        if (limit < 1) {
+            throw new IllegalArgumentException("limit must be >= 1");
+        }
+        List<SpenderEstimate> spenders = customerReportService.approximateTopXSpenders(limit, spendSketch);
+
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        try (JsonGenerator json = JSON.createGenerator(response.getOutputStream(), JsonEncoding.UTF8)) {
+            json.writeStartObject();
+            json.writeNumberField("epsilon", spendSketch.epsilon());
+            json.writeArrayFieldStart("spenders");
+            int rank = 0;
+            for (SpenderEstimate spender : spenders) {
+                json.writeStartObject();
+                json.writeNumberField("rank", ++rank);
+                json.writeStringField("customerId", spender.getCustomerId());
+                writeMoney(json, "spend", spender.getSpend());
+                writeMoney(json, "error", spender.getError());
+                json.writeBooleanField("guaranteed", spender.isGuaranteed());
+                json.writeEndObject();
+            }
+            json.writeEndArray();
+            json.writeEndObject();
+        }
+    }
+
+    private static void writeMoney(JsonGenerator json, String field, Money money) throws IOException {
+        json.writeObjectFieldStart(field);
+        json.writeStringField("currency", money.getCurrencyUnit().getCode());
+        json.writeNumberField("amount", money.getAmount());
+        json.writeEndObject();
+    }
+
+    /**
+     * Estimated distinct customers with events of the given type (e.g. SITE_VISIT, ORDER), in total and per day
+     *
+     * Over [from, to) when both are given (epoch millis, rounded out to whole UTC days), otherwise over the last
+     * given number of days up to the latest event.
+     */
+    @RequestMapping(value = "/distinct-customers", method = RequestMethod.GET)
+    public @ResponseBody DistinctCustomerCount distinctCustomers(@RequestParam("type") String type,
+                                                                 @RequestParam(value = "from", required = false) Long from,
+                                                                 @RequestParam(value = "to", required = false) Long to,
+                                                                 @RequestParam(value = "days", defaultValue = "30") int days) {
+        EventType eventType = EventType.of(type.toUpperCase());
+        if (from != null && to != null) {
+            return customerReportService.distinctCustomers(eventHistory.data(), eventType, from, to);
+        }
+        return customerReportService.distinctCustomersLastDays(eventHistory.data(), eventType, days);
+    }
+
+    @ExceptionHandler(IllegalArgumentException.class)
+    @ResponseStatus(HttpStatus.BAD_REQUEST)
+    public void badRequest(IllegalArgumentException e) {
+        logger.debug("Bad report request: " + e.getMessage());
+    }
+
+    @ExceptionHandler(CurrencyMismatchException.class)
+    @ResponseStatus(HttpStatus.CONFLICT)
+    public void currencyMismatch(CurrencyMismatchException e) {
+        logger.warn("Report unavailable: " + e.getMessage());
+    }
+}
@@ -0,0 +1,53 @@
+package com.j2clark.sflycc.domain;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+
+/**
+ * Intern table backing the of(..) factories of small vocabularies such as EventType and EventVerb
+ *
+ * Canonical instances are keyed by their normalized value, and we additionally remember the raw (un-normalized)
+ * strings we have seen, so a repeated lookup costs a single map get with no trim/upper casing.
+ *
+ * Both maps are bounded, since values arrive straight from clients. Once full we hand out
+ * non canonical instances, which is why equals() of the interned types still falls back to a value compare
+ */
+class CanonicalTable<T> {
+
+    private final int maxSize;
+    private final ConcurrentMap<String, T> canonical = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, T> aliases = new ConcurrentHashMap<>();
+
+    CanonicalTable(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @param raw value as received
+     * @param normalizer converts the raw value into its normalized form, validating it along the way
+     * @param factory creates a new instance for a normalized value
+     */
+    T intern(String raw, Function<String, String> normalizer, Function<String, T> factory) {
+        if (raw != null) {
+            T existing = aliases.get(raw);
+            if (existing != null) {
+                return existing;
+            }
+        }
+
+        String normalized = normalizer.apply(raw);
+        T instance = canonical.get(normalized);
+        if (instance == null) {
+            if (canonical.size() >= maxSize) {
+                return factory.apply(normalized);
+            }
+            instance = canonical.computeIfAbsent(normalized, factory);
+        }
+
+        if (aliases.size() < maxSize) {
+            aliases.putIfAbsent(raw, instance);
+        }
+        return instance;
+    }
+}
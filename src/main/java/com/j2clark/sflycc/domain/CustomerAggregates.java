@@ -0,0 +1,614 @@
+package com.j2clark.sflycc.domain;
+
+import org.joda.money.CurrencyUnit;
+import org.joda.money.Money;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Running per customer totals of ORDER and SITE_VISIT events, maintained by Data as events are appended
+ *
+ * Customers are identified by their customer_id dictionary id (see StringDictionary), in the dictionary of the
+ * store the events are appended to. Each instance maps them to its own dense slots through a small open
+ * addressing table, and keeps one primitive array per aggregate.
+ *
+ * Updates are synchronized, readers work off a copy (see snapshot) so reports never block ingest for long.
+ * Structures which need to follow each change (e.g. a leaderboard) can register a Listener instead.
+ *
+ * Windowed instances (see the constructor) also keep daily (UTC) totals of each customer's last HORIZON_DAYS days,
+ * so totals over a recent window (see window) are a few sums rather than a rescan of the events. Only days with
+ * activity are kept, in a small per customer array which is updated in place and only reallocated (doubling) when
+ * a new day does not fit - most events land on a customer's newest day and allocate nothing. window sums them while
+ * holding the lock, O(customers + days). It costs roughly 24 to 48 bytes per customer and active day,
+ * so only aggregates which are queried by window (the event history's) should keep them.
+ *
+ * add never fails once it has started changing things (sums saturate rather than overflow), so the aggregates
+ * always account for an event either fully or not at all.
+ */
+public class CustomerAggregates {
+
+    private static final int EMPTY = -1;
+
+    public static final long DAY = 24 * 60 * 60 * 1000L;
+
+    // days of activity kept per customer, enough for a 90 day window
+    public static final int HORIZON_DAYS = 96;
+
+    // customerDictionary id -> slot
+    private int[] table = newTable(64);
+
+    // per slot
+    private int[] customerIds = new int[16];
+    private long[] firstTimestamps = new long[16];
+    private long[] lastTimestamps = new long[16];
+    private int[] visits = new int[16];
+    private int[] orders = new int[16];
+    private long[] spent = new long[16];                // minor units
+    private CurrencyUnit[] currencies = new CurrencyUnit[16];
+    private CurrencyUnit[] mismatchedCurrencies = new CurrencyUnit[16];
+    private int size = 0;
+
+    // per slot days with activity, oldest first, DAY_LONGS per day: day, visits << 32 | orders, spent
+    // null unless windowed, and per slot until the customer's first event; dayCounts of each are in use
+    private long[][] dailyTotals;
+    private int[] dayCounts;
+    private static final int DAY_LONGS = 3;
+
+    // latest event timestamp of any customer, "now" as far as window queries are concerned
+    private long newestTimestamp = Long.MIN_VALUE;
+
+    private final List<Listener> listeners = new ArrayList<>();
+
+    private final StringDictionary customerDictionary;
+
+    /**
+     * @param customerDictionary dictionary customer ids are encoded in, that of the store the events are appended to
+     */
+    public CustomerAggregates(StringDictionary customerDictionary) {
+        this(customerDictionary, false);
+    }
+
+    /**
+     * @param windowed whether to keep the daily totals window queries need
+     */
+    public CustomerAggregates(StringDictionary customerDictionary, boolean windowed) {
+        this.customerDictionary = customerDictionary;
+        this.dailyTotals = windowed ? new long[16][] : null;
+        this.dayCounts = windowed ? new int[16] : null;
+    }
+
+    public boolean windowed() {
+        return dailyTotals != null;
+    }
+
+    /**
+     * @return dictionary to decode customer ids with
+     */
+    public StringDictionary customerDictionary() {
+        return customerDictionary;
+    }
+
+    /**
+     * Told about every change to a customer's aggregates, called while the aggregates are locked
+     * so listeners see changes in order - keep it quick
+     */
+    public interface Listener {
+        void updated(int customerId, long firstTimestamp, long lastTimestamp, int visits, int orders, long spent,
+                     CurrencyUnit currency, CurrencyUnit mismatchedCurrency);
+    }
+
+    /**
+     * Register a listener, which is first told about every customer seen so far
+     */
+    public synchronized void addListener(Listener listener) {
+        for (int slot = 0; slot < size; slot++) {
+            notify(listener, slot);
+        }
+        listeners.add(listener);
+    }
+
+    private void notify(Listener listener, int slot) {
+        listener.updated(customerIds[slot], firstTimestamps[slot], lastTimestamps[slot], visits[slot], orders[slot],
+                         spent[slot], currencies[slot], mismatchedCurrencies[slot]);
+    }
+
+    /**
+     * Account for the given event, anything other than ORDER and SITE_VISIT is ignored
+     */
+    public void add(Event event) {
+        EventType type = event.getType();
+        if (EventType.ORDER != type && EventType.SITE_VISIT != type) {
+            return;
+        }
+        int customerId = customerId(event);
+        if (customerId < 0) {
+            return;
+        }
+
+        Money amount = null;
+        long minor = 0;
+        if (EventType.ORDER == type) {
+            Event.Attribute attribute = event.getAttribute("total_amount");
+            amount = attribute != null ? (Money) attribute.getValue() : null;
+            if (amount != null) {
+                try {
+                    minor = amount.getAmountMinorLong();
+                } catch (ArithmeticException e) {
+                    minor = amount.isNegative() ? Long.MIN_VALUE : Long.MAX_VALUE;
+                }
+            }
+        }
+
+        synchronized (this) {
+            int slot = slot(customerId);
+            long timestamp = event.getTimestamp();
+            if (timestamp < firstTimestamps[slot]) {
+                firstTimestamps[slot] = timestamp;
+            }
+            if (timestamp > lastTimestamps[slot]) {
+                lastTimestamps[slot] = timestamp;
+            }
+            if (timestamp > newestTimestamp) {
+                newestTimestamp = timestamp;
+            }
+
+            if (EventType.SITE_VISIT == type) {
+                visits[slot]++;
+            } else {
+                orders[slot]++;
+                if (amount != null) {
+                    if (currencies[slot] == null) {
+                        currencies[slot] = amount.getCurrencyUnit();
+                    } else if (!currencies[slot].equals(amount.getCurrencyUnit()) && mismatchedCurrencies[slot] == null) {
+                        mismatchedCurrencies[slot] = amount.getCurrencyUnit();
+                    }
+                    spent[slot] = saturatedAdd(spent[slot], minor);
+                }
+            }
+            if (dailyTotals != null) {
+                addDay(slot, day(timestamp), EventType.SITE_VISIT == type ? 1 : 0, EventType.ORDER == type ? 1 : 0, minor);
+            }
+
+            for (Listener listener : listeners) {
+                notify(listener, slot);
+            }
+        }
+    }
+
+    /**
+     * @return dictionary id of the customer the event belongs to, -1 if it has none
+     */
+    private int customerId(Event event) {
+        Event.Attribute attribute = event.getAttribute("customer_id");
+        if (attribute instanceof DictionaryAttribute) {
+            return ((DictionaryAttribute) attribute).id(customerDictionary);
+        }
+        // not a dictionary attribute, e.g. built by hand
+        Object value = attribute != null ? attribute.getValue() : null;
+        return value instanceof String ? customerDictionary.encode((String) value) : -1;
+    }
+
+    private static int day(long timestamp) {
+        return (int) Math.floorDiv(timestamp, DAY);
+    }
+
+    /**
+     * @return a + b, Long.MAX_VALUE (or MIN_VALUE) rather than wrapping around
+     */
+    static long saturatedAdd(long a, long b) {
+        long sum = a + b;
+        if (((a ^ sum) & (b ^ sum)) < 0) {
+            return a < 0 ? Long.MIN_VALUE : Long.MAX_VALUE;
+        }
+        return sum;
+    }
+
+    /**
+     * Add to the slot's totals for the given day, dropping days which fall out of the horizon
+     * Days older than the horizon of the slot's newest day are ignored
+     */
+    private void addDay(int slot, int day, int addVisits, int addOrders, long addSpent) {
+        long[] totals = dailyTotals[slot];
+        int count = dayCounts[slot];
+        int newest = count > 0 ? (int) totals[(count - 1) * DAY_LONGS] : Integer.MIN_VALUE;
+        if (count > 0 && day <= newest - HORIZON_DAYS) {
+            return;
+        }
+
+        // events mostly arrive in order, so the day is usually the newest
+        int at = count;
+        while (at > 0 && (int) totals[(at - 1) * DAY_LONGS] >= day) {
+            at--;
+        }
+        if (at == count || (int) totals[at * DAY_LONGS] != day) {
+            // a new day, first dropping those which fall out of the horizon
+            int dropped = 0;
+            while (dropped < at && (int) totals[dropped * DAY_LONGS] <= day - HORIZON_DAYS) {
+                dropped++;
+            }
+            if (dropped > 0) {
+                System.arraycopy(totals, dropped * DAY_LONGS, totals, 0, (count - dropped) * DAY_LONGS);
+                count -= dropped;
+                at -= dropped;
+            }
+            if (totals == null || totals.length == count * DAY_LONGS) {
+                // there are never more than HORIZON_DAYS days within the horizon
+                int capacity = totals == null ? 1 : Math.min(count << 1, HORIZON_DAYS);
+                totals = totals == null ? new long[capacity * DAY_LONGS] : Arrays.copyOf(totals, capacity * DAY_LONGS);
+                dailyTotals[slot] = totals;
+            }
+            System.arraycopy(totals, at * DAY_LONGS, totals, (at + 1) * DAY_LONGS, (count - at) * DAY_LONGS);
+            totals[at * DAY_LONGS] = day;
+            totals[at * DAY_LONGS + 1] = 0;
+            totals[at * DAY_LONGS + 2] = 0;
+            dayCounts[slot] = count + 1;
+        }
+
+        int index = at * DAY_LONGS;
+        long counts = totals[index + 1];
+        totals[index + 1] = (long) ((int) (counts >>> 32) + addVisits) << 32 | ((int) counts + addOrders) & 0xffffffffL;
+        totals[index + 2] = saturatedAdd(totals[index + 2], addSpent);
+    }
+
+    private int slot(int customerId) {
+        int mask = table.length - 1;
+        int index = mix(customerId) & mask;
+        int slot;
+        while ((slot = table[index]) != EMPTY) {
+            if (customerIds[slot] == customerId) {
+                return slot;
+            }
+            index = (index + 1) & mask;
+        }
+
+        slot = size++;
+        if (slot == customerIds.length) {
+            grow(slot << 1);
+        }
+        customerIds[slot] = customerId;
+        firstTimestamps[slot] = Long.MAX_VALUE;
+        lastTimestamps[slot] = Long.MIN_VALUE;
+        table[index] = slot;
+
+        // keep the table at most half full
+        if (size * 2 > table.length) {
+            rehash(table.length << 1);
+        }
+        return slot;
+    }
+
+    private void grow(int capacity) {
+        customerIds = Arrays.copyOf(customerIds, capacity);
+        firstTimestamps = Arrays.copyOf(firstTimestamps, capacity);
+        lastTimestamps = Arrays.copyOf(lastTimestamps, capacity);
+        visits = Arrays.copyOf(visits, capacity);
+        orders = Arrays.copyOf(orders, capacity);
+        spent = Arrays.copyOf(spent, capacity);
+        currencies = Arrays.copyOf(currencies, capacity);
+        mismatchedCurrencies = Arrays.copyOf(mismatchedCurrencies, capacity);
+        if (dailyTotals != null) {
+            dailyTotals = Arrays.copyOf(dailyTotals, capacity);
+            dayCounts = Arrays.copyOf(dayCounts, capacity);
+        }
+    }
+
+    private void rehash(int capacity) {
+        int[] table = newTable(capacity);
+        int mask = capacity - 1;
+        for (int slot = 0; slot < size; slot++) {
+            int index = mix(customerIds[slot]) & mask;
+            while (table[index] != EMPTY) {
+                index = (index + 1) & mask;
+            }
+            table[index] = slot;
+        }
+        this.table = table;
+    }
+
+    private static int[] newTable(int capacity) {
+        int[] table = new int[capacity];
+        Arrays.fill(table, EMPTY);
+        return table;
+    }
+
+    private static int mix(int id) {
+        int h = id * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * @return a consistent copy of the aggregates, taken in O(customers) array copies
+     */
+    public synchronized Snapshot snapshot() {
+        return new Snapshot(customerDictionary,
+                            size,
+                            Arrays.copyOf(customerIds, size),
+                            Arrays.copyOf(firstTimestamps, size),
+                            Arrays.copyOf(lastTimestamps, size),
+                            Arrays.copyOf(visits, size),
+                            Arrays.copyOf(orders, size),
+                            Arrays.copyOf(spent, size),
+                            Arrays.copyOf(currencies, size),
+                            Arrays.copyOf(mismatchedCurrencies, size));
+    }
+
+    /**
+     * @return timestamp of the latest event seen, Long.MIN_VALUE if there were none
+     */
+    public synchronized long newestTimestamp() {
+        return newestTimestamp;
+    }
+
+    /**
+     * Totals over the last given number of days, up to and including the day of the latest event seen
+     */
+    public Snapshot lastDays(int days) {
+        long to;
+        synchronized (this) {
+            if (size == 0) {
+                return snapshot();
+            }
+            to = (day(newestTimestamp) + 1) * DAY;
+        }
+        return window(to - days * DAY, to);
+    }
+
+    /**
+     * Totals over the events in [from, to), rounded out to whole (UTC) days
+     *
+     * First and last timestamps are those of the first and last day with activity in the window, which is as
+     * precise as the daily totals get. Customers without activity in the window are still present, with zero totals.
+     *
+     * @throws IllegalArgumentException if the window reaches back further than HORIZON_DAYS before the latest event
+     * @throws IllegalStateException if the aggregates are not windowed
+     */
+    public synchronized Snapshot window(long from, long to) {
+        if (from >= to) {
+            throw new IllegalArgumentException("Empty window [" + from + ", " + to + ")");
+        }
+        if (dailyTotals == null) {
+            throw new IllegalStateException("Daily totals are not kept by these aggregates");
+        }
+
+        int fromDay = day(from);
+        int toDay = day(to - 1);
+        if (size > 0 && fromDay <= day(newestTimestamp) - HORIZON_DAYS) {
+            throw new IllegalArgumentException("Window starts more than " + HORIZON_DAYS + " days before the latest event");
+        }
+
+        long[] firsts = new long[size];
+        long[] lasts = new long[size];
+        int[] windowVisits = new int[size];
+        int[] windowOrders = new int[size];
+        long[] windowSpent = new long[size];
+        for (int slot = 0; slot < size; slot++) {
+            firsts[slot] = Long.MAX_VALUE;
+            lasts[slot] = Long.MIN_VALUE;
+            long[] totals = dailyTotals[slot];
+            for (int index = 0; index < dayCounts[slot] * DAY_LONGS; index += DAY_LONGS) {
+                int day = (int) totals[index];
+                if (day < fromDay) {
+                    continue;
+                }
+                if (day > toDay) {
+                    break;
+                }
+                windowVisits[slot] += (int) (totals[index + 1] >>> 32);
+                windowOrders[slot] += (int) totals[index + 1];
+                windowSpent[slot] = saturatedAdd(windowSpent[slot], totals[index + 2]);
+                firsts[slot] = Math.min(firsts[slot], day * DAY);
+                lasts[slot] = day * DAY;
+            }
+        }
+        return new Snapshot(customerDictionary, size, Arrays.copyOf(customerIds, size), firsts, lasts, windowVisits,
+                            windowOrders, windowSpent, Arrays.copyOf(currencies, size),
+                            Arrays.copyOf(mismatchedCurrencies, size));
+    }
+
+    /**
+     * @return a copy of everything but the listeners, e.g. to write out while events keep being added here
+     */
+    public synchronized CustomerAggregates copy() {
+        CustomerAggregates copy = new CustomerAggregates(customerDictionary, dailyTotals != null);
+        // room for the copy to grow, should anyone add to it
+        int capacity = Math.max(size, 16);
+        copy.table = table.clone();
+        copy.customerIds = Arrays.copyOf(customerIds, capacity);
+        copy.firstTimestamps = Arrays.copyOf(firstTimestamps, capacity);
+        copy.lastTimestamps = Arrays.copyOf(lastTimestamps, capacity);
+        copy.visits = Arrays.copyOf(visits, capacity);
+        copy.orders = Arrays.copyOf(orders, capacity);
+        copy.spent = Arrays.copyOf(spent, capacity);
+        copy.currencies = Arrays.copyOf(currencies, capacity);
+        copy.mismatchedCurrencies = Arrays.copyOf(mismatchedCurrencies, capacity);
+        copy.size = size;
+        if (dailyTotals != null) {
+            // the per slot arrays are changed in place, so are copied too
+            copy.dailyTotals = new long[capacity][];
+            for (int slot = 0; slot < size; slot++) {
+                copy.dailyTotals[slot] = dailyTotals[slot] != null ? dailyTotals[slot].clone() : null;
+            }
+            copy.dayCounts = Arrays.copyOf(dayCounts, capacity);
+        }
+        copy.newestTimestamp = newestTimestamp;
+        return copy;
+    }
+
+    /**
+     * Write the aggregates out, see readFrom
+     *
+     *      newestTimestamp(8) size(4) [customer_id first(8) last(8) visits(4) orders(4) spent(8) currency mismatched
+     *                                  newestDay(4) days(4) [day(4) visits(4) orders(4) spent(8)]*]*
+     *
+     * Customers are written by value rather than dictionary id, ids are only meaningful within a store.
+     * Only days with activity are written, currencies are codes ("" for none).
+     */
+    public synchronized void writeTo(DataOutput out) throws IOException {
+        out.writeLong(newestTimestamp);
+        out.writeInt(size);
+        for (int slot = 0; slot < size; slot++) {
+            out.writeUTF(customerDictionary.decode(customerIds[slot]));
+            out.writeLong(firstTimestamps[slot]);
+            out.writeLong(lastTimestamps[slot]);
+            out.writeInt(visits[slot]);
+            out.writeInt(orders[slot]);
+            out.writeLong(spent[slot]);
+            out.writeUTF(currencies[slot] != null ? currencies[slot].getCode() : "");
+            out.writeUTF(mismatchedCurrencies[slot] != null ? mismatchedCurrencies[slot].getCode() : "");
+
+            long[] totals = dailyTotals != null ? dailyTotals[slot] : null;
+            int days = dailyTotals != null ? dayCounts[slot] : 0;
+            out.writeInt(days > 0 ? (int) totals[(days - 1) * DAY_LONGS] : Integer.MIN_VALUE);
+            out.writeInt(days);
+            for (int index = 0; index < days * DAY_LONGS; index += DAY_LONGS) {
+                out.writeInt((int) totals[index]);
+                out.writeInt((int) (totals[index + 1] >>> 32));
+                out.writeInt((int) totals[index + 1]);
+                out.writeLong(totals[index + 2]);
+            }
+        }
+    }
+
+    /**
+     * Read aggregates written by writeTo
+     *
+     * @param customerDictionary of the store the aggregates are for, customers are encoded in it as they are read
+     * @param windowed whether to keep the daily totals, there are none if the aggregates written were not windowed
+     */
+    public static CustomerAggregates readFrom(DataInput in, StringDictionary customerDictionary, boolean windowed)
+        throws IOException {
+        CustomerAggregates aggregates = new CustomerAggregates(customerDictionary, windowed);
+        aggregates.newestTimestamp = in.readLong();
+        int size = in.readInt();
+        if (size < 0) {
+            throw new IllegalStateException("Corrupt customer count[" + size + "]");
+        }
+        for (int i = 0; i < size; i++) {
+            int slot = aggregates.slot(customerDictionary.encode(in.readUTF()));
+            aggregates.firstTimestamps[slot] = in.readLong();
+            aggregates.lastTimestamps[slot] = in.readLong();
+            aggregates.visits[slot] = in.readInt();
+            aggregates.orders[slot] = in.readInt();
+            aggregates.spent[slot] = in.readLong();
+            aggregates.currencies[slot] = currency(in.readUTF());
+            aggregates.mismatchedCurrencies[slot] = currency(in.readUTF());
+
+            // newest day, the last of the days
+            in.readInt();
+            int days = in.readInt();
+            if (days < 0 || days > HORIZON_DAYS) {
+                throw new IllegalStateException("Corrupt day count[" + days + "]");
+            }
+            long[] totals = new long[days * DAY_LONGS];
+            for (int index = 0; index < totals.length; index += DAY_LONGS) {
+                totals[index] = in.readInt();
+                totals[index + 1] = (long) in.readInt() << 32 | in.readInt() & 0xffffffffL;
+                totals[index + 2] = in.readLong();
+            }
+            if (windowed && days > 0) {
+                aggregates.dailyTotals[slot] = totals;
+                aggregates.dayCounts[slot] = days;
+            }
+        }
+        return aggregates;
+    }
+
+    private static CurrencyUnit currency(String code) {
+        return code.isEmpty() ? null : CurrencyUnit.of(code);
+    }
+
+    /**
+     * Point in time copy, customers are addressed by slot (0 <= slot < size())
+     */
+    public static class Snapshot {
+        private final int size;
+        private final int[] customerIds;
+        private final long[] firstTimestamps;
+        private final long[] lastTimestamps;
+        private final int[] visits;
+        private final int[] orders;
+        private final long[] spent;
+        private final CurrencyUnit[] currencies;
+        private final CurrencyUnit[] mismatchedCurrencies;
+        private final StringDictionary customerDictionary;
+
+        private Snapshot(StringDictionary customerDictionary, int size, int[] customerIds, long[] firstTimestamps, long[] lastTimestamps, int[] visits,
+                         int[] orders, long[] spent, CurrencyUnit[] currencies, CurrencyUnit[] mismatchedCurrencies) {
+            this.size = size;
+            this.customerIds = customerIds;
+            this.firstTimestamps = firstTimestamps;
+            this.lastTimestamps = lastTimestamps;
+            this.visits = visits;
+            this.orders = orders;
+            this.spent = spent;
+            this.currencies = currencies;
+            this.mismatchedCurrencies = mismatchedCurrencies;
+            this.customerDictionary = customerDictionary;
+        }
+
+        /**
+         * @return dictionary to decode customerId(slot) with
+         */
+        public StringDictionary customerDictionary() {
+            return customerDictionary;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        /**
+         * @return customer_id dictionary id
+         */
+        public int customerId(int slot) {
+            return customerIds[slot];
+        }
+
+        public long firstTimestamp(int slot) {
+            return firstTimestamps[slot];
+        }
+
+        public long lastTimestamp(int slot) {
+            return lastTimestamps[slot];
+        }
+
+        public int visits(int slot) {
+            return visits[slot];
+        }
+
+        public int orders(int slot) {
+            return orders[slot];
+        }
+
+        /**
+         * @return total of all orders in minor units of currency(slot)
+         */
+        public long spent(int slot) {
+            return spent[slot];
+        }
+
+        /**
+         * @return currency of the customer's orders, null if none had an amount
+         */
+        public CurrencyUnit currency(int slot) {
+            return currencies[slot];
+        }
+
+        /**
+         * @return a second currency the customer's orders came in, in which case spent(slot) is meaningless
+         * null if all orders were in currency(slot)
+         */
+        public CurrencyUnit mismatchedCurrency(int slot) {
+            return mismatchedCurrencies[slot];
+        }
+    }
+}
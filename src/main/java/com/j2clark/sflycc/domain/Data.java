@@ -1,36 +1,149 @@
 package com.j2clark.sflycc.domain;
 
+import com.j2clark.sflycc.store.ColumnarEventStore;
+import com.j2clark.sflycc.store.EventStore;
+
+import java.io.Closeable;
 import java.util.Collection;
-import java.util.LinkedHashSet;
-import java.util.Set;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A simple DTO for the time being
+ *
+ * Events are kept in an EventStore (columnar by default), getEvents() is a view over the store.
+ * Per customer aggregates and distinct customer sketches are kept up to date as events are appended, for the reports.
+ * Anything else which needs to follow each event (e.g. a SpendSketch) can register a Listener.
+ * Accessors which should not end up in the json representation deliberately avoid the getter naming convention
+ *
+ * Close once done with, stores may hold more than heap (see MappedEventStore)
  */
-public class Data {
+public class Data implements Closeable {
 
     private final UUID transactionId;
-    private final Set<Event> events = new LinkedHashSet<>();
+    private final EventStore events;
+    private final CustomerAggregates customers;
+    private final DistinctCustomers distinctCustomers;
+
+    // bumped after every append, see epoch()
+    private final AtomicLong epoch = new AtomicLong();
+
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
 
     public Data(final UUID transactionId) {
+        this(transactionId, new ColumnarEventStore());
+    }
+
+    public Data(final UUID transactionId, final EventStore events) {
+        this(transactionId, events, false);
+    }
+
+    /**
+     * @param windowed whether the customer aggregates keep the daily totals window reports need, see CustomerAggregates
+     */
+    public Data(final UUID transactionId, final EventStore events, final boolean windowed) {
         this.transactionId = transactionId;
+        this.events = events;
+        this.customers = new CustomerAggregates(events.dictionaries().forAttribute("customer_id"), windowed);
+        this.distinctCustomers = new DistinctCustomers();
+
+        // the store may already hold events, e.g. when reopened
+        for (Event event : events.events()) {
+            customers.add(event);
+            distinctCustomers.add(event);
+        }
+        epoch.set(events.size());
+    }
+
+    /**
+     * Data over a store whose aggregates have already been worked out, e.g. loaded from a snapshot along with it
+     * - they must account for exactly the events in the store, and the customers be in its dictionary
+     */
+    public Data(final UUID transactionId, final EventStore events,
+                final CustomerAggregates customers, final DistinctCustomers distinctCustomers) {
+        this.transactionId = transactionId;
+        this.events = events;
+        this.customers = customers;
+        this.distinctCustomers = distinctCustomers;
+        epoch.set(events.size());
     }
 
-    public Data append(Event event)
+    public synchronized Data append(Event event)
     {
-        events.add(event);
+        events.append(event);
+        customers.add(event);
+        distinctCustomers.add(event);
+        for (Listener listener : listeners) {
+            listener.appended(event);
+        }
+        epoch.incrementAndGet();
 
         return this;
     }
 
+    /**
+     * Told about every event once it is appended, on the appending thread - keep it quick, and do not throw
+     */
+    public interface Listener {
+        void appended(Event event);
+    }
+
+    /**
+     * Register a listener, which is first told about every event appended so far
+     */
+    public synchronized void addListener(Listener listener) {
+        for (Event event : events.events()) {
+            listener.appended(event);
+        }
+        listeners.add(listener);
+    }
+
+    /**
+     * @return number of events appended so far (including any the store held to begin with), which only ever grows.
+     * Everything derived from the events as of an epoch stays valid until the epoch changes, see ReportCache
+     */
+    public long epoch() {
+        return epoch.get();
+    }
+
     public UUID getTransactionId() {
         return transactionId;
     }
 
     public Collection<Event> getEvents() {
+        return events.events();
+    }
+
+    /**
+     * @return the underlying store, for callers which want to scan by segment/column
+     */
+    public EventStore store() {
         return events;
     }
 
+    /**
+     * @return running per customer totals of the events appended so far
+     */
+    public CustomerAggregates customers() {
+        return customers;
+    }
+
+    /**
+     * @return distinct customer counts per event type and day, of the events appended so far
+     */
+    public DistinctCustomers distinctCustomers() {
+        return distinctCustomers;
+    }
+
+    /**
+     * Releases the store, the events can no longer be read afterwards
+     */
+    @Override
+    public void close() {
+        events.close();
+    }
+
 
 }
@@ -0,0 +1,72 @@
+package com.j2clark.sflycc.domain;
+
+/**
+ * String attribute whose value is (or is to be) encoded in a StringDictionary
+ *
+ * Events are bound before we know which store they end up in, so they carry unencoded values (no dictionary)
+ * and are encoded by the store as they are appended, see id(StringDictionary). Events read back from a store
+ * carry the canonical instance held by its dictionary, id() gives the dense id.
+ * Accessors are not named as getters on purpose, so they stay out of the json representation
+ */
+public class DictionaryAttribute extends Event.Attribute<String> {
+
+    private final StringDictionary dictionary;
+    private final int id;
+
+    /**
+     * @return an attribute to be encoded once stored, value may be null
+     */
+    public static DictionaryAttribute of(String key, String value) {
+        return new DictionaryAttribute(key, value);
+    }
+
+    /**
+     * encodes value, which may be null
+     */
+    public static DictionaryAttribute of(String key, StringDictionary dictionary, String value) {
+        if (value == null) {
+            return new DictionaryAttribute(key, dictionary, -1);
+        }
+        return new DictionaryAttribute(key, dictionary, dictionary.encode(value));
+    }
+
+    /**
+     * @param id previously encoded id, -1 for a null value
+     */
+    public DictionaryAttribute(String key, StringDictionary dictionary, int id) {
+        super(key, id >= 0 ? dictionary.decode(id) : null);
+        this.dictionary = dictionary;
+        this.id = id;
+    }
+
+    private DictionaryAttribute(String key, String value) {
+        super(key, value);
+        this.dictionary = null;
+        this.id = -1;
+    }
+
+    /**
+     * @return dictionary the value is encoded in, null if not encoded yet
+     */
+    public StringDictionary dictionary() {
+        return dictionary;
+    }
+
+    /**
+     * @return dictionary id of the value, -1 if the value is null (or not encoded yet)
+     */
+    public int id() {
+        return id;
+    }
+
+    /**
+     * @return id of the value within the given dictionary, encoding it if needed - -1 if the value is null
+     */
+    public int id(StringDictionary target) {
+        if (dictionary == target) {
+            return id;
+        }
+        String value = getValue();
+        return value != null ? target.encode(value) : -1;
+    }
+}
@@ -0,0 +1,172 @@
+package com.j2clark.sflycc.domain;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Distinct customers per EventType and (UTC) day, e.g. how many customers visited, ordered or uploaded
+ *
+ * Maintained by Data as events are appended, one HyperLogLog per type and day - so a question costs a few
+ * sketch merges rather than a walk over the events. CUSTOMER events count the customer in their key,
+ * everything else the customer_id attribute.
+ */
+public class DistinctCustomers {
+
+    private static final long DAY = CustomerAggregates.DAY;
+
+    private final Map<EventType, NavigableMap<Integer, HyperLogLog>> sketches = new ConcurrentHashMap<>();
+
+    public void add(Event event) {
+        String customerId = customerId(event);
+        if (customerId == null) {
+            return;
+        }
+        HyperLogLog sketch = sketches
+            .computeIfAbsent(event.getType(), type -> new ConcurrentSkipListMap<>())
+            .computeIfAbsent(day(event.getTimestamp()), day -> new HyperLogLog());
+        synchronized (sketch) {
+            sketch.add(customerId);
+        }
+    }
+
+    private static String customerId(Event event) {
+        if (EventType.CUSTOMER == event.getType()) {
+            return event.getKey() != null ? event.getKey().getValue() : null;
+        }
+        Event.Attribute attribute = event.getAttribute("customer_id");
+        return attribute != null && attribute.getValue() instanceof String ? (String) attribute.getValue() : null;
+    }
+
+    private static int day(long timestamp) {
+        return (int) Math.floorDiv(timestamp, DAY);
+    }
+
+    /**
+     * @return estimated number of distinct customers with events of the given type in [from, to),
+     * rounded out to whole days
+     */
+    public long count(EventType type, long from, long to) {
+        return sketch(type, from, to).estimate();
+    }
+
+    /**
+     * @return the merged sketch for events of the given type in [from, to) rounded out to whole days,
+     * a copy which may be merged with those of other days or nodes
+     */
+    public HyperLogLog sketch(EventType type, long from, long to) {
+        HyperLogLog merged = new HyperLogLog();
+        NavigableMap<Integer, HyperLogLog> days = sketches.get(type);
+        if (days == null || from >= to) {
+            return merged;
+        }
+        for (HyperLogLog sketch : days.subMap(day(from), true, day(to - 1), true).values()) {
+            synchronized (sketch) {
+                merged.merge(sketch);
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * @return estimated distinct customers per day (day start timestamp -> count) for events of the given type
+     */
+    public NavigableMap<Long, Long> daily(EventType type, long from, long to) {
+        NavigableMap<Long, Long> daily = new ConcurrentSkipListMap<>();
+        NavigableMap<Integer, HyperLogLog> days = sketches.get(type);
+        if (days == null || from >= to) {
+            return daily;
+        }
+        for (Map.Entry<Integer, HyperLogLog> day : days.subMap(day(from), true, day(to - 1), true).entrySet()) {
+            synchronized (day.getValue()) {
+                daily.put(day.getKey() * DAY, day.getValue().estimate());
+            }
+        }
+        return daily;
+    }
+
+    /**
+     * @return a copy of the sketches, e.g. to write out while events keep being added here
+     */
+    public DistinctCustomers copy() {
+        DistinctCustomers copy = new DistinctCustomers();
+        copy.merge(this);
+        return copy;
+    }
+
+    /**
+     * Write the sketches out, see readFrom
+     *
+     *      types(4) [type days(4) [day(4) length(4) sketch]*]*
+     *
+     * Sketches are in HyperLogLog.toBytes form
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeInt(sketches.size());
+        for (Map.Entry<EventType, NavigableMap<Integer, HyperLogLog>> type : sketches.entrySet()) {
+            out.writeUTF(type.getKey().getValue());
+            out.writeInt(type.getValue().size());
+            for (Map.Entry<Integer, HyperLogLog> day : type.getValue().entrySet()) {
+                byte[] sketch;
+                synchronized (day.getValue()) {
+                    sketch = day.getValue().toBytes();
+                }
+                out.writeInt(day.getKey());
+                out.writeInt(sketch.length);
+                out.write(sketch);
+            }
+        }
+    }
+
+    /**
+     * Read sketches written by writeTo
+     */
+    public static DistinctCustomers readFrom(DataInput in) throws IOException {
+        DistinctCustomers distinctCustomers = new DistinctCustomers();
+        int types = in.readInt();
+        for (int t = 0; t < types; t++) {
+            NavigableMap<Integer, HyperLogLog> days = new ConcurrentSkipListMap<>();
+            distinctCustomers.sketches.put(EventType.of(in.readUTF()), days);
+            int count = in.readInt();
+            for (int d = 0; d < count; d++) {
+                int day = in.readInt();
+                int length = in.readInt();
+                if (length <= 0) {
+                    throw new IllegalStateException("Corrupt sketch length[" + length + "]");
+                }
+                byte[] sketch = new byte[length];
+                in.readFully(sketch);
+                try {
+                    days.put(day, HyperLogLog.fromBytes(sketch));
+                } catch (IllegalArgumentException e) {
+                    throw new IllegalStateException("Corrupt sketch for day[" + day + "]", e);
+                }
+            }
+        }
+        return distinctCustomers;
+    }
+
+    /**
+     * Fold in the sketches of another instance, e.g. another node's
+     */
+    public void merge(DistinctCustomers other) {
+        for (Map.Entry<EventType, NavigableMap<Integer, HyperLogLog>> type : other.sketches.entrySet()) {
+            for (Map.Entry<Integer, HyperLogLog> day : type.getValue().entrySet()) {
+                HyperLogLog theirs;
+                synchronized (day.getValue()) {
+                    theirs = day.getValue().copy();
+                }
+                HyperLogLog sketch = sketches
+                    .computeIfAbsent(type.getKey(), t -> new ConcurrentSkipListMap<>())
+                    .computeIfAbsent(day.getKey(), d -> new HyperLogLog());
+                synchronized (sketch) {
+                    sketch.merge(theirs);
+                }
+            }
+        }
+    }
+}
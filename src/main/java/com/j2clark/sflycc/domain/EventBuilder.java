@@ -3,8 +3,6 @@ package com.j2clark.sflycc.domain;
 import com.j2clark.sflycc.processors.UnsupportedEventException;
 
 import org.joda.money.Money;
-import org.joda.time.DateTime;
-import org.joda.time.format.ISODateTimeFormat;
 import org.springframework.util.StringUtils;
 
 import java.util.Collections;
@@ -94,13 +92,20 @@ public class EventBuilder {
         return this;
     }
 
+    public EventType getType() {
+        return type;
+    }
+
+    public EventVerb getVerb() {
+        return verb;
+    }
+
     public static Money parseMoney(String moneyStr) {
         Money money = null;
         if (!StringUtils.isEmpty(moneyStr)) {
-            // NOTE: original sample data shows date format as 123.45 USD, which seems to be non-standard and very difficult to parse
-            // I am making assumption we are using standard (joda) format USD 123.45
-            // otherwise afaik a custom parser will need to be written - which would be very tine consuming and error prone
-            money = Money.parse(moneyStr);
+            // NOTE: original sample data shows format as 123.45 USD, while joda uses USD 123.45
+            // MoneyParser accepts both, and avoids the BigDecimal parse Money.parse goes through
+            money = MoneyParser.parse(moneyStr);
         }
         return money;
     }
@@ -108,12 +113,20 @@ public class EventBuilder {
     public static Date parseISODate(String dateStr) {
         Date d = null;
         if (!StringUtils.isEmpty(dateStr)) {
-            DateTime dateTime = ISODateTimeFormat.dateTime().parseDateTime(dateStr);
-            d = dateTime.toDate();
+            d = new Date(IsoTimestampParser.parse(dateStr));
         }
         return d;
     }
 
+    /**
+     * Allocation free alternative to parseISODate, see IsoTimestampParser
+     *
+     * @throws IllegalArgumentException if the date is empty or can not be parsed
+     */
+    public static long parseEpochMillis(String dateStr) {
+        return IsoTimestampParser.parse(dateStr);
+    }
+
     public Event build() throws UnsupportedEventException {
         if (type == null) {
             throw new UnsupportedEventException("event type cannot be null");
@@ -2,10 +2,31 @@ package com.j2clark.sflycc.domain;
 
 import org.springframework.util.StringUtils;
 
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Keys are mostly unique per event, so rather than an unbounded intern table we keep a small direct mapped
+ * cache of recently seen keys (repeated UPDATEs of the same entity hit it). Two keys may therefore be equal
+ * without being the same instance.
+ */
 public class EventKey {
 
-    public static EventKey of(String type) {
-        return new EventKey(type);
+    private static final int CACHE_SIZE = 4096;
+    private static final AtomicReferenceArray<EventKey> CACHE = new AtomicReferenceArray<>(CACHE_SIZE);
+
+    public static EventKey of(String key) {
+        if (key != null) {
+            int hash = key.hashCode();
+            int slot = (hash ^ (hash >>> 16)) & (CACHE_SIZE - 1);
+            EventKey cached = CACHE.get(slot);
+            if (cached != null && cached.key.equals(key)) {
+                return cached;
+            }
+            EventKey eventKey = new EventKey(key);
+            CACHE.lazySet(slot, eventKey);
+            return eventKey;
+        }
+        return new EventKey(key);
     }
 
     private final String key;
@@ -2,23 +2,42 @@ package com.j2clark.sflycc.domain;
 
 import org.springframework.util.StringUtils;
 
+/**
+ * Instances are canonical (see of), so equality is effectively a reference comparison
+ */
 public class EventType {
 
+    private static final CanonicalTable<EventType> TABLE = new CanonicalTable<>(1024);
+
+    public static final EventType CUSTOMER = of("CUSTOMER");
+    public static final EventType SITE_VISIT = of("SITE_VISIT");
+    public static final EventType IMAGE = of("IMAGE");
+    public static final EventType ORDER = of("ORDER");
+
+    /**
+     * @return the canonical EventType for the given (case insensitive) name
+     */
     public static EventType of(String type) {
-        return new EventType(type);
+        return TABLE.intern(type, EventType::normalize, EventType::new);
     }
 
-    private final String type;
-
-    public EventType(String type) {
+    private static String normalize(String type) {
         if (!StringUtils.isEmpty(type)) {
             // normalize to uppercase
-            this.type = type.trim().toUpperCase();
+            return type.trim().toUpperCase();
         } else {
             throw new IllegalArgumentException("EventType name cannot be empty");
         }
     }
 
+    private final String type;
+    private final int hashCode;
+
+    private EventType(String type) {
+        this.type = type;
+        this.hashCode = type.hashCode();
+    }
+
     public String getValue() {
         return type;
     }
@@ -36,6 +55,7 @@ public class EventType {
             return false;
         }
 
+        // only reached for non canonical instances, see CanonicalTable
         EventType type1 = (EventType) o;
 
         return type.equals(type1.type);
@@ -44,6 +64,6 @@ public class EventType {
 
     @Override
     public int hashCode() {
-        return type.hashCode();
+        return hashCode;
     }
 }
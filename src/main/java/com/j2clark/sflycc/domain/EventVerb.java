@@ -2,27 +2,42 @@ package com.j2clark.sflycc.domain;
 
 import org.springframework.util.StringUtils;
 
+/**
+ * Instances are canonical (see of), so equality is effectively a reference comparison
+ */
 public class EventVerb {
 
-    public static final EventVerb NEW = new EventVerb("NEW");
-    public static final EventVerb UPDATE = new EventVerb("UPDATE");
-    public static final EventVerb DELETE = new EventVerb("DELETE");
+    private static final CanonicalTable<EventVerb> TABLE = new CanonicalTable<>(1024);
 
+    public static final EventVerb NEW = of("NEW");
+    public static final EventVerb UPDATE = of("UPDATE");
+    public static final EventVerb DELETE = of("DELETE");
+    public static final EventVerb UPLOAD = of("UPLOAD");
+
+    /**
+     * @return the canonical EventVerb for the given (case insensitive) name
+     */
     public static EventVerb of(String verb) {
-        return new EventVerb(verb);
+        return TABLE.intern(verb, EventVerb::normalize, EventVerb::new);
     }
 
-    private final String verb;
-
-    public EventVerb(String verb) {
+    private static String normalize(String verb) {
         if (!StringUtils.isEmpty(verb)) {
             // normalize to uppercase
-            this.verb = verb.trim().toUpperCase();
+            return verb.trim().toUpperCase();
         } else {
             throw new IllegalArgumentException("EventVerb name cannot be empty");
         }
     }
 
+    private final String verb;
+    private final int hashCode;
+
+    private EventVerb(String verb) {
+        this.verb = verb;
+        this.hashCode = verb.hashCode();
+    }
+
     public String getValue() {
         return verb;
     }
@@ -40,6 +55,7 @@ public class EventVerb {
             return false;
         }
 
+        // only reached for non canonical instances, see CanonicalTable
         EventVerb verb1 = (EventVerb) o;
 
         return verb.equals(verb1.verb);
@@ -48,6 +64,6 @@ public class EventVerb {
 
     @Override
     public int hashCode() {
-        return verb.hashCode();
+        return hashCode;
     }
 }
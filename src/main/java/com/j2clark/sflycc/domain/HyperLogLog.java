@@ -0,0 +1,185 @@
+package com.j2clark.sflycc.domain;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Distinct count estimate in a fixed 2^precision bytes, standard error about 1.04 / sqrt(2^precision)
+ * (1.6% at the default precision of 12)
+ *
+ * Sketches of the same precision can be merged, giving the estimate for the union - e.g. several days, or the same
+ * day on several nodes (see toBytes / fromBytes). Small sketches start out sparse, holding only the registers set
+ * so far, since most of ours cover a single request's worth of events.
+ *
+ * Not thread safe.
+ */
+public class HyperLogLog {
+
+    public static final int DEFAULT_PRECISION = 12;
+
+    private final int precision;
+    private final int registerCount;
+
+    // sparse form: index << 8 | rank per register set so far, until it would take more than a quarter of the dense form
+    private int[] sparse = new int[4];
+    private int sparseSize = 0;
+    private byte[] registers;
+
+    public HyperLogLog() {
+        this(DEFAULT_PRECISION);
+    }
+
+    public HyperLogLog(int precision) {
+        if (precision < 4 || precision > 18) {
+            throw new IllegalArgumentException("precision must be in [4, 18]");
+        }
+        this.precision = precision;
+        this.registerCount = 1 << precision;
+    }
+
+    public void add(String value) {
+        addHash(hash(value));
+    }
+
+    public void addHash(long hash) {
+        int index = (int) (hash >>> (64 - precision));
+        // position of the first 1 bit after the index bits, the sentinel bit caps it
+        int rank = Long.numberOfLeadingZeros((hash << precision) | (1L << (precision - 1))) + 1;
+        set(index, rank);
+    }
+
+    private void set(int index, int rank) {
+        if (registers != null) {
+            if (rank > registers[index]) {
+                registers[index] = (byte) rank;
+            }
+            return;
+        }
+        for (int i = 0; i < sparseSize; i++) {
+            if (sparse[i] >>> 8 == index) {
+                if (rank > (sparse[i] & 0xff)) {
+                    sparse[i] = index << 8 | rank;
+                }
+                return;
+            }
+        }
+        if (sparseSize == registerCount / 16) {
+            registers = dense();
+            sparse = null;
+            registers[index] = (byte) Math.max(registers[index], rank);
+            return;
+        }
+        if (sparseSize == sparse.length) {
+            sparse = Arrays.copyOf(sparse, sparseSize * 2);
+        }
+        sparse[sparseSize++] = index << 8 | rank;
+    }
+
+    private byte[] dense() {
+        if (registers != null) {
+            return registers;
+        }
+        byte[] dense = new byte[registerCount];
+        for (int i = 0; i < sparseSize; i++) {
+            dense[sparse[i] >>> 8] = (byte) (sparse[i] & 0xff);
+        }
+        return dense;
+    }
+
+    /**
+     * Fold another sketch of the same precision into this one
+     */
+    public HyperLogLog merge(HyperLogLog other) {
+        if (other.precision != precision) {
+            throw new IllegalArgumentException("Cannot merge precision[" + other.precision + "] into [" + precision + "]");
+        }
+        if (other.registers == null) {
+            for (int i = 0; i < other.sparseSize; i++) {
+                set(other.sparse[i] >>> 8, other.sparse[i] & 0xff);
+            }
+            return this;
+        }
+        registers = dense();
+        sparse = null;
+        for (int i = 0; i < registerCount; i++) {
+            if (other.registers[i] > registers[i]) {
+                registers[i] = other.registers[i];
+            }
+        }
+        return this;
+    }
+
+    public HyperLogLog copy() {
+        return new HyperLogLog(precision).merge(this);
+    }
+
+    public long estimate() {
+        byte[] dense = dense();
+        double sum = 0;
+        int zeros = 0;
+        for (byte register : dense) {
+            sum += 1.0 / (1L << register);
+            if (register == 0) {
+                zeros++;
+            }
+        }
+        double m = registerCount;
+        double alpha = registerCount >= 128 ? 0.7213 / (1 + 1.079 / m) : registerCount == 64 ? 0.709 : registerCount == 32 ? 0.697 : 0.673;
+        double estimate = alpha * m * m / sum;
+        // small range correction, linear counting does much better while plenty of registers are still empty
+        if (estimate <= 2.5 * m && zeros > 0) {
+            estimate = m * Math.log(m / zeros);
+        }
+        return Math.round(estimate);
+    }
+
+    public int precision() {
+        return precision;
+    }
+
+    /**
+     * @return precision(1) followed by the registers, for shipping to another node
+     */
+    public byte[] toBytes() {
+        return ByteBuffer.allocate(1 + registerCount).put((byte) precision).put(dense()).array();
+    }
+
+    /**
+     * @throws IllegalArgumentException if the bytes are not those of a sketch, see toBytes
+     */
+    public static HyperLogLog fromBytes(byte[] bytes) {
+        if (bytes == null || bytes.length == 0) {
+            throw new IllegalArgumentException("Expected a precision byte, got no bytes");
+        }
+        HyperLogLog hll = new HyperLogLog(bytes[0]);
+        if (bytes.length != 1 + hll.registerCount) {
+            throw new IllegalArgumentException("Expected[" + (1 + hll.registerCount) + "] bytes, got[" + bytes.length + "]");
+        }
+        // a rank is at most the bits left after the index, plus one
+        int maxRank = 64 - hll.precision + 1;
+        for (int i = 1; i < bytes.length; i++) {
+            if (bytes[i] < 0 || bytes[i] > maxRank) {
+                throw new IllegalArgumentException("Register[" + (i - 1) + "] out of range[" + bytes[i] + "]");
+            }
+        }
+        hll.registers = Arrays.copyOfRange(bytes, 1, bytes.length);
+        hll.sparse = null;
+        return hll;
+    }
+
+    /**
+     * 64 bit FNV-1a over the chars, with a murmur3 finalizer to spread the bits
+     */
+    static long hash(String value) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            h = (h ^ value.charAt(i)) * 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,40 @@
+package com.j2clark.sflycc.domain;
+
+import java.util.UUID;
+
+/**
+ * A simple DTO describing where an asynchronously ingested request is at, see IngestPipeline
+ * The summary is present from ADAPTED on
+ */
+public class IngestStatus {
+
+    public enum State { QUEUED, PARSED, ADAPTED, COMPLETE, FAILED }
+
+    private final UUID transactionId;
+    private final State state;
+    private final IngestSummary summary;
+    private final String error;
+
+    public IngestStatus(final UUID transactionId, final State state, final IngestSummary summary, final String error) {
+        this.transactionId = transactionId;
+        this.state = state;
+        this.summary = summary;
+        this.error = error;
+    }
+
+    public UUID getTransactionId() {
+        return transactionId;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public IngestSummary getSummary() {
+        return summary;
+    }
+
+    public String getError() {
+        return error;
+    }
+}
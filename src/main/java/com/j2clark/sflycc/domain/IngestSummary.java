@@ -0,0 +1,92 @@
+package com.j2clark.sflycc.domain;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * A simple DTO describing the outcome of a streamed ingest request
+ *
+ * Rather than echoing every event back to the client (see Data), we only count the entries accepted and rejected,
+ * and say why for the first MAX_REJECTS rejected - so the summary stays small however large the upload.
+ */
+public class IngestSummary {
+
+    public static final int MAX_REJECTS = 100;
+
+    private final UUID transactionId;
+    private final List<Reject> rejects = new ArrayList<>();
+    private int accepted = 0;
+    private int rejected = 0;
+    private int lastAccepted = 0;
+
+    public IngestSummary(final UUID transactionId) {
+        this.transactionId = transactionId;
+    }
+
+    public IngestSummary accepted(int index) {
+        accepted++;
+        lastAccepted = Math.max(lastAccepted, index);
+        return this;
+    }
+
+    public IngestSummary rejected(int index, int line, String reason) {
+        if (rejects.size() < MAX_REJECTS) {
+            rejects.add(new Reject(index, line, reason));
+        }
+        rejected++;
+        return this;
+    }
+
+    public UUID getTransactionId() {
+        return transactionId;
+    }
+
+    public int getAccepted() {
+        return accepted;
+    }
+
+    public int getRejected() {
+        return rejected;
+    }
+
+    /**
+     * @return index of the last entry accepted, 0 if none were - an upload which was cut short can be resumed
+     * from the entry after it
+     */
+    public int getLastAccepted() {
+        return lastAccepted;
+    }
+
+    /**
+     * @return the first MAX_REJECTS rejected entries, getRejected() has the total
+     */
+    public List<Reject> getRejects() {
+        return Collections.unmodifiableList(rejects);
+    }
+
+    public static class Reject {
+        private final int index;    // ordinal of the entry within the payload, 1 based
+        private final int line;     // line the entry started on, 1 based
+        private final String reason;
+
+        private Reject(int index, int line, String reason) {
+            this.index = index;
+            this.line = line;
+            this.reason = reason;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        public int getLine() {
+            return line;
+        }
+
+        public String getReason() {
+            return reason;
+        }
+    }
+}
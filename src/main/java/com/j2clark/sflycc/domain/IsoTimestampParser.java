@@ -0,0 +1,152 @@
+package com.j2clark.sflycc.domain;
+
+import org.joda.time.format.DateTimeFormatter;
+import org.joda.time.format.ISODateTimeFormat;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Specialised parser for the event_time format we receive on every event, yyyy-MM-ddTHH:mm:ss.SSS(Z|+HH:MM)
+ *
+ * Parsing through joda (formatter -> DateTime -> Date -> millis) costs several allocations per event,
+ * this parser reads the digits in place and returns epoch millis directly.
+ * The epoch day for a yyyy-MM-dd prefix is cached, since events in a batch tend to share the same few days.
+ *
+ * Anything which does not match the fixed shape is handed to joda, so behavior (including errors) is unchanged
+ */
+public final class IsoTimestampParser {
+
+    private static final DateTimeFormatter FALLBACK = ISODateTimeFormat.dateTime();
+
+    private static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+
+    // direct mapped cache of packed (yyyyMMdd << 32 | epochDay) entries, 0 marks an empty slot
+    private static final int DAY_CACHE_SIZE = 1024;
+    private static final AtomicLongArray DAY_CACHE = new AtomicLongArray(DAY_CACHE_SIZE);
+
+    private static final int[] DAYS_IN_MONTH = {31, 29, 31, 30, 31, 30, 31, 31, 30, 31, 30, 31};
+
+    private IsoTimestampParser() {
+    }
+
+    /**
+     * @return epoch millis for the given iso-8601 timestamp
+     * @throws IllegalArgumentException if the value can not be parsed
+     */
+    public static long parse(CharSequence value) {
+        if (value == null || value.length() == 0) {
+            throw new IllegalArgumentException("timestamp cannot be empty");
+        }
+
+        long millis = parseFixed(value);
+        if (millis != Long.MIN_VALUE) {
+            return millis;
+        }
+
+        // unusual offset, precision or malformed input - let joda deal with it
+        return FALLBACK.parseMillis(value.toString());
+    }
+
+    /**
+     * @return epoch millis, or Long.MIN_VALUE if the value does not match the fixed shape
+     */
+    static long parseFixed(CharSequence s) {
+        int length = s.length();
+        if (length != 24 && length != 29) {
+            return Long.MIN_VALUE;
+        }
+        if (s.charAt(4) != '-' || s.charAt(7) != '-' || s.charAt(10) != 'T'
+            || s.charAt(13) != ':' || s.charAt(16) != ':' || s.charAt(19) != '.') {
+            return Long.MIN_VALUE;
+        }
+
+        int year = digits(s, 0, 4);
+        int month = digits(s, 5, 2);
+        int day = digits(s, 8, 2);
+        int hour = digits(s, 11, 2);
+        int minute = digits(s, 14, 2);
+        int second = digits(s, 17, 2);
+        int millis = digits(s, 20, 3);
+        if ((year | month | day | hour | minute | second | millis) < 0) {
+            return Long.MIN_VALUE;
+        }
+        if (month < 1 || month > 12 || day < 1 || day > DAYS_IN_MONTH[month - 1]
+            || hour > 23 || minute > 59 || second > 59) {
+            return Long.MIN_VALUE;
+        }
+        if (month == 2 && day == 29 && !isLeapYear(year)) {
+            return Long.MIN_VALUE;
+        }
+
+        int offsetMillis;
+        char zone = s.charAt(23);
+        if (length == 24) {
+            if (zone != 'Z') {
+                return Long.MIN_VALUE;
+            }
+            offsetMillis = 0;
+        } else {
+            if ((zone != '+' && zone != '-') || s.charAt(26) != ':') {
+                return Long.MIN_VALUE;
+            }
+            int offsetHours = digits(s, 24, 2);
+            int offsetMinutes = digits(s, 27, 2);
+            if ((offsetHours | offsetMinutes) < 0 || offsetHours > 23 || offsetMinutes > 59) {
+                return Long.MIN_VALUE;
+            }
+            offsetMillis = (offsetHours * 60 + offsetMinutes) * 60 * 1000;
+            if (zone == '-') {
+                offsetMillis = -offsetMillis;
+            }
+        }
+
+        return epochDay(year, month, day) * MILLIS_PER_DAY
+               + ((hour * 60 + minute) * 60 + second) * 1000L + millis
+               - offsetMillis;
+    }
+
+    private static long epochDay(int year, int month, int day) {
+        int key = year * 10000 + month * 100 + day;
+        int slot = (key ^ (key >>> 10)) & (DAY_CACHE_SIZE - 1);
+
+        long entry = DAY_CACHE.get(slot);
+        if ((int) (entry >>> 32) == key) {
+            return (int) entry;
+        }
+
+        long epochDay = daysFromCivil(year, month, day);
+        DAY_CACHE.lazySet(slot, ((long) key << 32) | (epochDay & 0xFFFFFFFFL));
+        return epochDay;
+    }
+
+    /**
+     * days since 1970-01-01 in the proleptic gregorian calendar
+     */
+    private static long daysFromCivil(int year, int month, int day) {
+        int y = month <= 2 ? year - 1 : year;
+        int era = (y >= 0 ? y : y - 399) / 400;
+        int yearOfEra = y - era * 400;
+        int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097L + dayOfEra - 719468;
+    }
+
+    private static boolean isLeapYear(int year) {
+        return (year % 4 == 0) && (year % 100 != 0 || year % 400 == 0);
+    }
+
+    /**
+     * @return the decimal value of count digits starting at offset, or -1 if a non digit is found
+     */
+    private static int digits(CharSequence s, int offset, int count) {
+        int value = 0;
+        for (int i = offset; i < offset + count; i++) {
+            int d = s.charAt(i) - '0';
+            if (d < 0 || d > 9) {
+                return -1;
+            }
+            value = value * 10 + d;
+        }
+        return value;
+    }
+}
@@ -0,0 +1,218 @@
+package com.j2clark.sflycc.domain;
+
+import org.joda.money.CurrencyUnit;
+import org.joda.money.Money;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Hand rolled money parser accepting both "USD 12.34" (joda format) and "12.34 USD" (the format of our feed)
+ *
+ * The amount is accumulated as a long in minor units (cents for USD), avoiding Money.parse
+ * which goes through BigDecimal and reports failures with exceptions.
+ * Anything outside of the simple shape (e.g. more than 18 digits in minor units) is handed to Money.parse
+ */
+public final class MoneyParser {
+
+    // CurrencyUnit for every 3 letter (A-Z) code, filled lazily
+    private static final AtomicReferenceArray<CurrencyUnit> CURRENCIES = new AtomicReferenceArray<>(26 * 26 * 26);
+
+    private static final long[] POWERS_OF_TEN = {1L, 10L, 100L, 1_000L, 10_000L, 100_000L, 1_000_000L};
+
+    private static final int MAX_DIGITS = 18;
+
+    private MoneyParser() {
+    }
+
+    /**
+     * @return the parsed amount as Money
+     * @throws IllegalArgumentException if the value can not be parsed
+     */
+    public static Money parse(CharSequence value) {
+        Amount amount = parseSimple(value);
+        // Money itself is not limited to a long of minor units, so the fallback is returned as is
+        return amount != null ? amount.toMoney() : parseFallback(value);
+    }
+
+    /**
+     * @return currency and amount in minor units of the currency
+     * @throws IllegalArgumentException if the value can not be parsed
+     * @throws ArithmeticException if the amount does not fit a long of minor units
+     */
+    public static Amount parseAmount(CharSequence value) {
+        Amount amount = parseSimple(value);
+        if (amount == null) {
+            Money money = parseFallback(value);
+            amount = new Amount(money.getCurrencyUnit(), money.getAmountMinorLong());
+        }
+        return amount;
+    }
+
+    /**
+     * @return the amount, or null if the value is not of the simple shape we handle ourselves
+     */
+    private static Amount parseSimple(CharSequence value) {
+        if (value == null) {
+            throw new IllegalArgumentException("money cannot be null");
+        }
+
+        int start = 0;
+        int end = value.length();
+        while (start < end && value.charAt(start) == ' ') {
+            start++;
+        }
+        while (end > start && value.charAt(end - 1) == ' ') {
+            end--;
+        }
+
+        if (end - start >= 5) {
+            if (isLetter(value.charAt(start))) {
+                // USD 12.34
+                CurrencyUnit currency = currency(value, start);
+                if (currency != null && value.charAt(start + 3) == ' ') {
+                    return amount(value, skipSpaces(value, start + 3, end), end, currency);
+                }
+            } else {
+                // 12.34 USD
+                CurrencyUnit currency = currency(value, end - 3);
+                if (currency != null && value.charAt(end - 4) == ' ') {
+                    return amount(value, start, trimSpaces(value, start, end - 3), currency);
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Let joda report (or handle) anything unusual
+     * Money.parse only knows "USD 12.34", so our feed's "12.34 USD" is turned around first
+     */
+    private static Money parseFallback(CharSequence value) {
+        String trimmed = value.toString().trim();
+        int space = trimmed.lastIndexOf(' ');
+        if (space > 0 && trimmed.length() - space == 4 && !isLetter(trimmed.charAt(0))) {
+            trimmed = trimmed.substring(space + 1) + " " + trimmed.substring(0, space).trim();
+        }
+        return Money.parse(trimmed);
+    }
+
+    /**
+     * @return the amount in minor units, or null if it is not a simple decimal number
+     */
+    private static Amount amount(CharSequence value, int start, int end, CurrencyUnit currency) {
+        int decimalPlaces = currency.getDecimalPlaces();
+        if (start >= end || decimalPlaces >= POWERS_OF_TEN.length) {
+            return null;
+        }
+
+        boolean negative = false;
+        char first = value.charAt(start);
+        if (first == '-' || first == '+') {
+            negative = first == '-';
+            start++;
+        }
+
+        long units = 0;
+        int digits = 0;
+        int fractionDigits = -1;   // -1 until we see the decimal point
+        for (int i = start; i < end; i++) {
+            char c = value.charAt(i);
+            if (c >= '0' && c <= '9') {
+                if (fractionDigits >= 0) {
+                    if (fractionDigits == decimalPlaces) {
+                        return null;   // more precision than the currency supports
+                    }
+                    fractionDigits++;
+                }
+                if (++digits > MAX_DIGITS) {
+                    return null;
+                }
+                units = units * 10 + (c - '0');
+            } else if (c == '.' && fractionDigits < 0) {
+                fractionDigits = 0;
+            } else {
+                return null;
+            }
+        }
+        if (digits == 0) {
+            return null;
+        }
+
+        // the digits still to be added by scaling to minor units count towards the limit too, or units overflows
+        int scale = decimalPlaces - Math.max(fractionDigits, 0);
+        if (digits + scale > MAX_DIGITS) {
+            return null;
+        }
+        units *= POWERS_OF_TEN[scale];
+        return new Amount(currency, negative ? -units : units);
+    }
+
+    private static CurrencyUnit currency(CharSequence value, int offset) {
+        char c1 = value.charAt(offset);
+        char c2 = value.charAt(offset + 1);
+        char c3 = value.charAt(offset + 2);
+        if (!isLetter(c1) || !isLetter(c2) || !isLetter(c3)) {
+            return null;
+        }
+
+        int index = ((c1 - 'A') * 26 + (c2 - 'A')) * 26 + (c3 - 'A');
+        CurrencyUnit currency = CURRENCIES.get(index);
+        if (currency == null) {
+            // throws IllegalCurrencyException for unknown codes
+            currency = CurrencyUnit.of(new String(new char[]{c1, c2, c3}));
+            CURRENCIES.lazySet(index, currency);
+        }
+        return currency;
+    }
+
+    private static boolean isLetter(char c) {
+        return c >= 'A' && c <= 'Z';
+    }
+
+    private static int skipSpaces(CharSequence value, int start, int end) {
+        while (start < end && value.charAt(start) == ' ') {
+            start++;
+        }
+        return start;
+    }
+
+    private static int trimSpaces(CharSequence value, int start, int end) {
+        while (end > start && value.charAt(end - 1) == ' ') {
+            end--;
+        }
+        return end;
+    }
+
+    /**
+     * A currency plus an amount expressed in the minor unit of that currency
+     */
+    public static final class Amount {
+        private final CurrencyUnit currency;
+        private final long minorUnits;
+
+        public Amount(CurrencyUnit currency, long minorUnits) {
+            this.currency = currency;
+            this.minorUnits = minorUnits;
+        }
+
+        public CurrencyUnit getCurrency() {
+            return currency;
+        }
+
+        public String getCurrencyCode() {
+            return currency.getCode();
+        }
+
+        public long getMinorUnits() {
+            return minorUnits;
+        }
+
+        public Money toMoney() {
+            return Money.ofMinor(currency, minorUnits);
+        }
+
+        public String toString() {
+            return currency.getCode() + " " + minorUnits + " (minor units)";
+        }
+    }
+}
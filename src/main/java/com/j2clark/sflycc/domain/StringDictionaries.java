@@ -0,0 +1,21 @@
+package com.j2clark.sflycc.domain;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The StringDictionary of each attribute, one set per EventStore
+ *
+ * Ids are only meaningful within the set they came from, and the values are only held as long as the set is.
+ */
+public class StringDictionaries {
+
+    private final ConcurrentMap<String, StringDictionary> dictionaries = new ConcurrentHashMap<>();
+
+    /**
+     * @return the dictionary for the given attribute name, created on first use
+     */
+    public StringDictionary forAttribute(String name) {
+        return dictionaries.computeIfAbsent(name, StringDictionary::new);
+    }
+}
@@ -0,0 +1,82 @@
+package com.j2clark.sflycc.domain;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Append only mapping of high repetition attribute values (customer_id, adr_state, camera_make, ...)
+ * to dense int ids, starting at 0
+ *
+ * Values are encoded once as they are stored, from then on downstream code can index arrays by id
+ * rather than hashing strings. Decoding an id is a plain array read.
+ *
+ * Dictionaries belong to the store holding the events (see StringDictionaries), and go away with it.
+ */
+public class StringDictionary {
+
+    private final String name;
+    private final ConcurrentMap<String, Integer> ids = new ConcurrentHashMap<>();
+    private volatile String[] values = new String[64];
+    private volatile int size = 0;
+
+    public StringDictionary(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the id of the given value, assigning a new one if we have not seen it before
+     */
+    public int encode(String value) {
+        Integer id = ids.get(value);
+        if (id != null) {
+            return id;
+        }
+
+        synchronized (this) {
+            id = ids.get(value);
+            if (id == null) {
+                id = size;
+                String[] values = this.values;
+                if (id == values.length) {
+                    values = Arrays.copyOf(values, values.length << 1);
+                }
+                values[id] = value;
+                this.values = values;
+                size = id + 1;
+                // only publish the id once it can be decoded
+                ids.put(value, id);
+            }
+            return id;
+        }
+    }
+
+    /**
+     * @return the id of the given value, or -1 if it has never been encoded
+     */
+    public int lookup(String value) {
+        Integer id = value != null ? ids.get(value) : null;
+        return id != null ? id : -1;
+    }
+
+    /**
+     * @return the (canonical) value for the given id
+     */
+    public String decode(int id) {
+        if (id < 0 || id >= size) {
+            throw new IndexOutOfBoundsException("Dictionary[" + name + "] id[" + id + "] size[" + size + "]");
+        }
+        return values[id];
+    }
+
+    /**
+     * @return number of distinct values, every id is < size()
+     */
+    public int size() {
+        return size;
+    }
+}
@@ -0,0 +1,227 @@
+package com.j2clark.sflycc.processors;
+
+import com.j2clark.sflycc.domain.DictionaryAttribute;
+import com.j2clark.sflycc.domain.Event;
+import com.j2clark.sflycc.domain.EventBuilder;
+import com.j2clark.sflycc.domain.EventType;
+import com.j2clark.sflycc.domain.EventVerb;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.StringUtils;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Compiled form of an EventSchema
+ *
+ * Instead of probing the JSONObject for every declared field (has + get per field), the binder walks the fields
+ * actually present in the event once, dispatching each through a name -> binding table built at compile time.
+ * The cost per event is therefore proportional to the size of the event, regardless of how many fields
+ * or event types are declared.
+ */
+public class EventBinder {
+
+    private static final Logger logger = LoggerFactory.getLogger(EventBinder.class);
+
+    // bindings for fields common to every event
+    private static final int TYPE = -1;
+    private static final int VERB = -2;
+    private static final int KEY = -3;
+    private static final int EVENT_TIME = -4;
+    private static final int TAGS = -5;
+
+    private static final Map<String, Binding> COMMON_BINDINGS = new HashMap<>();
+    static {
+        COMMON_BINDINGS.put("type", new Binding(TYPE, null));
+        COMMON_BINDINGS.put("verb", new Binding(VERB, null));
+        COMMON_BINDINGS.put("key", new Binding(KEY, null));
+        COMMON_BINDINGS.put("event_time", new Binding(EVENT_TIME, null));
+        COMMON_BINDINGS.put("tags", new Binding(TAGS, null));
+    }
+
+    private final EventType type;
+    private final Map<String, Binding> bindings;
+    private final EventSchema.Field[] fields;
+
+    EventBinder(EventSchema schema) {
+        this.type = schema.getType();
+        this.fields = schema.getFields().toArray(new EventSchema.Field[0]);
+        this.bindings = new HashMap<>(COMMON_BINDINGS);
+        for (int i = 0; i < fields.length; i++) {
+            bindings.put(fields[i].getName(), new Binding(i, fields[i]));
+        }
+    }
+
+    static boolean isCommonField(String name) {
+        return COMMON_BINDINGS.containsKey(name);
+    }
+
+    public EventType getType() {
+        return type;
+    }
+
+    /**
+     * Populate the builder from the given event json, in a single pass over its fields
+     *
+     * @throws UnsupportedEventException if a required field is missing or a value is badly formatted
+     */
+    public void bind(UUID transactionId, JSONObject json, EventBuilder eventBuilder) throws UnsupportedEventException {
+        long present = 0;
+        for (String name : json.keySet()) {
+            Binding binding = bindings.get(name);
+            if (binding == null) {
+                // not part of the schema, ignore
+                continue;
+            }
+
+            Object value = json.opt(name);
+            if (value == JSONObject.NULL) {
+                value = null;
+            }
+            switch (binding.index) {
+                case TYPE:
+                    String type = string(transactionId, eventBuilder, name, value);
+                    if (!StringUtils.isEmpty(type)) {
+                        eventBuilder.withType(EventType.of(type));
+                    }
+                    break;
+                case VERB:
+                    String verb = string(transactionId, eventBuilder, name, value);
+                    if (!StringUtils.isEmpty(verb)) {
+                        eventBuilder.withVerb(EventVerb.of(verb));
+                    }
+                    break;
+                case KEY:
+                    eventBuilder.withKey(string(transactionId, eventBuilder, name, value));
+                    break;
+                case EVENT_TIME:
+                    eventBuilder.withTimestamp(EventBuilder.parseEpochMillis(string(transactionId, eventBuilder, name, value)));
+                    break;
+                case TAGS:
+                    if (value instanceof JSONArray) {
+                        eventBuilder.withTags(tags(transactionId, (JSONArray) value));
+                    } else if (value != null) {
+                        throw unsupported(transactionId, eventBuilder, name + " must be an array");
+                    }
+                    break;
+                default:
+                    present |= bindField(transactionId, binding, value, eventBuilder);
+                    break;
+            }
+        }
+
+        if (present != (fields.length == 64 ? -1L : (1L << fields.length) - 1)) {
+            // optional fields are always bound, even if absent
+            for (int i = 0; i < fields.length; i++) {
+                if ((present & (1L << i)) == 0) {
+                    if (fields[i].isRequired()) {
+                        throw unsupported(transactionId, eventBuilder, fields[i].getName() + " cannot be empty");
+                    }
+                    eventBuilder.withAttribute(emptyAttribute(fields[i], null));
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the bit of the bound field, for tracking which fields were present
+     */
+    private long bindField(UUID transactionId, Binding binding, Object value, EventBuilder eventBuilder)
+        throws UnsupportedEventException {
+
+        EventSchema.Field field = binding.field;
+        String name = field.getName();
+        String str = string(transactionId, eventBuilder, name, value);
+        if (StringUtils.isEmpty(str)) {
+            if (field.isRequired()) {
+                throw unsupported(transactionId, eventBuilder, name + " cannot be empty");
+            }
+            eventBuilder.withAttribute(emptyAttribute(field, str));
+            return 1L << binding.index;
+        }
+
+        switch (field.getType()) {
+            case STRING:
+                eventBuilder.withAttribute(name, str);
+                break;
+            case DICTIONARY:
+                eventBuilder.withAttribute(DictionaryAttribute.of(name, str));
+                break;
+            case MONEY:
+                eventBuilder.withAttribute(name, EventBuilder.parseMoney(str));
+                break;
+            default:
+                throw new IllegalStateException("Unsupported FieldType[" + field.getType() + "]");
+        }
+        return 1L << binding.index;
+    }
+
+    private static Event.Attribute emptyAttribute(EventSchema.Field field, String value) {
+        if (field.getType() == FieldType.DICTIONARY) {
+            return DictionaryAttribute.of(field.getName(), value);
+        }
+        return new Event.Attribute<>(field.getName(), value);
+    }
+
+    private String string(UUID transactionId, EventBuilder eventBuilder, String name, Object value)
+        throws UnsupportedEventException {
+        if (value == null || value instanceof String) {
+            return (String) value;
+        }
+        throw unsupported(transactionId, eventBuilder, name + " must be a string");
+    }
+
+    private UnsupportedEventException unsupported(UUID transactionId, EventBuilder eventBuilder, String msg) {
+        return new UnsupportedEventException(
+            "Request[" + transactionId + "] EventVerb[" + eventBuilder.getVerb() + "] EventType["
+            + (eventBuilder.getType() != null ? eventBuilder.getType() : type) + "] " + msg);
+    }
+
+    /**
+     * tags are expected as an array of key value pairs, e.g. [{"some key": "some value"}]
+     */
+    static Map<String,String> tags(UUID transactionId, JSONArray tags) {
+        Map<String,String> tagMap = new HashMap<>();
+        if (tags != null && tags.length() > 0) {
+            // todo: how do we capture these?
+            for (Object o : tags) {
+                if (o instanceof JSONObject) {
+                    // I am making an assumption tags are a key value pair, anything else will be rejected
+                    JSONObject jsonTag = (JSONObject) o;
+                    Iterator<String> keys = jsonTag.keys();
+                    while (keys.hasNext()) {
+                        String key = keys.next();
+                        String value = jsonTag.getString(key);
+                        if (tagMap.containsKey(key)) {
+                            logger.warn("Request["+transactionId+"] Duplicate tag keys found for key[" + key
+                                        + "]. We are keeping value[" + tagMap.get(key)
+                                        + "], ignoring[" + value + "]");
+                        } else {
+                            tagMap.put(key, value);
+                        }
+                    }
+                } else {
+                    // ignore and move on
+                    // todo: log at debug level?
+                }
+            }
+        }
+        return tagMap;
+    }
+
+    private static class Binding {
+        private final int index;    // position within the schema fields, or one of the common field constants
+        private final EventSchema.Field field;
+
+        private Binding(int index, EventSchema.Field field) {
+            this.index = index;
+            this.field = field;
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.j2clark.sflycc.processors;
+
+import com.j2clark.sflycc.domain.EventType;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Declarative description of the event specific fields of an EventType
+ *
+ *      EventSchema.forType(EventType.ORDER)
+ *          .required("customer_id", FieldType.STRING)
+ *          .required("total_amount", FieldType.MONEY)
+ *
+ * The fields common to every event (type, verb, key, event_time, tags) are implied.
+ * A schema is compiled once, when its processor is registered, into an EventBinder
+ */
+public class EventSchema {
+
+    // EventBinder tracks fields using a long bit mask
+    static final int MAX_FIELDS = 64;
+
+    private final EventType type;
+    private final List<Field> fields = new ArrayList<>();
+
+    public static EventSchema forType(EventType type) {
+        return new EventSchema(type);
+    }
+
+    private EventSchema(EventType type) {
+        if (type == null) {
+            throw new IllegalArgumentException("EventSchema type cannot be null");
+        }
+        this.type = type;
+    }
+
+    /**
+     * A required field must be present and not empty, otherwise the event is rejected
+     */
+    public EventSchema required(String name, FieldType fieldType) {
+        return field(new Field(name, fieldType, true));
+    }
+
+    /**
+     * An optional field is always bound, as a null valued attribute if absent
+     */
+    public EventSchema optional(String name, FieldType fieldType) {
+        return field(new Field(name, fieldType, false));
+    }
+
+    private EventSchema field(Field field) {
+        if (EventBinder.isCommonField(field.getName())) {
+            throw new IllegalStateException(
+                "Invalid Configuration - field[" + field.getName() + "] is common to all events, EventType[" + type + "]");
+        }
+        for (Field existing : fields) {
+            if (existing.getName().equals(field.getName())) {
+                throw new IllegalStateException(
+                    "Invalid Configuration - field[" + field.getName() + "] declared twice for EventType[" + type + "]");
+            }
+        }
+        if (fields.size() == MAX_FIELDS) {
+            throw new IllegalStateException(
+                "Invalid Configuration - more than " + MAX_FIELDS + " fields declared for EventType[" + type + "]");
+        }
+        fields.add(field);
+        return this;
+    }
+
+    public EventType getType() {
+        return type;
+    }
+
+    public List<Field> getFields() {
+        return Collections.unmodifiableList(fields);
+    }
+
+    public EventBinder compile() {
+        return new EventBinder(this);
+    }
+
+    public static class Field {
+        private final String name;
+        private final FieldType type;
+        private final boolean required;
+
+        private Field(String name, FieldType type, boolean required) {
+            if (name == null || name.isEmpty() || type == null) {
+                throw new IllegalArgumentException("EventSchema field name and type are required");
+            }
+            this.name = name;
+            this.type = type;
+            this.required = required;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public FieldType getType() {
+            return type;
+        }
+
+        public boolean isRequired() {
+            return required;
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package com.j2clark.sflycc.processors;
+
+/**
+ * Value types an EventSchema field can be bound as
+ */
+public enum FieldType {
+
+    /** plain string attribute */
+    STRING,
+
+    /** string attribute with repeating values, encoded into a StringDictionary of the store it is appended to */
+    DICTIONARY,
+
+    /** money attribute, e.g. "USD 12.34" or "12.34 USD" (see MoneyParser) */
+    MONEY
+}
@@ -6,6 +6,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Component;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Optional;
@@ -17,14 +18,18 @@ import java.util.Optional;
  * See CustomerIngestProcessor constructor for an example
  *
  * This can be a difficult pattern to understand at first glance, which is a strong argument to not use it.
+ *
+ * Lookups happen for every single event, registrations almost never - so the registry publishes an immutable
+ * snapshot on each change (copy on write). A lookup is a single volatile read plus a table probe, and processors
+ * can be registered or replaced at runtime without blocking ingest threads.
  */
 @Component
 public class IngestProcessorRegistry {
 
     public final Logger logger = LoggerFactory.getLogger(getClass());
 
-    private final Map<EventType,IngestProcessor>
-        ingestProcessors = new HashMap<>();
+    private volatile Snapshot snapshot = new Snapshot(Collections.emptyMap());
+
     public IngestProcessorRegistry register(IngestProcessor ingestProcessor) {
         // a single processor can support multiple event types
 
@@ -34,17 +39,60 @@ public class IngestProcessorRegistry {
                 "Registering IngestProcessor["+processorName+"]");
         }
 
-        for (EventType eventType : ingestProcessor.getSupportedEventTypes()) {
-            if (!ingestProcessors.containsKey(eventType)) {
-                ingestProcessors.put(eventType, ingestProcessor);
+        synchronized (this) {
+            Map<EventType,IngestProcessor> ingestProcessors = new HashMap<>(snapshot.ingestProcessors);
+            for (EventType eventType : ingestProcessor.getSupportedEventTypes()) {
+                if (!ingestProcessors.containsKey(eventType)) {
+                    ingestProcessors.put(eventType, ingestProcessor);
+                    if (logger.isInfoEnabled()) {
+                        logger.info(
+                            "IngestProcessor["+processorName+"] registered to handle EventType["+eventType+"]");
+                    }
+                } else {
+                    // DO NOT let the application start up if we have a configuration problem
+                    throw new IllegalStateException("Invalid Configuration, ingestProcessor of type["+eventType+"] already registered.");
+                }
+            }
+            snapshot = new Snapshot(ingestProcessors);
+        }
+
+        return this;
+    }
+
+    /**
+     * Register a processor at runtime, replacing whichever processors currently handle its event types
+     * In flight events complete against the processor they already looked up
+     */
+    public IngestProcessorRegistry replace(IngestProcessor ingestProcessor) {
+        String processorName = ingestProcessor.getClass().getSimpleName();
+
+        synchronized (this) {
+            Map<EventType,IngestProcessor> ingestProcessors = new HashMap<>(snapshot.ingestProcessors);
+            for (EventType eventType : ingestProcessor.getSupportedEventTypes()) {
+                IngestProcessor previous = ingestProcessors.put(eventType, ingestProcessor);
                 if (logger.isInfoEnabled()) {
                     logger.info(
-                        "IngestProcessor["+processorName+"] registered to handle EventType["+eventType+"]");
+                        "IngestProcessor["+processorName+"] now handles EventType["+eventType+"]"
+                        + (previous != null ? ", replacing["+previous.getClass().getSimpleName()+"]" : ""));
                 }
-            } else {
-                // DO NOT let the application start up if we have a configuration problem
-                throw new IllegalStateException("Invalid Configuration, ingestProcessor of type["+eventType+"] already registered.");
             }
+            snapshot = new Snapshot(ingestProcessors);
+        }
+
+        return this;
+    }
+
+    /**
+     * Remove a processor from every event type it is currently registered for
+     */
+    public IngestProcessorRegistry unregister(IngestProcessor ingestProcessor) {
+        synchronized (this) {
+            Map<EventType,IngestProcessor> ingestProcessors = new HashMap<>(snapshot.ingestProcessors);
+            ingestProcessors.values().removeIf(p -> p == ingestProcessor);
+            snapshot = new Snapshot(ingestProcessors);
+        }
+        if (logger.isInfoEnabled()) {
+            logger.info("IngestProcessor["+ingestProcessor.getClass().getSimpleName()+"] unregistered");
         }
 
         return this;
@@ -55,10 +103,96 @@ public class IngestProcessorRegistry {
      * @return IngestProcessor instance if we find one
      */
     public Optional<IngestProcessor> find(EventType type) {
-        if (ingestProcessors.containsKey(type)) {
-            return Optional.of(ingestProcessors.get(type));
-        } else {
-            return Optional.empty();
+        return Optional.ofNullable(lookup(type));
+    }
+
+    /**
+     * Allocation free variant of find
+     *
+     * @return IngestProcessor for the given type, or null if there is none
+     */
+    public IngestProcessor lookup(EventType type) {
+        return snapshot.ingestProcessors.get(type);
+    }
+
+    /**
+     * Dispatch straight on the type as it appears in the raw event, without building an EventType first
+     * Matching follows EventType normalization (surrounding whitespace ignored, case insensitive)
+     *
+     * @return IngestProcessor for the given type, or null if there is none
+     */
+    public IngestProcessor lookup(CharSequence rawType) {
+        return rawType != null ? snapshot.lookup(rawType) : null;
+    }
+
+    /**
+     * Immutable view of the registered processors, including an open addressing table keyed by the
+     * upper cased type name, so raw type strings can be matched in place
+     */
+    private static class Snapshot {
+
+        private final Map<EventType,IngestProcessor> ingestProcessors;
+        private final String[] names;
+        private final IngestProcessor[] processors;
+        private final int mask;
+
+        private Snapshot(Map<EventType,IngestProcessor> ingestProcessors) {
+            this.ingestProcessors = Collections.unmodifiableMap(ingestProcessors);
+
+            int capacity = Integer.highestOneBit(Math.max(4, ingestProcessors.size() * 4) - 1) << 1;
+            this.names = new String[capacity];
+            this.processors = new IngestProcessor[capacity];
+            this.mask = capacity - 1;
+            for (Map.Entry<EventType,IngestProcessor> entry : ingestProcessors.entrySet()) {
+                String name = entry.getKey().getValue();
+                int slot = hash(name, 0, name.length()) & mask;
+                while (names[slot] != null) {
+                    slot = (slot + 1) & mask;
+                }
+                names[slot] = name;
+                processors[slot] = entry.getValue();
+            }
+        }
+
+        private IngestProcessor lookup(CharSequence rawType) {
+            int start = 0;
+            int end = rawType.length();
+            while (start < end && Character.isWhitespace(rawType.charAt(start))) {
+                start++;
+            }
+            while (end > start && Character.isWhitespace(rawType.charAt(end - 1))) {
+                end--;
+            }
+
+            int slot = hash(rawType, start, end) & mask;
+            String name;
+            while ((name = names[slot]) != null) {
+                if (matches(name, rawType, start, end)) {
+                    return processors[slot];
+                }
+                slot = (slot + 1) & mask;
+            }
+            return null;
+        }
+
+        private static int hash(CharSequence s, int start, int end) {
+            int h = 0;
+            for (int i = start; i < end; i++) {
+                h = 31 * h + Character.toUpperCase(s.charAt(i));
+            }
+            return h ^ (h >>> 16);
+        }
+
+        private static boolean matches(String name, CharSequence s, int start, int end) {
+            if (name.length() != end - start) {
+                return false;
+            }
+            for (int i = start; i < end; i++) {
+                if (name.charAt(i - start) != Character.toUpperCase(s.charAt(i))) {
+                    return false;
+                }
+            }
+            return true;
         }
     }
 }
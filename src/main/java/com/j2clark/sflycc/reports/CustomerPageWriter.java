@@ -0,0 +1,104 @@
+package com.j2clark.sflycc.reports;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * Streams a page of ranked customers as json, a chunk at a time, so memory stays flat however large the page
+ *
+ *      {"customers": [{"rank": 1, "customerId": "...", "ltv": {"currency": "USD", "amount": 123.45}}, ...],
+ *       "next": "cursor for the following page, null on the last one"}
+ *
+ * Cursors hold the LTV and customer id of the last customer on the page rather than an offset, so the next page
+ * picks up in the right place even when customers have moved up or down the ranking in the mean time.
+ */
+public class CustomerPageWriter {
+
+    // customers pulled from the ranking at a time
+    private static final int CHUNK_SIZE = 1000;
+
+    private static final JsonFactory JSON = new JsonFactory();
+
+    private CustomerPageWriter() {
+    }
+
+    /**
+     * @param cursor from a previous page, null for the first page
+     * @throws IllegalArgumentException if the cursor is not one of ours
+     */
+    public static void write(RankedCustomers ranking, String cursor, int limit, OutputStream out) throws IOException {
+        if (limit < 1) {
+            throw new IllegalArgumentException("limit must be >= 1");
+        }
+        int from = cursor != null ? position(ranking, cursor) : 0;
+
+        try (JsonGenerator json = JSON.createGenerator(out, JsonEncoding.UTF8)) {
+            // the stream belongs to the caller
+            json.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            json.writeStartObject();
+            json.writeArrayFieldStart("customers");
+
+            Customer last = null;
+            boolean more = true;
+            int written = 0;
+            while (written < limit) {
+                int wanted = Math.min(CHUNK_SIZE, limit - written);
+                List<Customer> chunk = ranking.range(from + written, from + written + wanted);
+                for (Customer customer : chunk) {
+                    json.writeStartObject();
+                    json.writeNumberField("rank", from + written + 1);
+                    json.writeStringField("customerId", customer.getCustomerId());
+                    json.writeObjectFieldStart("ltv");
+                    json.writeStringField("currency", customer.getLtv().getCurrencyUnit().getCode());
+                    json.writeNumberField("amount", customer.getLtv().getAmount());
+                    json.writeEndObject();
+                    json.writeEndObject();
+                    last = customer;
+                    written++;
+                }
+                json.flush();
+                if (chunk.size() < wanted) {
+                    more = false;
+                    break;
+                }
+            }
+            if (more) {
+                more = !ranking.range(from + written, from + written + 1).isEmpty();
+            }
+
+            json.writeEndArray();
+            json.writeStringField("next", more && last != null ? cursor(last) : null);
+            json.writeEndObject();
+        }
+    }
+
+    static String cursor(Customer customer) {
+        String position = customer.getLtv().getAmountMinorLong() + ":" + customer.getCustomerId();
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(position.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static int position(RankedCustomers ranking, String cursor) {
+        String position;
+        try {
+            position = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid cursor[" + cursor + "]", e);
+        }
+        int separator = position.indexOf(':');
+        if (separator < 1) {
+            throw new IllegalArgumentException("Invalid cursor[" + cursor + "]");
+        }
+        try {
+            return ranking.position(Long.parseLong(position.substring(0, separator)), position.substring(separator + 1));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid cursor[" + cursor + "]", e);
+        }
+    }
+}
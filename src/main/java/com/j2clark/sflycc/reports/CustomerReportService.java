@@ -1,134 +1,357 @@
 package com.j2clark.sflycc.reports;
 
+import com.j2clark.sflycc.domain.CustomerAggregates;
 import com.j2clark.sflycc.domain.Data;
 import com.j2clark.sflycc.domain.EventType;
-import com.j2clark.sflycc.domain.Event;
 
+import org.joda.money.CurrencyMismatchException;
 import org.joda.money.Money;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
 
-import java.math.RoundingMode;
 import java.util.ArrayList;
-import java.util.Collection;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
-import java.util.Optional;
-import java.util.OptionalLong;
-import java.util.stream.Collectors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Supplier;
 
+@Service
 public class CustomerReportService {
 
-    private final Logger logger = LoggerFactory.getLogger(getClass());
+    private static final Logger logger = LoggerFactory.getLogger(CustomerReportService.class);
+
+    // very simple approach to determine week
+    private static final long WEEK = 1000 * 60 * 60 * 24 * 7;
+
+    // below this many customers, the report runs on the calling thread regardless
+    private static final int PARALLEL_THRESHOLD = 4 * 1024;
+
+    // null when running sequentially
+    private final ForkJoinPool pool;
+    private final int partitions;
+
+    // null when not caching
+    private final ReportCache cache;
+
+    public CustomerReportService() {
+        this(1);
+    }
+
+    /**
+     * @param parallelism number of threads used to compute LTVs, 1 (or less) computes on the calling thread
+     */
+    public CustomerReportService(int parallelism) {
+        this(parallelism, null);
+    }
+
+    /**
+     * @param parallelism number of threads used to compute LTVs, 1 (or less) computes on the calling thread
+     * @param cacheEntries number of results cached, 0 (or less) to always compute
+     * @param cacheTtlMillis how long a cached result may be served for, 0 (or less) for as long as the data is unchanged
+     */
+    @Autowired
+    public CustomerReportService(@Value("${sflycc.report.parallelism:1}") int parallelism,
+                                 @Value("${sflycc.report.cache.size:256}") int cacheEntries,
+                                 @Value("${sflycc.report.cache.max-customers:1000000}") long cacheCustomers,
+                                 @Value("${sflycc.report.cache.ttl-ms:60000}") long cacheTtlMillis) {
+        this(parallelism, cacheEntries > 0 ? new ReportCache(cacheEntries, cacheCustomers, cacheTtlMillis) : null);
+    }
+
+    /**
+     * @param parallelism number of threads used to compute LTVs, 1 (or less) computes on the calling thread
+     * @param cache results are served from here while the data has not changed, null to always compute
+     */
+    public CustomerReportService(int parallelism, ReportCache cache) {
+        this.cache = cache;
+        if (parallelism > 1) {
+            this.pool = new ForkJoinPool(parallelism);
+            // a few partitions per thread, so an uneven split does not leave threads idle
+            this.partitions = parallelism * 4;
+        } else {
+            this.pool = null;
+            this.partitions = 1;
+        }
+    }
 
     /*
         A simple LTV can be calculated using the following equation:
             52(a) x t.
             Where a is the average customer value per week (customer expenditures per visit (USD) x number of site visits per week)
             and t is the average customer lifespan. The average lifespan for Shutterfly is 10 years.
+
+        Everything we need is kept up to date per customer as events are appended (see CustomerAggregates),
+        so the report only reads the aggregates - raw events are never touched.
          */
     public List<Customer> topXSimpleLTVCustomers(int resultCount, Data d) {
+        return cached("topXSimpleLTVCustomers", d, () -> topXSimpleLTVCustomers(resultCount, d.customers().snapshot()),
+                      resultCount);
+    }
+
+    /**
+     * As above, but only counting activity in [from, to) - rounded out to whole days, see CustomerAggregates.window
+     */
+    public List<Customer> topXSimpleLTVCustomers(int resultCount, Data d, long from, long to) {
+        return cached("topXSimpleLTVCustomersWindow", d, () -> topXSimpleLTVCustomers(resultCount, d.customers().window(from, to)),
+                      resultCount, from, to);
+    }
+
+    /**
+     * As above, over the last given number of days (e.g. 7, 30 or 90) up to the latest event
+     */
+    public List<Customer> topXSimpleLTVCustomersLastDays(int resultCount, Data d, int days) {
+        return cached("topXSimpleLTVCustomersLastDays", d, () -> topXSimpleLTVCustomers(resultCount, d.customers().lastDays(days)),
+                      resultCount, days);
+    }
+
+    /**
+     * Every customer topXSimpleLTVCustomers would report on, in the same order - to page through, see ReportController
+     */
+    public RankedCustomers rankLTVCustomers(Data d) {
+        return cached("rankLTVCustomers", d, () -> rank(d.customers().snapshot()));
+    }
+
+    /**
+     * As above, over the last given number of days (e.g. 7, 30 or 90) up to the latest event
+     */
+    public RankedCustomers rankLTVCustomersLastDays(Data d, int days) {
+        return cached("rankLTVCustomersLastDays", d, () -> rank(d.customers().lastDays(days)), days);
+    }
+
+    /**
+     * Approximate top spenders, in memory bounded by the sketch rather than the number of customers
+     * The sketch follows the data as events arrive (see SpendSketch.follow), so this is O(X log X) however many
+     * events there are. Estimates are within sketch.epsilon() * total spend of the actual spend.
+     */
+    public List<SpenderEstimate> approximateTopXSpenders(int resultCount, SpendSketch sketch) {
+        return sketch.topX(resultCount);
+    }
+
+    /**
+     * Estimated distinct customers with events of the given type in [from, to) rounded out to whole (UTC) days,
+     * in total and per day - a few sketch merges, see DistinctCustomers
+     */
+    public DistinctCustomerCount distinctCustomers(Data d, EventType type, long from, long to) {
+        if (from >= to) {
+            throw new IllegalArgumentException("Empty window [" + from + ", " + to + ")");
+        }
+        long fromDay = Math.floorDiv(from, CustomerAggregates.DAY) * CustomerAggregates.DAY;
+        long toDay = (Math.floorDiv(to - 1, CustomerAggregates.DAY) + 1) * CustomerAggregates.DAY;
+        return cached("distinctCustomers", d, () -> new DistinctCustomerCount(type.getValue(), fromDay, toDay,
+                                                                              d.distinctCustomers().count(type, fromDay, toDay),
+                                                                              d.distinctCustomers().daily(type, fromDay, toDay)),
+                      type, fromDay, toDay);
+    }
+
+    /**
+     * As above, over the last given number of days up to and including the day of the latest event
+     */
+    public DistinctCustomerCount distinctCustomersLastDays(Data d, EventType type, int days) {
+        if (days < 1) {
+            throw new IllegalArgumentException("days must be >= 1");
+        }
+        long newest = d.customers().newestTimestamp();
+        // without any events yet, any window will do
+        long to = newest != Long.MIN_VALUE ? (Math.floorDiv(newest, CustomerAggregates.DAY) + 1) * CustomerAggregates.DAY
+                                           : CustomerAggregates.DAY;
+        return distinctCustomers(d, type, to - days * CustomerAggregates.DAY, to);
+    }
+
+    private <T> T cached(String report, Data d, Supplier<T> compute, Object... parameters) {
+        return cache != null ? cache.get(report, d, compute, parameters) : compute.get();
+    }
+
+    private List<Customer> topXSimpleLTVCustomers(int resultCount, CustomerAggregates.Snapshot aggregates) {
+        // never more results than customers, so a large resultCount does not size the heap
+        int k = Math.max(0, Math.min(resultCount, aggregates.size()));
+
+        // only the top K are kept as we go, in parallel each partition keeps its own and they are merged
+        TopK top;
+        if (pool == null || aggregates.size() < PARALLEL_THRESHOLD) {
+            top = topK(aggregates, k, allSlots(aggregates.size()));
+        } else {
+            top = pool.invoke(new PartitionTask(aggregates, k, partition(aggregates, partitions), 0, partitions));
+        }
+
+        // Customer objects (and their Money) are only built for the winners
+        List<Customer> customers = new ArrayList<>(top.size());
+        for (int i : top.ranked()) {
+            int slot = top.ref(i);
+            customers.add(new Customer(aggregates.customerDictionary().decode(top.customerId(i)),
+                                       Money.ofMinor(aggregates.currency(slot), top.ltv(i))));
+        }
+        return customers;
+    }
+
+    /**
+     * @return top K of the customers in the given slots
+     */
+    static TopK topK(CustomerAggregates.Snapshot aggregates, int k, int[] slots) {
+        TopK top = new TopK(k, aggregates.customerDictionary());
+        for (int slot : slots) {
+            if (ranked(aggregates, slot)) {
+                top.offer(ltv(aggregates, slot), aggregates.customerId(slot), slot);
+            }
+        }
+        return top;
+    }
 
-        List<Customer> customers = new ArrayList<>();
-        if (!d.getEvents().isEmpty()) {
-
-            // sort according to timestamp
-            Collection<Event> sorted = d.getEvents().stream()
-                .sorted((e1, e2) -> Long.compare(e1.getTimestamp(), e2.getTimestamp()))
-                .collect(Collectors.toList());
-
-
-            // first group all important events by customer - since each will have their own time range
-            Map<String,Map<String,List<Event>>> customerEvents = new HashMap<>();
-            for (Event event : sorted) {
-                if (EventType.of("ORDER").equals(event.getType()) ||
-                    EventType.of("SITE_VISIT").equals(event.getType())) {
-
-                    String customerID = (String) event.getAttribute("customer_id").getValue();
-                    Map<String, List<Event>> customer = customerEvents.get(customerID);
-                    if (customer == null) {
-                        customer = new HashMap<>();
-                        customer.put("ORDER", new ArrayList<>());
-                        customer.put("SITE_VISIT", new ArrayList<>());
-                        customer.put("ALL", new ArrayList<>());
-                        customerEvents.put(customerID, customer);
-                    }
-
-                    customer.get("ALL").add(event);
-                    if (EventType.of("ORDER").equals(event.getType())) {
-                        customer.get("ORDER").add(event);
-                    } else {
-                        customer.get("SITE_VISIT").add(event);
-                    }
-                }
+    /**
+     * @return all customers the report covers, in report order
+     */
+    private static SnapshotRanking rank(CustomerAggregates.Snapshot aggregates) {
+        int[] slots = new int[aggregates.size()];
+        long[] ltvs = new long[aggregates.size()];
+        int count = 0;
+        for (int slot = 0; slot < aggregates.size(); slot++) {
+            if (ranked(aggregates, slot)) {
+                slots[count] = slot;
+                ltvs[count++] = ltv(aggregates, slot);
             }
+        }
+        return new SnapshotRanking(aggregates, Arrays.copyOf(slots, count), Arrays.copyOf(ltvs, count));
+    }
+
+    /**
+     * @return whether the customer in the slot is reported on
+     * @throws CurrencyMismatchException if their orders came in more than one currency
+     */
+    private static boolean ranked(CustomerAggregates.Snapshot aggregates, int slot) {
+        if (aggregates.orders(slot) == 0 || aggregates.currency(slot) == null) {
+            // nothing going on with this "customer" - drop from list
+            return false;
+        }
+        if (aggregates.visits(slot) == 0) {
+            // spend per visit is undefined, previously this failed the whole report with a division by zero
+            logger.debug("customer[" + aggregates.customerDictionary().decode(aggregates.customerId(slot)) + "] has orders but no visits, skipping");
+            return false;
+        }
+        if (aggregates.mismatchedCurrency(slot) != null) {
+            throw new CurrencyMismatchException(aggregates.currency(slot), aggregates.mismatchedCurrency(slot));
+        }
+        return true;
+    }
+
+    private static long ltv(CustomerAggregates.Snapshot aggregates, int slot) {
+        return simpleLTV(aggregates.firstTimestamp(slot), aggregates.lastTimestamp(slot),
+                         aggregates.visits(slot), aggregates.spent(slot));
+    }
+
+    private static int[] allSlots(int size) {
+        int[] slots = new int[size];
+        for (int slot = 0; slot < size; slot++) {
+            slots[slot] = slot;
+        }
+        return slots;
+    }
+
+    /**
+     * Split the slots into partitions by customer id hash, in a single counting pass
+     */
+    private static int[][] partition(CustomerAggregates.Snapshot aggregates, int partitions) {
+        int[] partitionOf = new int[aggregates.size()];
+        int[] counts = new int[partitions];
+        for (int slot = 0; slot < aggregates.size(); slot++) {
+            int partition = partition(aggregates.customerId(slot), partitions);
+            partitionOf[slot] = partition;
+            counts[partition]++;
+        }
 
-            // now for each customer, calculate LTV
-            // this can totally be forked into separate jobs for a performance boost
-            for (String customerId: customerEvents.keySet()) {
-
-                Map<String,List<Event>> customer = customerEvents.get(customerId);
-                List<Event> all = customer.get("ALL");
-
-                // find the min/max timestamps
-                OptionalLong minTimestamp = all.stream().mapToLong(Event::getTimestamp).min();
-                OptionalLong maxTimestamp = all.stream().mapToLong(Event::getTimestamp).max();
-                if (maxTimestamp.isPresent() && minTimestamp.isPresent()) {
-
-                    // what is our date range, and is it enough to get meaningful data?
-                    // avoiding that check for now
-                    long range = maxTimestamp.getAsLong() - minTimestamp.getAsLong();
-
-                    int visits = customer.get("SITE_VISIT").size();
-                    Optional<Money> totalSpent = Optional.empty();
-                    for (Event event : customer.get("ORDER")) {
-                        Money orderAmount = (Money) event.getAttribute("total_amount").getValue();
-                        if (totalSpent.isPresent()) {
-                            totalSpent = Optional.of(totalSpent.get().plus(orderAmount));
-                        } else {
-                            totalSpent = Optional.of(orderAmount);
-                        }
-                    }
-
-                    if (totalSpent.isPresent()) {
-                        // we have data to work with... calculate
-
-                        // very simple approach to determine week
-                        // based simple on duration spanned by events
-                        long WEEK = 1000 * 60 * 60 * 24 * 7;
-                        int weeks = (int) range/ (int) WEEK; // do we care about rounding?
-                        if (weeks < 1) weeks = 1;
-
-                        // total/visits = expenditure per visit
-                        Money avgPerVisit = totalSpent.get().dividedBy(visits, RoundingMode.HALF_UP);
-
-                        // what is overall time period? in weeks?
-                        // visits/week = visits/weeks
-                        double visitsPerWeek = visits/weeks;
-
-                        /*
-                        52(a) x t.
-                        Where a is the average customer value per week (customer expenditures per visit (USD) x number of site visits per week)
-                        and t is the average customer lifespan. The average lifespan for Shutterfly is 10 years.
-                         */
-
-                        // not sure I got the math right here - seems fishy when it resolves to (visit/visit)*something
-                        Money ltv = avgPerVisit.multipliedBy(visitsPerWeek, RoundingMode.HALF_UP).multipliedBy(52).multipliedBy(10);
-                        System.out.println("range["+range+" ms], weeks["+weeks+"], visits["+visits+"], spent["+totalSpent.get()+"], LTV["+ltv.toString()+"]");
-
-                        customers.add(new Customer(customerId, ltv));
-                    } else {
-                        // nothing going on with this "customer" - drop from list
-                    }
-                }
+        int[][] slots = new int[partitions][];
+        for (int p = 0; p < partitions; p++) {
+            slots[p] = new int[counts[p]];
+            counts[p] = 0;
+        }
+        for (int slot = 0; slot < partitionOf.length; slot++) {
+            int p = partitionOf[slot];
+            slots[p][counts[p]++] = slot;
+        }
+        return slots;
+    }
+
+    private static int partition(int customerId, int partitions) {
+        int h = customerId * 0x9E3779B9;
+        return ((h ^ (h >>> 16)) & Integer.MAX_VALUE) % partitions;
+    }
+
+    /**
+     * Top K of partitions [from, to), split in halves until a single partition is left
+     */
+    private static class PartitionTask extends RecursiveTask<TopK> {
+        private final CustomerAggregates.Snapshot aggregates;
+        private final int k;
+        private final int[][] slots;
+        private final int from;
+        private final int to;
+
+        PartitionTask(CustomerAggregates.Snapshot aggregates, int k, int[][] slots, int from, int to) {
+            this.aggregates = aggregates;
+            this.k = k;
+            this.slots = slots;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected TopK compute() {
+            if (to - from == 1) {
+                return topK(aggregates, k, slots[from]);
             }
-            // sort and limit results
+            int middle = (from + to) >>> 1;
+            PartitionTask left = new PartitionTask(aggregates, k, slots, from, middle);
+            left.fork();
+            TopK right = new PartitionTask(aggregates, k, slots, middle, to).compute();
+            return right.merge(left.join());
+        }
+    }
+
+    /**
+     * LTV in minor units, from a customer's aggregates
+     *
+     * Integer math throughout, matching what we previously computed with Money:
+     *      weeks = (int) range / (int) WEEK, at least 1
+     *      avg per visit = spent / visits, rounded half up to the minor unit
+     *      visits per week = visits / weeks (integer division)
+     *      ltv = avg per visit * visits per week * 52 * 10
+     *
+     * @param visits must be > 0
+     */
+    public static long simpleLTV(long firstTimestamp, long lastTimestamp, int visits, long spent) {
+
+        // what is our date range, and is it enough to get meaningful data?
+        // avoiding that check for now
+        long range = lastTimestamp - firstTimestamp;
+
+        int weeks = (int) range/ (int) WEEK; // do we care about rounding?
+        if (weeks < 1) weeks = 1;
+
+        // total/visits = expenditure per visit
+        long avgPerVisit = divideHalfUp(spent, visits);
+
+        // visits/week = visits/weeks
+        long visitsPerWeek = visits/weeks;
+
+        // not sure I got the math right here - seems fishy when it resolves to (visit/visit)*something
+        long ltv = Math.multiplyExact(Math.multiplyExact(avgPerVisit, visitsPerWeek), 52 * 10);
+        if (logger.isDebugEnabled()) {
+            logger.debug("range["+range+" ms], weeks["+weeks+"], visits["+visits+"], spent["+spent+"], LTV["+ltv+"]");
+        }
+        return ltv;
+    }
 
+    /**
+     * @return dividend / divisor rounded half up (away from zero), as BigDecimal RoundingMode.HALF_UP does
+     */
+    static long divideHalfUp(long dividend, long divisor) {
+        long quotient = dividend / divisor;
+        long remainder = dividend % divisor;
+        if (Math.abs(remainder) * 2 >= Math.abs(divisor)) {
+            quotient += (dividend < 0) == (divisor < 0) ? 1 : -1;
         }
-        return customers.stream().sorted(
-            (c1, c2) -> c2.getLtv().getAmount().compareTo(c1.getLtv().getAmount())
-        ).limit(resultCount).collect(Collectors.toList());
+        return quotient;
     }
 
 }
@@ -0,0 +1,60 @@
+package com.j2clark.sflycc.reports;
+
+import java.util.Map;
+
+/**
+ * DTO for a distinct customer report, see DistinctCustomers
+ * Counts are HyperLogLog estimates, within a couple of percent of the actual count
+ */
+public class DistinctCustomerCount {
+
+    private final String type;
+    private final long from;
+    private final long to;
+    private final long count;
+    private final Map<Long, Long> daily;
+
+    public DistinctCustomerCount(String type, long from, long to, long count, Map<Long, Long> daily) {
+        this.type = type;
+        this.from = from;
+        this.to = to;
+        this.count = count;
+        this.daily = daily;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    /**
+     * @return start of the window, inclusive - the start of a (UTC) day
+     */
+    public long getFrom() {
+        return from;
+    }
+
+    /**
+     * @return end of the window, exclusive - the start of a (UTC) day
+     */
+    public long getTo() {
+        return to;
+    }
+
+    /**
+     * @return estimated distinct customers across the whole window
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * @return day start timestamp -> estimated distinct customers that day, days without any left out
+     */
+    public Map<Long, Long> getDaily() {
+        return daily;
+    }
+
+    public String toString() {
+        return "DistinctCustomerCount{type["+type+"], from["+from+"], to["+to+"], count["+count+"]}";
+    }
+}
@@ -0,0 +1,263 @@
+package com.j2clark.sflycc.reports;
+
+import com.j2clark.sflycc.domain.CustomerAggregates;
+import com.j2clark.sflycc.domain.StringDictionary;
+
+import org.joda.money.CurrencyMismatchException;
+import org.joda.money.CurrencyUnit;
+import org.joda.money.Money;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Live top LTV ranking, kept up to date as CustomerAggregates change rather than recomputed per request
+ *
+ * Customers are held in an order statistic treap (each node knows the size of its subtree), ordered the same way
+ * as topXSimpleLTVCustomers: LTV descending, then customer id. A change to a customer's inputs removes and
+ * re-inserts their node in O(log n), and top X, rank and range queries cost O(log n + X).
+ *
+ * Customers which would not appear in the report (no orders, no visits) are not ranked. Customers whose orders
+ * came in more than one currency are tracked separately, and queries fail for them just as the report does.
+ */
+public class Leaderboard implements CustomerAggregates.Listener, RankedCustomers {
+
+    private final Map<Integer, Node> nodes = new HashMap<>();
+    private final Map<Integer, CurrencyUnit[]> mismatched = new LinkedHashMap<>();
+    private final Random priorities = new Random();
+    private Node root;
+    private final StringDictionary customerDictionary;
+
+    private Leaderboard(StringDictionary customerDictionary) {
+        this.customerDictionary = customerDictionary;
+    }
+
+    /**
+     * @return a leaderboard following the given aggregates, starting with the customers already in there
+     */
+    public static Leaderboard follow(CustomerAggregates aggregates) {
+        Leaderboard leaderboard = new Leaderboard(aggregates.customerDictionary());
+        aggregates.addListener(leaderboard);
+        return leaderboard;
+    }
+
+    @Override
+    public synchronized void updated(int customerId, long firstTimestamp, long lastTimestamp, int visits, int orders,
+                                     long spent, CurrencyUnit currency, CurrencyUnit mismatchedCurrency) {
+
+        Node existing = nodes.remove(customerId);
+        if (existing != null) {
+            root = remove(root, existing);
+        }
+        // same rules as the report, see CustomerReportService.topK
+        if (orders == 0 || currency == null || visits == 0) {
+            return;
+        }
+        if (mismatchedCurrency != null) {
+            mismatched.put(customerId, new CurrencyUnit[] {currency, mismatchedCurrency});
+            return;
+        }
+
+        long ltv = CustomerReportService.simpleLTV(firstTimestamp, lastTimestamp, visits, spent);
+        String name = existing != null ? existing.name : customerDictionary.decode(customerId);
+        Node node = new Node(ltv, name, currency, priorities.nextInt());
+        root = insert(root, node);
+        nodes.put(customerId, node);
+    }
+
+    /**
+     * @return number of ranked customers
+     */
+    public synchronized int size() {
+        return size(root);
+    }
+
+    /**
+     * @return the top resultCount customers, as topXSimpleLTVCustomers would
+     */
+    public List<Customer> topX(int resultCount) {
+        return range(0, resultCount);
+    }
+
+    @Override
+    public synchronized List<Customer> range(int from, int to) {
+        checkCurrencies();
+        from = Math.max(0, from);
+        to = Math.min(to, size(root));
+        List<Customer> customers = new ArrayList<>(Math.max(0, to - from));
+        collect(root, from, to, customers);
+        return customers;
+    }
+
+    /**
+     * @return the customer's rank, 0 being the top, -1 if they are not ranked
+     */
+    public synchronized int rank(String customerId) {
+        int id = customerDictionary.lookup(customerId);
+        Node node = id < 0 ? null : nodes.get(id);
+        if (node == null) {
+            return -1;
+        }
+        int rank = 0;
+        Node current = root;
+        while (current != node) {
+            if (before(node, current)) {
+                current = current.left;
+            } else {
+                rank += size(current.left) + 1;
+                current = current.right;
+            }
+        }
+        return rank + size(node.left);
+    }
+
+    @Override
+    public synchronized int position(long ltv, String customerId) {
+        int position = 0;
+        Node current = root;
+        while (current != null) {
+            if (current.ltv > ltv || (current.ltv == ltv && current.name.compareTo(customerId) <= 0)) {
+                position += size(current.left) + 1;
+                current = current.right;
+            } else {
+                current = current.left;
+            }
+        }
+        return position;
+    }
+
+    private void checkCurrencies() {
+        if (!mismatched.isEmpty()) {
+            CurrencyUnit[] currencies = mismatched.values().iterator().next();
+            throw new CurrencyMismatchException(currencies[0], currencies[1]);
+        }
+    }
+
+    /**
+     * in order walk, skipping subtrees which fall entirely outside [from, to) of the node's subtree
+     */
+    private static void collect(Node node, int from, int to, List<Customer> customers) {
+        if (node == null || from >= to) {
+            return;
+        }
+        int leftSize = size(node.left);
+        if (from < leftSize) {
+            collect(node.left, from, Math.min(to, leftSize), customers);
+        }
+        if (from <= leftSize && leftSize < to) {
+            customers.add(new Customer(node.name, Money.ofMinor(node.currency, node.ltv)));
+        }
+        if (to > leftSize + 1) {
+            collect(node.right, Math.max(0, from - leftSize - 1), to - leftSize - 1, customers);
+        }
+    }
+
+    /**
+     * @return true if a ranks above b
+     */
+    private static boolean before(Node a, Node b) {
+        if (a.ltv != b.ltv) {
+            return a.ltv > b.ltv;
+        }
+        return a.name.compareTo(b.name) < 0;
+    }
+
+    private static Node insert(Node root, Node node) {
+        if (root == null) {
+            return node;
+        }
+        if (before(node, root)) {
+            root.left = insert(root.left, node);
+            if (root.left.priority > root.priority) {
+                root = rotateRight(root);
+            }
+        } else {
+            root.right = insert(root.right, node);
+            if (root.right.priority > root.priority) {
+                root = rotateLeft(root);
+            }
+        }
+        update(root);
+        return root;
+    }
+
+    private static Node remove(Node root, Node node) {
+        if (root == node) {
+            return merge(root.left, root.right);
+        }
+        if (before(node, root)) {
+            root.left = remove(root.left, node);
+        } else {
+            root.right = remove(root.right, node);
+        }
+        update(root);
+        return root;
+    }
+
+    /**
+     * join two treaps, everything in left ranking above everything in right
+     */
+    private static Node merge(Node left, Node right) {
+        if (left == null) {
+            return right;
+        }
+        if (right == null) {
+            return left;
+        }
+        if (left.priority > right.priority) {
+            left.right = merge(left.right, right);
+            update(left);
+            return left;
+        }
+        right.left = merge(left, right.left);
+        update(right);
+        return right;
+    }
+
+    private static Node rotateRight(Node node) {
+        Node left = node.left;
+        node.left = left.right;
+        left.right = node;
+        update(node);
+        update(left);
+        return left;
+    }
+
+    private static Node rotateLeft(Node node) {
+        Node right = node.right;
+        node.right = right.left;
+        right.left = node;
+        update(node);
+        update(right);
+        return right;
+    }
+
+    private static void update(Node node) {
+        node.size = 1 + size(node.left) + size(node.right);
+    }
+
+    private static int size(Node node) {
+        return node == null ? 0 : node.size;
+    }
+
+    private static class Node {
+        private final long ltv;                 // minor units
+        private final String name;              // decoded customer id, for ties
+        private final CurrencyUnit currency;
+        private final int priority;
+        private Node left;
+        private Node right;
+        private int size = 1;
+
+        Node(long ltv, String name, CurrencyUnit currency, int priority) {
+            this.ltv = ltv;
+            this.name = name;
+            this.currency = currency;
+            this.priority = priority;
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package com.j2clark.sflycc.reports;
+
+import java.util.List;
+
+/**
+ * Customers in LTV order (highest first, ties by customer id), for paging through - see CustomerPageWriter
+ */
+public interface RankedCustomers {
+
+    /**
+     * @return number of customers ranked at or above the given LTV (minor units) and customer id,
+     * i.e. where the page following a customer with those values starts - whether or not they are still ranked
+     */
+    int position(long ltv, String customerId);
+
+    /**
+     * @return customers ranked [from, to), 0 being the top
+     */
+    List<Customer> range(int from, int to);
+
+    /**
+     * @param customers already in LTV order, e.g. from topXSimpleLTVCustomers
+     */
+    static RankedCustomers of(List<Customer> customers) {
+        return new RankedCustomers() {
+            @Override
+            public int position(long ltv, String customerId) {
+                // binary search for the first customer ranked below the given position
+                int low = 0;
+                int high = customers.size();
+                while (low < high) {
+                    int middle = (low + high) >>> 1;
+                    Customer customer = customers.get(middle);
+                    long customerLtv = customer.getLtv().getAmountMinorLong();
+                    if (customerLtv > ltv || (customerLtv == ltv && customer.getCustomerId().compareTo(customerId) <= 0)) {
+                        low = middle + 1;
+                    } else {
+                        high = middle;
+                    }
+                }
+                return low;
+            }
+
+            @Override
+            public List<Customer> range(int from, int to) {
+                from = Math.max(0, from);
+                to = Math.min(to, customers.size());
+                return from < to ? customers.subList(from, to) : customers.subList(0, 0);
+            }
+        };
+    }
+}
@@ -0,0 +1,218 @@
+package com.j2clark.sflycc.reports;
+
+import com.j2clark.sflycc.domain.Data;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Report results keyed by (report, data, data epoch, parameters), evicted least recently used first and after a TTL
+ *
+ * Since the epoch moves on with every append (see Data.epoch), a cached result is only ever served for data which
+ * has not changed since - no explicit invalidation needed. Entries for old epochs simply age out.
+ *
+ * Data is told apart by instance rather than transaction id, which need not be unique (e.g. the history's), and only
+ * weakly referenced - entries for data which has been collected are dropped.
+ *
+ * Besides the number of entries, the cache is bounded by their total weight - a list weighs its size, a Weighted
+ * result its weight(), anything else 1. A result heavier than the whole bound is returned but not cached.
+ *
+ * Results are shared between callers, so they must not be modified (lists are cached unmodifiable).
+ */
+public class ReportCache {
+
+    /**
+     * A result whose weight is not simply 1, e.g. the number of customers it holds
+     */
+    public interface Weighted {
+        int weight();
+    }
+
+    private final int maxEntries;
+    private final long maxWeight;
+    private final long ttlMillis;
+    private final LongSupplier clock;
+    private final Map<List<Object>, Entry> entries;
+    private final ReferenceQueue<Data> collected = new ReferenceQueue<>();
+
+    private long weight = 0;
+    private long hits = 0;
+    private long misses = 0;
+
+    /**
+     * @param ttlMillis how long a result may be served for, 0 (or less) for as long as it stays in the cache
+     */
+    public ReportCache(int maxEntries, long ttlMillis) {
+        this(maxEntries, Long.MAX_VALUE, ttlMillis);
+    }
+
+    /**
+     * @param maxWeight total weight of the cached results
+     */
+    public ReportCache(int maxEntries, long maxWeight, long ttlMillis) {
+        this(maxEntries, maxWeight, ttlMillis, System::currentTimeMillis);
+    }
+
+    /**
+     * @param clock millisecond time source, e.g. for tests
+     */
+    public ReportCache(int maxEntries, long maxWeight, long ttlMillis, LongSupplier clock) {
+        if (maxEntries < 1 || maxWeight < 1) {
+            throw new IllegalArgumentException("maxEntries and maxWeight must be >= 1");
+        }
+        this.maxEntries = maxEntries;
+        this.maxWeight = maxWeight;
+        this.ttlMillis = ttlMillis;
+        this.clock = clock;
+        // access order, so iteration starts at the least recently used entry
+        this.entries = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    /**
+     * @return the cached result of the report for the data as it stands, computing (and caching) it if needed
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T get(String report, Data data, Supplier<T> compute, Object... parameters) {
+        // read before computing - should events arrive while we compute, the result is newer than its key, never older
+        List<Object> key = new ArrayList<>(parameters.length + 3);
+        key.add(report);
+        key.add(new DataKey(data, null));
+        key.add(data.epoch());
+        key.addAll(Arrays.asList(parameters));
+
+        long now = clock.getAsLong();
+        synchronized (this) {
+            purge();
+            Entry entry = entries.get(key);
+            if (entry != null && (ttlMillis <= 0 || now - entry.created < ttlMillis)) {
+                hits++;
+                return (T) entry.value;
+            }
+            misses++;
+        }
+
+        // computed outside the lock, so a slow report does not hold up others - concurrent misses may both compute
+        T value = compute.get();
+        if (value instanceof List) {
+            value = (T) Collections.unmodifiableList((List<?>) value);
+        }
+        int valueWeight = weigh(value);
+        if (valueWeight > maxWeight) {
+            return value;
+        }
+        // only keys which make it into the cache are told when their data is collected
+        key.set(1, new DataKey(data, collected));
+        synchronized (this) {
+            Entry replaced = entries.put(key, new Entry(value, valueWeight, now));
+            weight += valueWeight - (replaced == null ? 0 : replaced.weight);
+            evict();
+        }
+        return value;
+    }
+
+    private static int weigh(Object value) {
+        if (value instanceof List) {
+            return ((List<?>) value).size();
+        }
+        return value instanceof Weighted ? ((Weighted) value).weight() : 1;
+    }
+
+    /**
+     * drop least recently used entries until back within bounds
+     */
+    private void evict() {
+        Iterator<Entry> eldest = entries.values().iterator();
+        while (entries.size() > maxEntries || weight > maxWeight) {
+            weight -= eldest.next().weight;
+            eldest.remove();
+        }
+    }
+
+    /**
+     * drop the entries of data which has been collected
+     */
+    private void purge() {
+        Reference<? extends Data> gone;
+        while ((gone = collected.poll()) != null) {
+            Reference<? extends Data> dataKey = gone;
+            Iterator<Map.Entry<List<Object>, Entry>> i = entries.entrySet().iterator();
+            while (i.hasNext()) {
+                Map.Entry<List<Object>, Entry> entry = i.next();
+                if (entry.getKey().get(1) == dataKey) {
+                    weight -= entry.getValue().weight;
+                    i.remove();
+                }
+            }
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long weight() {
+        return weight;
+    }
+
+    public synchronized long hits() {
+        return hits;
+    }
+
+    public synchronized long misses() {
+        return misses;
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        weight = 0;
+    }
+
+    /**
+     * Weak, identity based reference to a Data
+     */
+    private static class DataKey extends WeakReference<Data> {
+        private final int hashCode;
+
+        DataKey(Data data, ReferenceQueue<Data> queue) {
+            super(data, queue);
+            this.hashCode = System.identityHashCode(data);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            // once collected a key only equals itself
+            Data data = get();
+            return data != null && o instanceof DataKey && data == ((DataKey) o).get();
+        }
+    }
+
+    private static class Entry {
+        private final Object value;
+        private final int weight;
+        private final long created;
+
+        Entry(Object value, int weight, long created) {
+            this.value = value;
+            this.weight = weight;
+            this.created = created;
+        }
+    }
+}
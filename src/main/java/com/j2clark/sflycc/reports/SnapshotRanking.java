@@ -0,0 +1,112 @@
+package com.j2clark.sflycc.reports;
+
+import com.j2clark.sflycc.domain.CustomerAggregates;
+
+import org.joda.money.Money;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Ranking of the customers in an aggregates snapshot (e.g. a window), for paging through - see CustomerPageWriter
+ *
+ * Held as primitive arrays, a slot and an LTV per ranked customer, sorted once. Customer objects are only built
+ * for the range asked for, so a ranking costs 12 bytes per customer however many pages are read from it.
+ */
+public class SnapshotRanking implements RankedCustomers, ReportCache.Weighted {
+
+    private final CustomerAggregates.Snapshot aggregates;
+    private final int[] slots;
+    private final long[] ltvs;
+
+    /**
+     * @param slots of the customers to rank, with ltvs[i] the LTV (minor units) of slots[i] - both are sorted in place
+     */
+    SnapshotRanking(CustomerAggregates.Snapshot aggregates, int[] slots, long[] ltvs) {
+        this.aggregates = aggregates;
+        this.slots = slots;
+        this.ltvs = ltvs;
+        sort(0, slots.length, new int[slots.length], new long[ltvs.length]);
+    }
+
+    public int size() {
+        return slots.length;
+    }
+
+    @Override
+    public int weight() {
+        return slots.length;
+    }
+
+    @Override
+    public int position(long ltv, String customerId) {
+        int low = 0;
+        int high = slots.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (ltvs[middle] > ltv || (ltvs[middle] == ltv && customerId(middle).compareTo(customerId) <= 0)) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    @Override
+    public List<Customer> range(int from, int to) {
+        from = Math.max(0, from);
+        to = Math.min(to, slots.length);
+        List<Customer> customers = new ArrayList<>(Math.max(0, to - from));
+        for (int i = from; i < to; i++) {
+            customers.add(new Customer(customerId(i), Money.ofMinor(aggregates.currency(slots[i]), ltvs[i])));
+        }
+        return customers;
+    }
+
+    private String customerId(int i) {
+        return aggregates.customerDictionary().decode(aggregates.customerId(slots[i]));
+    }
+
+    /**
+     * @return whether i ranks above j, LTV descending then customer id
+     */
+    private boolean before(int[] slots, long[] ltvs, int i, int j) {
+        if (ltvs[i] != ltvs[j]) {
+            return ltvs[i] > ltvs[j];
+        }
+        String a = aggregates.customerDictionary().decode(aggregates.customerId(slots[i]));
+        String b = aggregates.customerDictionary().decode(aggregates.customerId(slots[j]));
+        return a.compareTo(b) < 0;
+    }
+
+    /**
+     * Merge sort of [from, to) of both arrays, the primitive arrays rather than boxing them for a comparator
+     */
+    private void sort(int from, int to, int[] slotBuffer, long[] ltvBuffer) {
+        if (to - from < 2) {
+            return;
+        }
+        int middle = (from + to) >>> 1;
+        sort(from, middle, slotBuffer, ltvBuffer);
+        sort(middle, to, slotBuffer, ltvBuffer);
+        if (!before(slots, ltvs, middle, middle - 1)) {
+            // already in order
+            return;
+        }
+
+        System.arraycopy(slots, from, slotBuffer, from, to - from);
+        System.arraycopy(ltvs, from, ltvBuffer, from, to - from);
+        int left = from;
+        int right = middle;
+        for (int i = from; i < to; i++) {
+            if (right >= to || (left < middle && !before(slotBuffer, ltvBuffer, right, left))) {
+                slots[i] = slotBuffer[left];
+                ltvs[i] = ltvBuffer[left++];
+            } else {
+                slots[i] = slotBuffer[right];
+                ltvs[i] = ltvBuffer[right++];
+            }
+        }
+    }
+}
@@ -0,0 +1,301 @@
+package com.j2clark.sflycc.reports;
+
+import com.j2clark.sflycc.domain.Data;
+import com.j2clark.sflycc.domain.Event;
+import com.j2clark.sflycc.domain.EventType;
+
+import org.joda.money.CurrencyMismatchException;
+import org.joda.money.CurrencyUnit;
+import org.joda.money.Money;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Approximate top spenders in fixed memory, using weighted Space-Saving (Metwally et al)
+ *
+ * A fixed number of counters is kept, each monitoring one customer. An order for a monitored customer adds to their
+ * counter, an order for anyone else takes over the counter with the smallest total - the new customer inherits
+ * that total as their error. So for every monitored customer
+ *      estimate - error <= actual spend <= estimate
+ * and nobody who spent more than (total spend / capacity) can be missing.
+ *
+ * Only ORDER amounts are counted - spend is what we rank by here, visits do not change it. Memory depends on
+ * the capacity alone, not on the number of customers, so one long lived sketch can follow a large event stream
+ * (see follow) and be queried as often as needed. Amounts only ever add to a counter, negative ones (refunds)
+ * are ignored as Space-Saving has no way to take spend back out.
+ *
+ * Counters are kept in two heaps: a min-heap to find the counter to take over, and a max-heap topX reads the
+ * largest off without changing it, so an order costs O(log capacity) and topX O(X log X).
+ * Thread safe, e.g. to follow the event history while reports are read.
+ */
+public class SpendSketch {
+
+    // rough heap footprint of one counter: the arrays, plus the index entry and the customer id string
+    private static final int BYTES_PER_COUNTER = 128;
+
+    private final int capacity;
+    private final String[] customerIds;
+    private final long[] counts;        // minor units
+    private final long[] errors;
+    private final int[] heap;           // counter indexes, min-heap on counts
+    private final int[] positions;      // counter index -> heap position
+    private final int[] ranked;         // counter indexes, max-heap in topX order (count desc, customer id)
+    private final int[] rankedPositions;
+    private final Map<String, Integer> index;
+    private int size = 0;
+
+    private CurrencyUnit currency;
+    private CurrencyUnit mismatchedCurrency;
+    private long total = 0;
+
+    public SpendSketch(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be >= 1");
+        }
+        this.capacity = capacity;
+        this.customerIds = new String[capacity];
+        this.counts = new long[capacity];
+        this.errors = new long[capacity];
+        this.heap = new int[capacity];
+        this.positions = new int[capacity];
+        this.ranked = new int[capacity];
+        this.rankedPositions = new int[capacity];
+        this.index = new HashMap<>(capacity * 2);
+    }
+
+    /**
+     * @param epsilon error bound as a fraction of total spend, e.g. 0.0001
+     */
+    public static SpendSketch withError(double epsilon) {
+        if (epsilon <= 0 || epsilon >= 1) {
+            throw new IllegalArgumentException("epsilon must be in (0, 1)");
+        }
+        return new SpendSketch((int) Math.ceil(1 / epsilon));
+    }
+
+    /**
+     * @return the most accurate sketch fitting (roughly) in the given number of megabytes
+     */
+    public static SpendSketch withMemory(int megabytes) {
+        return new SpendSketch((int) Math.max(1, Math.min(Integer.MAX_VALUE / 2, megabytes * 1024L * 1024L / BYTES_PER_COUNTER)));
+    }
+
+    /**
+     * Follow the given data from here on, starting with the events already in there
+     *
+     * @return this
+     */
+    public SpendSketch follow(Data data) {
+        data.addListener(this::add);
+        return this;
+    }
+
+    /**
+     * Account for the event if it is an order, anything else (or an order without customer or amount) is ignored
+     */
+    public void add(Event event) {
+        if (EventType.ORDER != event.getType()) {
+            return;
+        }
+        Event.Attribute customer = event.getAttribute("customer_id");
+        Event.Attribute amount = event.getAttribute("total_amount");
+        Object customerId = customer != null ? customer.getValue() : null;
+        Object money = amount != null ? amount.getValue() : null;
+        if (customerId instanceof String && money instanceof Money) {
+            add((String) customerId, (Money) money);
+        }
+    }
+
+    public synchronized void add(String customerId, Money amount) {
+        if (amount.isNegativeOrZero()) {
+            return;
+        }
+        if (currency == null) {
+            currency = amount.getCurrencyUnit();
+        } else if (!currency.equals(amount.getCurrencyUnit())) {
+            // like the exact report, mixed currencies fail the query rather than the ingest
+            if (mismatchedCurrency == null) {
+                mismatchedCurrency = amount.getCurrencyUnit();
+            }
+            return;
+        }
+        long spend;
+        try {
+            spend = amount.getAmountMinorLong();
+        } catch (ArithmeticException e) {
+            spend = Long.MAX_VALUE;
+        }
+        total = saturatedAdd(total, spend);
+        Integer counter = index.get(customerId);
+        if (counter != null) {
+            counts[counter] = saturatedAdd(counts[counter], spend);
+            increased(counter);
+            return;
+        }
+        if (size < capacity) {
+            counter = size;
+            customerIds[counter] = customerId;
+            counts[counter] = spend;
+            errors[counter] = 0;
+            heap[size] = counter;
+            positions[counter] = size;
+            ranked[size] = counter;
+            rankedPositions[counter] = size;
+            size++;
+            index.put(customerId, counter);
+            siftUp(positions[counter]);
+            rankUp(rankedPositions[counter]);
+            return;
+        }
+
+        // take over the smallest counter
+        counter = heap[0];
+        index.remove(customerIds[counter]);
+        customerIds[counter] = customerId;
+        errors[counter] = counts[counter];
+        counts[counter] = saturatedAdd(counts[counter], spend);
+        index.put(customerId, counter);
+        increased(counter);
+    }
+
+    /**
+     * Restore both heaps after the counter's count went up - spend is always positive, so it only ever moves down
+     * the min-heap and up the max-heap (where a higher count outranks any customer id)
+     */
+    private void increased(int counter) {
+        siftDown(positions[counter]);
+        rankUp(rankedPositions[counter]);
+    }
+
+    /**
+     * @return a + b for non negative a and b, Long.MAX_VALUE rather than wrapping around
+     */
+    private static long saturatedAdd(long a, long b) {
+        long sum = a + b;
+        return sum < 0 ? Long.MAX_VALUE : sum;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * @return upper bound on the error of any estimate, as a fraction of total spend
+     */
+    public double epsilon() {
+        return 1.0 / capacity;
+    }
+
+    /**
+     * @return total spend seen so far, in minor units
+     */
+    public synchronized long total() {
+        return total;
+    }
+
+    /**
+     * @return upper bound on the spend of any customer not monitored, and on the error of any estimate
+     */
+    public synchronized long maxError() {
+        return size < capacity ? 0 : counts[heap[0]];
+    }
+
+    /**
+     * @return the resultCount largest estimates, highest first (ties by customer id)
+     */
+    public synchronized List<SpenderEstimate> topX(int resultCount) {
+        if (mismatchedCurrency != null) {
+            throw new CurrencyMismatchException(currency, mismatchedCurrency);
+        }
+        int count = Math.max(0, Math.min(resultCount, size));
+        int[] order = new int[count];
+        // positions in the max-heap, the next largest counter is always one of them
+        PriorityQueue<Integer> frontier = new PriorityQueue<>((a, b) -> outranks(ranked[a], ranked[b]) ? -1 : 1);
+        if (size > 0) {
+            frontier.add(0);
+        }
+        for (int i = 0; i < count; i++) {
+            int position = frontier.poll();
+            order[i] = ranked[position];
+            for (int child = 2 * position + 1; child <= 2 * position + 2 && child < size; child++) {
+                frontier.add(child);
+            }
+        }
+
+        // an entry is certainly in the top X when its lower bound beats everything ranked below it
+        long next = !frontier.isEmpty() ? counts[ranked[frontier.peek()]] : maxError();
+        List<SpenderEstimate> estimates = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int counter = order[i];
+            estimates.add(new SpenderEstimate(customerIds[counter],
+                                              Money.ofMinor(currency, counts[counter]),
+                                              Money.ofMinor(currency, errors[counter]),
+                                              counts[counter] - errors[counter] >= next));
+        }
+        return estimates;
+    }
+
+    /**
+     * @return whether counter a comes before counter b in topX
+     */
+    private boolean outranks(int a, int b) {
+        return counts[a] != counts[b] ? counts[a] > counts[b] : customerIds[a].compareTo(customerIds[b]) < 0;
+    }
+
+    private void rankUp(int position) {
+        while (position > 0) {
+            int parent = (position - 1) >>> 1;
+            if (!outranks(ranked[position], ranked[parent])) {
+                break;
+            }
+            int counter = ranked[position];
+            ranked[position] = ranked[parent];
+            ranked[parent] = counter;
+            rankedPositions[ranked[position]] = position;
+            rankedPositions[counter] = parent;
+            position = parent;
+        }
+    }
+
+    private void swap(int a, int b) {
+        int counter = heap[a];
+        heap[a] = heap[b];
+        heap[b] = counter;
+        positions[heap[a]] = a;
+        positions[heap[b]] = b;
+    }
+
+    private void siftUp(int position) {
+        while (position > 0) {
+            int parent = (position - 1) >>> 1;
+            if (counts[heap[parent]] <= counts[heap[position]]) {
+                break;
+            }
+            swap(position, parent);
+            position = parent;
+        }
+    }
+
+    private void siftDown(int position) {
+        while (true) {
+            int smallest = position;
+            int left = 2 * position + 1;
+            int right = left + 1;
+            if (left < size && counts[heap[left]] < counts[heap[smallest]]) {
+                smallest = left;
+            }
+            if (right < size && counts[heap[right]] < counts[heap[smallest]]) {
+                smallest = right;
+            }
+            if (smallest == position) {
+                return;
+            }
+            swap(position, smallest);
+            position = smallest;
+        }
+    }
+}
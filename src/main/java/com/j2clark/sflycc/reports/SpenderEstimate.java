@@ -0,0 +1,51 @@
+package com.j2clark.sflycc.reports;
+
+import org.joda.money.Money;
+
+/**
+ * DTO for an approximate report entry, see SpendSketch
+ * The actual spend lies in [spend - error, spend]
+ */
+public class SpenderEstimate {
+
+    private final String customerId;
+    private final Money spend;
+    private final Money error;
+    private final boolean guaranteed;
+
+    public SpenderEstimate(String customerId, Money spend, Money error, boolean guaranteed) {
+        this.customerId = customerId;
+        this.spend = spend;
+        this.error = error;
+        this.guaranteed = guaranteed;
+    }
+
+    public String getCustomerId() {
+        return customerId;
+    }
+
+    /**
+     * @return estimated spend, never less than the actual spend
+     */
+    public Money getSpend() {
+        return spend;
+    }
+
+    /**
+     * @return how much the estimate may be over by
+     */
+    public Money getError() {
+        return error;
+    }
+
+    /**
+     * @return true if the customer is certainly among the top X, whatever the error
+     */
+    public boolean isGuaranteed() {
+        return guaranteed;
+    }
+
+    public String toString() {
+        return "SpenderEstimate{id["+customerId+"], spend["+spend+"], error["+error+"], guaranteed["+guaranteed+"]}";
+    }
+}
@@ -0,0 +1,158 @@
+package com.j2clark.sflycc.reports;
+
+import com.j2clark.sflycc.domain.StringDictionary;
+
+import java.util.Arrays;
+
+/**
+ * The K customers with the highest LTV, using a size K min-heap over primitive values
+ *
+ * The heap root is the weakest entry kept so far, so offering a customer which does not make the cut costs a single
+ * compare. Ties on LTV are broken by customer id (ascending), so results do not depend on offer order - which also
+ * means top Ks of separate partitions can be merged into the top K of the whole.
+ *
+ * Each entry carries an int ref alongside the customer, e.g. the aggregate slot it was computed from.
+ * Not thread safe, use one per partition and merge.
+ */
+public class TopK {
+
+    private final int k;
+    private final StringDictionary customerDictionary;
+    private final long[] ltvs;
+    private final int[] customerIds;    // customer_id dictionary ids
+    private final int[] refs;
+    private int size = 0;
+
+    /**
+     * @param customerDictionary the customer ids are from, to break ties with
+     */
+    public TopK(int k, StringDictionary customerDictionary) {
+        if (k < 0) {
+            throw new IllegalArgumentException("k must be >= 0");
+        }
+        this.k = k;
+        this.customerDictionary = customerDictionary;
+        this.ltvs = new long[k];
+        this.customerIds = new int[k];
+        this.refs = new int[k];
+    }
+
+    /**
+     * @return true if the customer is (for now) among the top K
+     */
+    public boolean offer(long ltv, int customerId, int ref) {
+        if (size < k) {
+            int index = size++;
+            set(index, ltv, customerId, ref);
+            siftUp(index);
+            return true;
+        }
+        if (k == 0 || !better(ltv, customerId, ltvs[0], customerIds[0])) {
+            return false;
+        }
+        set(0, ltv, customerId, ref);
+        siftDown(0);
+        return true;
+    }
+
+    /**
+     * Add the entries of another top K, e.g. from a separate partition
+     */
+    public TopK merge(TopK other) {
+        for (int i = 0; i < other.size; i++) {
+            offer(other.ltvs[i], other.customerIds[i], other.refs[i]);
+        }
+        return this;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return heap positions ordered best first, to be used with ltv(i), customerId(i) and ref(i)
+     */
+    public int[] ranked() {
+        Integer[] order = new Integer[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> better(ltvs[a], customerIds[a], ltvs[b], customerIds[b]) ? -1
+                                     : better(ltvs[b], customerIds[b], ltvs[a], customerIds[a]) ? 1 : 0);
+        int[] ranked = new int[size];
+        for (int i = 0; i < size; i++) {
+            ranked[i] = order[i];
+        }
+        return ranked;
+    }
+
+    public long ltv(int i) {
+        return ltvs[i];
+    }
+
+    public int customerId(int i) {
+        return customerIds[i];
+    }
+
+    public int ref(int i) {
+        return refs[i];
+    }
+
+    /**
+     * higher LTV wins, then the lower customer id
+     */
+    private boolean better(long ltv, int customerId, long otherLtv, int otherCustomerId) {
+        if (ltv != otherLtv) {
+            return ltv > otherLtv;
+        }
+        if (customerId == otherCustomerId) {
+            return false;
+        }
+        // only decoded on a tie, which is rare
+        return customerDictionary.decode(customerId).compareTo(customerDictionary.decode(otherCustomerId)) < 0;
+    }
+
+    private void set(int index, long ltv, int customerId, int ref) {
+        ltvs[index] = ltv;
+        customerIds[index] = customerId;
+        refs[index] = ref;
+    }
+
+    private void swap(int a, int b) {
+        long ltv = ltvs[a];
+        int customerId = customerIds[a];
+        int ref = refs[a];
+        set(a, ltvs[b], customerIds[b], refs[b]);
+        set(b, ltv, customerId, ref);
+    }
+
+    private void siftUp(int index) {
+        while (index > 0) {
+            int parent = (index - 1) >>> 1;
+            if (!better(ltvs[parent], customerIds[parent], ltvs[index], customerIds[index])) {
+                break;
+            }
+            swap(index, parent);
+            index = parent;
+        }
+    }
+
+    private void siftDown(int index) {
+        while (true) {
+            int weakest = index;
+            int left = 2 * index + 1;
+            int right = left + 1;
+            if (left < size && better(ltvs[weakest], customerIds[weakest], ltvs[left], customerIds[left])) {
+                weakest = left;
+            }
+            if (right < size && better(ltvs[weakest], customerIds[weakest], ltvs[right], customerIds[right])) {
+                weakest = right;
+            }
+            if (weakest == index) {
+                return;
+            }
+            swap(index, weakest);
+            index = weakest;
+        }
+    }
+}
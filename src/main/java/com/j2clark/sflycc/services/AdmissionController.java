@@ -0,0 +1,224 @@
+package com.j2clark.sflycc.services;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+/**
+ * Budgets the bytes and events ingest holds in memory at once, turning requests away rather than running out of heap
+ *
+ * A pushEvent request costs its body as a String, then again as JSON, then as Events - all alive at the same time.
+ * Bytes are charged before the body is read (from the Content-Length), events once they have been parsed.
+ * Nothing waits: a request which does not fit fails straight away, and the client is told when to try again.
+ *
+ * Two lanes, so small interactive batches are not starved by bulk backfills: the bulk lane may only use its
+ * share of the budget, the remainder is kept for the interactive lane (which may use all of it).
+ *
+ * A request handed on to a Queue (pushEventAsync) is also budgeted against that queue's depth, see admit(Lane, long, Queue),
+ * the lanes sharing it out the same way.
+ */
+@Service
+public class AdmissionController {
+
+    public enum Lane { INTERACTIVE, BULK }
+
+    /**
+     * A queue requests are handed on to once read, see IngestPipeline
+     */
+    public interface Queue {
+
+        /**
+         * @return requests queued or in progress
+         */
+        int backlog();
+
+        int capacity();
+
+        /**
+         * @return bytes queued or in progress
+         */
+        long backlogBytes();
+
+        long maxBytes();
+    }
+
+    private final long maxBytes;
+    private final long maxEvents;
+    private final double bulkShare;
+    private final long interactiveMaxBytes;
+    private final int retryAfterSeconds;
+
+    // guarded by this
+    private long bytes = 0;
+    private long events = 0;
+    private long bulkBytes = 0;
+    private long bulkEvents = 0;
+    private long rejected = 0;
+
+    /**
+     * @param maxBytes bytes in flight across all requests
+     * @param maxEvents events in flight across all requests
+     * @param bulkShare fraction of either budget the bulk lane may use
+     * @param interactiveMaxBytes requests up to this size go in the interactive lane
+     */
+    @Autowired
+    public AdmissionController(@Value("${sflycc.admission.max-bytes:67108864}") long maxBytes,
+                               @Value("${sflycc.admission.max-events:500000}") long maxEvents,
+                               @Value("${sflycc.admission.bulk-share:0.75}") double bulkShare,
+                               @Value("${sflycc.admission.interactive-max-bytes:65536}") long interactiveMaxBytes,
+                               @Value("${sflycc.admission.retry-after-seconds:1}") int retryAfterSeconds) {
+        if (maxBytes < 1 || maxEvents < 1) {
+            throw new IllegalArgumentException("budgets must be >= 1");
+        }
+        if (bulkShare <= 0 || bulkShare > 1) {
+            throw new IllegalArgumentException("bulkShare must be in (0, 1]");
+        }
+        this.maxBytes = maxBytes;
+        this.maxEvents = maxEvents;
+        this.bulkShare = bulkShare;
+        this.interactiveMaxBytes = interactiveMaxBytes;
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    /**
+     * @param contentLength request size, -1 if unknown (treated as bulk)
+     */
+    public Lane lane(long contentLength) {
+        return contentLength >= 0 && contentLength <= interactiveMaxBytes ? Lane.INTERACTIVE : Lane.BULK;
+    }
+
+    /**
+     * Admit a request of the given size, it must be closed once done with
+     *
+     * @throws OverloadedException if the request does not fit right now (or ever)
+     */
+    public Permit admit(Lane lane, long requestBytes) {
+        Permit permit = new Permit(lane);
+        permit.charge(Math.max(0, requestBytes), 0);
+        return permit;
+    }
+
+    /**
+     * Admit a request which, once read, is handed on to the given queue - turned away up front should the queue
+     * not take it, rather than once its body has been read. The queue is only looked at here, so it may still
+     * refuse the request later on (it fills up meanwhile).
+     *
+     * @throws OverloadedException if the request does not fit right now (or ever), in memory or in the queue
+     */
+    public Permit admit(Lane lane, long requestBytes, Queue queue) {
+        int backlog = queue.backlog();
+        long backlogBytes = queue.backlogBytes();
+        // as the queue itself does, an empty queue takes any one request however large
+        if (backlog >= queue.capacity() || backlogBytes > 0 && backlogBytes + requestBytes > queue.maxBytes()) {
+            throw queueFull(OverloadedException.Reason.BUDGET_FULL, "ingest queue full", backlog, backlogBytes);
+        }
+        if (lane == Lane.BULK && (backlog >= limit(lane, queue.capacity())
+                                  || backlogBytes > 0 && backlogBytes + requestBytes > limit(lane, queue.maxBytes()))) {
+            throw queueFull(OverloadedException.Reason.LANE_FULL, "bulk share of the ingest queue full", backlog, backlogBytes);
+        }
+        return admit(lane, requestBytes);
+    }
+
+    private synchronized OverloadedException queueFull(OverloadedException.Reason reason, String message,
+                                                       int backlog, long backlogBytes) {
+        rejected++;
+        return new OverloadedException(reason, retryAfterSeconds,
+                message + ", queued[" + backlog + "] requests, [" + backlogBytes + "] bytes");
+    }
+
+    public synchronized long bytesInFlight() {
+        return bytes;
+    }
+
+    public synchronized long eventsInFlight() {
+        return events;
+    }
+
+    public synchronized long rejected() {
+        return rejected;
+    }
+
+    private long limit(Lane lane, long max) {
+        return lane == Lane.BULK ? (long) (max * bulkShare) : max;
+    }
+
+    private synchronized void acquire(Lane lane, long addBytes, long addEvents) {
+        long laneBytes = limit(lane, maxBytes);
+        long laneEvents = limit(lane, maxEvents);
+        if (addBytes > laneBytes || addEvents > laneEvents) {
+            rejected++;
+            throw new OverloadedException(OverloadedException.Reason.TOO_LARGE, retryAfterSeconds,
+                    lane + " request of [" + addBytes + "] bytes, [" + addEvents + "] events exceeds its lane budget");
+        }
+        if (bytes + addBytes > maxBytes || events + addEvents > maxEvents) {
+            rejected++;
+            throw new OverloadedException(OverloadedException.Reason.BUDGET_FULL, retryAfterSeconds,
+                    "ingest budget full, in flight[" + bytes + "] bytes, [" + events + "] events");
+        }
+        if (lane == Lane.BULK && (bulkBytes + addBytes > laneBytes || bulkEvents + addEvents > laneEvents)) {
+            rejected++;
+            throw new OverloadedException(OverloadedException.Reason.LANE_FULL, retryAfterSeconds,
+                    "bulk ingest budget full, in flight[" + bulkBytes + "] bytes, [" + bulkEvents + "] events");
+        }
+        bytes += addBytes;
+        events += addEvents;
+        if (lane == Lane.BULK) {
+            bulkBytes += addBytes;
+            bulkEvents += addEvents;
+        }
+    }
+
+    private synchronized void release(Lane lane, long releaseBytes, long releaseEvents) {
+        bytes -= releaseBytes;
+        events -= releaseEvents;
+        if (lane == Lane.BULK) {
+            bulkBytes -= releaseBytes;
+            bulkEvents -= releaseEvents;
+        }
+    }
+
+    /**
+     * What a single request holds, released in one go on close
+     */
+    public class Permit implements AutoCloseable {
+
+        private final Lane lane;
+        private long bytes = 0;
+        private long events = 0;
+        private boolean closed = false;
+
+        private Permit(Lane lane) {
+            this.lane = lane;
+        }
+
+        public Lane lane() {
+            return lane;
+        }
+
+        /**
+         * Charge for events once they have been parsed
+         *
+         * @throws OverloadedException if they do not fit, whatever is already held stays held until close
+         */
+        public void events(long count) {
+            charge(0, count);
+        }
+
+        private synchronized void charge(long addBytes, long addEvents) {
+            if (closed) {
+                throw new IllegalStateException("Permit already closed");
+            }
+            acquire(lane, addBytes, addEvents);
+            bytes += addBytes;
+            events += addEvents;
+        }
+
+        @Override
+        public synchronized void close() {
+            if (!closed) {
+                closed = true;
+                release(lane, bytes, events);
+            }
+        }
+    }
+}
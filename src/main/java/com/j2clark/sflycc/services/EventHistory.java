@@ -0,0 +1,206 @@
+package com.j2clark.sflycc.services;
+
+import com.j2clark.sflycc.domain.CustomerAggregates;
+import com.j2clark.sflycc.domain.Data;
+import com.j2clark.sflycc.domain.DistinctCustomers;
+import com.j2clark.sflycc.domain.Event;
+import com.j2clark.sflycc.store.ColumnarEventStore;
+import com.j2clark.sflycc.store.EventSnapshot;
+import com.j2clark.sflycc.store.WriteAheadLog;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Every event accepted since the log began, as a single long lived Data
+ *
+ * The history follows the WriteAheadLog, so anything IngestService accepts ends up here as well.
+ * On startup it loads the latest snapshot and replays only the log records written after it,
+ * rather than pushing the whole history back through the json processors.
+ *
+ * Snapshots are taken in the background without holding up ingest for long - the store is append only, so the
+ * events present when the snapshot starts can be written out while new events keep arriving. The aggregates are
+ * not, they are copied (O(customers)) and the copy written out, so recovery does not have to rebuild them.
+ * The events themselves are decoded back into a store, which bounds how fast recovery can be, see EventSnapshot.
+ *
+ * Applying an appended batch never fails part way, see append: the log record is already written by then,
+ * so the history has to take all of it.
+ */
+public class EventHistory implements WriteAheadLog.AppendListener, Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(EventHistory.class);
+
+    public static final UUID HISTORY_ID = new UUID(0, 0);
+
+    // we keep one older snapshot, in case the latest turns out to be unreadable
+    private static final int SNAPSHOTS_RETAINED = 2;
+
+    private final WriteAheadLog writeAheadLog;
+    private final Path snapshotDirectory;
+    private final Data data;
+
+    // lsn of the last record appended to data, and of the latest snapshot, guarded by this
+    private long appliedLsn;
+    private long snapshotLsn;
+
+    private final ScheduledExecutorService snapshotter;
+    private final Object snapshotLock = new Object();
+
+    /**
+     * Recover the history from the latest snapshot plus the log tail, then follow the log
+     *
+     * @param snapshotIntervalMillis how often a snapshot is taken, 0 (or less) for never
+     */
+    public static EventHistory recover(WriteAheadLog writeAheadLog, Path snapshotDirectory, long snapshotIntervalMillis)
+        throws IOException {
+
+        long start = System.currentTimeMillis();
+        // the history is what window reports run over, so keeps daily totals
+        EventSnapshot snapshot = EventSnapshot.loadLatest(snapshotDirectory, true);
+        long snapshotLsn = snapshot != null ? snapshot.lsn() : 0;
+        Data data;
+        if (snapshot == null) {
+            data = new Data(HISTORY_ID, new ColumnarEventStore(), true);
+        } else if (snapshot.customers() != null) {
+            data = new Data(HISTORY_ID, snapshot.store(), snapshot.customers(), snapshot.distinctCustomers());
+        } else {
+            // an older snapshot, without aggregates
+            data = new Data(HISTORY_ID, snapshot.store(), true);
+        }
+        int fromSnapshot = data.store().size();
+
+        EventHistory history = new EventHistory(writeAheadLog, snapshotDirectory, data, snapshotLsn, snapshotIntervalMillis);
+        writeAheadLog.follow(snapshotLsn, (lsn, transactionId, event) -> history.apply(lsn, event), history);
+
+        logger.info("EventHistory recovered[" + data.store().size() + "] events, snapshot[" + fromSnapshot
+                    + "] log tail[" + (data.store().size() - fromSnapshot) + "] in[" + (System.currentTimeMillis() - start) + " ms]");
+        return history;
+    }
+
+    private EventHistory(WriteAheadLog writeAheadLog, Path snapshotDirectory, Data data, long lsn, long snapshotIntervalMillis) {
+        this.writeAheadLog = writeAheadLog;
+        this.snapshotDirectory = snapshotDirectory;
+        this.data = data;
+        this.appliedLsn = lsn;
+        this.snapshotLsn = lsn;
+
+        if (snapshotIntervalMillis > 0) {
+            snapshotter = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "event-history-snapshot");
+                thread.setDaemon(true);
+                return thread;
+            });
+            snapshotter.scheduleWithFixedDelay(() -> {
+                try {
+                    snapshot();
+                } catch (IOException | RuntimeException e) {
+                    logger.error("EventHistory snapshot failed", e);
+                }
+            }, snapshotIntervalMillis, snapshotIntervalMillis, TimeUnit.MILLISECONDS);
+        } else {
+            snapshotter = null;
+        }
+    }
+
+    private synchronized void apply(long lsn, Event event) {
+        append(lsn, event);
+        appliedLsn = lsn;
+    }
+
+    /**
+     * Called in lsn order once the batch is as durable as the log is configured for, by then the request has
+     * succeeded - so nothing may be thrown from here, an event the history can not take is logged and skipped
+     * rather than leaving the rest of the batch out
+     */
+    @Override
+    public synchronized void onAppend(long lastLsn, UUID transactionId, Collection<Event> events) {
+        long lsn = lastLsn - events.size();
+        for (Event event : events) {
+            append(++lsn, event);
+        }
+        appliedLsn = lastLsn;
+    }
+
+    /**
+     * Data.append either takes an event or, failing in the store, leaves the aggregates untouched
+     * (which never fail themselves)
+     */
+    private void append(long lsn, Event event) {
+        try {
+            data.append(event);
+        } catch (RuntimeException e) {
+            logger.error("EventHistory unable to apply lsn[" + lsn + "] Event[" + event.getKey() + "]", e);
+        }
+    }
+
+    /**
+     * Write a snapshot of everything applied so far, then drop the log segments we no longer need
+     *
+     * @return the snapshot, null if nothing changed since the last one
+     */
+    public Path snapshot() throws IOException {
+        synchronized (snapshotLock) {
+            return takeSnapshot();
+        }
+    }
+
+    private Path takeSnapshot() throws IOException {
+        long lsn;
+        int count;
+        CustomerAggregates customers;
+        DistinctCustomers distinctCustomers;
+        long start = System.currentTimeMillis();
+        synchronized (this) {
+            if (appliedLsn == snapshotLsn) {
+                return null;
+            }
+            lsn = appliedLsn;
+            count = data.store().size();
+            // as of exactly count events, the copies are then written out without holding up ingest
+            customers = data.customers().copy();
+            distinctCustomers = data.distinctCustomers().copy();
+        }
+        long copied = System.currentTimeMillis() - start;
+
+        Path snapshot = EventSnapshot.write(snapshotDirectory, lsn, data.store(), count, customers, distinctCustomers);
+        long previousLsn;
+        synchronized (this) {
+            previousLsn = snapshotLsn;
+            snapshotLsn = lsn;
+        }
+        EventSnapshot.retain(snapshotDirectory, SNAPSHOTS_RETAINED);
+        // keep the log from the previous snapshot on, which recovery falls back to if this one is unreadable
+        writeAheadLog.truncateBefore(previousLsn + 1);
+
+        logger.info("EventHistory snapshot[" + snapshot + "] events[" + count + "] customers[" + customers.size()
+                    + "] in[" + (System.currentTimeMillis() - start) + " ms], aggregates copied in[" + copied + " ms]");
+        return snapshot;
+    }
+
+    public Data data() {
+        return data;
+    }
+
+    /**
+     * @return lsn of the last log record in the history
+     */
+    public synchronized long appliedLsn() {
+        return appliedLsn;
+    }
+
+    @Override
+    public void close() {
+        if (snapshotter != null) {
+            snapshotter.shutdown();
+        }
+    }
+}
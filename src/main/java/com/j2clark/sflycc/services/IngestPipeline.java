@@ -0,0 +1,355 @@
+package com.j2clark.sflycc.services;
+
+import com.j2clark.sflycc.domain.Event;
+import com.j2clark.sflycc.domain.IngestStatus;
+import com.j2clark.sflycc.domain.IngestSummary;
+import com.j2clark.sflycc.processors.UnsupportedEventException;
+
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.annotation.PreDestroy;
+
+/**
+ * Asynchronous ingest, requests are queued and the caller gets on with its day
+ *
+ * Requests go into a bounded ring of preallocated slots. Each slot then passes through three stages, each run by
+ * its own (long lived) thread: parse the payload, adapt the events, append them to the WriteAheadLog (when
+ * configured, see IngestService.commit - the events reach the EventHistory from there). A stage only ever looks at
+ * slots the previous stage is done with, so slots need no locking, and requests complete in the order they were queued.
+ *
+ * The ring is bounded by payload size as well as by slots, since a few large requests take far more heap than
+ * many small ones. When either is used up, submit fails straight away rather than holding up the caller - though
+ * an empty ring takes any one request, however large, so nothing is turned away for good.
+ * Results are kept for the most recent requests only, see status.
+ * The AdmissionFilter looks at how full the ring is too, turning pushEventAsync requests away before their body is read.
+ */
+@Service
+public class IngestPipeline implements AdmissionController.Queue {
+
+    private Logger logger = LoggerFactory.getLogger(getClass());
+
+    // slot stages, each stage thread moves a slot on to the next
+    private static final int FREE = 0;
+    private static final int QUEUED = 1;
+    private static final int PARSED = 2;
+    private static final int ADAPTED = 3;
+
+    // how long an idle stage thread sleeps before checking again - it is woken up as soon as there is work anyway
+    private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final IngestService ingestService;
+    private final Slot[] slots;
+    private final int mask;
+
+    // next sequence to hand out, and whether we take any more requests, guarded by this
+    private long claimed = 0;
+    private boolean accepting = true;
+    // sequences below this have been appended, their slots are free again
+    private volatile long released = 0;
+    // payload chars of the requests queued or in progress, released along with their slots
+    private final AtomicLong queuedBytes = new AtomicLong();
+    private final long maxBytes;
+
+    private final Thread parser;
+    private final Thread adapter;
+    private final Thread appender;
+    private volatile boolean running = true;
+
+    private final Map<UUID, IngestStatus> statuses;
+
+    public IngestPipeline(final IngestService ingestService, int capacity, int statusesRetained) {
+        this(ingestService, capacity, Long.MAX_VALUE, statusesRetained);
+    }
+
+    /**
+     * @param capacity requests queued or in progress at once
+     * @param maxBytes payload queued or in progress at once, in chars - roughly the bytes they came in as
+     */
+    @Autowired
+    public IngestPipeline(final IngestService ingestService,
+                          @Value("${sflycc.ingest.async.capacity:1024}") int capacity,
+                          @Value("${sflycc.ingest.async.max-bytes:67108864}") long maxBytes,
+                          @Value("${sflycc.ingest.async.statuses:10000}") int statusesRetained) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be >= 1");
+        }
+        if (maxBytes < 1) {
+            throw new IllegalArgumentException("maxBytes must be >= 1");
+        }
+        this.ingestService = ingestService;
+        this.maxBytes = maxBytes;
+
+        // power of 2, so a sequence maps to its slot with a mask
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        this.slots = new Slot[size];
+        for (int i = 0; i < size; i++) {
+            slots[i] = new Slot();
+        }
+        this.mask = size - 1;
+
+        this.statuses = new LinkedHashMap<UUID, IngestStatus>(16, 0.75f, false) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<UUID, IngestStatus> eldest) {
+                return size() > statusesRetained;
+            }
+        };
+
+        this.appender = stage("ingest-append", ADAPTED, this::append, null);
+        this.adapter = stage("ingest-adapt", PARSED, this::adapt, appender);
+        this.parser = stage("ingest-parse", QUEUED, this::parse, adapter);
+    }
+
+    /**
+     * Queue a request for ingest
+     *
+     * @return false if the ring is full (of requests or of bytes), in which case nothing was queued
+     */
+    public boolean submit(UUID transactionId, String json) {
+        Slot slot;
+        synchronized (this) {
+            long queued = queuedBytes.get();
+            if (!accepting || claimed - released >= slots.length || queued > 0 && queued + json.length() > maxBytes) {
+                return false;
+            }
+            queuedBytes.addAndGet(json.length());
+            slot = slots[(int) (claimed++ & mask)];
+            slot.transactionId = transactionId;
+            slot.json = json;
+            slot.bytes = json.length();
+            // the status goes in before the slot is visible to the parser, which may complete it right away
+            status(transactionId, IngestStatus.State.QUEUED, null, null);
+            // published in sequence order, as we hold the lock - the volatile write makes the fields visible
+            slot.stage = QUEUED;
+        }
+        LockSupport.unpark(parser);
+        return true;
+    }
+
+    /**
+     * @return the status of a recent request, null if unknown (or too long ago)
+     */
+    public IngestStatus status(UUID transactionId) {
+        synchronized (statuses) {
+            return statuses.get(transactionId);
+        }
+    }
+
+    /**
+     * @return number of requests queued or in progress
+     */
+    @Override
+    public synchronized int backlog() {
+        return (int) (claimed - released);
+    }
+
+    @Override
+    public int capacity() {
+        return slots.length;
+    }
+
+    /**
+     * @return payload chars of the requests queued or in progress
+     */
+    @Override
+    public long backlogBytes() {
+        return queuedBytes.get();
+    }
+
+    @Override
+    public long maxBytes() {
+        return maxBytes;
+    }
+
+    private void status(UUID transactionId, IngestStatus.State state, IngestSummary summary, String error) {
+        synchronized (statuses) {
+            statuses.put(transactionId, new IngestStatus(transactionId, state, summary, error));
+        }
+    }
+
+    private interface Step {
+        void run(Slot slot);
+    }
+
+    /**
+     * Start a thread working through the ring, one slot at a time in sequence order
+     *
+     * @param ready the stage a slot must reach before this thread picks it up
+     * @param next thread to wake up once a slot is done, null for the last stage
+     */
+    private Thread stage(String name, int ready, Step step, Thread next) {
+        Thread thread = new Thread(() -> {
+            long sequence = 0;
+            while (running) {
+                Slot slot = slots[(int) (sequence & mask)];
+                if (slot.stage != ready) {
+                    LockSupport.parkNanos(IDLE_NANOS);
+                    continue;
+                }
+                try {
+                    step.run(slot);
+                } catch (Throwable t) {
+                    // the request fails, the pipeline carries on
+                    logger.error("Request[" + slot.transactionId + "] failed in " + name, t);
+                    slot.failed = t.getClass().getSimpleName() + ": " + t.getMessage();
+                }
+                sequence++;
+                if (next != null) {
+                    slot.stage = ready + 1;
+                    LockSupport.unpark(next);
+                } else {
+                    // last stage, hand the slot back
+                    queuedBytes.addAndGet(-slot.bytes);
+                    slot.clear();
+                    slot.stage = FREE;
+                    released = sequence;
+                }
+            }
+        }, name);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    private void parse(Slot slot) {
+        if (slot.failed != null) {
+            return;
+        }
+        try (JsonEventReader reader = new JsonEventReader(new StringReader(slot.json))) {
+            Object o;
+            while ((o = reader.next()) != null) {
+                slot.objects.add(o);
+                slot.lines.add(reader.getLineNumber());
+            }
+        } catch (Throwable t) {
+            // like ingestStream, a malformed payload ends it - everything read up to this point is kept
+            logger.error("Request[" + slot.transactionId + "]", t);
+            slot.malformed = t.getMessage();
+        }
+        slot.json = null;
+        status(slot.transactionId, IngestStatus.State.PARSED, null, null);
+    }
+
+    private void adapt(Slot slot) {
+        if (slot.failed != null) {
+            return;
+        }
+        IngestSummary summary = new IngestSummary(slot.transactionId);
+        for (int i = 0; i < slot.objects.size(); i++) {
+            Object o = slot.objects.get(i);
+            int line = slot.lines.get(i);
+            if (o instanceof JSONObject) {
+                try {
+                    Event event = ingestService.onEventObject(slot.transactionId, (JSONObject) o);
+                    slot.events.add(event);
+                    summary.accepted(i + 1);
+                } catch (UnsupportedEventException e) {
+                    summary.rejected(i + 1, line, e.getMessage());
+                }
+            } else {
+                summary.rejected(i + 1, line, "expecting JSONObject, instead found[" + o.getClass().getName() + "]");
+            }
+        }
+        if (slot.malformed != null) {
+            summary.rejected(slot.objects.size() + 1, 0, "malformed payload: " + slot.malformed);
+        }
+        // same order the synchronous ingest appends in
+        slot.events.sort(Comparator.comparingLong(Event::getTimestamp));
+        slot.summary = summary;
+        status(slot.transactionId, IngestStatus.State.ADAPTED, summary, null);
+    }
+
+    private void append(Slot slot) {
+        if (slot.failed == null) {
+            try {
+                // straight to the log, nothing here needs a Data of its own
+                ingestService.commit(slot.transactionId, slot.events);
+                status(slot.transactionId, IngestStatus.State.COMPLETE, slot.summary, null);
+                logger.info("Request[" + slot.transactionId + "] appended[" + slot.events.size() + "] events");
+                return;
+            } catch (RuntimeException e) {
+                logger.error("Request[" + slot.transactionId + "] failed in ingest-append", e);
+                slot.failed = e.getClass().getSimpleName() + ": " + e.getMessage();
+            }
+        }
+        status(slot.transactionId, IngestStatus.State.FAILED, slot.summary, slot.failed);
+    }
+
+    /**
+     * Stop accepting requests, and stop the stage threads once they have worked through what is queued
+     */
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        long last;
+        synchronized (this) {
+            if (!accepting) {
+                return;
+            }
+            accepting = false;
+            last = claimed;
+        }
+        while (released < last && appender.isAlive()) {
+            LockSupport.unpark(parser);
+            Thread.sleep(1);
+        }
+        running = false;
+        for (Thread thread : new Thread[] {parser, adapter, appender}) {
+            LockSupport.unpark(thread);
+            thread.join(1000);
+        }
+    }
+
+    /**
+     * One request, reused once appended
+     */
+    private static class Slot {
+        private static final int RETAINED_EVENTS = 1024;
+
+        private volatile int stage = FREE;
+        private UUID transactionId;
+        private String json;
+        private long bytes;
+        private final ArrayList<Object> objects = new ArrayList<>();
+        private final ArrayList<Integer> lines = new ArrayList<>();
+        private String malformed;
+        private IngestSummary summary;
+        private final ArrayList<Event> events = new ArrayList<>();
+        private String failed;
+
+        void clear() {
+            transactionId = null;
+            json = null;
+            bytes = 0;
+            malformed = null;
+            summary = null;
+            failed = null;
+            // keep the lists, unless an unusually large request blew them up
+            boolean large = objects.size() > RETAINED_EVENTS;
+            objects.clear();
+            lines.clear();
+            events.clear();
+            if (large) {
+                objects.trimToSize();
+                lines.trimToSize();
+                events.trimToSize();
+            }
+        }
+    }
+}
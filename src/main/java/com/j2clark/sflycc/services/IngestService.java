@@ -1,27 +1,44 @@
 package com.j2clark.sflycc.services;
 
 import com.j2clark.sflycc.domain.Data;
-import com.j2clark.sflycc.domain.EventType;
 import com.j2clark.sflycc.domain.Event;
+import com.j2clark.sflycc.domain.IngestSummary;
 import com.j2clark.sflycc.processors.IngestProcessor;
 import com.j2clark.sflycc.processors.IngestProcessorRegistry;
 import com.j2clark.sflycc.processors.UnsupportedEventException;
+import com.j2clark.sflycc.store.EventStoreFactory;
+import com.j2clark.sflycc.store.WriteAheadLog;
 
-import org.json.JSONArray;
 import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import org.springframework.util.StringUtils;
 
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Optional;
+import java.util.PriorityQueue;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
+import javax.annotation.PreDestroy;
+
 /**
  * primary service for receiving, processing, and validating incoming events
  *
@@ -37,20 +54,128 @@ public class IngestService {
     private Logger payloadLogger = LoggerFactory.getLogger("payload");
 
 
+    // number of events we adapt before appending them to the repository when streaming
+    private static final int STREAM_BATCH_SIZE = 256;
+
+    // number of events handed to a single adapt task in parallel mode
+    private static final int ADAPT_CHUNK_SIZE = 512;
+
     private final IngestProcessorRegistry ingestProcessorRegistry;
+    private final EventStoreFactory eventStoreFactory;
+
+    // when present, accepted events are logged before they are appended to Data
+    private final WriteAheadLog writeAheadLog;
+
+    // when present, events are adapted in chunks on this executor (see parseEventsParallel)
+    private final Executor adaptExecutor;
+    private final int maxChunksInFlight;
+    private final boolean ownsAdaptExecutor;
 
-    @Autowired
     public IngestService(final IngestProcessorRegistry ingestProcessorRegistry) {
+        this(ingestProcessorRegistry, 1);
+    }
+
+    /**
+     * @param parallelism number of threads used to adapt events, 1 (or less) adapts on the calling thread
+     */
+    public IngestService(final IngestProcessorRegistry ingestProcessorRegistry, int parallelism) {
+        this(ingestProcessorRegistry, parallelism, EventStoreFactory.heap());
+    }
+
+    /**
+     * @param parallelism number of threads used to adapt events, 1 (or less) adapts on the calling thread
+     * @param eventStoreFactory creates the store backing the Data of each request
+     */
+    public IngestService(final IngestProcessorRegistry ingestProcessorRegistry,
+                         int parallelism,
+                         final EventStoreFactory eventStoreFactory) {
+        this(ingestProcessorRegistry, parallelism, eventStoreFactory, Optional.empty());
+    }
+
+    /**
+     * @param parallelism number of threads used to adapt events, 1 (or less) adapts on the calling thread
+     * @param eventStoreFactory creates the store backing the Data of each request
+     * @param writeAheadLog log accepted events go through before being appended, if configured
+     */
+    @Autowired
+    public IngestService(final IngestProcessorRegistry ingestProcessorRegistry,
+                         @Value("${sflycc.ingest.parallelism:1}") int parallelism,
+                         final EventStoreFactory eventStoreFactory,
+                         final Optional<WriteAheadLog> writeAheadLog) {
         this.ingestProcessorRegistry = ingestProcessorRegistry;
+        this.eventStoreFactory = eventStoreFactory;
+        this.writeAheadLog = writeAheadLog.orElse(null);
+        if (parallelism > 1) {
+            this.adaptExecutor = new ForkJoinPool(parallelism);
+            this.maxChunksInFlight = parallelism * 4;
+            this.ownsAdaptExecutor = true;
+        } else {
+            this.adaptExecutor = null;
+            this.maxChunksInFlight = 0;
+            this.ownsAdaptExecutor = false;
+        }
+    }
+
+    /**
+     * Adapt events using a caller supplied executor
+     *
+     * @param maxChunksInFlight upper bound of chunks submitted but not yet collected, which bounds memory
+     */
+    public IngestService(final IngestProcessorRegistry ingestProcessorRegistry, Executor adaptExecutor, int maxChunksInFlight) {
+        this.ingestProcessorRegistry = ingestProcessorRegistry;
+        this.eventStoreFactory = EventStoreFactory.heap();
+        this.writeAheadLog = null;
+        this.adaptExecutor = adaptExecutor;
+        this.maxChunksInFlight = Math.max(1, maxChunksInFlight);
+        this.ownsAdaptExecutor = false;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (ownsAdaptExecutor) {
+            ((ExecutorService) adaptExecutor).shutdown();
+        }
+    }
+
+    /**
+     * @return empty Data for the given transaction, backed by a store from the configured EventStoreFactory
+     */
+    public Data newData(UUID transactionId) {
+        return new Data(transactionId, eventStoreFactory.create(transactionId));
     }
 
     /**
      * Auto generate Data instance, ingest json event data and add to data
+     * The caller is to close the Data once done with it, it is closed here on failure
      */
     public Data ingest(UUID transactionId, String json) {
-        Data dataRepository = new Data(transactionId);
+        Data dataRepository = newData(transactionId);
+        try {
+            ingest(dataRepository, json);
+        } catch (RuntimeException e) {
+            dataRepository.close();
+            throw e;
+        }
+
+        return dataRepository;
+    }
+
+    /**
+     * As ingest(UUID, String), charging the parsed events to an admission permit before they are appended
+     *
+     * @throws OverloadedException if the events do not fit in the permit's budget, nothing is appended
+     */
+    public Data ingest(UUID transactionId, String json, AdmissionController.Permit permit) {
+        Data dataRepository = newData(transactionId);
+        try {
+            Collection<Event> events = parseEvents(transactionId, json);
+            permit.events(events.size());
 
-        ingest(dataRepository, json);
+            process(events, dataRepository);
+        } catch (RuntimeException e) {
+            dataRepository.close();
+            throw e;
+        }
 
         return dataRepository;
     }
@@ -63,7 +188,7 @@ public class IngestService {
      *          dataRepository
      *      )
      *
-     * Given a json event string (are we size constrained using this approach?)
+     * Given a json event string
      * parse each event entry and add to Data repository
      * Events which are not supported, or badly formatted, will be logged and ignored
      * A good enhancement would be to track all errors and add them to the data object
@@ -77,6 +202,96 @@ public class IngestService {
         process(events, dataRepository);
     }
 
+    /**
+     * Streaming variant of ingest(UUID, String)
+     */
+    public Data ingest(UUID transactionId, Reader json) {
+        Data dataRepository = newData(transactionId);
+        try {
+            ingest(dataRepository, json);
+        } catch (RuntimeException e) {
+            dataRepository.close();
+            throw e;
+        }
+
+        return dataRepository;
+    }
+
+    /**
+     * Streaming variant of ingest(Data, String), the payload is consumed one event at a time
+     */
+    public void ingest(Data dataRepository, Reader json) {
+
+        // parse and order
+        Collection<Event> events = parseEvents(dataRepository.getTransactionId(), json);
+
+        // process
+        process(events, dataRepository);
+    }
+
+    /**
+     * Incremental ingest, intended for chunked/ndjson uploads
+     *
+     * Unlike ingest(Data, Reader), events are appended to the data repository as soon as they are adapted
+     * (in small batches), while the rest of the payload may still be in flight. As a consequence events
+     * are kept in arrival order rather than being sorted by timestamp.
+     *
+     * @return an accept/reject summary
+     */
+    public IngestSummary ingestStream(Data dataRepository, Reader json) {
+        return ingestStream(dataRepository.getTransactionId(), json, batch -> process(batch, dataRepository));
+    }
+
+    /**
+     * As ingestStream(Data, Reader), but each batch is only committed (see commit) - nothing is held on to once
+     * it has been logged, so memory does not grow with the size of the upload
+     */
+    public IngestSummary ingestStream(UUID transactionId, Reader json) {
+        return ingestStream(transactionId, json, batch -> commit(transactionId, batch));
+    }
+
+    private IngestSummary ingestStream(UUID transactionId, Reader json, Consumer<List<Event>> flush) {
+        IngestSummary summary = new IngestSummary(transactionId);
+
+        List<Event> batch = new ArrayList<>(STREAM_BATCH_SIZE);
+        int index = 0;
+        try (JsonEventReader reader = new JsonEventReader(json)) {
+            Object o;
+            while ((o = reader.next()) != null) {
+                index++;
+                if (o instanceof JSONObject) {
+                    try {
+                        Event event = onEventObject(transactionId, (JSONObject) o);
+                        batch.add(event);
+                        summary.accepted(index);
+                    } catch (UnsupportedEventException e) {
+                        summary.rejected(index, reader.getLineNumber(), e.getMessage());
+                    }
+                } else {
+                    summary.rejected(index, reader.getLineNumber(),
+                                     "expecting JSONObject, instead found[" + o.getClass().getName() + "]");
+                }
+
+                if (batch.size() >= STREAM_BATCH_SIZE) {
+                    flush.accept(batch);
+                    batch.clear();
+                }
+            }
+        } catch (Throwable t) {
+            // a malformed payload ends the stream, everything accepted up to this point is kept
+            logger.error("Request["+transactionId+"]", t);
+            summary.rejected(index + 1, 0, "malformed payload: " + t.getMessage());
+        }
+
+        if (!batch.isEmpty()) {
+            flush.accept(batch);
+        }
+
+        logger.info("Request["+transactionId+"] accepted["+summary.getAccepted()+"] rejected["+summary.getRejected()+"] events");
+
+        return summary;
+    }
+
     /**
      * Simply adds events to data repository for now
      * I was thinking we could do more advanced validation here, but a lack of time prevents me from exploring
@@ -87,6 +302,8 @@ public class IngestService {
         // e.g. I am guessing SITE_VISIT should fail in the given input data, since it depends on a customer that has not yet been created
         // although this begs the question about timestamps, and how much we can/should depend on their accuracy
 
+        commit(dataRepository.getTransactionId(), events);
+
         for(Event event : events) {
 
             dataRepository.append(event);
@@ -96,7 +313,18 @@ public class IngestService {
     }
 
     /**
-     * Given a json event string (are we size constrained using this approach?)
+     * Log accepted events, for requests which only report back a summary and have no use for a Data of their own
+     * Events reach the EventHistory through the log - without a log configured they are validated, then dropped
+     */
+    public void commit(UUID transactionId, Collection<Event> events) {
+        if (writeAheadLog != null && !events.isEmpty()) {
+            // blocks until the events are as durable as configured, a failure here fails the request
+            writeAheadLog.append(transactionId, events);
+        }
+    }
+
+    /**
+     * Given a json event string
      * parse each event using an ingestProcessor, found using the eventType
      * Events which are not supported, or badly formatted, will be logged and ignored
      * A good enhancement would be to track all errors and add them to the data object
@@ -106,54 +334,173 @@ public class IngestService {
         if (!StringUtils.isEmpty(json)) {
             payloadLogger.info("Request["+transactionId+"] " + json);
 
-            // begin transformation/validation pipeline
+            return parseEvents(transactionId, new StringReader(json));
+        } else {
+            return Collections.emptyList();
+        }
 
-            // process models into events
-            Collection<Event> events = new LinkedHashSet<>();
-            if (json.trim().startsWith("[")) {
-                try {
-                    JSONArray jsonArray = new JSONArray(json);
-
-                    for (Object o : jsonArray) {
-                        if (o instanceof JSONObject) {
-                            try {
-                                events.add(onEventObject(transactionId, (JSONObject) o));
-                            } catch (UnsupportedEventException e) {
-                                // todo: log and move on to next
-                            }
-                        } else {
-                            // unsupported data structure - log and continue
-                            logger.error("expecting JSONObject, instead found["+o.getClass().getName()+"]");
-                        }
+    }
+
+    /**
+     * Streaming variant of parseEvents(UUID, String)
+     *
+     * The payload is pulled one event at a time (see JsonEventReader), so we never hold a JSONArray
+     * for the entire request - only the resulting events.
+     * Both a json array of events and a single event object are supported
+     */
+    public Collection<Event> parseEvents(UUID transactionId, Reader json) {
+
+        if (adaptExecutor != null) {
+            return parseEventsParallel(transactionId, json);
+        }
 
+        // begin transformation/validation pipeline
+
+        // process models into events
+        Collection<Event> events = new LinkedHashSet<>();
+        try (JsonEventReader reader = new JsonEventReader(json)) {
+            Object o;
+            while ((o = reader.next()) != null) {
+                if (o instanceof JSONObject) {
+                    try {
+                        events.add(onEventObject(transactionId, (JSONObject) o));
+                    } catch (UnsupportedEventException e) {
+                        // todo: log and move on to next
                     }
-                } catch (Throwable t) {
-                    // log exception and continue
-                    logger.error("", t);
+                } else {
+                    // unsupported data structure - log and continue
+                    logger.error("expecting JSONObject, instead found["+o.getClass().getName()+"]");
                 }
-            } else {
-                try {
-                    events.add(onEventObject(transactionId, new JSONObject(json)));
-                } catch (Throwable t) {
-                    // log exception and continue
-                    logger.error("", t);
+            }
+        } catch (Throwable t) {
+            // log exception and continue, keeping whatever we managed to parse before the failure
+            logger.error("Request["+transactionId+"]", t);
+        }
+
+        // order events according to timestamp
+        events = events.stream()
+            .sorted((e1, e2) -> Long.compare(e1.getTimestamp(), e2.getTimestamp()))
+            .collect(Collectors.toList());
+
+        // return results
+        logger.info("Request["+transactionId+"] resulted in["+events.size()+"] events");
+
+        return events;
+    }
+
+    /**
+     * Parallel variant of parseEvents(UUID, Reader)
+     *
+     * Events are read on the calling thread and handed out in chunks to the adapt executor.
+     * Each chunk is adapted and (stable) sorted by timestamp independently, then the chunks are merged
+     * in timestamp order, breaking ties by chunk position - which gives exactly the same ordering as
+     * the sequential path (stable sort of the events in payload order).
+     *
+     * To keep memory bounded we never have more than maxChunksInFlight chunks outstanding
+     */
+    protected Collection<Event> parseEventsParallel(UUID transactionId, Reader json) {
+
+        List<List<Event>> adapted = new ArrayList<>();
+        Deque<CompletableFuture<List<Event>>> inFlight = new ArrayDeque<>();
+        // outside the try, so a partial chunk read before a failure is still adapted - as the sequential path does
+        List<Object> chunk = new ArrayList<>(ADAPT_CHUNK_SIZE);
+        try (JsonEventReader reader = new JsonEventReader(json)) {
+            Object o;
+            while ((o = reader.next()) != null) {
+                chunk.add(o);
+                if (chunk.size() >= ADAPT_CHUNK_SIZE) {
+                    List<Object> full = chunk;
+                    chunk = new ArrayList<>(ADAPT_CHUNK_SIZE);
+                    submitChunk(transactionId, full, inFlight, adapted);
                 }
             }
+        } catch (Throwable t) {
+            // log exception and continue, keeping whatever we managed to parse before the failure
+            logger.error("Request["+transactionId+"]", t);
+        }
+        if (!chunk.isEmpty()) {
+            submitChunk(transactionId, chunk, inFlight, adapted);
+        }
 
+        while (!inFlight.isEmpty()) {
+            adapted.add(inFlight.removeFirst().join());
+        }
 
-            // order events according to timestamp
-            events = events.stream()
-                .sorted((e1, e2) -> Long.compare(e1.getTimestamp(), e2.getTimestamp()))
-                .collect(Collectors.toList());
+        List<Event> events = mergeByTimestamp(adapted);
 
-            // return results
-            logger.info("Request["+transactionId+"] resulted in["+events.size()+"] events");
+        logger.info("Request["+transactionId+"] resulted in["+events.size()+"] events");
 
-            return events;
-        } else {
-            return Collections.emptyList();
+        return events;
+    }
+
+    private void submitChunk(UUID transactionId, List<Object> chunk,
+                             Deque<CompletableFuture<List<Event>>> inFlight, List<List<Event>> adapted) {
+        if (inFlight.size() >= maxChunksInFlight) {
+            // wait on the oldest chunk before reading further, this is our back pressure
+            adapted.add(inFlight.removeFirst().join());
         }
+        inFlight.addLast(CompletableFuture.supplyAsync(() -> adaptChunk(transactionId, chunk), adaptExecutor));
+    }
 
+    /**
+     * adapt a chunk of raw events, results are sorted (stable) by timestamp
+     */
+    private List<Event> adaptChunk(UUID transactionId, List<Object> chunk) {
+        List<Event> events = new ArrayList<>(chunk.size());
+        for (Object o : chunk) {
+            if (o instanceof JSONObject) {
+                try {
+                    events.add(onEventObject(transactionId, (JSONObject) o));
+                } catch (UnsupportedEventException e) {
+                    // todo: log and move on to next
+                }
+            } else {
+                // unsupported data structure - log and continue
+                logger.error("expecting JSONObject, instead found["+o.getClass().getName()+"]");
+            }
+        }
+        events.sort(Comparator.comparingLong(Event::getTimestamp));
+        return events;
+    }
+
+    /**
+     * k-way merge of timestamp sorted chunks, ties are resolved by chunk order
+     */
+    private static List<Event> mergeByTimestamp(List<List<Event>> chunks) {
+        int total = 0;
+        for (List<Event> chunk : chunks) {
+            total += chunk.size();
+        }
+
+        List<Event> merged = new ArrayList<>(total);
+        // each cursor is {chunk index, position within chunk}
+        PriorityQueue<int[]> cursors = new PriorityQueue<>(Math.max(1, chunks.size()), (c1, c2) -> {
+            int cmp = Long.compare(chunks.get(c1[0]).get(c1[1]).getTimestamp(),
+                                   chunks.get(c2[0]).get(c2[1]).getTimestamp());
+            return cmp != 0 ? cmp : Integer.compare(c1[0], c2[0]);
+        });
+        for (int i = 0; i < chunks.size(); i++) {
+            if (!chunks.get(i).isEmpty()) {
+                cursors.add(new int[]{i, 0});
+            }
+        }
+        while (!cursors.isEmpty()) {
+            int[] cursor = cursors.poll();
+            List<Event> chunk = chunks.get(cursor[0]);
+            merged.add(chunk.get(cursor[1]));
+            if (++cursor[1] < chunk.size()) {
+                cursors.add(cursor);
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * Adapt a single json event, for callers which do their own reading (e.g. non blocking uploads)
+     * Events still need to go through process to be logged and appended
+     */
+    public Event adapt(UUID transactionId, JSONObject jsonObject) throws UnsupportedEventException {
+        return onEventObject(transactionId, jsonObject);
     }
 
     /**
@@ -163,11 +510,11 @@ public class IngestService {
      */
     protected Event onEventObject(UUID transactionId, JSONObject jsonObject) throws
                                                                              UnsupportedEventException {
-        Optional<IngestProcessor> processor = findProcessor(jsonObject);
-        if (processor.isPresent()) {
+        IngestProcessor processor = findProcessor(jsonObject);
+        if (processor != null) {
             try {
                 // we will either get an event, or an exception will be thrown
-                return processor.get().adapt(transactionId, jsonObject);
+                return processor.adapt(transactionId, jsonObject);
             } catch (Throwable e) {
                 // we should only ever receive UnsupportedEventException...
                 // but we will protect ourselves from breaking due to unexpected exceptions
@@ -184,15 +531,12 @@ public class IngestService {
 
     /**
      * locate and return an IngestProcessor for given eventType
+     * dispatch happens on the raw type string, no EventType is built at this point
+     *
+     * @return null if no processor supports the event type
      */
-    protected Optional<IngestProcessor> findProcessor(JSONObject jsonObject) throws
-                                                                             UnsupportedEventException {
-        try {
-            EventType type = EventType.of(jsonObject.getString("type"));
-            return ingestProcessorRegistry.find(type);
-        } catch (IllegalArgumentException e) {
-            throw new UnsupportedEventException(e);
-        }
+    protected IngestProcessor findProcessor(JSONObject jsonObject) {
+        return ingestProcessorRegistry.lookup(jsonObject.optString("type"));
     }
 
 }
@@ -0,0 +1,140 @@
+package com.j2clark.sflycc.services;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+
+/**
+ * Pull based reader which hands out one event at a time from a json payload
+ *
+ * Rather than building a JSONArray for the entire payload, we walk the token stream and only
+ * materialize a single event (JSONObject) at a time, so memory is bounded by the largest event.
+ *
+ * Supported payloads:
+ *      [ {event}, {event}, ... ]       a json array of events
+ *      {event}                         a single event
+ *      {event}\n{event}\n ...          whitespace/newline delimited events (ndjson)
+ */
+public class JsonEventReader implements Closeable {
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private final JsonParser parser;
+
+    private boolean started = false;
+    private boolean array = false;
+    private boolean finished = false;
+    private int lineNumber = 0;
+
+    public JsonEventReader(Reader reader) throws IOException {
+        this(JSON_FACTORY.createParser(reader));
+    }
+
+    public JsonEventReader(InputStream inputStream) throws IOException {
+        this(JSON_FACTORY.createParser(inputStream));
+    }
+
+    private JsonEventReader(JsonParser parser) {
+        this.parser = parser;
+    }
+
+    /**
+     * @return the next event value, typically a JSONObject, or null once the payload is exhausted
+     *
+     * Values which are not objects (e.g. a number inside an array) are returned as-is,
+     * it is up to the caller to decide how to deal with them
+     */
+    public Object next() throws IOException {
+        if (finished) {
+            return null;
+        }
+
+        JsonToken token = parser.nextToken();
+        if (!started) {
+            started = true;
+            if (token == JsonToken.START_ARRAY) {
+                array = true;
+                token = parser.nextToken();
+            }
+        }
+
+        if (token == null || (array && token == JsonToken.END_ARRAY)) {
+            // anything trailing a top level array is ignored
+            finished = true;
+            return null;
+        }
+
+        lineNumber = parser.getTokenLocation().getLineNr();
+        return readValue(token);
+    }
+
+    /**
+     * @return line number (1 based) at which the most recently returned event started
+     */
+    public int getLineNumber() {
+        return lineNumber;
+    }
+
+    @Override
+    public void close() throws IOException {
+        parser.close();
+    }
+
+    private Object readValue(JsonToken token) throws IOException {
+        if (token == null) {
+            throw new IOException("Unexpected end of input at " + parser.getCurrentLocation());
+        }
+        switch (token) {
+            case START_OBJECT:
+                return readObject();
+            case START_ARRAY:
+                return readArray();
+            case VALUE_STRING:
+                return parser.getText();
+            case VALUE_NUMBER_INT:
+            case VALUE_NUMBER_FLOAT:
+                return parser.getNumberValue();
+            case VALUE_TRUE:
+                return Boolean.TRUE;
+            case VALUE_FALSE:
+                return Boolean.FALSE;
+            case VALUE_NULL:
+                return JSONObject.NULL;
+            default:
+                throw new IOException("Unexpected token[" + token + "] at " + parser.getTokenLocation());
+        }
+    }
+
+    private JSONObject readObject() throws IOException {
+        JSONObject jsonObject = new JSONObject();
+        JsonToken token;
+        while ((token = parser.nextToken()) == JsonToken.FIELD_NAME) {
+            String name = parser.getCurrentName();
+            jsonObject.put(name, readValue(parser.nextToken()));
+        }
+        if (token != JsonToken.END_OBJECT) {
+            throw new IOException("Unterminated object at " + parser.getTokenLocation());
+        }
+        return jsonObject;
+    }
+
+    private JSONArray readArray() throws IOException {
+        JSONArray jsonArray = new JSONArray();
+        JsonToken token;
+        while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+            if (token == null) {
+                throw new IOException("Unterminated array at " + parser.getTokenLocation());
+            }
+            jsonArray.put(readValue(token));
+        }
+        return jsonArray;
+    }
+}
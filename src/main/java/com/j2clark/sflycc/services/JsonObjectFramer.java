@@ -0,0 +1,193 @@
+package com.j2clark.sflycc.services;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Push based counterpart of JsonEventReader, for when the payload arrives in arbitrary chunks (non blocking reads)
+ *
+ * Bytes are fed in as they arrive, and each complete top level value is handed to the Listener as soon as its last
+ * byte is in - without blocking for more input. Only the structure is tracked (strings, escapes, nesting), the
+ * values themselves are parsed by the listener. Same payloads as JsonEventReader:
+ *      [ {event}, {event}, ... ]       a json array of events
+ *      {event}                         a single event
+ *      {event}\n{event}\n ...          whitespace/newline delimited events (ndjson)
+ *
+ * Structural characters are all ascii, and never appear inside a multi byte UTF-8 sequence, so we can work on bytes.
+ */
+public class JsonObjectFramer {
+
+    public interface Listener {
+        /**
+         * @param json a complete json object
+         * @param line the line it started on, 1 based
+         */
+        void onObject(String json, int line);
+
+        /**
+         * a top level value which is not an object, e.g. a number or an array inside the array
+         */
+        void onValue(String json, int line);
+    }
+
+    private final Listener listener;
+    private final int maxValueBytes;
+
+    private final ByteArrayOutputStream value = new ByteArrayOutputStream(1024);
+    private boolean started = false;        // seen the first non whitespace byte
+    private boolean array = false;          // payload is wrapped in [ ]
+    private boolean finished = false;       // seen the closing ]
+    private boolean inObject = false;       // inside an object or array value, until depth is back to 0
+    private boolean objectValue = false;    // which of the two
+    private boolean inScalar = false;
+    private int depth = 0;
+    private boolean inString = false;
+    private boolean escaped = false;
+    private int line = 1;
+    private int valueLine = 1;
+
+    /**
+     * @param maxValueBytes largest single value we are prepared to buffer
+     */
+    public JsonObjectFramer(Listener listener, int maxValueBytes) {
+        this.listener = listener;
+        this.maxValueBytes = maxValueBytes;
+    }
+
+    /**
+     * @throws IllegalStateException if the payload is malformed, or a value is too large
+     */
+    public void feed(byte[] bytes, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            byte b = bytes[i];
+            if (b == '\n') {
+                line++;
+            }
+            if (inObject) {
+                object(b);
+            } else if (inScalar) {
+                if (!inString && (b == ',' || b == ']' || isWhitespace(b))) {
+                    endScalar();
+                    outside(b);
+                } else {
+                    append(b);
+                    string(b);
+                }
+            } else {
+                outside(b);
+            }
+        }
+    }
+
+    /**
+     * Signal the end of the payload
+     *
+     * @throws IllegalStateException if the payload ended part way through a value
+     */
+    public void finish() {
+        if (inScalar && inString) {
+            throw new IllegalStateException("Payload ended inside a string starting on line[" + valueLine + "]");
+        }
+        if (inScalar) {
+            endScalar();
+        }
+        if (inObject) {
+            throw new IllegalStateException("Payload ended inside an object starting on line[" + valueLine + "]");
+        }
+        if (array && !finished) {
+            throw new IllegalStateException("Payload ended inside the array");
+        }
+    }
+
+    private void outside(byte b) {
+        if (isWhitespace(b)) {
+            return;
+        }
+        if (finished) {
+            throw new IllegalStateException("Unexpected content after the array on line[" + line + "]");
+        }
+        if (!started) {
+            started = true;
+            if (b == '[') {
+                array = true;
+                return;
+            }
+        }
+        if (array && b == ',') {
+            return;
+        }
+        if (array && b == ']') {
+            finished = true;
+            return;
+        }
+        valueLine = line;
+        if (b == '{' || b == '[') {
+            inObject = true;
+            objectValue = b == '{';
+            depth = 1;
+        } else {
+            inScalar = true;
+            inString = b == '"';
+        }
+        append(b);
+    }
+
+    private void object(byte b) {
+        append(b);
+        if (string(b)) {
+            return;
+        }
+        if (b == '{' || b == '[') {
+            depth++;
+        } else if (b == '}' || b == ']') {
+            if (--depth == 0) {
+                inObject = false;
+                if (objectValue) {
+                    listener.onObject(take(), valueLine);
+                } else {
+                    listener.onValue(take(), valueLine);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return whether the byte is part of a string, tracking where strings start and end
+     */
+    private boolean string(byte b) {
+        if (!inString) {
+            inString = b == '"';
+            return inString;
+        }
+        if (escaped) {
+            escaped = false;
+        } else if (b == '\\') {
+            escaped = true;
+        } else if (b == '"') {
+            inString = false;
+        }
+        return true;
+    }
+
+    private void endScalar() {
+        inScalar = false;
+        listener.onValue(take(), valueLine);
+    }
+
+    private void append(byte b) {
+        if (value.size() >= maxValueBytes) {
+            throw new IllegalStateException("Value starting on line[" + valueLine + "] exceeds[" + maxValueBytes + "] bytes");
+        }
+        value.write(b);
+    }
+
+    private String take() {
+        String json = new String(value.toByteArray(), StandardCharsets.UTF_8);
+        value.reset();
+        return json;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\n' || b == '\r' || b == '\t';
+    }
+}
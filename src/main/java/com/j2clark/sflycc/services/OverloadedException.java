@@ -0,0 +1,33 @@
+package com.j2clark.sflycc.services;
+
+/**
+ * Thrown when a request is turned away by the AdmissionController
+ */
+public class OverloadedException extends RuntimeException {
+
+    public enum Reason {
+        // the request's lane has used up its share of the budget, there is still room for others
+        LANE_FULL,
+        // the whole budget is in use
+        BUDGET_FULL,
+        // the request on its own is larger than its lane could ever admit
+        TOO_LARGE
+    }
+
+    private final Reason reason;
+    private final int retryAfterSeconds;
+
+    public OverloadedException(Reason reason, int retryAfterSeconds, String msg) {
+        super(msg);
+        this.reason = reason;
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    public Reason getReason() {
+        return reason;
+    }
+
+    public int getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+}
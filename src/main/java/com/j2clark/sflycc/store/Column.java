@@ -0,0 +1,446 @@
+package com.j2clark.sflycc.store;
+
+import com.j2clark.sflycc.domain.DictionaryAttribute;
+import com.j2clark.sflycc.domain.Event;
+import com.j2clark.sflycc.domain.StringDictionaries;
+import com.j2clark.sflycc.domain.StringDictionary;
+
+import org.joda.money.CurrencyUnit;
+import org.joda.money.Money;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A single attribute of an EventSegment, one value per row
+ *
+ * An attribute can be absent from a row, or present with a null value (e.g. an optional field),
+ * both are tracked so the Event view looks exactly like the event which was appended.
+ *
+ * Columns are written by a single thread, readers may run concurrently - arrays are only ever replaced
+ * by fully populated copies, published through volatile fields
+ */
+abstract class Column {
+
+    /**
+     * @param dictionaries of the owning store, dictionary attributes are encoded in these
+     * @return a column suitable for holding the given attribute
+     */
+    static Column forAttribute(Event.Attribute attribute, StringDictionaries dictionaries) {
+        if (attribute instanceof DictionaryAttribute) {
+            return new DictionaryColumn(dictionaries.forAttribute(attribute.getKey()));
+        }
+        return forValue(attribute.getValue());
+    }
+
+    /**
+     * @return a column suitable for holding the given value, strings are assumed if null
+     */
+    static Column forValue(Object value) {
+        if (value == null || value instanceof String) {
+            return new StringColumn();
+        } else if (value instanceof Money) {
+            return new MoneyColumn();
+        } else if (value instanceof Long) {
+            return new LongColumn();
+        } else {
+            return new ObjectColumn();
+        }
+    }
+
+    /**
+     * @return true if values of this type (or null) can be stored in this column
+     */
+    abstract boolean accepts(Object value);
+
+    boolean accepts(Event.Attribute attribute) {
+        return accepts(attribute.getValue());
+    }
+
+    abstract void set(int row, Object value);
+
+    void set(int row, Event.Attribute attribute) {
+        set(row, attribute.getValue());
+    }
+
+    abstract boolean isPresent(int row);
+
+    /**
+     * @return the value of the row, null if absent or appended as null
+     */
+    abstract Object get(int row);
+
+    /**
+     * @return true if at least one row holds a non null value
+     */
+    abstract boolean hasValues();
+
+    Event.Attribute attribute(String name, int row) {
+        return new Event.Attribute<>(name, get(row));
+    }
+
+    /**
+     * @return a copy of this column, holding only nulls, typed for the given attribute
+     */
+    Column retype(Event.Attribute attribute, int rows, StringDictionaries dictionaries) {
+        Column column = forAttribute(attribute, dictionaries);
+        for (int row = 0; row < rows; row++) {
+            if (isPresent(row)) {
+                column.set(row, (Object) null);
+            }
+        }
+        return column;
+    }
+
+    /**
+     * @return a copy of this column able to hold any value
+     */
+    ObjectColumn toObjectColumn(int rows) {
+        ObjectColumn column = new ObjectColumn();
+        for (int row = 0; row < rows; row++) {
+            if (isPresent(row)) {
+                column.set(row, get(row));
+            }
+        }
+        return column;
+    }
+
+    static int grow(int length, int row) {
+        int capacity = Math.max(16, length);
+        while (capacity <= row) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    /**
+     * Dictionary encoded strings, attribute values tend to repeat (customer ids, states, camera makes)
+     */
+    static class StringColumn extends Column {
+        private static final int ABSENT = 0;
+        private static final int NULL = 1;
+        private static final int FIRST_CODE = 2;
+
+        private final Map<String, Integer> codes = new HashMap<>();
+        private volatile String[] dictionary = new String[16];
+        private volatile int[] values = new int[0];
+
+        @Override
+        boolean accepts(Object value) {
+            return value == null || value instanceof String;
+        }
+
+        @Override
+        boolean accepts(Event.Attribute attribute) {
+            // prefer the store's dictionary if we have only seen nulls
+            return accepts(attribute.getValue()) && (hasValues() || !(attribute instanceof DictionaryAttribute));
+        }
+
+        @Override
+        void set(int row, Object value) {
+            int code = NULL;
+            if (value != null) {
+                Integer existing = codes.get(value);
+                if (existing == null) {
+                    existing = codes.size();
+                    String[] dictionary = this.dictionary;
+                    if (existing >= dictionary.length) {
+                        dictionary = Arrays.copyOf(dictionary, dictionary.length << 1);
+                    }
+                    dictionary[existing] = (String) value;
+                    this.dictionary = dictionary;
+                    codes.put((String) value, existing);
+                }
+                code = existing + FIRST_CODE;
+            }
+
+            int[] values = this.values;
+            if (row >= values.length) {
+                values = Arrays.copyOf(values, grow(values.length, row));
+            }
+            values[row] = code;
+            this.values = values;
+        }
+
+        @Override
+        boolean isPresent(int row) {
+            int[] values = this.values;
+            return row < values.length && values[row] != ABSENT;
+        }
+
+        @Override
+        Object get(int row) {
+            int[] values = this.values;
+            int code = row < values.length ? values[row] : ABSENT;
+            return code >= FIRST_CODE ? dictionary[code - FIRST_CODE] : null;
+        }
+
+        @Override
+        boolean hasValues() {
+            return !codes.isEmpty();
+        }
+    }
+
+    /**
+     * Strings encoded in a StringDictionary of the store, rows hold the dictionary id as is
+     * so aggregations can index arrays by it without decoding
+     */
+    static class DictionaryColumn extends Column {
+        private static final int ABSENT = 0;
+        private static final int NULL = 1;
+        private static final int FIRST_CODE = 2;
+
+        private final StringDictionary dictionary;
+        private volatile int[] values = new int[0];     // id + FIRST_CODE
+        private boolean hasValues = false;
+
+        DictionaryColumn(StringDictionary dictionary) {
+            this.dictionary = dictionary;
+        }
+
+        StringDictionary dictionary() {
+            return dictionary;
+        }
+
+        @Override
+        boolean accepts(Object value) {
+            return value == null || value instanceof String;
+        }
+
+        @Override
+        void set(int row, Object value) {
+            setId(row, value != null ? dictionary.encode((String) value) : -1);
+        }
+
+        @Override
+        void set(int row, Event.Attribute attribute) {
+            if (attribute instanceof DictionaryAttribute) {
+                // encoded as we go, unless it already is (e.g. copied from a store sharing our dictionaries)
+                setId(row, ((DictionaryAttribute) attribute).id(dictionary));
+            } else {
+                set(row, attribute.getValue());
+            }
+        }
+
+        private void setId(int row, int id) {
+            int[] values = this.values;
+            if (row >= values.length) {
+                values = Arrays.copyOf(values, grow(values.length, row));
+            }
+            values[row] = id >= 0 ? id + FIRST_CODE : NULL;
+            hasValues |= id >= 0;
+            this.values = values;
+        }
+
+        @Override
+        boolean isPresent(int row) {
+            int[] values = this.values;
+            return row < values.length && values[row] != ABSENT;
+        }
+
+        /**
+         * @return dictionary id of the row, -1 if absent or null
+         */
+        int id(int row) {
+            int[] values = this.values;
+            int code = row < values.length ? values[row] : ABSENT;
+            return code >= FIRST_CODE ? code - FIRST_CODE : -1;
+        }
+
+        @Override
+        Object get(int row) {
+            int id = id(row);
+            return id >= 0 ? dictionary.decode(id) : null;
+        }
+
+        @Override
+        Event.Attribute attribute(String name, int row) {
+            return new DictionaryAttribute(name, dictionary, id(row));
+        }
+
+        @Override
+        boolean hasValues() {
+            return hasValues;
+        }
+    }
+
+    /**
+     * Amounts in minor units, currencies are dictionary encoded (there are very few of them)
+     */
+    static class MoneyColumn extends Column {
+        private static final byte ABSENT = 0;
+        private static final byte NULL = 1;
+        private static final int FIRST_CODE = 2;
+
+        private volatile CurrencyUnit[] currencies = new CurrencyUnit[0];
+        private volatile long[] amounts = new long[0];
+        private volatile byte[] currencyCodes = new byte[0];
+
+        @Override
+        boolean accepts(Object value) {
+            return value == null || value instanceof Money;
+        }
+
+        @Override
+        void set(int row, Object value) {
+            byte code = NULL;
+            long amount = 0;
+            if (value != null) {
+                Money money = (Money) value;
+                code = (byte) (currency(money.getCurrencyUnit()) + FIRST_CODE);
+                amount = money.getAmountMinorLong();
+            }
+
+            long[] amounts = this.amounts;
+            byte[] currencyCodes = this.currencyCodes;
+            if (row >= amounts.length) {
+                int capacity = grow(amounts.length, row);
+                amounts = Arrays.copyOf(amounts, capacity);
+                currencyCodes = Arrays.copyOf(currencyCodes, capacity);
+            }
+            amounts[row] = amount;
+            currencyCodes[row] = code;
+            this.amounts = amounts;
+            this.currencyCodes = currencyCodes;
+        }
+
+        private int currency(CurrencyUnit currencyUnit) {
+            CurrencyUnit[] currencies = this.currencies;
+            for (int i = 0; i < currencies.length; i++) {
+                if (currencies[i].equals(currencyUnit)) {
+                    return i;
+                }
+            }
+            if (currencies.length == Byte.MAX_VALUE - FIRST_CODE) {
+                throw new IllegalStateException("Too many currencies for a single column");
+            }
+            currencies = Arrays.copyOf(currencies, currencies.length + 1);
+            currencies[currencies.length - 1] = currencyUnit;
+            this.currencies = currencies;
+            return currencies.length - 1;
+        }
+
+        @Override
+        boolean isPresent(int row) {
+            byte[] currencyCodes = this.currencyCodes;
+            return row < currencyCodes.length && currencyCodes[row] != ABSENT;
+        }
+
+        @Override
+        Object get(int row) {
+            byte[] currencyCodes = this.currencyCodes;
+            if (row >= currencyCodes.length || currencyCodes[row] < FIRST_CODE) {
+                return null;
+            }
+            return Money.ofMinor(currencies[currencyCodes[row] - FIRST_CODE], amounts[row]);
+        }
+
+        @Override
+        boolean hasValues() {
+            return currencies.length > 0;
+        }
+
+        /**
+         * @return amount in minor units, 0 if absent or null
+         */
+        long amount(int row) {
+            long[] amounts = this.amounts;
+            return row < amounts.length ? amounts[row] : 0;
+        }
+    }
+
+    static class LongColumn extends Column {
+        private static final byte ABSENT = 0;
+        private static final byte NULL = 1;
+        private static final byte VALUE = 2;
+
+        private volatile long[] values = new long[0];
+        private volatile byte[] states = new byte[0];
+        private boolean hasValues = false;
+
+        @Override
+        boolean accepts(Object value) {
+            return value == null || value instanceof Long;
+        }
+
+        @Override
+        void set(int row, Object value) {
+            long[] values = this.values;
+            byte[] states = this.states;
+            if (row >= values.length) {
+                int capacity = grow(values.length, row);
+                values = Arrays.copyOf(values, capacity);
+                states = Arrays.copyOf(states, capacity);
+            }
+            if (value != null) {
+                values[row] = (Long) value;
+                states[row] = VALUE;
+                hasValues = true;
+            } else {
+                states[row] = NULL;
+            }
+            this.values = values;
+            this.states = states;
+        }
+
+        @Override
+        boolean isPresent(int row) {
+            byte[] states = this.states;
+            return row < states.length && states[row] != ABSENT;
+        }
+
+        @Override
+        Object get(int row) {
+            byte[] states = this.states;
+            return row < states.length && states[row] == VALUE ? values[row] : null;
+        }
+
+        @Override
+        boolean hasValues() {
+            return hasValues;
+        }
+    }
+
+    /**
+     * Fallback for anything else (or a mix of value types)
+     */
+    static class ObjectColumn extends Column {
+        private static final Object NULL = new Object();
+
+        private volatile Object[] values = new Object[0];
+
+        @Override
+        boolean accepts(Object value) {
+            return true;
+        }
+
+        @Override
+        void set(int row, Object value) {
+            Object[] values = this.values;
+            if (row >= values.length) {
+                values = Arrays.copyOf(values, grow(values.length, row));
+            }
+            values[row] = value != null ? value : NULL;
+            this.values = values;
+        }
+
+        @Override
+        boolean isPresent(int row) {
+            Object[] values = this.values;
+            return row < values.length && values[row] != null;
+        }
+
+        @Override
+        Object get(int row) {
+            Object[] values = this.values;
+            Object value = row < values.length ? values[row] : null;
+            return value != NULL ? value : null;
+        }
+
+        @Override
+        boolean hasValues() {
+            return true;
+        }
+    }
+}
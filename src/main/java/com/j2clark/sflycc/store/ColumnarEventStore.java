@@ -0,0 +1,125 @@
+package com.j2clark.sflycc.store;
+
+import com.j2clark.sflycc.domain.Event;
+import com.j2clark.sflycc.domain.EventType;
+import com.j2clark.sflycc.domain.StringDictionaries;
+
+import java.util.AbstractCollection;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Heap EventStore, events are split into one ColumnarSegment per EventType
+ *
+ * Append order is kept as (segment, row) pairs so Data.getEvents() still iterates in the order events arrived.
+ * Appends are synchronized, reads are not (see EventStore)
+ */
+public class ColumnarEventStore implements EventStore {
+
+    private final StringDictionaries dictionaries = new StringDictionaries();
+    private final Map<EventType, ColumnarSegment> segments = new ConcurrentHashMap<>();
+    private volatile ColumnarSegment[] segmentsById = new ColumnarSegment[0];
+
+    // append order
+    private volatile short[] orderSegment = new short[16];
+    private volatile int[] orderRow = new int[16];
+    private volatile int size = 0;
+
+    @Override
+    public synchronized void append(Event event) {
+        ColumnarSegment segment = segments.get(event.getType());
+        if (segment == null) {
+            if (segmentsById.length == Short.MAX_VALUE) {
+                throw new IllegalStateException("Too many event types");
+            }
+            segment = new ColumnarSegment(event.getType(), (short) segmentsById.length, dictionaries);
+            ColumnarSegment[] segmentsById = Arrays.copyOf(this.segmentsById, segment.id() + 1);
+            segmentsById[segment.id()] = segment;
+            this.segmentsById = segmentsById;
+            segments.put(event.getType(), segment);
+        }
+
+        int row = segment.append(event);
+
+        int index = size;
+        if (index == orderRow.length) {
+            orderSegment = Arrays.copyOf(orderSegment, index << 1);
+            orderRow = Arrays.copyOf(orderRow, index << 1);
+        }
+        orderSegment[index] = segment.id();
+        orderRow[index] = row;
+
+        // publish
+        size = index + 1;
+    }
+
+    @Override
+    public StringDictionaries dictionaries() {
+        return dictionaries;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public Event get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("index[" + index + "] size[" + size + "]");
+        }
+        return segmentsById[orderSegment[index]].event(orderRow[index]);
+    }
+
+    @Override
+    public ColumnarSegment segment(EventType type) {
+        return segments.get(type);
+    }
+
+    @Override
+    public Collection<Event> events() {
+        return new EventsView(this);
+    }
+
+    /**
+     * Read only collection over a store, iterators cover the events present when they were created
+     */
+    static class EventsView extends AbstractCollection<Event> {
+
+        private final EventStore store;
+
+        EventsView(EventStore store) {
+            this.store = store;
+        }
+
+        @Override
+        public Iterator<Event> iterator() {
+            final int end = store.size();
+            return new Iterator<Event>() {
+                private int index = 0;
+
+                @Override
+                public boolean hasNext() {
+                    return index < end;
+                }
+
+                @Override
+                public Event next() {
+                    if (index >= end) {
+                        throw new NoSuchElementException();
+                    }
+                    return store.get(index++);
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return store.size();
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package com.j2clark.sflycc.store;
+
+import com.j2clark.sflycc.domain.Event;
+import com.j2clark.sflycc.domain.EventKey;
+import com.j2clark.sflycc.domain.EventType;
+import com.j2clark.sflycc.domain.EventVerb;
+import com.j2clark.sflycc.domain.StringDictionaries;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Heap segment storing one primitive (or reference) array per field
+ *
+ * Compared to an EventImpl per event (an object, two HashMaps, Attribute and value objects) a row
+ * costs a timestamp, two references and one slot per attribute column.
+ */
+public class ColumnarSegment implements EventSegment {
+
+    private final EventType type;
+    private final short id;     // position within the owning store, see ColumnarEventStore
+    private final StringDictionaries dictionaries;              // of the owning store
+
+    private volatile long[] timestamps = new long[16];
+    private volatile EventVerb[] verbs = new EventVerb[16];     // canonical instances, see EventVerb.of
+    private volatile String[] keys = new String[16];
+    private volatile Map<String,String>[] tags = null;          // rarely used, allocated on first tagged row
+    private final Map<String, Column> columns = new ConcurrentHashMap<>();
+    private volatile int size = 0;
+
+    ColumnarSegment(EventType type, short id, StringDictionaries dictionaries) {
+        this.type = type;
+        this.id = id;
+        this.dictionaries = dictionaries;
+    }
+
+    short id() {
+        return id;
+    }
+
+    /**
+     * @return row the event was stored at
+     */
+    int append(Event event) {
+        int row = size;
+        if (row == timestamps.length) {
+            int capacity = row << 1;
+            timestamps = Arrays.copyOf(timestamps, capacity);
+            verbs = Arrays.copyOf(verbs, capacity);
+            keys = Arrays.copyOf(keys, capacity);
+            if (tags != null) {
+                tags = Arrays.copyOf(tags, capacity);
+            }
+        }
+
+        timestamps[row] = event.getTimestamp();
+        verbs[row] = event.getVerb();
+        keys[row] = event.getKey().getValue();
+
+        Map<String,String> eventTags = event.getTags();
+        if (eventTags != null && !eventTags.isEmpty()) {
+            if (tags == null) {
+                @SuppressWarnings("unchecked")
+                Map<String,String>[] allocated = new Map[timestamps.length];
+                tags = allocated;
+            }
+            tags[row] = eventTags;
+        }
+
+        for (Event.Attribute attribute : event.getAttributes().values()) {
+            Column column = columns.get(attribute.getKey());
+            if (column == null) {
+                column = Column.forAttribute(attribute, dictionaries);
+                columns.put(attribute.getKey(), column);
+            } else if (!column.accepts(attribute)) {
+                if (!column.hasValues()) {
+                    // only nulls so far, the column was typed on a guess
+                    column = column.retype(attribute, row, dictionaries);
+                } else {
+                    // mixed value types for the same attribute, fall back to a generic column
+                    column = column.toObjectColumn(row);
+                }
+                columns.put(attribute.getKey(), column);
+            }
+            column.set(row, attribute);
+        }
+
+        // publish
+        size = row + 1;
+        return row;
+    }
+
+    @Override
+    public EventType type() {
+        return type;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public long timestamp(int row) {
+        return timestamps[row];
+    }
+
+    @Override
+    public EventVerb verb(int row) {
+        return verbs[row];
+    }
+
+    public EventKey key(int row) {
+        return EventKey.of(keys[row]);
+    }
+
+    /**
+     * @return value of the given attribute, null if absent or null
+     */
+    public Object attribute(int row, String name) {
+        Column column = columns.get(name);
+        return column != null ? column.get(row) : null;
+    }
+
+    /**
+     * @return dictionary id of a dictionary encoded attribute, -1 if absent, null or not encoded
+     */
+    public int dictionaryId(int row, String name) {
+        Column column = columns.get(name);
+        if (column instanceof Column.DictionaryColumn) {
+            return ((Column.DictionaryColumn) column).id(row);
+        }
+        return -1;
+    }
+
+    /**
+     * @return amount in minor units of a money attribute, 0 if absent
+     */
+    public long amount(int row, String name) {
+        Column column = columns.get(name);
+        if (column instanceof Column.MoneyColumn) {
+            return ((Column.MoneyColumn) column).amount(row);
+        }
+        return 0;
+    }
+
+    @Override
+    public Event event(int row) {
+        return new StoredEvent(this, row);
+    }
+
+    /**
+     * Event view over a single row of a segment, values are materialized on access
+     */
+    private static class StoredEvent implements Event {
+
+        private final ColumnarSegment segment;
+        private final int row;
+
+        private StoredEvent(ColumnarSegment segment, int row) {
+            this.segment = segment;
+            this.row = row;
+        }
+
+        @Override
+        public EventType getType() {
+            return segment.type;
+        }
+
+        @Override
+        public EventVerb getVerb() {
+            return segment.verb(row);
+        }
+
+        @Override
+        public EventKey getKey() {
+            return segment.key(row);
+        }
+
+        @Override
+        public long getTimestamp() {
+            return segment.timestamp(row);
+        }
+
+        @Override
+        public Map<String, Attribute> getAttributes() {
+            Map<String, Attribute> attributes = new LinkedHashMap<>();
+            for (Map.Entry<String, Column> entry : segment.columns.entrySet()) {
+                if (entry.getValue().isPresent(row)) {
+                    attributes.put(entry.getKey(), entry.getValue().attribute(entry.getKey(), row));
+                }
+            }
+            return Collections.unmodifiableMap(attributes);
+        }
+
+        @Override
+        public Attribute getAttribute(String key) {
+            Column column = segment.columns.get(key);
+            if (column != null && column.isPresent(row)) {
+                return column.attribute(key, row);
+            }
+            return null;
+        }
+
+        @Override
+        public Map<String, String> getTags() {
+            Map<String,String>[] tags = segment.tags;
+            Map<String,String> rowTags = tags != null ? tags[row] : null;
+            return rowTags != null ? rowTags : Collections.emptyMap();
+        }
+    }
+}
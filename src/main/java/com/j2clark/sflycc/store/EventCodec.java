@@ -0,0 +1,216 @@
+package com.j2clark.sflycc.store;
+
+import com.j2clark.sflycc.domain.DictionaryAttribute;
+import com.j2clark.sflycc.domain.Event;
+import com.j2clark.sflycc.domain.EventBuilder;
+import com.j2clark.sflycc.domain.EventType;
+import com.j2clark.sflycc.domain.EventVerb;
+import com.j2clark.sflycc.processors.UnsupportedEventException;
+
+import org.joda.money.CurrencyUnit;
+import org.joda.money.Money;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.Map;
+
+/**
+ * Compact binary form of an Event, shared by the on disk stores
+ *
+ *      version(1) timestamp(8) type verb key tagCount(2) [tag value]* attributeCount(2) [name kind(1) value]*
+ *
+ * Strings are an int byte length (-1 for null) followed by utf-8 bytes, money is a currency code plus minor units.
+ * Dictionary ids are local to a store, so dictionary attributes are written as strings and read back unencoded,
+ * to be encoded by whichever store they are appended to.
+ *
+ * An encoder instance reuses its buffer and is not thread safe, decoding is static.
+ */
+public class EventCodec {
+
+    static final byte VERSION = 1;
+
+    // attribute value kinds
+    private static final byte NULL = 0;
+    private static final byte STRING = 1;
+    private static final byte DICTIONARY = 2;
+    private static final byte MONEY = 3;
+    private static final byte LONG = 4;
+    private static final byte DATE = 5;
+
+    private ByteBuffer buffer = ByteBuffer.allocate(256);
+
+    /**
+     * @return the encoded event, between position and limit of a buffer only valid until the next call
+     * @throws IllegalArgumentException if an attribute value can not be encoded
+     */
+    public ByteBuffer encode(Event event) {
+        buffer.clear();
+        put(VERSION);
+        putLong(event.getTimestamp());
+        putString(event.getType().getValue());
+        putString(event.getVerb().getValue());
+        putString(event.getKey().getValue());
+
+        Map<String,String> tags = event.getTags();
+        putShort(tags != null ? tags.size() : 0);
+        if (tags != null) {
+            for (Map.Entry<String,String> tag : tags.entrySet()) {
+                putString(tag.getKey());
+                putString(tag.getValue());
+            }
+        }
+
+        Map<String, Event.Attribute> attributes = event.getAttributes();
+        putShort(attributes.size());
+        for (Event.Attribute attribute : attributes.values()) {
+            putString(attribute.getKey());
+            putAttribute(attribute);
+        }
+
+        buffer.flip();
+        return buffer;
+    }
+
+    private void putAttribute(Event.Attribute attribute) {
+        Object value = attribute.getValue();
+        if (attribute instanceof DictionaryAttribute) {
+            put(DICTIONARY);
+            // the dictionary is named after the attribute
+            putString(attribute.getKey());
+            putString((String) value);
+        } else if (value == null) {
+            put(NULL);
+        } else if (value instanceof String) {
+            put(STRING);
+            putString((String) value);
+        } else if (value instanceof Money) {
+            Money money = (Money) value;
+            put(MONEY);
+            putString(money.getCurrencyUnit().getCode());
+            putLong(money.getAmountMinorLong());
+        } else if (value instanceof Long) {
+            put(LONG);
+            putLong((Long) value);
+        } else if (value instanceof Date) {
+            put(DATE);
+            putLong(((Date) value).getTime());
+        } else {
+            throw new IllegalArgumentException(
+                "Attribute[" + attribute.getKey() + "] value of type[" + value.getClass().getName() + "] can not be encoded");
+        }
+    }
+
+    /**
+     * Decode an event starting at the position of the given buffer, the position is moved past the event
+     *
+     * @throws IllegalStateException if the bytes are not a valid event
+     */
+    public static Event decode(ByteBuffer in) {
+        try {
+            byte version = in.get();
+            if (version != VERSION) {
+                throw new IllegalStateException("Unsupported event record version[" + version + "]");
+            }
+            EventBuilder builder = new EventBuilder()
+                .withTimestamp(in.getLong())
+                .withType(EventType.of(getString(in)))
+                .withVerb(EventVerb.of(getString(in)))
+                .withKey(getString(in));
+
+            for (int tags = in.getShort(); tags > 0; tags--) {
+                builder.withTag(getString(in), getString(in));
+            }
+
+            for (int attributes = in.getShort(); attributes > 0; attributes--) {
+                String name = getString(in);
+                byte kind = in.get();
+                switch (kind) {
+                    case NULL:
+                        builder.withAttribute(new Event.Attribute<>(name, null));
+                        break;
+                    case STRING:
+                        builder.withAttribute(name, getString(in));
+                        break;
+                    case DICTIONARY:
+                        getString(in);  // dictionary name, same as the attribute
+                        builder.withAttribute(DictionaryAttribute.of(name, getString(in)));
+                        break;
+                    case MONEY:
+                        CurrencyUnit currency = CurrencyUnit.of(getString(in));
+                        builder.withAttribute(name, Money.ofMinor(currency, in.getLong()));
+                        break;
+                    case LONG:
+                        builder.withAttribute(name, in.getLong());
+                        break;
+                    case DATE:
+                        builder.withAttribute(name, new Date(in.getLong()));
+                        break;
+                    default:
+                        throw new IllegalStateException("Unknown attribute kind[" + kind + "]");
+                }
+            }
+            return builder.build();
+        } catch (BufferUnderflowException | IllegalArgumentException | UnsupportedEventException e) {
+            throw new IllegalStateException("Corrupt event record", e);
+        }
+    }
+
+    private static String getString(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > in.remaining()) {
+            throw new IllegalStateException("String length[" + length + "] exceeds record");
+        }
+        if (in.hasArray()) {
+            String value = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+            in.position(in.position() + length);
+            return value;
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private void put(byte b) {
+        ensure(1);
+        buffer.put(b);
+    }
+
+    private void putShort(int value) {
+        if (value > Short.MAX_VALUE) {
+            throw new IllegalArgumentException("Too many entries[" + value + "]");
+        }
+        ensure(2);
+        buffer.putShort((short) value);
+    }
+
+    private void putLong(long value) {
+        ensure(8);
+        buffer.putLong(value);
+    }
+
+    private void putString(String value) {
+        if (value == null) {
+            ensure(4);
+            buffer.putInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        ensure(4 + bytes.length);
+        buffer.putInt(bytes.length);
+        buffer.put(bytes);
+    }
+
+    private void ensure(int bytes) {
+        if (buffer.remaining() < bytes) {
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(buffer.capacity() << 1, buffer.position() + bytes));
+            buffer.flip();
+            grown.put(buffer);
+            buffer = grown;
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package com.j2clark.sflycc.store;
+
+import com.j2clark.sflycc.domain.Event;
+import com.j2clark.sflycc.domain.EventType;
+import com.j2clark.sflycc.domain.EventVerb;
+
+/**
+ * All events of a single EventType, addressed by row (position within the segment)
+ * Lets callers scan a single type by primitive column instead of going through Event views
+ */
+public interface EventSegment {
+
+    EventType type();
+
+    int size();
+
+    long timestamp(int row);
+
+    EventVerb verb(int row);
+
+    /**
+     * @return a lightweight Event view of the given row
+     */
+    Event event(int row);
+}
@@ -0,0 +1,249 @@
+package com.j2clark.sflycc.store;
+
+import com.j2clark.sflycc.domain.CustomerAggregates;
+import com.j2clark.sflycc.domain.DistinctCustomers;
+import com.j2clark.sflycc.domain.Event;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Binary snapshot of an EventStore and the aggregates derived from it, as of a WriteAheadLog lsn
+ *
+ *      magic(4) version(4) lsn(8) count(4) [length(4) event]* customers distinctCustomers crc32(4)
+ *
+ * Events are in EventCodec form, the aggregates as written by CustomerAggregates / DistinctCustomers.writeTo.
+ * Version 1 snapshots have no aggregates, they are rebuilt from the events on load.
+ * Snapshots are written to a temp file and moved into place once complete, named after their lsn
+ * so the latest one is easy to find.
+ *
+ * Loading decodes and re-appends every event, so it is linear in the number of events: about 1.3s per million
+ * on a single core (decoding is spread over the available cores), so a minute or so for 50M events.
+ * A store that must come back within seconds should be kept to a few million events.
+ */
+public class EventSnapshot {
+
+    private static final Logger logger = LoggerFactory.getLogger(EventSnapshot.class);
+
+    private static final int MAGIC = 0x53464c59;    // SFLY
+    private static final int VERSION = 2;
+    private static final int VERSION_WITHOUT_AGGREGATES = 1;
+    private static final String PREFIX = "snapshot-";
+    private static final String SUFFIX = ".bin";
+    // magic, version, lsn and count, the crc at the end
+    private static final int HEADER_BYTES = 20;
+    private static final int TRAILER_BYTES = 4;
+
+    // events are decoded in parallel, a batch at a time
+    private static final int LOAD_BATCH_SIZE = 16 * 1024;
+
+    private final long lsn;
+    private final EventStore store;
+    private final CustomerAggregates customers;
+    private final DistinctCustomers distinctCustomers;
+
+    private EventSnapshot(long lsn, EventStore store, CustomerAggregates customers, DistinctCustomers distinctCustomers) {
+        this.lsn = lsn;
+        this.store = store;
+        this.customers = customers;
+        this.distinctCustomers = distinctCustomers;
+    }
+
+    /**
+     * @return lsn of the last log record the snapshot covers
+     */
+    public long lsn() {
+        return lsn;
+    }
+
+    public EventStore store() {
+        return store;
+    }
+
+    /**
+     * @return aggregates of the events in store(), null for a snapshot without them
+     */
+    public CustomerAggregates customers() {
+        return customers;
+    }
+
+    /**
+     * @return sketches of the events in store(), null for a snapshot without them
+     */
+    public DistinctCustomers distinctCustomers() {
+        return distinctCustomers;
+    }
+
+    /**
+     * Write the first count events of the store, which must all be present already, along with their aggregates
+     * The store may be appended to in the mean time, the aggregates not (see CustomerAggregates.copy)
+     *
+     * @return the snapshot file
+     */
+    public static Path write(Path directory, long lsn, EventStore store, int count,
+                             CustomerAggregates customers, DistinctCustomers distinctCustomers) throws IOException {
+        Files.createDirectories(directory);
+        Path snapshot = directory.resolve(String.format("%s%020d%s", PREFIX, lsn, SUFFIX));
+        Path temp = directory.resolve(snapshot.getFileName() + ".tmp");
+
+        EventCodec codec = new EventCodec();
+        try (FileOutputStream file = new FileOutputStream(temp.toFile())) {
+            CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(file, 1 << 16), new CRC32());
+            DataOutputStream out = new DataOutputStream(checked);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(lsn);
+            out.writeInt(count);
+            for (int i = 0; i < count; i++) {
+                ByteBuffer encoded = codec.encode(store.get(i));
+                out.writeInt(encoded.remaining());
+                out.write(encoded.array(), encoded.arrayOffset() + encoded.position(), encoded.remaining());
+            }
+            customers.writeTo(out);
+            distinctCustomers.writeTo(out);
+            out.flush();
+            // the crc itself is not part of the checksum
+            new DataOutputStream(file).writeInt((int) checked.getChecksum().getValue());
+            file.getFD().sync();
+        }
+        Files.move(temp, snapshot, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        return snapshot;
+    }
+
+    /**
+     * Load the most recent valid snapshot in the directory into a new ColumnarEventStore,
+     * falling back to older snapshots if the latest one is unreadable
+     *
+     * @param windowed whether the loaded customer aggregates keep daily totals, see CustomerAggregates
+     * @return the snapshot, null if there is none
+     */
+    public static EventSnapshot loadLatest(Path directory, boolean windowed) throws IOException {
+        List<Path> snapshots = snapshots(directory);
+        Collections.reverse(snapshots);
+        for (Path snapshot : snapshots) {
+            try {
+                return load(snapshot, windowed);
+            } catch (IOException | IllegalStateException e) {
+                logger.warn("EventSnapshot[" + snapshot + "] unreadable, trying an older one", e);
+            }
+        }
+        return null;
+    }
+
+    static EventSnapshot load(Path snapshot, boolean windowed) throws IOException {
+        // record lengths are checked against what is left of the file before anything is allocated for them
+        long remaining = Files.size(snapshot) - HEADER_BYTES - TRAILER_BYTES;
+        try (InputStream file = new BufferedInputStream(Files.newInputStream(snapshot), 1 << 16)) {
+            CheckedInputStream checked = new CheckedInputStream(file, new CRC32());
+            DataInputStream in = new DataInputStream(checked);
+            if (in.readInt() != MAGIC) {
+                throw new IllegalStateException("Not a snapshot");
+            }
+            int version = in.readInt();
+            if (version != VERSION && version != VERSION_WITHOUT_AGGREGATES) {
+                throw new IllegalStateException("Unsupported snapshot version[" + version + "]");
+            }
+            long lsn = in.readLong();
+            int count = in.readInt();
+            // a record is at least a length and one byte
+            if (count < 0 || count > remaining / 5) {
+                throw new IllegalStateException("Corrupt event count[" + count + "]");
+            }
+
+            ColumnarEventStore store = new ColumnarEventStore();
+            byte[][] batch = new byte[Math.min(count, LOAD_BATCH_SIZE)][];
+            int[] lengths = new int[batch.length];
+            int loaded = 0;
+            while (loaded < count) {
+                int batchSize = Math.min(batch.length, count - loaded);
+                for (int i = 0; i < batchSize; i++) {
+                    int length = in.readInt();
+                    if (length <= 0 || length > remaining - 4) {
+                        throw new IllegalStateException("Corrupt record length[" + length + "]");
+                    }
+                    remaining -= 4 + length;
+                    // buffers are reused between batches when big enough
+                    if (batch[i] == null || batch[i].length < length) {
+                        batch[i] = new byte[Math.max(length, 128)];
+                    }
+                    in.readFully(batch[i], 0, length);
+                    lengths[i] = length;
+                }
+                // decoding is the expensive part, appends are sequential
+                Event[] events = new Event[batchSize];
+                IntStream.range(0, batchSize).parallel()
+                    .forEach(i -> events[i] = EventCodec.decode(ByteBuffer.wrap(batch[i], 0, lengths[i])));
+                for (Event event : events) {
+                    store.append(event);
+                }
+                loaded += batchSize;
+            }
+
+            CustomerAggregates customers = null;
+            DistinctCustomers distinctCustomers = null;
+            if (version != VERSION_WITHOUT_AGGREGATES) {
+                customers = CustomerAggregates.readFrom(in, store.dictionaries().forAttribute("customer_id"), windowed);
+                distinctCustomers = DistinctCustomers.readFrom(in);
+            }
+
+            int expected = (int) checked.getChecksum().getValue();
+            int actual = new DataInputStream(file).readInt();
+            if (expected != actual) {
+                throw new IllegalStateException("Snapshot checksum mismatch");
+            }
+            return new EventSnapshot(lsn, store, customers, distinctCustomers);
+        } catch (EOFException e) {
+            throw new IllegalStateException("Truncated snapshot", e);
+        }
+    }
+
+    /**
+     * Delete all but the given number of most recent snapshots, along with any left over temp files
+     */
+    public static void retain(Path directory, int keep) throws IOException {
+        List<Path> snapshots = snapshots(directory);
+        for (Path snapshot : snapshots.subList(0, Math.max(0, snapshots.size() - keep))) {
+            Files.delete(snapshot);
+        }
+        try (DirectoryStream<Path> temps = Files.newDirectoryStream(directory, PREFIX + "*" + SUFFIX + ".tmp")) {
+            for (Path temp : temps) {
+                Files.delete(temp);
+            }
+        }
+    }
+
+    private static List<Path> snapshots(Path directory) throws IOException {
+        List<Path> snapshots = new ArrayList<>();
+        if (Files.isDirectory(directory)) {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, PREFIX + "*" + SUFFIX)) {
+                for (Path file : files) {
+                    snapshots.add(file);
+                }
+            }
+        }
+        // fixed width names, so lexical order is lsn order
+        Collections.sort(snapshots);
+        return snapshots;
+    }
+}
@@ -0,0 +1,53 @@
+package com.j2clark.sflycc.store;
+
+import com.j2clark.sflycc.domain.Event;
+import com.j2clark.sflycc.domain.EventType;
+import com.j2clark.sflycc.domain.StringDictionaries;
+
+import java.io.Closeable;
+import java.util.Collection;
+
+/**
+ * Append only storage backing Data
+ *
+ * Implementations are expected to support a single appending thread (or synchronized appends)
+ * with concurrent readers, readers only ever see fully appended events.
+ */
+public interface EventStore extends Closeable {
+
+    void append(Event event);
+
+    /**
+     * @return dictionaries the store's dictionary attributes are encoded in, shared with whatever is derived
+     * from the store (e.g. CustomerAggregates) so ids line up
+     */
+    StringDictionaries dictionaries();
+
+    /**
+     * @return number of events appended so far
+     */
+    int size();
+
+    /**
+     * @param index position in append order, 0 <= index < size()
+     */
+    Event get(int index);
+
+    /**
+     * @return the segment holding events of the given type, or null if there is none
+     */
+    EventSegment segment(EventType type);
+
+    /**
+     * @return a read only view of all events in append order
+     */
+    Collection<Event> events();
+
+    /**
+     * Release whatever the store holds beyond the heap, nothing may be read from it afterwards.
+     * Heap stores hold nothing, so by default this does nothing.
+     */
+    @Override
+    default void close() {
+    }
+}
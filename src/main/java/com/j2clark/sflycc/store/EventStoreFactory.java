@@ -0,0 +1,35 @@
+package com.j2clark.sflycc.store;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.UUID;
+
+/**
+ * Creates the EventStore backing the Data of a transaction
+ */
+public interface EventStoreFactory {
+
+    EventStore create(UUID transactionId);
+
+    /**
+     * @return factory for (default) heap stores, see ColumnarEventStore
+     */
+    static EventStoreFactory heap() {
+        return transactionId -> new ColumnarEventStore();
+    }
+
+    /**
+     * @return factory for off heap stores, one directory per transaction under the given root
+     * A transaction's store only lives as long as its Data, closing the Data unmaps and deletes the directory
+     */
+    static EventStoreFactory mapped(Path root) {
+        return transactionId -> {
+            try {
+                return MappedEventStore.temporary(root.resolve(transactionId.toString()));
+            } catch (IOException e) {
+                throw new UncheckedIOException("Unable to open event store for Request[" + transactionId + "]", e);
+            }
+        };
+    }
+}
@@ -0,0 +1,457 @@
+package com.j2clark.sflycc.store;
+
+import com.j2clark.sflycc.domain.Event;
+import com.j2clark.sflycc.domain.EventType;
+import com.j2clark.sflycc.domain.EventVerb;
+import com.j2clark.sflycc.domain.StringDictionaries;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Stream;
+
+/**
+ * Off heap EventStore, events live in memory mapped files within a directory
+ *
+ *      index-NNNNN.dat  fixed layout records: timestamp(8) location(8) length(4) type id(2) verb id(2)
+ *      data-NNNNN.dat   events encoded by EventCodec, location = file << 32 | offset
+ *
+ * Only the per type row lists are kept on heap, events are decoded on access. Type and verb ids are assigned in
+ * order of first appearance, so reopening a directory rebuilds them (and the row lists) with a scan of the index,
+ * decoding a single event per distinct type/verb.
+ *
+ * Durability is up to the OS unless force() is called, see WriteAheadLog for that.
+ * Appends are synchronized, reads are not (see EventStore) - they only share a read lock with each other. Closing
+ * takes the write lock, so it waits for reads in progress before unmapping the files (straight away, rather than
+ * whenever the buffers are collected). A read after that fails, rather than touching memory which is no longer mapped.
+ */
+public class MappedEventStore implements EventStore {
+
+    static final int INDEX_RECORD_BYTES = 24;
+    private static final int TIMESTAMP = 0;
+    private static final int LOCATION = 8;
+    private static final int LENGTH = 16;
+    private static final int TYPE_ID = 20;
+    private static final int VERB_ID = 22;
+
+    private static final int DEFAULT_RECORDS_PER_INDEX_FILE = 1 << 20;     // 24MB
+    private static final int DEFAULT_DATA_FILE_BYTES = 64 << 20;
+
+    private final Path directory;
+    private final int recordsPerIndexFile;
+    private final int dataFileBytes;
+    private final boolean deleteOnClose;
+    private volatile boolean closed = false;
+
+    // held by reads while they touch the mapped files, and by close while it unmaps them
+    private final ReadWriteLock mapping = new ReentrantReadWriteLock();
+
+    private volatile MappedByteBuffer[] indexFiles = new MappedByteBuffer[0];
+    private volatile MappedByteBuffer[] dataFiles = new MappedByteBuffer[0];
+
+    // events are decoded with their dictionary attributes unencoded, these are for whatever is derived from the store
+    private final StringDictionaries dictionaries = new StringDictionaries();
+
+    private final Map<EventType, MappedSegment> segments = new ConcurrentHashMap<>();
+    private volatile MappedSegment[] segmentsById = new MappedSegment[0];
+    private volatile EventVerb[] verbsById = new EventVerb[0];
+    private final Map<EventVerb, Integer> verbIds = new HashMap<>();
+
+    // writer state
+    private final EventCodec codec = new EventCodec();
+    private int dataFile = 0;
+    private int dataOffset = 0;
+
+    private volatile int size = 0;
+
+    /**
+     * Open the store held in the given directory, creating it if need be
+     */
+    public static MappedEventStore open(Path directory) throws IOException {
+        return new MappedEventStore(directory, DEFAULT_RECORDS_PER_INDEX_FILE, DEFAULT_DATA_FILE_BYTES);
+    }
+
+    /**
+     * Open a store in the given (new) directory, which is deleted when the store is closed
+     */
+    public static MappedEventStore temporary(Path directory) throws IOException {
+        return new MappedEventStore(directory, DEFAULT_RECORDS_PER_INDEX_FILE, DEFAULT_DATA_FILE_BYTES, true);
+    }
+
+    public MappedEventStore(Path directory, int recordsPerIndexFile, int dataFileBytes) throws IOException {
+        this(directory, recordsPerIndexFile, dataFileBytes, false);
+    }
+
+    public MappedEventStore(Path directory, int recordsPerIndexFile, int dataFileBytes, boolean deleteOnClose) throws IOException {
+        if (recordsPerIndexFile < 1 || dataFileBytes < 1) {
+            throw new IllegalArgumentException("recordsPerIndexFile and dataFileBytes must be positive");
+        }
+        this.directory = directory;
+        this.recordsPerIndexFile = recordsPerIndexFile;
+        this.dataFileBytes = dataFileBytes;
+        this.deleteOnClose = deleteOnClose;
+
+        Files.createDirectories(directory);
+        recover();
+    }
+
+    /**
+     * rebuild the heap state from whatever was previously appended
+     */
+    private void recover() throws IOException {
+        for (int file = 0; Files.exists(file("index", file)); file++) {
+            MappedByteBuffer index = map("index", file, (long) recordsPerIndexFile * INDEX_RECORD_BYTES);
+            indexFiles = append(indexFiles, index);
+            for (int record = 0; record < recordsPerIndexFile; record++) {
+                int offset = record * INDEX_RECORD_BYTES;
+                int length = index.getInt(offset + LENGTH);
+                if (length == 0) {
+                    // end of what was written
+                    return;
+                }
+
+                long location = index.getLong(offset + LOCATION);
+                int locationFile = (int) (location >>> 32);
+                while (locationFile >= dataFiles.length) {
+                    dataFiles = append(dataFiles, map("data", dataFiles.length, dataFileBytes));
+                }
+                dataFile = locationFile;
+                dataOffset = (int) location + length;
+
+                int typeId = index.getShort(offset + TYPE_ID);
+                int verbId = index.getShort(offset + VERB_ID);
+                if (typeId >= segmentsById.length || verbId >= verbsById.length) {
+                    Event event = read(location, length);
+                    if (typeId >= segmentsById.length) {
+                        addSegment(event.getType());
+                    }
+                    if (verbId >= verbsById.length) {
+                        addVerb(event.getVerb());
+                    }
+                }
+                segmentsById[typeId].add(size);
+                size++;
+            }
+        }
+    }
+
+    @Override
+    public synchronized void append(Event event) {
+        if (closed) {
+            throw new IllegalStateException("Event store[" + directory + "] is closed");
+        }
+        ByteBuffer encoded = codec.encode(event);
+        int length = encoded.remaining();
+        if (length > dataFileBytes) {
+            throw new IllegalArgumentException("Event[" + event.getKey() + "] of " + length + " bytes exceeds data file size");
+        }
+
+        try {
+            // events never span data files
+            if (dataFiles.length == 0 || dataOffset + length > dataFileBytes) {
+                if (dataFiles.length > 0) {
+                    dataFile++;
+                    dataOffset = 0;
+                }
+                if (dataFile == dataFiles.length) {
+                    dataFiles = append(dataFiles, map("data", dataFile, dataFileBytes));
+                }
+            }
+            int indexFile = size / recordsPerIndexFile;
+            if (indexFile == indexFiles.length) {
+                indexFiles = append(indexFiles, map("index", indexFile, (long) recordsPerIndexFile * INDEX_RECORD_BYTES));
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to extend event store[" + directory + "]", e);
+        }
+
+        MappedSegment segment = segments.get(event.getType());
+        if (segment == null) {
+            segment = addSegment(event.getType());
+        }
+        Integer verbId = verbIds.get(event.getVerb());
+        if (verbId == null) {
+            verbId = addVerb(event.getVerb());
+        }
+
+        ByteBuffer data = dataFiles[dataFile].duplicate();
+        data.position(dataOffset);
+        data.put(encoded);
+
+        MappedByteBuffer index = indexFiles[size / recordsPerIndexFile];
+        int offset = (size % recordsPerIndexFile) * INDEX_RECORD_BYTES;
+        index.putLong(offset + TIMESTAMP, event.getTimestamp());
+        index.putLong(offset + LOCATION, ((long) dataFile << 32) | dataOffset);
+        index.putShort(offset + TYPE_ID, segment.id);
+        index.putShort(offset + VERB_ID, verbId.shortValue());
+        // written last, a non zero length marks the record as complete
+        index.putInt(offset + LENGTH, length);
+
+        dataOffset += length;
+        segment.add(size);
+
+        // publish
+        size++;
+    }
+
+    private MappedSegment addSegment(EventType type) {
+        if (segmentsById.length == Short.MAX_VALUE) {
+            throw new IllegalStateException("Too many event types");
+        }
+        MappedSegment segment = new MappedSegment(this, type, (short) segmentsById.length);
+        segmentsById = append(segmentsById, segment);
+        segments.put(type, segment);
+        return segment;
+    }
+
+    private int addVerb(EventVerb verb) {
+        if (verbsById.length == Short.MAX_VALUE) {
+            throw new IllegalStateException("Too many event verbs");
+        }
+        int id = verbsById.length;
+        verbsById = append(verbsById, verb);
+        verbIds.put(verb, id);
+        return id;
+    }
+
+    @Override
+    public StringDictionaries dictionaries() {
+        return dictionaries;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public Event get(int index) {
+        Lock read = readLock(index);
+        try {
+            MappedByteBuffer indexFile = indexFiles[index / recordsPerIndexFile];
+            int offset = (index % recordsPerIndexFile) * INDEX_RECORD_BYTES;
+            return read(indexFile.getLong(offset + LOCATION), indexFile.getInt(offset + LENGTH));
+        } finally {
+            read.unlock();
+        }
+    }
+
+    private Event read(long location, int length) {
+        ByteBuffer data = dataFiles[(int) (location >>> 32)].duplicate();
+        int offset = (int) location;
+        data.position(offset);
+        data.limit(offset + length);
+        return EventCodec.decode(data);
+    }
+
+    long timestamp(int index) {
+        Lock read = readLock(index);
+        try {
+            return indexFiles[index / recordsPerIndexFile].getLong((index % recordsPerIndexFile) * INDEX_RECORD_BYTES + TIMESTAMP);
+        } finally {
+            read.unlock();
+        }
+    }
+
+    EventVerb verb(int index) {
+        Lock read = readLock(index);
+        try {
+            return verbsById[indexFiles[index / recordsPerIndexFile].getShort((index % recordsPerIndexFile) * INDEX_RECORD_BYTES + VERB_ID)];
+        } finally {
+            read.unlock();
+        }
+    }
+
+    /**
+     * @return the read lock, held - the caller is to unlock it once done with the mapped files
+     */
+    private Lock readLock(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("index[" + index + "] size[" + size + "]");
+        }
+        Lock read = mapping.readLock();
+        read.lock();
+        if (closed) {
+            read.unlock();
+            throw new IllegalStateException("Event store[" + directory + "] is closed");
+        }
+        return read;
+    }
+
+    @Override
+    public EventSegment segment(EventType type) {
+        return segments.get(type);
+    }
+
+    @Override
+    public Collection<Event> events() {
+        return new ColumnarEventStore.EventsView(this);
+    }
+
+    public Path directory() {
+        return directory;
+    }
+
+    /**
+     * Flush everything appended so far to disk
+     */
+    public synchronized void force() {
+        for (MappedByteBuffer buffer : indexFiles) {
+            buffer.force();
+        }
+        for (MappedByteBuffer buffer : dataFiles) {
+            buffer.force();
+        }
+    }
+
+    /**
+     * Flush (or, if temporary, delete) and unmap the files
+     */
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        if (!deleteOnClose) {
+            force();
+        }
+        MappedByteBuffer[] buffers = Stream.concat(Arrays.stream(indexFiles), Arrays.stream(dataFiles))
+                                           .toArray(MappedByteBuffer[]::new);
+        // wait for reads in progress, later ones see closed
+        Lock write = mapping.writeLock();
+        write.lock();
+        try {
+            closed = true;
+            indexFiles = new MappedByteBuffer[0];
+            dataFiles = new MappedByteBuffer[0];
+            for (MappedByteBuffer buffer : buffers) {
+                unmap(buffer);
+            }
+        } finally {
+            write.unlock();
+        }
+
+        if (deleteOnClose) {
+            try (Stream<Path> paths = Files.walk(directory)) {
+                for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                    Files.delete(path);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException("Unable to delete event store[" + directory + "]", e);
+            }
+        }
+    }
+
+    /**
+     * Release a mapping now rather than when the buffer is collected, there is no public api for this:
+     * Unsafe.invokeCleaner from java 9 on, the buffer's cleaner before that. Failing both we leave it to the GC.
+     */
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            try {
+                Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+                Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+                theUnsafe.setAccessible(true);
+                invokeCleaner.invoke(theUnsafe.get(null), buffer);
+            } catch (NoSuchMethodException e) {
+                Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                Object cleaner = cleanerMethod.invoke(buffer);
+                if (cleaner != null) {
+                    cleaner.getClass().getMethod("clean").invoke(cleaner);
+                }
+            }
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // unmapped once collected
+        }
+    }
+
+    private Path file(String prefix, int file) {
+        return directory.resolve(String.format("%s-%05d.dat", prefix, file));
+    }
+
+    private MappedByteBuffer map(String prefix, int file, long bytes) throws IOException {
+        // the mapping stays valid once the channel is closed, so we do not hold on to file handles
+        try (FileChannel channel = FileChannel.open(file(prefix, file),
+                                                    StandardOpenOption.CREATE,
+                                                    StandardOpenOption.READ,
+                                                    StandardOpenOption.WRITE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, bytes);
+        }
+    }
+
+    private static <T> T[] append(T[] array, T element) {
+        T[] copy = Arrays.copyOf(array, array.length + 1);
+        copy[array.length] = element;
+        return copy;
+    }
+
+    /**
+     * The events of one type, rows are positions within the owning store
+     */
+    private static class MappedSegment implements EventSegment {
+
+        private final MappedEventStore store;
+        private final EventType type;
+        private final short id;
+        private volatile int[] indexes = new int[16];
+        private volatile int size = 0;
+
+        private MappedSegment(MappedEventStore store, EventType type, short id) {
+            this.store = store;
+            this.type = type;
+            this.id = id;
+        }
+
+        private void add(int index) {
+            int row = size;
+            if (row == indexes.length) {
+                indexes = Arrays.copyOf(indexes, row << 1);
+            }
+            indexes[row] = index;
+            size = row + 1;
+        }
+
+        @Override
+        public EventType type() {
+            return type;
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public long timestamp(int row) {
+            return store.timestamp(indexes[row]);
+        }
+
+        @Override
+        public EventVerb verb(int row) {
+            return store.verb(indexes[row]);
+        }
+
+        @Override
+        public Event event(int row) {
+            return store.get(indexes[row]);
+        }
+    }
+}
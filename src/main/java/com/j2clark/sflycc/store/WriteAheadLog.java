@@ -0,0 +1,568 @@
+package com.j2clark.sflycc.store;
+
+import com.j2clark.sflycc.domain.Event;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Append only log of accepted events, written before events are appended to Data
+ *
+ *      record = length(4) crc32(4) body
+ *      body   = lsn(8) transaction id(16) event (see EventCodec)
+ *
+ * Every record gets a log sequence number (lsn), starting at 1. The log is split into segment files named after
+ * the first lsn they hold. On open, a torn or corrupt tail (crash mid write) is truncated.
+ *
+ * fsyncs are shared between concurrent requests (group commit) - a request waiting for its records to be durable
+ * either forces the log itself, covering everything written so far, or waits for the force already in progress.
+ *
+ * A failed fsync leaves it unknown what made it to disk, so the log stops there: records written since the last
+ * successful one are truncated, their requests fail, and so does every append after it (until the log is reopened).
+ */
+public class WriteAheadLog implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(WriteAheadLog.class);
+
+    public enum Durability {
+        /** append returns once the records are on disk */
+        PER_REQUEST,
+        /** the log is forced every interval, a crash can lose the last interval worth of events */
+        INTERVAL,
+        /** left to the OS */
+        NONE
+    }
+
+    private static final int HEADER_BYTES = 8;          // length + crc
+    private static final int BODY_PREFIX_BYTES = 24;    // lsn + transaction id
+    private static final String PREFIX = "wal-";
+    private static final String SUFFIX = ".log";
+
+    public static final long DEFAULT_SEGMENT_BYTES = 64 << 20;
+
+    private final Path directory;
+    private final Durability durability;
+    private final long segmentBytes;
+
+    // writer state, guarded by this
+    private final EventCodec codec = new EventCodec();
+    private final CRC32 crc = new CRC32();
+    private ByteBuffer batch = ByteBuffer.allocate(64 * 1024);
+    private FileChannel channel;
+    private long position;
+    private long syncedPosition;        // of the current segment, everything before it has been forced
+    private long nextLsn;
+    private long writtenLsn;
+    private IOException failed;
+    private boolean closed = false;
+
+    // group commit, guarded by syncLock
+    private final Object syncLock = new Object();
+    private long durableLsn;
+    private boolean syncing = false;
+    private long syncs = 0;
+
+    private final ScheduledExecutorService flusher;
+
+    // notified of every append once it is as durable as configured, in lsn order - see publish
+    private volatile AppendListener appendListener;
+    private final Object publishLock = new Object();
+    private final Deque<Batch> unpublished = new ArrayDeque<>();
+
+    public static WriteAheadLog open(Path directory, Durability durability, long intervalMillis) throws IOException {
+        return new WriteAheadLog(directory, durability, intervalMillis, DEFAULT_SEGMENT_BYTES);
+    }
+
+    public WriteAheadLog(Path directory, Durability durability, long intervalMillis, long segmentBytes) throws IOException {
+        this.directory = directory;
+        this.durability = durability;
+        this.segmentBytes = segmentBytes;
+
+        Files.createDirectories(directory);
+        long lastLsn = recover();
+        this.nextLsn = lastLsn + 1;
+        this.writtenLsn = lastLsn;
+        this.durableLsn = lastLsn;
+
+        if (durability == Durability.INTERVAL) {
+            flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "wal-flusher");
+                thread.setDaemon(true);
+                return thread;
+            });
+            flusher.scheduleWithFixedDelay(this::flush, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        } else {
+            flusher = null;
+        }
+    }
+
+    /**
+     * validate existing segments, truncating anything past the last complete record
+     *
+     * @return lsn of the last complete record, 0 if the log is empty
+     */
+    private long recover() throws IOException {
+        List<Path> segments = segments();
+        long lastLsn = 0;
+        for (int i = 0; i < segments.size(); i++) {
+            Path segment = segments.get(i);
+            long[] last = {firstLsn(segment) - 1};
+            long end = scan(segment, 0, (lsn, transactionId, body) -> last[0] = lsn);
+            lastLsn = last[0];
+            if (end < Files.size(segment)) {
+                logger.warn("WriteAheadLog[" + segment + "] truncating torn tail at[" + end + "] after lsn[" + lastLsn + "]");
+                try (FileChannel truncate = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+                    truncate.truncate(end);
+                }
+                // anything after a torn record can not be trusted
+                for (Path later : segments.subList(i + 1, segments.size())) {
+                    logger.warn("WriteAheadLog[" + later + "] dropped, follows a torn record");
+                    Files.delete(later);
+                }
+                break;
+            }
+        }
+
+        segments = segments();
+        if (!segments.isEmpty()) {
+            Path last = segments.get(segments.size() - 1);
+            channel = FileChannel.open(last, StandardOpenOption.WRITE);
+            position = Files.size(last);
+            syncedPosition = position;
+            channel.position(position);
+        }
+        return lastLsn;
+    }
+
+    /**
+     * Append the events of a request, returning once they are as durable as the configured Durability requires
+     *
+     * @return lsn of the last record appended
+     * @throws IllegalStateException if the log can not be written, or an event can not be encoded
+     */
+    public long append(UUID transactionId, Collection<Event> events) {
+        long lsn;
+        synchronized (this) {
+            checkWritable();
+            long firstLsn = nextLsn;
+            batch.clear();
+            try {
+                for (Event event : events) {
+                    ByteBuffer encoded = codec.encode(event);
+                    int length = BODY_PREFIX_BYTES + encoded.remaining();
+                    ensure(HEADER_BYTES + length);
+
+                    int start = batch.position();
+                    batch.position(start + HEADER_BYTES);
+                    batch.putLong(nextLsn++);
+                    batch.putLong(transactionId.getMostSignificantBits());
+                    batch.putLong(transactionId.getLeastSignificantBits());
+                    batch.put(encoded);
+
+                    crc.reset();
+                    crc.update(batch.array(), start + HEADER_BYTES, length);
+                    batch.putInt(start, length);
+                    batch.putInt(start + 4, (int) crc.getValue());
+                }
+            } catch (RuntimeException e) {
+                // nothing was written, give the lsns back
+                nextLsn = firstLsn;
+                throw e;
+            }
+            lsn = nextLsn - 1;
+            batch.flip();
+            if (batch.hasRemaining()) {
+                long start = position;
+                try {
+                    if (channel == null || position >= segmentBytes) {
+                        roll(firstLsn);
+                        start = 0;
+                    }
+                    while (batch.hasRemaining()) {
+                        position += channel.write(batch);
+                    }
+                } catch (IOException e) {
+                    // give the lsns back, so there are no gaps
+                    nextLsn = firstLsn;
+                    discard(start);
+                    throw new IllegalStateException("Unable to write to WriteAheadLog[" + directory + "]", e);
+                }
+                writtenLsn = lsn;
+
+                if (appendListener != null) {
+                    synchronized (publishLock) {
+                        unpublished.addLast(new Batch(lsn, transactionId, events));
+                    }
+                }
+            }
+        }
+
+        if (durability == Durability.PER_REQUEST) {
+            sync(lsn);
+        }
+        publish(lsn);
+        return lsn;
+    }
+
+    /**
+     * Notify the append listener of every batch up to and including lsn, in lsn order - whichever thread gets
+     * here first publishes the batches of others as well, as a group commit covers them all
+     */
+    private void publish(long lsn) {
+        synchronized (publishLock) {
+            while (!unpublished.isEmpty() && unpublished.peekFirst().lastLsn <= lsn) {
+                Batch published = unpublished.removeFirst();
+                appendListener.onAppend(published.lastLsn, published.transactionId, published.events);
+            }
+        }
+    }
+
+    private void checkWritable() {
+        if (closed) {
+            throw new IllegalStateException("WriteAheadLog[" + directory + "] is closed");
+        }
+        if (failed != null) {
+            throw new IllegalStateException("WriteAheadLog[" + directory + "] failed an earlier sync", failed);
+        }
+    }
+
+    /**
+     * Stop the log after a failed sync. With PER_REQUEST durability, whatever was written since the last successful
+     * sync is truncated and never published - the requests which wrote it all fail. Otherwise it has already been
+     * acknowledged (and published), so is left as it is.
+     */
+    private void fail(IOException e) {
+        long durable = durableLsn();
+        synchronized (this) {
+            if (failed != null) {
+                return;
+            }
+            failed = e;
+            if (durability == Durability.PER_REQUEST) {
+                discard(syncedPosition);
+                nextLsn = durable + 1;
+                writtenLsn = durable;
+            }
+        }
+        synchronized (publishLock) {
+            unpublished.removeIf(unsynced -> unsynced.lastLsn > durable);
+        }
+    }
+
+    private long durableLsn() {
+        synchronized (syncLock) {
+            return durableLsn;
+        }
+    }
+
+    /**
+     * drop a partially written batch
+     */
+    private void discard(long start) {
+        try {
+            if (channel != null) {
+                channel.truncate(start);
+                channel.position(start);
+            }
+            position = start;
+        } catch (IOException e) {
+            // the torn record will be truncated on the next open
+            logger.error("WriteAheadLog[" + directory + "] unable to discard partial write", e);
+        }
+    }
+
+    /**
+     * start a new segment, everything in the previous one is forced first
+     */
+    private void roll(long firstLsn) throws IOException {
+        if (channel != null) {
+            channel.force(false);
+            synchronized (syncLock) {
+                durableLsn = Math.max(durableLsn, writtenLsn);
+            }
+            channel.close();
+        }
+        Path segment = directory.resolve(String.format("%s%020d%s", PREFIX, firstLsn, SUFFIX));
+        channel = FileChannel.open(segment, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        position = 0;
+        syncedPosition = 0;
+    }
+
+    /**
+     * Force the channel to disk, a hook for tests
+     */
+    protected void force(FileChannel channel) throws IOException {
+        channel.force(false);
+    }
+
+    /**
+     * Wait until every record up to and including lsn is on disk
+     *
+     * @throws IllegalStateException if the sync fails (or an earlier one did), or the log is closed
+     */
+    public void sync(long lsn) {
+        synchronized (syncLock) {
+            while (durableLsn < lsn && syncing) {
+                // someone is already forcing the log, which may well cover us
+                try {
+                    syncLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted waiting for WriteAheadLog sync", e);
+                }
+            }
+            if (durableLsn >= lsn) {
+                return;
+            }
+            syncing = true;
+        }
+
+        long target = -1;
+        try {
+            FileChannel forcing;
+            long forcingPosition;
+            synchronized (this) {
+                checkWritable();
+                target = writtenLsn;
+                forcing = channel;
+                forcingPosition = position;
+            }
+            try {
+                force(forcing);
+                synchronized (this) {
+                    if (forcing == channel) {
+                        syncedPosition = Math.max(syncedPosition, forcingPosition);
+                    }
+                }
+            } catch (ClosedChannelException e) {
+                // rolled over in the mean time, which forced the segment before closing it
+            } catch (IOException e) {
+                target = -1;
+                fail(e);
+                throw new IllegalStateException("Unable to sync WriteAheadLog[" + directory + "]", e);
+            }
+        } finally {
+            synchronized (syncLock) {
+                durableLsn = Math.max(durableLsn, target);
+                syncing = false;
+                if (target >= 0) {
+                    syncs++;
+                }
+                syncLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * @return number of times the log has been forced for sync, concurrent requests share one (group commit)
+     */
+    public long syncs() {
+        synchronized (syncLock) {
+            return syncs;
+        }
+    }
+
+    /**
+     * Force everything written so far
+     */
+    public void flush() {
+        long lsn;
+        synchronized (this) {
+            if (closed || failed != null) {
+                return;
+            }
+            lsn = writtenLsn;
+        }
+        try {
+            sync(lsn);
+        } catch (RuntimeException e) {
+            logger.error("WriteAheadLog[" + directory + "] flush failed", e);
+        }
+    }
+
+    /**
+     * @return lsn of the last record appended, 0 if none
+     */
+    public synchronized long lastLsn() {
+        return nextLsn - 1;
+    }
+
+    public Durability durability() {
+        return durability;
+    }
+
+    /**
+     * Callback for records read back from the log
+     */
+    public interface RecordListener {
+        void onRecord(long lsn, UUID transactionId, Event event);
+    }
+
+    /**
+     * Read back every record with an lsn greater than the given one, in lsn order
+     * Only records written before the call are guaranteed to be seen
+     */
+    public void replay(long afterLsn, RecordListener listener) throws IOException {
+        List<Path> segments = segments();
+        for (int i = 0; i < segments.size(); i++) {
+            // skip segments which end before afterLsn
+            if (i + 1 < segments.size() && firstLsn(segments.get(i + 1)) <= afterLsn + 1) {
+                continue;
+            }
+            scan(segments.get(i), afterLsn, (lsn, transactionId, body) -> listener.onRecord(lsn, transactionId, EventCodec.decode(body)));
+        }
+    }
+
+    /**
+     * Notified of every append once it is as durable as configured - forced for PER_REQUEST, written otherwise -
+     * so an append which fails is never seen. Calls are made in lsn order, one at a time, and hold up the
+     * appending request - so keep them short
+     */
+    public interface AppendListener {
+        void onAppend(long lastLsn, UUID transactionId, Collection<Event> events);
+    }
+
+    /**
+     * Replay every record after the given lsn, then have appendListener follow every append from there on
+     * Appends are held off in the mean time, so nothing is missed or seen twice
+     */
+    public synchronized void follow(long afterLsn, RecordListener replay, AppendListener appendListener) throws IOException {
+        replay(afterLsn, replay);
+        this.appendListener = appendListener;
+    }
+
+    /**
+     * Delete segments holding only records before the given lsn, e.g. once they are covered by a snapshot
+     * The current segment is never deleted
+     */
+    public synchronized void truncateBefore(long lsn) throws IOException {
+        List<Path> segments = segments();
+        for (int i = 0; i + 1 < segments.size(); i++) {
+            if (firstLsn(segments.get(i + 1)) > lsn) {
+                break;
+            }
+            logger.info("WriteAheadLog[" + segments.get(i) + "] deleted, covered up to lsn[" + lsn + "]");
+            Files.delete(segments.get(i));
+        }
+    }
+
+    private interface BodyVisitor {
+        void visit(long lsn, UUID transactionId, ByteBuffer event);
+    }
+
+    /**
+     * @return position just past the last valid record of the segment
+     */
+    private long scan(Path segment, long afterLsn, BodyVisitor visitor) throws IOException {
+        long size = Files.size(segment);
+        if (size == 0) {
+            return 0;
+        }
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+
+        CRC32 crc = new CRC32();
+        int position = 0;
+        while (position + HEADER_BYTES <= size) {
+            int length = buffer.getInt(position);
+            int checksum = buffer.getInt(position + 4);
+            if (length < BODY_PREFIX_BYTES || position + HEADER_BYTES + length > size) {
+                break;
+            }
+
+            ByteBuffer body = buffer.duplicate();
+            body.position(position + HEADER_BYTES);
+            body.limit(position + HEADER_BYTES + length);
+            crc.reset();
+            crc.update(body.duplicate());
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+
+            long lsn = body.getLong();
+            UUID transactionId = new UUID(body.getLong(), body.getLong());
+            if (lsn > afterLsn) {
+                visitor.visit(lsn, transactionId, body);
+            }
+            position += HEADER_BYTES + length;
+        }
+        return position;
+    }
+
+    private List<Path> segments() throws IOException {
+        List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, PREFIX + "*" + SUFFIX)) {
+            for (Path file : files) {
+                segments.add(file);
+            }
+        }
+        // fixed width names, so lexical order is lsn order
+        Collections.sort(segments);
+        return segments;
+    }
+
+    private static long firstLsn(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+    }
+
+    private static class Batch {
+        private final long lastLsn;
+        private final UUID transactionId;
+        private final Collection<Event> events;
+
+        Batch(long lastLsn, UUID transactionId, Collection<Event> events) {
+            this.lastLsn = lastLsn;
+            this.transactionId = transactionId;
+            this.events = events;
+        }
+    }
+
+    private void ensure(int bytes) {
+        if (batch.remaining() < bytes) {
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(batch.capacity() << 1, batch.position() + bytes));
+            batch.flip();
+            grown.put(batch);
+            batch = grown;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (flusher != null) {
+            flusher.shutdown();
+        }
+        synchronized (this) {
+            closed = true;
+            if (channel != null) {
+                channel.force(false);
+                channel.close();
+                channel = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.j2clark.sflycc;
+
+import com.j2clark.sflycc.processors.IngestProcessorRegistry;
+import com.j2clark.sflycc.services.AdmissionController;
+import com.j2clark.sflycc.services.IngestService;
+import com.j2clark.sflycc.services.OverloadedException;
+
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class AdmissionControllerTest extends AbstractServiceTest {
+
+    private void assertRejected(OverloadedException.Reason reason, Runnable admit) {
+        try {
+            admit.run();
+            fail("expected " + reason);
+        } catch (OverloadedException e) {
+            assertEquals(reason, e.getReason());
+            assertEquals(2, e.getRetryAfterSeconds());
+        }
+    }
+
+    @Test
+    public void testLanes() {
+        // bulk may use 600 of the 1000 bytes, anything up to 100 bytes is interactive
+        AdmissionController admission = new AdmissionController(1000, 100, 0.6, 100, 2);
+        assertEquals(AdmissionController.Lane.INTERACTIVE, admission.lane(100));
+        assertEquals(AdmissionController.Lane.BULK, admission.lane(101));
+        assertEquals(AdmissionController.Lane.BULK, admission.lane(-1));
+
+        assertRejected(OverloadedException.Reason.TOO_LARGE, () -> admission.admit(AdmissionController.Lane.BULK, 700));
+
+        AdmissionController.Permit bulk = admission.admit(AdmissionController.Lane.BULK, 500);
+        // the bulk lane is full, interactive requests still get in
+        assertRejected(OverloadedException.Reason.LANE_FULL, () -> admission.admit(AdmissionController.Lane.BULK, 200));
+        AdmissionController.Permit interactive = admission.admit(AdmissionController.Lane.INTERACTIVE, 400);
+        assertRejected(OverloadedException.Reason.BUDGET_FULL, () -> admission.admit(AdmissionController.Lane.INTERACTIVE, 200));
+        assertEquals(900, admission.bytesInFlight());
+        assertEquals(3, admission.rejected());
+
+        bulk.close();
+        bulk.close();
+        assertEquals(400, admission.bytesInFlight());
+        admission.admit(AdmissionController.Lane.BULK, 200).close();
+
+        interactive.events(80);
+        AdmissionController.Permit late = admission.admit(AdmissionController.Lane.BULK, 10);
+        assertRejected(OverloadedException.Reason.BUDGET_FULL, () -> late.events(30));
+        late.close();
+        interactive.close();
+        assertEquals(0, admission.bytesInFlight());
+        assertEquals(0, admission.eventsInFlight());
+    }
+
+    @Test
+    public void testIngestChargesEvents() throws Exception {
+        String json = readJson("topX.json");
+        IngestService ingestService = new IngestService(withAllProcessors(new IngestProcessorRegistry()));
+
+        AdmissionController roomy = new AdmissionController(json.length(), 100000, 1.0, 0, 1);
+        try (AdmissionController.Permit permit = roomy.admit(AdmissionController.Lane.BULK, json.length())) {
+            ingestService.ingest(UUID.randomUUID(), json, permit);
+            assertEquals(ingestService.parseEvents(UUID.randomUUID(), json).size(), roomy.eventsInFlight());
+        }
+        assertEquals(0, roomy.eventsInFlight());
+
+        // too many events for the lane, nothing is appended
+        AdmissionController tight = new AdmissionController(json.length(), 5, 1.0, 0, 2);
+        try (AdmissionController.Permit permit = tight.admit(AdmissionController.Lane.BULK, json.length())) {
+            ingestService.ingest(UUID.randomUUID(), json, permit);
+            fail("expected TOO_LARGE");
+        } catch (OverloadedException e) {
+            assertEquals(OverloadedException.Reason.TOO_LARGE, e.getReason());
+        }
+        assertEquals(0, tight.bytesInFlight());
+    }
+}
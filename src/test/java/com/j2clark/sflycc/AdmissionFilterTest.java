@@ -0,0 +1,269 @@
+package com.j2clark.sflycc;
+
+import com.j2clark.sflycc.controllers.AdmissionFilter;
+import com.j2clark.sflycc.services.AdmissionController;
+
+import org.apache.catalina.Context;
+import org.apache.catalina.startup.Tomcat;
+import org.apache.tomcat.util.descriptor.web.FilterDef;
+import org.apache.tomcat.util.descriptor.web.FilterMap;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Runs the filter in front of a servlet which reads the whole body, the way pushEvent does, in an embedded Tomcat
+ * Also at /event/queued in front of a queue (as pushEventAsync), and at /event/stream and /event/held as streamed paths
+ */
+public class AdmissionFilterTest {
+
+    // bulk may use 500 of the 1000 bytes, anything up to 100 bytes is interactive
+    private final AdmissionController admission = new AdmissionController(1000, 100, 0.5, 100, 3);
+    private final Queue queue = new Queue();
+    // requests to /event/held, left for the test to complete
+    private final BlockingQueue<AsyncContext> held = new LinkedBlockingQueue<>();
+    private Path baseDir;
+    private Tomcat tomcat;
+    private String base;
+
+    // 10 requests or 1000 bytes, bulk may use half of either
+    private static class Queue implements AdmissionController.Queue {
+
+        private volatile int backlog = 0;
+        private volatile long backlogBytes = 0;
+
+        @Override
+        public int backlog() {
+            return backlog;
+        }
+
+        @Override
+        public int capacity() {
+            return 10;
+        }
+
+        @Override
+        public long backlogBytes() {
+            return backlogBytes;
+        }
+
+        @Override
+        public long maxBytes() {
+            return 1000;
+        }
+    }
+
+    @Before
+    public void start() throws Exception {
+        baseDir = Files.createTempDirectory("admission-filter");
+        tomcat = new Tomcat();
+        tomcat.setBaseDir(baseDir.toString());
+        tomcat.setPort(0);
+        Context context = tomcat.addContext("", baseDir.toString());
+
+        FilterDef filter = new FilterDef();
+        filter.setFilterName("admissionFilter");
+        filter.setFilter(new AdmissionFilter(admission, 200,
+                new HashSet<>(Arrays.asList("/event/stream", "/event/held")),
+                Collections.singletonMap("/event/queued", queue)));
+        filter.setAsyncSupported("true");
+        context.addFilterDef(filter);
+        FilterMap mapping = new FilterMap();
+        mapping.setFilterName("admissionFilter");
+        mapping.addURLPattern("/event");
+        mapping.addURLPattern("/event/*");
+        context.addFilterMap(mapping);
+
+        Tomcat.addServlet(context, "body", new HttpServlet() {
+            @Override
+            protected void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
+                long count = 0;
+                try (InputStream in = request.getInputStream()) {
+                    byte[] buffer = new byte[64];
+                    int read;
+                    while ((read = in.read(buffer)) >= 0) {
+                        count += read;
+                    }
+                }
+                response.getWriter().print(count);
+            }
+        });
+        context.addServletMappingDecoded("/event", "body");
+        context.addServletMappingDecoded("/event/*", "body");
+        Tomcat.addServlet(context, "held", new HttpServlet() {
+            @Override
+            protected void doPost(HttpServletRequest request, HttpServletResponse response) {
+                held.add(request.startAsync());
+            }
+        }).setAsyncSupported(true);
+        context.addServletMappingDecoded("/event/held", "held");
+        tomcat.start();
+        base = "http://localhost:" + tomcat.getConnector().getLocalPort();
+    }
+
+    @After
+    public void stop() throws Exception {
+        tomcat.stop();
+        tomcat.destroy();
+        Files.walk(baseDir).sorted((a, b) -> b.compareTo(a)).forEach(path -> path.toFile().delete());
+    }
+
+    /**
+     * @param chunked send the body chunked, rather than with a Content-Length
+     */
+    private HttpURLConnection post(int bytes, boolean chunked) throws IOException {
+        return post("/event", bytes, chunked);
+    }
+
+    private HttpURLConnection post(String path, int bytes, boolean chunked) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(base + path).openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        if (chunked) {
+            connection.setChunkedStreamingMode(32);
+        } else {
+            connection.setFixedLengthStreamingMode(bytes);
+        }
+        try (OutputStream out = connection.getOutputStream()) {
+            out.write(new byte[bytes]);
+        } catch (IOException e) {
+            // the server may answer, and stop reading, before the whole body is sent
+        }
+        return connection;
+    }
+
+    @Test
+    public void testRejections() throws Exception {
+        assertEquals(200, post(300, false).getResponseCode());
+        assertEquals(200, post(150, true).getResponseCode());
+
+        AdmissionController.Permit bulk = admission.admit(AdmissionController.Lane.BULK, 400);
+        try {
+            // the bulk lane is full, interactive requests still get in
+            HttpURLConnection laneFull = post(300, false);
+            assertEquals(429, laneFull.getResponseCode());
+            assertEquals("3", laneFull.getHeaderField("Retry-After"));
+            assertEquals(200, post(50, false).getResponseCode());
+
+            AdmissionController.Permit interactive = admission.admit(AdmissionController.Lane.INTERACTIVE, 580);
+            try {
+                HttpURLConnection budgetFull = post(50, false);
+                assertEquals(503, budgetFull.getResponseCode());
+                assertEquals("3", budgetFull.getHeaderField("Retry-After"));
+            } finally {
+                interactive.close();
+            }
+        } finally {
+            bulk.close();
+        }
+
+        // more than the bulk lane could ever admit
+        HttpURLConnection tooLarge = post(600, false);
+        assertEquals(413, tooLarge.getResponseCode());
+        assertNull(tooLarge.getHeaderField("Retry-After"));
+
+        // chunked, charged 200 bytes - found out as the body is read
+        HttpURLConnection chunked = post(300, true);
+        assertEquals(413, chunked.getResponseCode());
+        assertNull(chunked.getHeaderField("Retry-After"));
+
+        assertEquals(0, admission.bytesInFlight());
+        // the last was admitted, it is the body which was turned away
+        assertEquals(3, admission.rejected());
+    }
+
+    @Test
+    public void testQueueDepth() throws Exception {
+        assertEquals(200, post("/event/queued", 300, false).getResponseCode());
+
+        // half full, bulk requests are turned away, interactive ones still get in
+        queue.backlog = 5;
+        HttpURLConnection laneFull = post("/event/queued", 300, false);
+        assertEquals(429, laneFull.getResponseCode());
+        assertEquals("3", laneFull.getHeaderField("Retry-After"));
+        assertEquals(200, post("/event/queued", 50, false).getResponseCode());
+
+        queue.backlog = 10;
+        HttpURLConnection full = post("/event/queued", 50, false);
+        assertEquals(503, full.getResponseCode());
+        assertEquals("3", full.getHeaderField("Retry-After"));
+        // other paths do not go through the queue
+        assertEquals(200, post(50, false).getResponseCode());
+
+        // room for the request, but not for its bytes
+        queue.backlog = 1;
+        queue.backlogBytes = 960;
+        assertEquals(503, post("/event/queued", 50, false).getResponseCode());
+        queue.backlogBytes = 0;
+        assertEquals(200, post("/event/queued", 50, false).getResponseCode());
+
+        assertEquals(0, admission.bytesInFlight());
+        assertEquals(3, admission.rejected());
+    }
+
+    @Test
+    public void testStreamed() throws Exception {
+        // charged at most 200 bytes, and read to the end regardless
+        HttpURLConnection chunked = post("/event/stream", 900, true);
+        assertEquals(200, chunked.getResponseCode());
+        assertEquals("900", new String(readAll(chunked.getInputStream()), StandardCharsets.UTF_8));
+        assertEquals(200, post("/event/stream", 900, false).getResponseCode());
+
+        // an asynchronous request holds its permit until it completes, not until the servlet returns
+        ExecutorService client = Executors.newSingleThreadExecutor();
+        try {
+            Future<Integer> status = client.submit(() -> post("/event/held", 900, false).getResponseCode());
+            AsyncContext async = held.poll(10, TimeUnit.SECONDS);
+            assertEquals(200, admission.bytesInFlight());
+            async.complete();
+            assertEquals(200, (int) status.get(10, TimeUnit.SECONDS));
+        } finally {
+            client.shutdownNow();
+        }
+        long deadline = System.currentTimeMillis() + 10000;
+        while (admission.bytesInFlight() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, admission.bytesInFlight());
+        assertEquals(0, admission.rejected());
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        try (InputStream input = in) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[256];
+            int read;
+            while ((read = input.read(buffer)) >= 0) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package com.j2clark.sflycc;
+
+import com.j2clark.sflycc.domain.Data;
+import com.j2clark.sflycc.domain.Event;
+import com.j2clark.sflycc.domain.EventBuilder;
+import com.j2clark.sflycc.domain.EventType;
+import com.j2clark.sflycc.domain.EventVerb;
+import com.j2clark.sflycc.store.ColumnarEventStore;
+import com.j2clark.sflycc.store.EventSegment;
+
+import org.joda.money.Money;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ColumnarEventStoreTest {
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        List<Event> appended = new ArrayList<>();
+        appended.add(new EventBuilder().withType(EventType.CUSTOMER).withVerb(EventVerb.NEW).withKey("c1").withTimestamp(3L)
+                         .withAttribute("last_name", "Smith").withAttribute("adr_state", (String) null).build());
+        appended.add(new EventBuilder().withType(EventType.SITE_VISIT).withVerb(EventVerb.NEW).withKey("v1").withTimestamp(1L)
+                         .withAttribute("customer_id", "c1").withTag("some key", "some value").build());
+        appended.add(new EventBuilder().withType(EventType.ORDER).withVerb(EventVerb.UPDATE).withKey("o1").withTimestamp(2L)
+                         .withAttribute("customer_id", "c1").withAttribute("total_amount", Money.parse("USD 12.34")).build());
+        appended.add(new EventBuilder().withType(EventType.SITE_VISIT).withVerb(EventVerb.NEW).withKey("v2").withTimestamp(4L)
+                         .withAttribute("customer_id", "c2").build());
+        // mixed value types for the same attribute
+        appended.add(new EventBuilder().withType(EventType.SITE_VISIT).withVerb(EventVerb.NEW).withKey("v3").withTimestamp(5L)
+                         .withAttribute("customer_id", 42L).build());
+
+        Data data = new Data(UUID.randomUUID());
+        for (Event event : appended) {
+            data.append(event);
+        }
+
+        assertEquals(appended.size(), data.getEvents().size());
+        Iterator<Event> stored = data.getEvents().iterator();
+        for (Event expected : appended) {
+            Event actual = stored.next();
+            assertSame(expected.getType(), actual.getType());
+            assertSame(expected.getVerb(), actual.getVerb());
+            assertEquals(expected.getKey(), actual.getKey());
+            assertEquals(expected.getTimestamp(), actual.getTimestamp());
+            assertEquals(expected.getTags(), actual.getTags());
+            assertEquals(expected.getAttributes().keySet(), actual.getAttributes().keySet());
+            for (String name : expected.getAttributes().keySet()) {
+                assertEquals(expected.getAttribute(name).getValue(), actual.getAttribute(name).getValue());
+            }
+        }
+        assertFalse(stored.hasNext());
+
+        Event customer = data.getEvents().iterator().next();
+        assertNull(customer.getAttribute("adr_state").getValue());
+        assertNull(customer.getAttribute("adr_city"));
+
+        EventSegment visits = data.store().segment(EventType.SITE_VISIT);
+        assertEquals(3, visits.size());
+        assertEquals(4L, visits.timestamp(1));
+        assertEquals(1234L, ((ColumnarEventStore) data.store()).segment(EventType.ORDER).amount(0, "total_amount"));
+        assertTrue(data.store().segment(EventType.IMAGE) == null);
+    }
+}
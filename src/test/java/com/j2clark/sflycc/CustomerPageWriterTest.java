@@ -0,0 +1,106 @@
+package com.j2clark.sflycc;
+
+import com.j2clark.sflycc.domain.Data;
+import com.j2clark.sflycc.domain.EventBuilder;
+import com.j2clark.sflycc.domain.EventType;
+import com.j2clark.sflycc.domain.EventVerb;
+import com.j2clark.sflycc.reports.Customer;
+import com.j2clark.sflycc.reports.CustomerPageWriter;
+import com.j2clark.sflycc.reports.CustomerReportService;
+import com.j2clark.sflycc.reports.Leaderboard;
+import com.j2clark.sflycc.reports.RankedCustomers;
+
+import org.joda.money.CurrencyUnit;
+import org.joda.money.Money;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CustomerPageWriterTest {
+
+    private void visitAndOrder(Data data, String customerId, int i, long amount) throws Exception {
+        data.append(new EventBuilder().withType(EventType.SITE_VISIT).withVerb(EventVerb.NEW).withKey("v" + i)
+                        .withTimestamp(i).withAttribute("customer_id", customerId).build());
+        data.append(new EventBuilder().withType(EventType.ORDER).withVerb(EventVerb.NEW).withKey("o" + i)
+                        .withTimestamp(i).withAttribute("customer_id", customerId)
+                        .withAttribute("total_amount", Money.ofMinor(CurrencyUnit.USD, amount)).build());
+    }
+
+    private JSONObject page(RankedCustomers ranking, String cursor, int limit) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CustomerPageWriter.write(ranking, cursor, limit, out);
+        return new JSONObject(new String(out.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testPagesCoverRanking() throws Exception {
+        Data data = new Data(UUID.randomUUID());
+        for (int i = 0; i < 50; i++) {
+            // a few ties in there
+            visitAndOrder(data, "page-" + i, i, 100 * (i % 20));
+        }
+        Leaderboard leaderboard = Leaderboard.follow(data.customers());
+        CustomerReportService reportService = new CustomerReportService();
+        List<Customer> expected = reportService.topXSimpleLTVCustomers(Integer.MAX_VALUE, data);
+
+        for (RankedCustomers ranking : new RankedCustomers[] {leaderboard, RankedCustomers.of(expected),
+                                                              reportService.rankLTVCustomers(data)}) {
+            List<String> paged = new ArrayList<>();
+            String cursor = null;
+            int pages = 0;
+            do {
+                JSONObject page = page(ranking, cursor, 7);
+                JSONArray customers = page.getJSONArray("customers");
+                for (int i = 0; i < customers.length(); i++) {
+                    assertEquals(paged.size() + 1, customers.getJSONObject(i).getInt("rank"));
+                    paged.add(customers.getJSONObject(i).getString("customerId"));
+                }
+                cursor = page.isNull("next") ? null : page.getString("next");
+                pages++;
+            } while (cursor != null);
+
+            assertEquals(expected.size(), paged.size());
+            assertEquals((expected.size() + 6) / 7, pages);
+            for (int i = 0; i < expected.size(); i++) {
+                assertEquals(expected.get(i).getCustomerId(), paged.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void testCursorSurvivesRankingChanges() throws Exception {
+        Data data = new Data(UUID.randomUUID());
+        for (int i = 0; i < 10; i++) {
+            visitAndOrder(data, "page-move-" + i, i, 1000 * (10 - i));
+        }
+        Leaderboard leaderboard = Leaderboard.follow(data.customers());
+
+        JSONObject first = page(leaderboard, null, 5);
+        JSONArray customers = first.getJSONArray("customers");
+        assertEquals("page-move-4", customers.getJSONObject(4).getString("customerId"));
+
+        // page-move-9 leaps to the top, which would shift an offset based second page back by one
+        visitAndOrder(data, "page-move-9", 100, 1000000);
+        JSONArray second = page(leaderboard, first.getString("next"), 5).getJSONArray("customers");
+        assertEquals(4, second.length());
+        assertEquals("page-move-5", second.getJSONObject(0).getString("customerId"));
+        // 50.00 per visit, one visit a week, for 10 years
+        assertEquals(0, new BigDecimal("26000.00").compareTo(second.getJSONObject(0).getJSONObject("ltv").getBigDecimal("amount")));
+        assertTrue(page(leaderboard, first.getString("next"), 5).isNull("next"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidCursor() throws Exception {
+        page(RankedCustomers.of(new ArrayList<>()), "not a cursor", 10);
+    }
+}
@@ -1,15 +1,32 @@
 package com.j2clark.sflycc;
 
+import com.j2clark.sflycc.domain.CustomerAggregates;
 import com.j2clark.sflycc.domain.Data;
+import com.j2clark.sflycc.domain.Event;
+import com.j2clark.sflycc.domain.EventBuilder;
+import com.j2clark.sflycc.domain.EventType;
+import com.j2clark.sflycc.domain.EventVerb;
 import com.j2clark.sflycc.processors.IngestProcessorRegistry;
 import com.j2clark.sflycc.reports.Customer;
 import com.j2clark.sflycc.reports.CustomerReportService;
 import com.j2clark.sflycc.services.IngestService;
+import com.j2clark.sflycc.store.ColumnarEventStore;
 
+import org.joda.money.CurrencyUnit;
+import org.joda.money.Money;
 import org.junit.Test;
 
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.UUID;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 
 public class CustomerReportServiceTest extends AbstractServiceTest {
 
@@ -29,5 +46,220 @@ public class CustomerReportServiceTest extends AbstractServiceTest {
         for (Customer c : customerList) {
             System.out.println(c);
         }
+
+        assertSameCustomers(referenceTopX(count, data), customerList);
+    }
+
+    @Test
+    public void testTopXMatchesEventScan() throws Exception {
+        Random random = new Random(42);
+        Data data = new Data(UUID.randomUUID());
+        long start = 1483228800000L;
+        for (int i = 0; i < 5000; i++) {
+            String customerId = "report-test-" + random.nextInt(300);
+            long timestamp = start + (long) random.nextInt(90) * 24 * 60 * 60 * 1000 + random.nextInt(1000);
+            EventBuilder builder = new EventBuilder().withVerb(EventVerb.NEW).withKey("k" + i).withTimestamp(timestamp)
+                .withAttribute("customer_id", customerId);
+            if (random.nextInt(3) == 0) {
+                builder.withType(EventType.ORDER).withAttribute("total_amount", Money.ofMinor(CurrencyUnit.USD, random.nextInt(100000)));
+            } else {
+                builder.withType(EventType.SITE_VISIT);
+            }
+            data.append(builder.build());
+        }
+
+        CustomerReportService reportService = new CustomerReportService();
+        for (int count : new int[] {1, 10, 1000}) {
+            assertSameCustomers(referenceTopX(count, data), reportService.topXSimpleLTVCustomers(count, data));
+        }
+    }
+
+    @Test
+    public void testTopXAcrossPartitions() throws Exception {
+        // enough customers to be split into partitions and merged
+        Random random = new Random(7);
+        Data data = new Data(UUID.randomUUID());
+        long start = 1483228800000L;
+        for (int i = 0; i < 70000; i++) {
+            String customerId = "partition-test-" + i;
+            data.append(new EventBuilder().withType(EventType.SITE_VISIT).withVerb(EventVerb.NEW).withKey("v" + i)
+                            .withTimestamp(start).withAttribute("customer_id", customerId).build());
+            data.append(new EventBuilder().withType(EventType.ORDER).withVerb(EventVerb.NEW).withKey("o" + i)
+                            .withTimestamp(start + random.nextInt(1000))
+                            .withAttribute("customer_id", customerId)
+                            .withAttribute("total_amount", Money.ofMinor(CurrencyUnit.USD, random.nextInt(10000000))).build());
+        }
+
+        CustomerReportService reportService = new CustomerReportService();
+        for (int count : new int[] {1, 5, 100}) {
+            assertSameCustomers(referenceTopX(count, data), reportService.topXSimpleLTVCustomers(count, data));
+        }
+    }
+
+    @Test
+    public void testParallelMatchesSequential() throws Exception {
+        Random random = new Random(16);
+        Data data = new Data(UUID.randomUUID());
+        long start = 1483228800000L;
+        for (int i = 0; i < 60000; i++) {
+            String customerId = "parallel-report-test-" + random.nextInt(20000);
+            long timestamp = start + (long) random.nextInt(90) * 24 * 60 * 60 * 1000;
+            EventBuilder builder = new EventBuilder().withVerb(EventVerb.NEW).withKey("k" + i).withTimestamp(timestamp)
+                .withAttribute("customer_id", customerId);
+            if (random.nextInt(2) == 0) {
+                // few distinct amounts, so plenty of ties to break
+                builder.withType(EventType.ORDER).withAttribute("total_amount", Money.ofMinor(CurrencyUnit.USD, random.nextInt(20) * 100));
+            } else {
+                builder.withType(EventType.SITE_VISIT);
+            }
+            data.append(builder.build());
+        }
+
+        CustomerReportService sequential = new CustomerReportService();
+        CustomerReportService parallel = new CustomerReportService(4);
+        for (int count : new int[] {1, 10, 1000, 50000}) {
+            assertSameCustomers(sequential.topXSimpleLTVCustomers(count, data), parallel.topXSimpleLTVCustomers(count, data));
+        }
+    }
+
+    @Test
+    public void testWindowsMatchEventScan() throws Exception {
+        Random random = new Random(18);
+        long day = CustomerAggregates.DAY;
+        long start = 1483228800000L;
+        Data data = new Data(UUID.randomUUID(), new ColumnarEventStore(), true);
+        // spread over more days than the daily totals cover, arriving somewhat out of order
+        for (int i = 0; i < 20000; i++) {
+            int eventDay = Math.max(0, i / 100 - random.nextInt(5));
+            EventBuilder builder = new EventBuilder().withVerb(EventVerb.NEW).withKey("k" + i).withTimestamp(start + eventDay * day)
+                .withAttribute("customer_id", "window-report-test-" + random.nextInt(200));
+            if (random.nextInt(3) == 0) {
+                builder.withType(EventType.ORDER).withAttribute("total_amount", Money.ofMinor(CurrencyUnit.USD, random.nextInt(100000)));
+            } else {
+                builder.withType(EventType.SITE_VISIT);
+            }
+            data.append(builder.build());
+        }
+
+        CustomerReportService reportService = new CustomerReportService();
+        long newestDay = start + 199 * day;
+        for (int days : new int[] {7, 30, 90}) {
+            Data windowed = within(data, newestDay - (days - 1) * day, newestDay + day);
+            assertSameCustomers(referenceTopX(20, windowed), reportService.topXSimpleLTVCustomersLastDays(20, data, days));
+        }
+
+        long from = newestDay - 60 * day;
+        long to = newestDay - 20 * day;
+        assertSameCustomers(referenceTopX(20, within(data, from, to)), reportService.topXSimpleLTVCustomers(20, data, from, to));
+
+        // daily totals are updated in place, a copy does not see later events
+        CustomerAggregates copy = data.customers().copy();
+        long copiedSpent = spent(copy.lastDays(7));
+        data.append(new EventBuilder().withType(EventType.ORDER).withVerb(EventVerb.NEW).withKey("late").withTimestamp(newestDay)
+                        .withAttribute("customer_id", "window-report-test-0")
+                        .withAttribute("total_amount", Money.ofMinor(CurrencyUnit.USD, 100000000)).build());
+        assertEquals(copiedSpent, spent(copy.lastDays(7)));
+        assertEquals(copiedSpent + 100000000, spent(data.customers().lastDays(7)));
+        assertEquals("window-report-test-0", reportService.topXSimpleLTVCustomersLastDays(1, data, 7).get(0).getCustomerId());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testWindowBeyondHorizon() throws Exception {
+        Data data = new Data(UUID.randomUUID(), new ColumnarEventStore(), true);
+        data.append(new EventBuilder().withType(EventType.SITE_VISIT).withVerb(EventVerb.NEW).withKey("v1").withTimestamp(1483228800000L)
+                        .withAttribute("customer_id", "window-horizon").build());
+
+        new CustomerReportService().topXSimpleLTVCustomersLastDays(10, data, CustomerAggregates.HORIZON_DAYS + 1);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testWindowNeedsDailyTotals() throws Exception {
+        // per request data does not keep daily totals
+        Data data = new Data(UUID.randomUUID());
+        data.append(new EventBuilder().withType(EventType.SITE_VISIT).withVerb(EventVerb.NEW).withKey("v1").withTimestamp(1483228800000L)
+                        .withAttribute("customer_id", "window-not-kept").build());
+        assertFalse(data.customers().windowed());
+
+        new CustomerReportService().topXSimpleLTVCustomersLastDays(10, data, 7);
+    }
+
+    private static long spent(CustomerAggregates.Snapshot snapshot) {
+        long spent = 0;
+        for (int slot = 0; slot < snapshot.size(); slot++) {
+            spent += snapshot.spent(slot);
+        }
+        return spent;
+    }
+
+    private Data within(Data data, long from, long to) {
+        Data within = new Data(UUID.randomUUID());
+        for (Event event : data.getEvents()) {
+            if (event.getTimestamp() >= from && event.getTimestamp() < to) {
+                within.append(event);
+            }
+        }
+        return within;
+    }
+
+    @Test
+    public void testOrdersWithoutVisitsAreSkipped() throws Exception {
+        Data data = new Data(UUID.randomUUID());
+        data.append(new EventBuilder().withType(EventType.ORDER).withVerb(EventVerb.NEW).withKey("o1").withTimestamp(1L)
+                        .withAttribute("customer_id", "no-visits").withAttribute("total_amount", Money.parse("USD 10.00")).build());
+
+        assertEquals(0, new CustomerReportService().topXSimpleLTVCustomers(10, data).size());
+    }
+
+    private void assertSameCustomers(List<Customer> expected, List<Customer> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).getCustomerId(), actual.get(i).getCustomerId());
+            assertEquals(expected.get(i).getLtv(), actual.get(i).getLtv());
+        }
+    }
+
+    /**
+     * The original event scanning implementation, ties broken by customer id
+     */
+    private List<Customer> referenceTopX(int resultCount, Data d) {
+        Map<String, List<Event>> visits = new HashMap<>();
+        Map<String, List<Event>> orders = new HashMap<>();
+        for (Event event : d.getEvents()) {
+            String customerId = (String) event.getAttribute("customer_id").getValue();
+            if (EventType.ORDER == event.getType()) {
+                orders.computeIfAbsent(customerId, k -> new ArrayList<>()).add(event);
+            } else if (EventType.SITE_VISIT == event.getType()) {
+                visits.computeIfAbsent(customerId, k -> new ArrayList<>()).add(event);
+            }
+        }
+
+        List<Customer> customers = new ArrayList<>();
+        for (String customerId : orders.keySet()) {
+            List<Event> all = new ArrayList<>(orders.get(customerId));
+            all.addAll(visits.getOrDefault(customerId, new ArrayList<>()));
+            long range = all.stream().mapToLong(Event::getTimestamp).max().getAsLong()
+                         - all.stream().mapToLong(Event::getTimestamp).min().getAsLong();
+            int visitCount = visits.getOrDefault(customerId, new ArrayList<>()).size();
+            if (visitCount == 0) {
+                continue;
+            }
+            Money totalSpent = null;
+            for (Event order : orders.get(customerId)) {
+                Money amount = (Money) order.getAttribute("total_amount").getValue();
+                totalSpent = totalSpent == null ? amount : totalSpent.plus(amount);
+            }
+
+            long WEEK = 1000 * 60 * 60 * 24 * 7;
+            int weeks = (int) range/ (int) WEEK;
+            if (weeks < 1) weeks = 1;
+            Money avgPerVisit = totalSpent.dividedBy(visitCount, RoundingMode.HALF_UP);
+            double visitsPerWeek = visitCount/weeks;
+            Money ltv = avgPerVisit.multipliedBy(visitsPerWeek, RoundingMode.HALF_UP).multipliedBy(52).multipliedBy(10);
+            customers.add(new Customer(customerId, ltv));
+        }
+        return customers.stream().sorted((c1, c2) -> {
+            int compare = c2.getLtv().getAmount().compareTo(c1.getLtv().getAmount());
+            return compare != 0 ? compare : c1.getCustomerId().compareTo(c2.getCustomerId());
+        }).limit(resultCount).collect(Collectors.toList());
     }
 }
@@ -0,0 +1,114 @@
+package com.j2clark.sflycc;
+
+import com.j2clark.sflycc.domain.DictionaryAttribute;
+import com.j2clark.sflycc.domain.Event;
+import com.j2clark.sflycc.domain.EventBuilder;
+import com.j2clark.sflycc.domain.EventType;
+import com.j2clark.sflycc.domain.EventVerb;
+import com.j2clark.sflycc.processors.EventBinder;
+import com.j2clark.sflycc.processors.EventSchema;
+import com.j2clark.sflycc.processors.FieldType;
+import com.j2clark.sflycc.processors.UnsupportedEventException;
+
+import org.joda.money.Money;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class EventBinderTest {
+
+    private static final String COMMON = "\"type\": \"ORDER\", \"verb\": \"NEW\", \"key\": \"b1\", \"event_time\": \"2017-01-06T12:46:46.384Z\"";
+
+    private final EventBinder binder = EventSchema.forType(EventType.ORDER)
+        .required("customer_id", FieldType.DICTIONARY)
+        .required("total_amount", FieldType.MONEY)
+        .optional("note", FieldType.STRING)
+        .compile();
+
+    private Event bind(String fields) throws UnsupportedEventException {
+        EventBuilder builder = new EventBuilder();
+        binder.bind(UUID.randomUUID(), new JSONObject("{" + COMMON + fields + "}"), builder);
+        return builder.build();
+    }
+
+    private void assertRejected(String fields, String reason) {
+        try {
+            bind(fields);
+            fail("expected [" + fields + "] to be rejected");
+        } catch (UnsupportedEventException e) {
+            assertTrue(e.getMessage(), e.getMessage().endsWith(reason));
+        }
+    }
+
+    @Test
+    public void testBind() throws Exception {
+        Event event = bind(", \"customer_id\": \"c1\", \"total_amount\": \"12.34 USD\", \"note\": \"hi\", \"unknown\": 42");
+        assertEquals(EventType.ORDER, event.getType());
+        assertEquals(EventVerb.NEW, event.getVerb());
+        assertEquals("b1", event.getKey().toString());
+        assertEquals(1483706806384L, event.getTimestamp());
+        assertTrue(event.getAttribute("customer_id") instanceof DictionaryAttribute);
+        assertEquals("c1", event.getAttribute("customer_id").getValue());
+        assertEquals(Money.parse("USD 12.34"), event.getAttribute("total_amount").getValue());
+        assertEquals("hi", event.getAttribute("note").getValue());
+        assertNull(event.getAttribute("unknown"));
+
+        // optional fields are bound even when missing, empty or null
+        assertNull(bind(", \"customer_id\": \"c1\", \"total_amount\": \"USD 1\"").getAttribute("note").getValue());
+        assertNull(bind(", \"customer_id\": \"c1\", \"total_amount\": \"USD 1\", \"note\": null").getAttribute("note").getValue());
+        assertEquals("", bind(", \"customer_id\": \"c1\", \"total_amount\": \"USD 1\", \"note\": \"\"").getAttribute("note").getValue());
+    }
+
+    @Test
+    public void testRejected() {
+        assertRejected(", \"total_amount\": \"USD 1\"", "customer_id cannot be empty");
+        assertRejected(", \"customer_id\": \"\", \"total_amount\": \"USD 1\"", "customer_id cannot be empty");
+        assertRejected(", \"customer_id\": null, \"total_amount\": \"USD 1\"", "customer_id cannot be empty");
+        assertRejected(", \"customer_id\": \"c1\"", "total_amount cannot be empty");
+        assertRejected(", \"customer_id\": 7, \"total_amount\": \"USD 1\"", "customer_id must be a string");
+        assertRejected(", \"customer_id\": \"c1\", \"total_amount\": 1.5", "total_amount must be a string");
+        assertRejected(", \"customer_id\": \"c1\", \"total_amount\": \"USD 1\", \"tags\": \"x\"", "tags must be an array");
+    }
+
+    @Test
+    public void testInvalidConfiguration() {
+        Runnable[] schemas = {
+            () -> EventSchema.forType(EventType.ORDER).required("key", FieldType.STRING),
+            () -> EventSchema.forType(EventType.ORDER).required("a", FieldType.STRING).optional("a", FieldType.MONEY),
+            () -> {
+                EventSchema schema = EventSchema.forType(EventType.ORDER);
+                for (int i = 0; i <= 64; i++) {
+                    schema.optional("field" + i, FieldType.STRING);
+                }
+            },
+        };
+        for (Runnable schema : schemas) {
+            try {
+                schema.run();
+                fail("expected invalid configuration");
+            } catch (IllegalStateException e) {
+                assertTrue(e.getMessage().startsWith("Invalid Configuration"));
+            }
+        }
+
+        Runnable[] fields = {
+            () -> EventSchema.forType(null),
+            () -> EventSchema.forType(EventType.ORDER).required("", FieldType.STRING),
+            () -> EventSchema.forType(EventType.ORDER).required("a", null),
+        };
+        for (Runnable field : fields) {
+            try {
+                field.run();
+                fail("expected IllegalArgumentException");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package com.j2clark.sflycc;
+
+import com.j2clark.sflycc.domain.CustomerAggregates;
+import com.j2clark.sflycc.domain.Event;
+import com.j2clark.sflycc.domain.EventBuilder;
+import com.j2clark.sflycc.domain.EventType;
+import com.j2clark.sflycc.domain.EventVerb;
+import com.j2clark.sflycc.processors.IngestProcessorRegistry;
+import com.j2clark.sflycc.services.EventHistory;
+import com.j2clark.sflycc.services.IngestService;
+import com.j2clark.sflycc.store.EventSnapshot;
+import com.j2clark.sflycc.store.EventStoreFactory;
+import com.j2clark.sflycc.store.WriteAheadLog;
+
+import org.joda.money.CurrencyUnit;
+import org.joda.money.Money;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class EventHistoryTest extends AbstractServiceTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private IngestService ingestService(WriteAheadLog wal) {
+        return new IngestService(withAllProcessors(new IngestProcessorRegistry()), 1, EventStoreFactory.heap(), Optional.of(wal));
+    }
+
+    @Test
+    public void testSnapshotAndRecover() throws Exception {
+        Path walDirectory = folder.newFolder("wal").toPath();
+        Path snapshotDirectory = folder.newFolder("snapshots").toPath();
+
+        // small log segments so the snapshot lets us drop some
+        WriteAheadLog wal = new WriteAheadLog(walDirectory, WriteAheadLog.Durability.NONE, 0, 1024);
+        EventHistory history = EventHistory.recover(wal, snapshotDirectory, 0);
+        IngestService ingestService = ingestService(wal);
+
+        int ingested = 0;
+        for (int i = 0; i < 3; i++) {
+            ingested += ingestService.ingest(UUID.randomUUID(), readJson("topX.json")).getEvents().size();
+        }
+        assertEquals(ingested, history.data().getEvents().size());
+        assertEquals(ingested, history.appliedLsn());
+
+        assertNotNull(history.snapshot());
+        // nothing new, nothing to do
+        assertNull(history.snapshot());
+
+        // a second snapshot lets us drop log segments covered by the first
+        for (int i = 0; i < 2; i++) {
+            ingested += ingestService.ingest(UUID.randomUUID(), readJson("topX.json")).getEvents().size();
+        }
+        assertNotNull(history.snapshot());
+        List<Long> logged = new ArrayList<>();
+        wal.replay(0, (lsn, transactionId, event) -> logged.add(lsn));
+        assertFalse(logged.contains(1L));
+
+        // the log tail
+        ingested += ingestService.ingest(UUID.randomUUID(), readJson("topX.json")).getEvents().size();
+        List<Event> expected = new ArrayList<>(history.data().getEvents());
+        Map<String, String> expectedCustomers = customers(history.data().customers().snapshot());
+        Map<String, String> expectedWindow = customers(history.data().customers().lastDays(30));
+        long expectedDistinct = history.data().distinctCustomers().count(EventType.ORDER, 0, 4102444800000L);
+        history.close();
+        wal.close();
+
+        WriteAheadLog reopened = new WriteAheadLog(walDirectory, WriteAheadLog.Durability.NONE, 0, 1024);
+        EventHistory recovered = EventHistory.recover(reopened, snapshotDirectory, 0);
+        assertEquals(ingested, recovered.appliedLsn());
+        assertEquals(ingested, recovered.data().getEvents().size());
+
+        Iterator<Event> actual = recovered.data().getEvents().iterator();
+        for (Event event : expected) {
+            Event other = actual.next();
+            assertEquals(event.getKey(), other.getKey());
+            assertEquals(event.getTimestamp(), other.getTimestamp());
+            assertEquals(event.getAttributes().keySet(), other.getAttributes().keySet());
+        }
+        // aggregates come from the snapshot, plus the log tail
+        assertEquals(expectedCustomers, customers(recovered.data().customers().snapshot()));
+        assertEquals(expectedWindow, customers(recovered.data().customers().lastDays(30)));
+        assertEquals(expectedDistinct, recovered.data().distinctCustomers().count(EventType.ORDER, 0, 4102444800000L));
+
+        // and follows the log again
+        int more = ingestService(reopened).ingest(UUID.randomUUID(), readJson("topX.json")).getEvents().size();
+        assertEquals(ingested + more, recovered.data().getEvents().size());
+        recovered.close();
+        reopened.close();
+    }
+
+    @Test
+    public void testCorruptSnapshot() throws Exception {
+        WriteAheadLog wal = new WriteAheadLog(folder.newFolder("wal").toPath(), WriteAheadLog.Durability.NONE, 0, 4096);
+        Path snapshotDirectory = folder.newFolder("snapshots").toPath();
+        EventHistory history = EventHistory.recover(wal, snapshotDirectory, 0);
+        ingestService(wal).ingest(UUID.randomUUID(), readJson("topX.json"));
+        Path snapshot = history.snapshot();
+        history.close();
+        wal.close();
+        assertNotNull(EventSnapshot.loadLatest(snapshotDirectory, true));
+
+        // a first record claiming to be ~2GB is refused, rather than allocated
+        try (FileChannel channel = FileChannel.open(snapshot, StandardOpenOption.WRITE)) {
+            ByteBuffer length = ByteBuffer.allocate(4).putInt(Integer.MAX_VALUE);
+            length.flip();
+            channel.write(length, 20);
+        }
+        assertNull(EventSnapshot.loadLatest(snapshotDirectory, true));
+
+        // as is a count the file could not possibly hold
+        try (FileChannel channel = FileChannel.open(snapshot, StandardOpenOption.WRITE)) {
+            ByteBuffer count = ByteBuffer.allocate(4).putInt(Integer.MAX_VALUE);
+            count.flip();
+            channel.write(count, 16);
+        }
+        assertNull(EventSnapshot.loadLatest(snapshotDirectory, true));
+    }
+
+    @Test
+    public void testAppliesWholeBatch() throws Exception {
+        WriteAheadLog wal = new WriteAheadLog(folder.newFolder("wal").toPath(), WriteAheadLog.Durability.NONE, 0, 4096);
+        EventHistory history = EventHistory.recover(wal, folder.newFolder("snapshots").toPath(), 0);
+
+        // the second order takes the customer's total past Long.MAX_VALUE
+        List<Event> events = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            events.add(new EventBuilder().withType(EventType.ORDER).withVerb(EventVerb.NEW).withKey("o" + i)
+                           .withTimestamp(1000L + i).withAttribute("customer_id", "big-spender")
+                           .withAttribute("total_amount", Money.ofMinor(CurrencyUnit.USD, Long.MAX_VALUE - 1)).build());
+        }
+        events.add(new EventBuilder().withType(EventType.SITE_VISIT).withVerb(EventVerb.NEW).withKey("v0")
+                       .withTimestamp(1002L).withAttribute("customer_id", "big-spender").build());
+        wal.append(UUID.randomUUID(), events);
+
+        assertEquals(3, history.appliedLsn());
+        assertEquals(3, history.data().getEvents().size());
+        CustomerAggregates.Snapshot customers = history.data().customers().snapshot();
+        assertEquals(1, customers.size());
+        assertEquals(2, customers.orders(0));
+        assertEquals(1, customers.visits(0));
+        assertEquals(Long.MAX_VALUE, customers.spent(0));
+        history.close();
+        wal.close();
+    }
+
+    /**
+     * @return customer_id -> all of the customer's aggregates
+     */
+    private static Map<String, String> customers(CustomerAggregates.Snapshot snapshot) {
+        Map<String, String> customers = new HashMap<>();
+        for (int slot = 0; slot < snapshot.size(); slot++) {
+            customers.put(snapshot.customerDictionary().decode(snapshot.customerId(slot)), Arrays.asList(
+                snapshot.firstTimestamp(slot), snapshot.lastTimestamp(slot), snapshot.visits(slot), snapshot.orders(slot),
+                snapshot.spent(slot), snapshot.currency(slot), snapshot.mismatchedCurrency(slot)).toString());
+        }
+        return customers;
+    }
+
+    @Test
+    public void testSnapshotDuringIngest() throws Exception {
+        Path snapshotDirectory = folder.newFolder("snapshots").toPath();
+        WriteAheadLog wal = new WriteAheadLog(folder.newFolder("wal").toPath(), WriteAheadLog.Durability.NONE, 0, 4096);
+        EventHistory history = EventHistory.recover(wal, snapshotDirectory, 0);
+        IngestService ingestService = ingestService(wal);
+
+        Thread ingest = new Thread(() -> {
+            for (int i = 0; i < 50; i++) {
+                ingestService.ingest(UUID.randomUUID(), readJson("topX.json"));
+            }
+        });
+        ingest.start();
+        while (ingest.isAlive()) {
+            history.snapshot();
+        }
+        ingest.join();
+        history.snapshot();
+        long applied = history.appliedLsn();
+        wal.close();
+
+        WriteAheadLog reopened = new WriteAheadLog(folder.getRoot().toPath().resolve("wal"),
+                                                   WriteAheadLog.Durability.NONE, 0, 4096);
+        EventHistory recovered = EventHistory.recover(reopened, snapshotDirectory, 0);
+        assertEquals(applied, recovered.appliedLsn());
+        assertEquals(history.data().getEvents().size(), recovered.data().getEvents().size());
+        reopened.close();
+    }
+}
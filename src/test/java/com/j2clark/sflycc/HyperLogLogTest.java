@@ -0,0 +1,113 @@
+package com.j2clark.sflycc;
+
+import com.j2clark.sflycc.domain.Data;
+import com.j2clark.sflycc.domain.DistinctCustomers;
+import com.j2clark.sflycc.domain.EventBuilder;
+import com.j2clark.sflycc.domain.EventType;
+import com.j2clark.sflycc.domain.EventVerb;
+import com.j2clark.sflycc.domain.HyperLogLog;
+import com.j2clark.sflycc.reports.CustomerReportService;
+import com.j2clark.sflycc.reports.DistinctCustomerCount;
+
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class HyperLogLogTest {
+
+    private static final long DAY = 24 * 60 * 60 * 1000L;
+    private static final long START = 1483228800000L;
+
+    private void assertWithin(long expected, long actual, double error) {
+        assertTrue("expected ~" + expected + " got " + actual, Math.abs(expected - actual) <= expected * error);
+    }
+
+    @Test
+    public void testEstimateAndMerge() {
+        HyperLogLog small = new HyperLogLog();
+        for (int i = 0; i < 100; i++) {
+            small.add("hll-" + i);
+            small.add("hll-" + i);
+        }
+        // still sparse, which is as good as exact at this size
+        assertWithin(100, small.estimate(), 0.02);
+
+        HyperLogLog first = new HyperLogLog();
+        HyperLogLog second = new HyperLogLog();
+        for (int i = 0; i < 100000; i++) {
+            first.add("hll-" + i);
+            second.add("hll-" + (i + 50000));
+        }
+        assertWithin(100000, first.estimate(), 0.05);
+
+        // as if shipped from another node
+        HyperLogLog union = HyperLogLog.fromBytes(first.toBytes()).merge(second).merge(small);
+        assertWithin(150000, union.estimate(), 0.05);
+    }
+
+    @Test
+    public void testDistinctCustomersPerDay() throws Exception {
+        Data data = new Data(UUID.randomUUID());
+        for (int day = 0; day < 3; day++) {
+            for (int i = 0; i < 1000; i++) {
+                // customers 0-999 on day 0, 500-1499 on day 1, ...
+                String customerId = "hll-customer-" + (day * 500 + i);
+                data.append(new EventBuilder().withType(EventType.SITE_VISIT).withVerb(EventVerb.NEW).withKey("v" + day + "-" + i)
+                                .withTimestamp(START + day * DAY + i).withAttribute("customer_id", customerId).build());
+                if (i % 10 == 0) {
+                    data.append(new EventBuilder().withType(EventType.ORDER).withVerb(EventVerb.NEW).withKey("o" + day + "-" + i)
+                                    .withTimestamp(START + day * DAY + i).withAttribute("customer_id", customerId).build());
+                }
+            }
+        }
+
+        DistinctCustomers distinct = data.distinctCustomers();
+        assertWithin(1000, distinct.count(EventType.SITE_VISIT, START, START + DAY), 0.05);
+        assertWithin(2000, distinct.count(EventType.SITE_VISIT, START, START + 3 * DAY), 0.05);
+        assertWithin(100, distinct.count(EventType.ORDER, START + DAY, START + 2 * DAY), 0.05);
+        assertEquals(0, distinct.count(EventType.IMAGE, START, START + 3 * DAY));
+        assertEquals(3, distinct.daily(EventType.SITE_VISIT, START, START + 3 * DAY).size());
+
+        DistinctCustomers other = new DistinctCustomers();
+        other.add(new EventBuilder().withType(EventType.CUSTOMER).withVerb(EventVerb.NEW).withKey("hll-new-customer")
+                      .withTimestamp(START).build());
+        other.merge(distinct);
+        assertWithin(2000, other.count(EventType.SITE_VISIT, START, START + 3 * DAY), 0.05);
+        assertEquals(1, other.count(EventType.CUSTOMER, START, START + DAY));
+
+        // as reported, rounded out to whole days
+        CustomerReportService reportService = new CustomerReportService();
+        DistinctCustomerCount window = reportService.distinctCustomers(data, EventType.SITE_VISIT, START + 1, START + DAY + 1);
+        assertEquals(START, window.getFrom());
+        assertEquals(START + 2 * DAY, window.getTo());
+        assertWithin(1500, window.getCount(), 0.05);
+        assertEquals(2, window.getDaily().size());
+        assertWithin(1000, window.getDaily().get(START + DAY), 0.05);
+
+        DistinctCustomerCount lastDays = reportService.distinctCustomersLastDays(data, EventType.ORDER, 2);
+        assertEquals(START + DAY, lastDays.getFrom());
+        assertEquals(START + 3 * DAY, lastDays.getTo());
+        // 100 customers ordered each day, half of them on both
+        assertWithin(150, lastDays.getCount(), 0.05);
+    }
+
+    @Test
+    public void testFromBytesValidates() {
+        byte[] valid = new HyperLogLog(4).toBytes();
+        byte[] outOfRange = valid.clone();
+        outOfRange[3] = -1;
+        for (byte[] bytes : new byte[][] {new byte[0], new byte[] {4}, new byte[] {40, 0}, outOfRange}) {
+            try {
+                HyperLogLog.fromBytes(bytes);
+                fail("expected bytes of length[" + bytes.length + "] to be refused");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+        assertEquals(0, HyperLogLog.fromBytes(valid).estimate());
+    }
+}
@@ -0,0 +1,140 @@
+package com.j2clark.sflycc;
+
+import com.j2clark.sflycc.domain.Event;
+import com.j2clark.sflycc.domain.IngestStatus;
+import com.j2clark.sflycc.processors.IngestProcessorRegistry;
+import com.j2clark.sflycc.services.IngestPipeline;
+import com.j2clark.sflycc.services.IngestService;
+import com.j2clark.sflycc.store.EventStoreFactory;
+import com.j2clark.sflycc.store.WriteAheadLog;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class IngestPipelineTest extends AbstractServiceTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private IngestStatus awaitDone(IngestPipeline pipeline, UUID transactionId) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (System.currentTimeMillis() < deadline) {
+            IngestStatus status = pipeline.status(transactionId);
+            if (status.getState() == IngestStatus.State.COMPLETE || status.getState() == IngestStatus.State.FAILED) {
+                return status;
+            }
+            Thread.sleep(1);
+        }
+        throw new AssertionError("Request[" + transactionId + "] did not complete");
+    }
+
+    @Test
+    public void testRequestsCompleteInOrder() throws Exception {
+        WriteAheadLog wal = WriteAheadLog.open(folder.newFolder("wal").toPath(), WriteAheadLog.Durability.NONE, 0);
+        IngestService ingestService = new IngestService(
+            withAllProcessors(new IngestProcessorRegistry()), 1, EventStoreFactory.heap(), Optional.of(wal));
+        int expected = ingestService.ingest(UUID.randomUUID(), readJson("topX.json")).getEvents().size();
+
+        // small ring, so slots get reused
+        IngestPipeline pipeline = new IngestPipeline(ingestService, 4, 100);
+        long logged = wal.lastLsn();
+        List<UUID> transactionIds = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            UUID transactionId = UUID.randomUUID();
+            while (!pipeline.submit(transactionId, readJson("topX.json"))) {
+                Thread.sleep(1);
+            }
+            transactionIds.add(transactionId);
+        }
+        for (UUID transactionId : transactionIds) {
+            IngestStatus status = awaitDone(pipeline, transactionId);
+            assertEquals(IngestStatus.State.COMPLETE, status.getState());
+            assertEquals(expected, status.getSummary().getAccepted());
+        }
+        pipeline.shutdown();
+        assertEquals(logged + 20 * expected, wal.lastLsn());
+
+        // transactions hit the log in the order they were submitted
+        List<UUID> order = new ArrayList<>();
+        wal.replay(logged, (lsn, txn, event) -> {
+            if (order.isEmpty() || !order.get(order.size() - 1).equals(txn)) {
+                order.add(txn);
+            }
+        });
+        assertEquals(transactionIds, order);
+        wal.close();
+    }
+
+    @Test
+    public void testBoundedByBytes() throws Exception {
+        CountDownLatch appending = new CountDownLatch(1);
+        List<Integer> committed = new ArrayList<>();
+        IngestService ingestService = new IngestService(withAllProcessors(new IngestProcessorRegistry())) {
+            @Override
+            public void commit(UUID transactionId, Collection<Event> events) {
+                try {
+                    appending.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                committed.add(events.size());
+            }
+        };
+        String json = readJson("topX.json");
+        // plenty of slots, but only bytes for one and a half requests
+        IngestPipeline pipeline = new IngestPipeline(ingestService, 16, json.length() * 3 / 2, 100);
+
+        UUID first = UUID.randomUUID();
+        assertTrue(pipeline.submit(first, json));
+        assertEquals(json.length(), pipeline.backlogBytes());
+        assertFalse(pipeline.submit(UUID.randomUUID(), json));
+        // anything smaller still fits
+        assertTrue(pipeline.submit(UUID.randomUUID(), "[]"));
+
+        appending.countDown();
+        assertEquals(IngestStatus.State.COMPLETE, awaitDone(pipeline, first).getState());
+        UUID second = UUID.randomUUID();
+        assertTrue(pipeline.submit(second, json));
+        awaitDone(pipeline, second);
+        pipeline.shutdown();
+        assertEquals(0, pipeline.backlogBytes());
+        assertEquals(3, committed.size());
+
+        // an empty ring takes a request larger than the bound, rather than never taking it
+        IngestPipeline small = new IngestPipeline(ingestService, 16, 10, 100);
+        assertTrue(small.submit(UUID.randomUUID(), json));
+        small.shutdown();
+    }
+
+    @Test
+    public void testMalformedAndShutdown() throws Exception {
+        IngestService ingestService = new IngestService(withAllProcessors(new IngestProcessorRegistry()));
+        IngestPipeline pipeline = new IngestPipeline(ingestService, 2, 100);
+
+        UUID malformed = UUID.randomUUID();
+        assertTrue(pipeline.submit(malformed, "[{\"type\": \"CUSTOMER\", "));
+        IngestStatus status = awaitDone(pipeline, malformed);
+        assertEquals(IngestStatus.State.COMPLETE, status.getState());
+        assertEquals(0, status.getSummary().getAccepted());
+        assertEquals(1, status.getSummary().getRejected());
+        assertNull(pipeline.status(UUID.randomUUID()));
+
+        pipeline.shutdown();
+        assertFalse(pipeline.submit(UUID.randomUUID(), readJson("topX.json")));
+        assertNotNull(pipeline.status(malformed));
+    }
+}
@@ -0,0 +1,75 @@
+package com.j2clark.sflycc;
+
+import com.j2clark.sflycc.domain.EventBuilder;
+import com.j2clark.sflycc.domain.EventType;
+import com.j2clark.sflycc.domain.Event;
+import com.j2clark.sflycc.domain.EventVerb;
+import com.j2clark.sflycc.processors.AbstractIngestProcessor;
+import com.j2clark.sflycc.processors.EventSchema;
+import com.j2clark.sflycc.processors.FieldType;
+import com.j2clark.sflycc.processors.IngestProcessor;
+import com.j2clark.sflycc.processors.IngestProcessorRegistry;
+import com.j2clark.sflycc.processors.OrderIngestProcessor;
+import com.j2clark.sflycc.services.IngestService;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class IngestProcessorRegistryTest extends AbstractServiceTest {
+
+    @Test
+    public void testRawLookup() {
+        IngestProcessorRegistry registry = withAllProcessors(new IngestProcessorRegistry());
+
+        IngestProcessor order = registry.lookup(EventType.ORDER);
+        assertTrue(order instanceof OrderIngestProcessor);
+        assertSame(order, registry.lookup("ORDER"));
+        assertSame(order, registry.lookup(" order "));
+        assertSame(order, registry.find(EventType.of("Order")).get());
+        assertNull(registry.lookup("ORDERS"));
+        assertNull(registry.lookup(""));
+        assertNull(registry.lookup((CharSequence) null));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testDuplicateRegistration() {
+        withOrderProcessor(withOrderProcessor(new IngestProcessorRegistry()));
+    }
+
+    @Test
+    public void testReplaceAtRuntime() {
+        IngestProcessorRegistry registry = withAllProcessors(new IngestProcessorRegistry());
+        IngestService service = new IngestService(registry);
+
+        String json = "{\"type\": \"SITE_VISIT\", \"verb\": \"NEW\", \"key\": \"v1\", \"event_time\": \"2017-01-06T12:45:52.041Z\", \"customer_id\": \"c1\"}";
+        assertEquals("c1", service.parseEvents(UUID.randomUUID(), json).iterator().next().getAttribute("customer_id").getValue());
+
+        // replacement processor tags every site visit with a source
+        IngestProcessor replacement = new AbstractIngestProcessor(new IngestProcessorRegistry(),
+                                                                  EventSchema.forType(EventType.SITE_VISIT)
+                                                                      .required("customer_id", FieldType.DICTIONARY),
+                                                                  Collections.singletonList(EventVerb.NEW)) {
+            @Override
+            protected void adapt(UUID transactionId, JSONObject json, EventBuilder eventBuilder) {
+                eventBuilder.withAttribute("source", "replacement");
+            }
+        };
+        registry.replace(replacement);
+
+        Collection<Event> events = service.parseEvents(UUID.randomUUID(), json);
+        assertEquals("replacement", events.iterator().next().getAttribute("source").getValue());
+        assertEquals("c1", events.iterator().next().getAttribute("customer_id").getValue());
+
+        registry.unregister(replacement);
+        assertEquals(0, service.parseEvents(UUID.randomUUID(), json).size());
+    }
+}
@@ -1,9 +1,11 @@
 package com.j2clark.sflycc;
 
+import com.j2clark.sflycc.domain.Data;
 import com.j2clark.sflycc.domain.EventKey;
 import com.j2clark.sflycc.domain.EventType;
 import com.j2clark.sflycc.domain.EventVerb;
 import com.j2clark.sflycc.domain.Event;
+import com.j2clark.sflycc.domain.IngestSummary;
 import com.j2clark.sflycc.processors.IngestProcessorRegistry;
 import com.j2clark.sflycc.services.IngestService;
 
@@ -12,6 +14,7 @@ import org.junit.Assert;
 import org.junit.Test;
 
 import java.io.IOException;
+import java.io.StringReader;
 import java.util.Collection;
 import java.util.Date;
 import java.util.List;
@@ -20,6 +23,7 @@ import java.util.stream.Collectors;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 
@@ -157,6 +161,20 @@ public class IngestServiceTest extends AbstractServiceTest {
         assertTrue(event.getTags().isEmpty());
     }
 
+    @Test
+    public void testOrder_AmountFirst() throws IOException {
+        IngestService service = new IngestService(
+            withOrderProcessor(new IngestProcessorRegistry())
+        );
+
+        // format used by the sample feed
+        String json = "{\"type\": \"ORDER\", \"verb\": \"NEW\", \"key\": \"68d84e5d1a43\", \"event_time\": \"2017-01-06T12:55:55.555Z\", \"customer_id\": \"96f55c7d8f42\", \"total_amount\": \"12.34 USD\"}";
+
+        Collection<Event> events = service.parseEvents(UUID.randomUUID(), json);
+        assertEquals(1, events.size());
+        assertEquals(Money.parse("USD 12.34"), events.iterator().next().getAttribute("total_amount").getValue());
+    }
+
     @Test
     public void testOrder_NoTotalAmount() throws IOException {
         IngestService service = new IngestService(
@@ -204,6 +222,147 @@ public class IngestServiceTest extends AbstractServiceTest {
         assertEquals(EventType.of("ORDER"), eventList.get(3).getType());
     }
 
+    @Test
+    public void testArray_Streaming() throws IOException {
+        IngestService service = new IngestService(
+            withAllProcessors(new IngestProcessorRegistry())
+        );
+
+        Collection<Event> events = service.parseEvents(UUID.randomUUID(), new StringReader(jsonArray));
+        assertEquals(4, events.size());
+
+        List<Event> eventList = events.stream().collect(Collectors.toList());
+        assertEquals(EventType.of("SITE_VISIT"), eventList.get(0).getType());
+        assertEquals(EventType.of("CUSTOMER"), eventList.get(1).getType());
+        assertEquals(EventType.of("IMAGE"), eventList.get(2).getType());
+        assertEquals(EventType.of("ORDER"), eventList.get(3).getType());
+    }
+
+    @Test
+    public void testArray_Streaming_MalformedTail() throws IOException {
+        IngestService service = new IngestService(
+            withAllProcessors(new IngestProcessorRegistry())
+        );
+
+        // events before the malformed entry are kept
+        String json = "[" + jsonCustomer + ",\n" + jsonSiteVisit + ",\n{\"type\": ";
+
+        Collection<Event> events = service.parseEvents(UUID.randomUUID(), new StringReader(json));
+        assertEquals(2, events.size());
+    }
+
+    @Test
+    public void testNdjsonStream() throws IOException {
+        IngestService service = new IngestService(
+            withAllProcessors(new IngestProcessorRegistry())
+        );
+
+        String ndjson = jsonCustomer + "\n"
+                        + "{\"type\": \"UNKNOWN\", \"verb\": \"NEW\", \"key\": \"x\", \"event_time\": \"2017-01-06T12:46:46.384Z\"}\n"
+                        + jsonOrder + "\n";
+
+        Data data = new Data(UUID.randomUUID());
+        IngestSummary summary = service.ingestStream(data, new StringReader(ndjson));
+
+        assertEquals(2, summary.getAccepted());
+        assertEquals(1, summary.getRejected());
+        assertEquals(2, data.getEvents().size());
+
+        List<IngestSummary.Reject> rejects = summary.getRejects();
+        assertEquals(1, rejects.size());
+        assertEquals(2, rejects.get(0).getIndex());
+        assertEquals(2, rejects.get(0).getLine());
+    }
+
+    @Test
+    public void testNdjsonStream_Committed() throws IOException {
+        IngestService service = new IngestService(
+            withAllProcessors(new IngestProcessorRegistry())
+        );
+
+        // only the first MAX_REJECTS rejects are described, all are counted
+        StringBuilder ndjson = new StringBuilder();
+        for (int i = 0; i < IngestSummary.MAX_REJECTS + 10; i++) {
+            ndjson.append(jsonCustomer).append("\n42\n");
+        }
+
+        IngestSummary summary = service.ingestStream(UUID.randomUUID(), new StringReader(ndjson.toString()));
+        assertEquals(IngestSummary.MAX_REJECTS + 10, summary.getAccepted());
+        assertEquals(IngestSummary.MAX_REJECTS + 10, summary.getRejected());
+        assertEquals(IngestSummary.MAX_REJECTS, summary.getRejects().size());
+        assertEquals(4, summary.getRejects().get(1).getIndex());
+    }
+
+    @Test
+    public void testParallelMatchesSequential() throws IOException {
+        IngestService sequential = new IngestService(
+            withAllProcessors(new IngestProcessorRegistry())
+        );
+        IngestService parallel = new IngestService(
+            withAllProcessors(new IngestProcessorRegistry()), 4
+        );
+
+        // plenty of timestamp collisions, so ordering of ties matters
+        StringBuilder json = new StringBuilder("[");
+        for (int i = 0; i < 5000; i++) {
+            if (i > 0) {
+                json.append(",\n");
+            }
+            String customerId = i % 10 == 0 ? "" : "c" + (i % 97);   // every 10th event is rejected
+            json.append("{\"type\": \"SITE_VISIT\", \"verb\": \"NEW\", \"key\": \"v").append(i)
+                .append("\", \"event_time\": \"2017-01-").append(10 + i % 7).append("T12:45:52.041Z\", \"customer_id\": \"")
+                .append(customerId).append("\"}");
+        }
+        json.append("]");
+
+        try {
+            List<EventKey> expected = sequential.parseEvents(UUID.randomUUID(), json.toString()).stream()
+                .map(Event::getKey).collect(Collectors.toList());
+            List<EventKey> actual = parallel.parseEvents(UUID.randomUUID(), json.toString()).stream()
+                .map(Event::getKey).collect(Collectors.toList());
+
+            assertEquals(4500, expected.size());
+            assertEquals(expected, actual);
+        } finally {
+            parallel.shutdown();
+        }
+    }
+
+    @Test
+    public void testParallel_MalformedTail() throws IOException {
+        IngestService parallel = new IngestService(
+            withAllProcessors(new IngestProcessorRegistry()), 4
+        );
+
+        // more than a chunk, so the events before the malformed entry are split over a full and a partial chunk
+        StringBuilder json = new StringBuilder("[");
+        for (int i = 0; i < 700; i++) {
+            json.append("{\"type\": \"SITE_VISIT\", \"verb\": \"NEW\", \"key\": \"v").append(i)
+                .append("\", \"event_time\": \"2017-01-10T12:45:52.041Z\", \"customer_id\": \"c1\"},\n");
+        }
+        json.append("{\"type\": ");
+
+        try {
+            assertEquals(700, parallel.parseEvents(UUID.randomUUID(), json.toString()).size());
+        } finally {
+            parallel.shutdown();
+        }
+    }
+
+    @Test
+    public void testCanonicalTypes() throws IOException {
+        assertSame(EventType.ORDER, EventType.of(" order "));
+        assertSame(EventType.of("order"), EventType.of("ORDER"));
+        assertSame(EventVerb.UPLOAD, EventVerb.of("upload"));
+
+        IngestService service = new IngestService(
+            withOrderProcessor(new IngestProcessorRegistry())
+        );
+        Event event = service.parseEvents(UUID.randomUUID(), jsonOrder).iterator().next();
+        assertSame(EventType.ORDER, event.getType());
+        assertSame(EventVerb.NEW, event.getVerb());
+    }
+
     /////// BEGIN TEST UTILITIES
 
 
@@ -0,0 +1,60 @@
+package com.j2clark.sflycc;
+
+import com.j2clark.sflycc.domain.IsoTimestampParser;
+
+import org.joda.time.format.ISODateTimeFormat;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * event_time parsing, joda (previous implementation) vs IsoTimestampParser
+ *
+ * Not run as part of the build, run with:
+ *      mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=com.j2clark.sflycc.IsoTimestampParserBenchmark
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IsoTimestampParserBenchmark {
+
+    private final String[] values = {
+        "2017-01-06T12:46:46.384Z",
+        "2017-01-06T12:45:52.041Z",
+        "2017-01-06T12:47:12.344Z",
+        "2017-01-07T12:55:55.555Z",
+    };
+    private int next = 0;
+
+    private String nextValue() {
+        next = (next + 1) & 3;
+        return values[next];
+    }
+
+    @Benchmark
+    public long joda() {
+        return ISODateTimeFormat.dateTime().parseDateTime(nextValue()).toDate().getTime();
+    }
+
+    @Benchmark
+    public long isoTimestampParser() {
+        return IsoTimestampParser.parse(nextValue());
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder().include(IsoTimestampParserBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,60 @@
+package com.j2clark.sflycc;
+
+import com.j2clark.sflycc.domain.IsoTimestampParser;
+
+import org.joda.time.format.ISODateTimeFormat;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class IsoTimestampParserTest extends AbstractServiceTest {
+
+    @Test
+    public void testUTC() {
+        assertEquals(newUTCDate(2017, 0, 6, 12, 46, 46, 384).getTime(),
+                     IsoTimestampParser.parse("2017-01-06T12:46:46.384Z"));
+    }
+
+    @Test
+    public void testMatchesJoda() {
+        String[] values = {
+            "1970-01-01T00:00:00.000Z",
+            "1969-12-31T23:59:59.999Z",
+            "2000-02-29T08:15:00.001Z",
+            "2016-12-31T23:59:59.999Z",
+            "2017-03-01T00:00:00.000+05:30",
+            "2017-03-01T00:00:00.000-08:00",
+            "1900-03-01T10:11:12.013Z",
+            "2400-02-29T10:11:12.013Z",
+            // not our fixed shape, handled by joda
+            "2017-01-06T12:46:46.3Z",
+            "2017-01-06T12:46:46.384+0100",
+        };
+        for (String value : values) {
+            assertEquals(value, ISODateTimeFormat.dateTime().parseMillis(value), IsoTimestampParser.parse(value));
+        }
+    }
+
+    @Test
+    public void testEveryDayMatchesJoda() {
+        long day = 24L * 60 * 60 * 1000;
+        for (long millis = -day * 365 * 3; millis < day * 365 * 60; millis += day + 3_600_123L) {
+            String value = ISODateTimeFormat.dateTime().withZoneUTC().print(millis);
+            assertEquals(value, millis, IsoTimestampParser.parse(value));
+        }
+    }
+
+    @Test
+    public void testInvalid() {
+        String[] values = {"", "2017-02-29T12:46:46.384Z", "2017-13-06T12:46:46.384Z", "2017-01-06T24:46:46.384Z", "2017-01-O6T12:46:46.384Z"};
+        for (String value : values) {
+            try {
+                IsoTimestampParser.parse(value);
+                fail("expected [" + value + "] to be rejected");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+}
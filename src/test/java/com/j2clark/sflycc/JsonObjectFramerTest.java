@@ -0,0 +1,107 @@
+package com.j2clark.sflycc;
+
+import com.j2clark.sflycc.services.JsonObjectFramer;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class JsonObjectFramerTest {
+
+    private static class Collector implements JsonObjectFramer.Listener {
+        private final List<String> objects = new ArrayList<>();
+        private final List<Integer> lines = new ArrayList<>();
+        private final List<String> values = new ArrayList<>();
+
+        @Override
+        public void onObject(String json, int line) {
+            objects.add(json);
+            lines.add(line);
+        }
+
+        @Override
+        public void onValue(String json, int line) {
+            values.add(json);
+        }
+    }
+
+    // a byte at a time, the worst case for chunk boundaries
+    private Collector frame(String payload, int maxValueBytes) {
+        Collector collector = new Collector();
+        JsonObjectFramer framer = new JsonObjectFramer(collector, maxValueBytes);
+        byte[] bytes = payload.getBytes(StandardCharsets.UTF_8);
+        for (int i = 0; i < bytes.length; i++) {
+            framer.feed(bytes, i, 1);
+        }
+        framer.finish();
+        return collector;
+    }
+
+    @Test
+    public void testPayloads() throws Exception {
+        String nasty = "{\"key\": \"a}b{c\\\"]\", \"nested\": {\"list\": [1, {\"x\": \"\\\\\"}]}, \"name\": \"café\"}";
+
+        Collector array = frame("[\n" + nasty + ",\n {\"key\": \"2\"}, 42, \"text\"\n]\n", 1024);
+        assertEquals(2, array.objects.size());
+        assertEquals(nasty, array.objects.get(0));
+        assertEquals("a}b{c\"]", new JSONObject(array.objects.get(0)).getString("key"));
+        assertEquals("café", new JSONObject(array.objects.get(0)).getString("name"));
+        assertEquals(Integer.valueOf(2), array.lines.get(0));
+        assertEquals(Integer.valueOf(3), array.lines.get(1));
+        assertEquals(2, array.values.size());
+        assertEquals("42", array.values.get(0));
+
+        Collector single = frame(nasty, 1024);
+        assertEquals(1, single.objects.size());
+        assertEquals(nasty, single.objects.get(0));
+
+        Collector ndjson = frame("{\"key\": \"1\"}\n{\"key\": \"2\"}\r\n\n{\"key\": \"3\"}", 1024);
+        assertEquals(3, ndjson.objects.size());
+        assertEquals(Integer.valueOf(4), ndjson.lines.get(2));
+
+        // nested arrays and strings are values in their own right, whatever brackets and commas they hold
+        Collector values = frame("[ [1, [2]], {\"key\": \"1\"}, \"a, b]\", [\"]\"], {\"key\": \"2\"} ]", 1024);
+        assertEquals(2, values.objects.size());
+        assertEquals("{\"key\": \"2\"}", values.objects.get(1));
+        assertEquals(3, values.values.size());
+        assertEquals("[1, [2]]", values.values.get(0));
+        assertEquals("\"a, b]\"", values.values.get(1));
+        assertEquals("[\"]\"]", values.values.get(2));
+
+        assertEquals(0, frame("[]", 1024).objects.size());
+        assertEquals(0, frame("", 1024).objects.size());
+    }
+
+    @Test
+    public void testMalformed() {
+        String[] malformed = {
+                "[{\"key\": \"1\"}",                // array never closed
+                "{\"key\": \"1\"",                  // object never closed
+                "{\"key\": \"}",                    // string never closed
+                "[{\"key\": \"1\"}] {}",            // content after the array
+                "[[1, 2], {\"key\": \"1\"}",        // array never closed, past a nested one
+                "[\"text]",                          // string value never closed
+        };
+        for (String payload : malformed) {
+            try {
+                frame(payload, 1024);
+                fail("expected failure for " + payload);
+            } catch (IllegalStateException e) {
+                // expected
+            }
+        }
+
+        try {
+            frame("[{\"key\": \"" + new String(new char[100]).replace('\0', 'x') + "\"}]", 64);
+            fail("expected oversize value to fail");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.j2clark.sflycc;
+
+import com.j2clark.sflycc.domain.Data;
+import com.j2clark.sflycc.domain.Event;
+import com.j2clark.sflycc.domain.EventBuilder;
+import com.j2clark.sflycc.domain.EventType;
+import com.j2clark.sflycc.domain.EventVerb;
+import com.j2clark.sflycc.reports.Customer;
+import com.j2clark.sflycc.reports.CustomerReportService;
+import com.j2clark.sflycc.reports.Leaderboard;
+
+import org.joda.money.CurrencyMismatchException;
+import org.joda.money.CurrencyUnit;
+import org.joda.money.Money;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+
+public class LeaderboardTest {
+
+    private static final long START = 1483228800000L;
+
+    private Event randomEvent(Random random, int i) throws Exception {
+        String customerId = "leaderboard-test-" + random.nextInt(500);
+        long timestamp = START + (long) random.nextInt(90) * 24 * 60 * 60 * 1000;
+        EventBuilder builder = new EventBuilder().withVerb(EventVerb.NEW).withKey("k" + i).withTimestamp(timestamp)
+            .withAttribute("customer_id", customerId);
+        if (random.nextInt(2) == 0) {
+            builder.withType(EventType.ORDER).withAttribute("total_amount", Money.ofMinor(CurrencyUnit.USD, random.nextInt(20) * 100));
+        } else {
+            builder.withType(EventType.SITE_VISIT);
+        }
+        return builder.build();
+    }
+
+    private void assertSameCustomers(List<Customer> expected, List<Customer> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).getCustomerId(), actual.get(i).getCustomerId());
+            assertEquals(expected.get(i).getLtv(), actual.get(i).getLtv());
+        }
+    }
+
+    @Test
+    public void testFollowsReport() throws Exception {
+        Random random = new Random(17);
+        Data data = new Data(UUID.randomUUID());
+        for (int i = 0; i < 1000; i++) {
+            data.append(randomEvent(random, i));
+        }
+
+        // attached part way through, so it starts from existing aggregates and then follows along
+        Leaderboard leaderboard = Leaderboard.follow(data.customers());
+        CustomerReportService reportService = new CustomerReportService();
+        for (int i = 1000; i < 5000; i++) {
+            data.append(randomEvent(random, i));
+            if (i % 500 == 0) {
+                assertSameCustomers(reportService.topXSimpleLTVCustomers(20, data), leaderboard.topX(20));
+            }
+        }
+
+        List<Customer> all = reportService.topXSimpleLTVCustomers(Integer.MAX_VALUE, data);
+        assertEquals(all.size(), leaderboard.size());
+        assertSameCustomers(all, leaderboard.topX(Integer.MAX_VALUE));
+        assertSameCustomers(all.subList(10, 30), leaderboard.range(10, 30));
+        for (int rank = 0; rank < all.size(); rank++) {
+            assertEquals(rank, leaderboard.rank(all.get(rank).getCustomerId()));
+        }
+        assertEquals(-1, leaderboard.rank("leaderboard-test-unknown"));
+    }
+
+    @Test(expected = CurrencyMismatchException.class)
+    public void testCurrencyMismatch() throws Exception {
+        Data data = new Data(UUID.randomUUID());
+        Leaderboard leaderboard = Leaderboard.follow(data.customers());
+        data.append(new EventBuilder().withType(EventType.SITE_VISIT).withVerb(EventVerb.NEW).withKey("v1").withTimestamp(1L)
+                        .withAttribute("customer_id", "leaderboard-mixed").build());
+        data.append(new EventBuilder().withType(EventType.ORDER).withVerb(EventVerb.NEW).withKey("o1").withTimestamp(1L)
+                        .withAttribute("customer_id", "leaderboard-mixed").withAttribute("total_amount", Money.parse("USD 10.00")).build());
+        data.append(new EventBuilder().withType(EventType.ORDER).withVerb(EventVerb.NEW).withKey("o2").withTimestamp(2L)
+                        .withAttribute("customer_id", "leaderboard-mixed").withAttribute("total_amount", Money.parse("EUR 10.00")).build());
+
+        leaderboard.topX(10);
+    }
+}
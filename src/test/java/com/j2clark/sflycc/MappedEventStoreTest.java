@@ -0,0 +1,171 @@
+package com.j2clark.sflycc;
+
+import com.j2clark.sflycc.domain.Data;
+import com.j2clark.sflycc.domain.DictionaryAttribute;
+import com.j2clark.sflycc.domain.Event;
+import com.j2clark.sflycc.domain.EventBuilder;
+import com.j2clark.sflycc.domain.EventType;
+import com.j2clark.sflycc.domain.EventVerb;
+import com.j2clark.sflycc.domain.StringDictionary;
+import com.j2clark.sflycc.processors.IngestProcessorRegistry;
+import com.j2clark.sflycc.services.IngestService;
+import com.j2clark.sflycc.store.EventSegment;
+import com.j2clark.sflycc.store.EventStoreFactory;
+import com.j2clark.sflycc.store.MappedEventStore;
+
+import org.joda.money.CurrencyUnit;
+import org.joda.money.Money;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MappedEventStoreTest extends AbstractServiceTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testAppendAndReopen() throws Exception {
+        Path directory = folder.newFolder("store").toPath();
+        StringDictionary customerIds = new StringDictionary("customer_id");
+
+        List<Event> appended = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            EventBuilder builder = new EventBuilder().withVerb(EventVerb.NEW).withKey("k" + i).withTimestamp(1000L + i)
+                .withAttribute(DictionaryAttribute.of("customer_id", customerIds, "c" + (i % 7)));
+            if (i % 3 == 0) {
+                builder.withType(EventType.ORDER).withAttribute("total_amount", Money.ofMinor(CurrencyUnit.USD, i))
+                    .withTag("some key", "some value");
+            } else {
+                builder.withType(EventType.SITE_VISIT).withAttribute("note", (String) null);
+            }
+            appended.add(builder.build());
+        }
+
+        // small files, so events roll over several index and data files
+        MappedEventStore store = new MappedEventStore(directory, 16, 1024);
+        Data data = new Data(UUID.randomUUID(), store);
+        for (Event event : appended) {
+            data.append(event);
+        }
+        assertSameEvents(appended, data.getEvents());
+        store.close();
+
+        MappedEventStore reopened = new MappedEventStore(directory, 16, 1024);
+        assertEquals(appended.size(), reopened.size());
+        assertSameEvents(appended, reopened.events());
+
+        EventSegment orders = reopened.segment(EventType.ORDER);
+        assertEquals(34, orders.size());
+        assertEquals(1003L, orders.timestamp(1));
+        assertSame(EventVerb.NEW, orders.verb(1));
+        assertEquals("k3", orders.event(1).getKey().getValue());
+        assertNull(reopened.segment(EventType.IMAGE));
+
+        // appending continues where we left off
+        reopened.append(appended.get(0));
+        assertEquals(101, reopened.size());
+        assertEquals(35, reopened.segment(EventType.ORDER).size());
+        assertEquals("k0", reopened.get(100).getKey().getValue());
+    }
+
+    @Test
+    public void testMappedIngest() throws Exception {
+        IngestService ingestService = new IngestService(
+            withAllProcessors(new IngestProcessorRegistry()), 1, EventStoreFactory.mapped(folder.getRoot().toPath()));
+
+        UUID transactionId = UUID.randomUUID();
+        Data data = ingestService.ingest(transactionId, readJson("topX.json"));
+        assertTrue(data.store() instanceof MappedEventStore);
+
+        Data heap = new IngestService(withAllProcessors(new IngestProcessorRegistry())).ingest(transactionId, readJson("topX.json"));
+        assertSameEvents(new ArrayList<>(heap.getEvents()), data.getEvents());
+        Path directory = ((MappedEventStore) data.store()).directory();
+        assertTrue(Files.exists(directory));
+
+        // a request's store only lives as long as its data
+        data.close();
+        assertFalse(Files.exists(directory));
+        try {
+            data.getEvents().iterator().next();
+            fail("expected a closed store");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        data.close();
+    }
+
+    @Test
+    public void testCloseWhileReading() throws Exception {
+        MappedEventStore store = MappedEventStore.temporary(folder.getRoot().toPath().resolve("reading"));
+        for (int i = 0; i < 1000; i++) {
+            store.append(new EventBuilder().withType(EventType.SITE_VISIT).withVerb(EventVerb.NEW).withKey("k" + i)
+                             .withTimestamp(i).withAttribute("customer_id", "c" + i).build());
+        }
+
+        // readers either finish their read before the files are unmapped, or are told the store is closed
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        AtomicInteger reads = new AtomicInteger();
+        List<Thread> readers = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            Thread reader = new Thread(() -> {
+                try {
+                    for (int i = 0; ; i = (i + 1) % 1000) {
+                        assertEquals("k" + i, store.get(i).getKey().getValue());
+                        reads.incrementAndGet();
+                    }
+                } catch (IllegalStateException e) {
+                    // closed
+                } catch (Throwable t1) {
+                    failure.set(t1);
+                }
+            });
+            reader.start();
+            readers.add(reader);
+        }
+        while (reads.get() < 10000) {
+            Thread.sleep(1);
+        }
+        store.close();
+        for (Thread reader : readers) {
+            reader.join(5000);
+            assertFalse(reader.isAlive());
+        }
+        assertNull(failure.get());
+    }
+
+    private void assertSameEvents(List<Event> expected, Iterable<Event> actual) {
+        Iterator<Event> stored = actual.iterator();
+        for (Event event : expected) {
+            Event other = stored.next();
+            assertSame(event.getType(), other.getType());
+            assertSame(event.getVerb(), other.getVerb());
+            assertEquals(event.getKey(), other.getKey());
+            assertEquals(event.getTimestamp(), other.getTimestamp());
+            assertEquals(event.getTags(), other.getTags());
+            assertEquals(event.getAttributes().keySet(), other.getAttributes().keySet());
+            for (String name : event.getAttributes().keySet()) {
+                assertEquals(event.getAttribute(name).getValue(), other.getAttribute(name).getValue());
+                assertEquals(event.getAttribute(name) instanceof DictionaryAttribute,
+                             other.getAttribute(name) instanceof DictionaryAttribute);
+            }
+        }
+        assertFalse(stored.hasNext());
+    }
+}
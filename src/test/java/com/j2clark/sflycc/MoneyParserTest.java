@@ -0,0 +1,71 @@
+package com.j2clark.sflycc;
+
+import com.j2clark.sflycc.domain.MoneyParser;
+
+import org.joda.money.CurrencyUnit;
+import org.joda.money.Money;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class MoneyParserTest {
+
+    @Test
+    public void testBothOrderings() {
+        assertEquals(Money.parse("USD 12.34"), MoneyParser.parse("USD 12.34"));
+        assertEquals(Money.parse("USD 12.34"), MoneyParser.parse("12.34 USD"));
+        assertEquals(Money.parse("USD 12.34"), MoneyParser.parse("  12.34   USD "));
+    }
+
+    @Test
+    public void testMinorUnits() {
+        MoneyParser.Amount amount = MoneyParser.parseAmount("12.3 USD");
+        assertEquals(CurrencyUnit.USD, amount.getCurrency());
+        assertEquals("USD", amount.getCurrencyCode());
+        assertEquals(1230L, amount.getMinorUnits());
+
+        assertEquals(1200L, MoneyParser.parseAmount("USD 12").getMinorUnits());
+        assertEquals(-5L, MoneyParser.parseAmount("USD -0.05").getMinorUnits());
+        assertEquals(1234L, MoneyParser.parseAmount("JPY 1234").getMinorUnits());
+        assertEquals(Money.parse("JPY 1234"), MoneyParser.parse("1234 JPY"));
+    }
+
+    @Test
+    public void testLongRange() {
+        // 18 digits once in minor units, the most we do ourselves
+        assertEquals(999999999999999999L, MoneyParser.parseAmount("9999999999999999.99 USD").getMinorUnits());
+        assertEquals(999999999999999900L, MoneyParser.parseAmount("USD 9999999999999999").getMinorUnits());
+
+        // beyond that joda takes over
+        assertEquals(Money.parse("USD 99999999999999999.9"), MoneyParser.parse("USD 99999999999999999.9"));
+        assertEquals(Money.parse("USD 99999999999999999.9"), MoneyParser.parse("99999999999999999.9 USD"));
+        assertEquals(Money.parse("USD 12345678901234567.89"), MoneyParser.parse("12345678901234567.89 USD"));
+        assertEquals(Long.MAX_VALUE, MoneyParser.parseAmount("92233720368547758.07 USD").getMinorUnits());
+        assertEquals(Long.MIN_VALUE, MoneyParser.parseAmount("USD -92233720368547758.08").getMinorUnits());
+
+        // Money copes past it, minor units in a long do not
+        assertEquals(Money.parse("USD 999999999999999999"), MoneyParser.parse("999999999999999999 USD"));
+        for (String value : new String[] {"999999999999999999 USD", "99999999999999999.9 USD", "USD 92233720368547758.08"}) {
+            try {
+                MoneyParser.parseAmount(value);
+                fail("expected [" + value + "] to overflow");
+            } catch (ArithmeticException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void testInvalid() {
+        String[] values = {"", "USD", "12.34", "12.345 USD", "USD 1.2.3", "ABC 12.34", "12,34 USD"};
+        for (String value : values) {
+            try {
+                MoneyParser.parse(value);
+                fail("expected [" + value + "] to be rejected");
+            } catch (IllegalArgumentException | ArithmeticException e) {
+                // expected
+            }
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package com.j2clark.sflycc;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.j2clark.sflycc.controllers.NonBlockingIngestServlet;
+import com.j2clark.sflycc.domain.Event;
+import com.j2clark.sflycc.processors.IngestProcessorRegistry;
+import com.j2clark.sflycc.services.IngestService;
+
+import org.apache.catalina.Context;
+import org.apache.catalina.Wrapper;
+import org.apache.catalina.startup.Tomcat;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the servlet in an embedded Tomcat, non blocking reads need a real connector
+ */
+public class NonBlockingIngestServletTest extends AbstractServiceTest {
+
+    // counts what is committed, and fails once told to
+    private final AtomicInteger committed = new AtomicInteger();
+    private volatile boolean failing = false;
+    private final IngestService ingestService = new IngestService(withAllProcessors(new IngestProcessorRegistry())) {
+        @Override
+        public void commit(UUID transactionId, Collection<Event> events) {
+            if (failing) {
+                throw new IllegalStateException("simulated log failure");
+            }
+            committed.addAndGet(events.size());
+        }
+    };
+    private Path baseDir;
+    private Tomcat tomcat;
+    private URL url;
+
+    @Before
+    public void start() throws Exception {
+        ObjectMapper mapper = new ObjectMapper();
+        mapper.configure(SerializationFeature.FAIL_ON_EMPTY_BEANS, false);
+
+        baseDir = Files.createTempDirectory("nio-servlet");
+        tomcat = new Tomcat();
+        tomcat.setBaseDir(baseDir.toString());
+        tomcat.setPort(0);
+        Context context = tomcat.addContext("", baseDir.toString());
+        Wrapper servlet = Tomcat.addServlet(context, "nonBlockingIngest",
+                new NonBlockingIngestServlet(ingestService, mapper, 10000, 1024, 4096));
+        servlet.setAsyncSupported(true);
+        context.addServletMappingDecoded("/event/nio", "nonBlockingIngest");
+        Wrapper slow = Tomcat.addServlet(context, "slowIngest", new NonBlockingIngestServlet(ingestService, mapper, 500, 1024, 4096));
+        slow.setAsyncSupported(true);
+        context.addServletMappingDecoded("/event/slow", "slowIngest");
+        tomcat.start();
+        url = new URL("http://localhost:" + tomcat.getConnector().getLocalPort() + "/event/nio");
+    }
+
+    @After
+    public void stop() throws Exception {
+        tomcat.stop();
+        tomcat.destroy();
+        Files.walk(baseDir).sorted((a, b) -> b.compareTo(a)).forEach(path -> path.toFile().delete());
+    }
+
+    /**
+     * @param chunkSize bytes written per chunk, 0 to send a Content-Length instead
+     */
+    private HttpURLConnection post(String payload, int chunkSize) throws IOException {
+        byte[] bytes = payload.getBytes(StandardCharsets.UTF_8);
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestMethod("POST");
+        connection.setRequestProperty("Content-Type", "application/json");
+        connection.setDoOutput(true);
+        if (chunkSize > 0) {
+            connection.setChunkedStreamingMode(chunkSize);
+        } else {
+            connection.setFixedLengthStreamingMode(bytes.length);
+        }
+        try (OutputStream out = connection.getOutputStream()) {
+            int step = chunkSize > 0 ? chunkSize : bytes.length;
+            for (int i = 0; i < bytes.length; i += step) {
+                out.write(bytes, i, Math.min(step, bytes.length - i));
+                out.flush();
+            }
+        } catch (IOException e) {
+            // the server may answer, and stop reading, before the whole body is sent
+        }
+        return connection;
+    }
+
+    private JSONObject summary(HttpURLConnection connection) throws IOException {
+        return summary(connection, 200);
+    }
+
+    private JSONObject summary(HttpURLConnection connection, int status) throws IOException {
+        assertEquals(status, connection.getResponseCode());
+        try (InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream()) {
+            return new JSONObject(read(in));
+        }
+    }
+
+    private static String read(InputStream in) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int read;
+        while ((read = in.read(buffer)) >= 0) {
+            body.write(buffer, 0, read);
+        }
+        return new String(body.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return a payload of more than 4096 bytes, and so too large for the servlets here
+     */
+    private String largePayload() throws Exception {
+        StringBuilder payload = new StringBuilder("[");
+        String event = new JSONArray(readJson("topX.json")).getJSONObject(0).toString();
+        while (payload.length() <= 4096) {
+            payload.append(event).append(",\n");
+        }
+        return payload.append(event).append("]").toString();
+    }
+
+    @Test
+    public void testUpload() throws Exception {
+        String json = readJson("topX.json");
+        int expected = ingestService.parseEvents(UUID.randomUUID(), json).size();
+
+        // small chunks, so events straddle reads
+        JSONObject chunked = summary(post(json, 64));
+        assertEquals(expected, chunked.getInt("accepted"));
+        assertEquals(0, chunked.getInt("rejected"));
+        assertEquals(expected, chunked.getInt("lastAccepted"));
+        assertEquals(expected, committed.get());
+
+        JSONObject fixed = summary(post(json, 0));
+        assertEquals(expected, fixed.getInt("accepted"));
+
+        // a nested array is a single rejected entry, the event after it still gets in
+        String event = new JSONArray(json).getJSONObject(0).toString();
+        JSONObject nested = summary(post("[ [1, [2]], " + event + " ]", 8));
+        assertEquals(1, nested.getInt("accepted"));
+        assertEquals(1, nested.getInt("rejected"));
+        assertEquals(1, nested.getJSONArray("rejects").getJSONObject(0).getInt("index"));
+
+        JSONObject malformed = summary(post("[" + event + ", {\"key\": ", 0));
+        assertEquals(1, malformed.getInt("accepted"));
+        assertEquals(1, malformed.getInt("rejected"));
+    }
+
+    @Test
+    public void testTooLarge() throws Exception {
+        String payload = largePayload();
+
+        // known up front, nothing read
+        assertEquals(413, post(payload, 0).getResponseCode());
+        assertEquals(0, committed.get());
+
+        // found out as it is read, what came before the limit is committed and the client told where to resume
+        JSONObject summary = summary(post(payload, 256), 413);
+        assertTrue(summary.getInt("accepted") > 0);
+        assertEquals(summary.getInt("accepted"), summary.getInt("lastAccepted"));
+        assertEquals(summary.getInt("accepted"), committed.get());
+    }
+
+    @Test
+    public void testCommitFails() throws Exception {
+        failing = true;
+        String json = readJson("topX.json");
+        int expected = ingestService.parseEvents(UUID.randomUUID(), json).size();
+        JSONObject summary = summary(post(json, 0), 500);
+        assertEquals(0, summary.getInt("accepted"));
+        assertEquals(0, summary.getInt("lastAccepted"));
+        assertEquals(expected, summary.getInt("rejected"));
+        assertTrue(summary.getJSONArray("rejects").getJSONObject(0).getString("reason").startsWith("not committed"));
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        String event = new JSONArray(readJson("topX.json")).getJSONObject(0).toString();
+        String partial = "[" + event + ", " + event + ", ";
+        // the client stalls part way through, which HttpURLConnection will not do
+        try (Socket socket = new Socket("localhost", url.getPort())) {
+            OutputStream out = socket.getOutputStream();
+            out.write(("POST /event/slow HTTP/1.1\r\nHost: localhost\r\nContent-Type: application/json\r\n"
+                       + "Content-Length: 4000\r\nConnection: close\r\n\r\n" + partial).getBytes(StandardCharsets.UTF_8));
+            out.flush();
+
+            String response = read(socket.getInputStream());
+            assertTrue(response, response.startsWith("HTTP/1.1 408"));
+            JSONObject summary = new JSONObject(response.substring(response.indexOf('{'), response.lastIndexOf('}') + 1));
+            assertEquals(2, summary.getInt("accepted"));
+            assertEquals(2, summary.getInt("lastAccepted"));
+        }
+        assertEquals(2, committed.get());
+    }
+}
@@ -0,0 +1,132 @@
+package com.j2clark.sflycc;
+
+import com.j2clark.sflycc.domain.Data;
+import com.j2clark.sflycc.domain.EventBuilder;
+import com.j2clark.sflycc.domain.EventType;
+import com.j2clark.sflycc.domain.EventVerb;
+import com.j2clark.sflycc.reports.Customer;
+import com.j2clark.sflycc.reports.CustomerReportService;
+import com.j2clark.sflycc.reports.ReportCache;
+
+import org.joda.money.Money;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class ReportCacheTest {
+
+    private void visitAndOrder(Data data, String customerId, long timestamp, String amount) throws Exception {
+        data.append(new EventBuilder().withType(EventType.SITE_VISIT).withVerb(EventVerb.NEW).withKey("v" + timestamp)
+                        .withTimestamp(timestamp).withAttribute("customer_id", customerId).build());
+        data.append(new EventBuilder().withType(EventType.ORDER).withVerb(EventVerb.NEW).withKey("o" + timestamp)
+                        .withTimestamp(timestamp).withAttribute("customer_id", customerId)
+                        .withAttribute("total_amount", Money.parse(amount)).build());
+    }
+
+    @Test
+    public void testServedUntilDataChanges() throws Exception {
+        Data data = new Data(UUID.randomUUID());
+        visitAndOrder(data, "cache-a", 1, "USD 10.00");
+        ReportCache cache = new ReportCache(16, 0);
+        CustomerReportService reportService = new CustomerReportService(1, cache);
+
+        List<Customer> first = reportService.topXSimpleLTVCustomers(10, data);
+        assertSame(first, reportService.topXSimpleLTVCustomers(10, data));
+        assertEquals(1, cache.hits());
+        // different parameters are a different entry
+        assertNotSame(first, reportService.topXSimpleLTVCustomers(5, data));
+
+        long epoch = data.epoch();
+        visitAndOrder(data, "cache-b", 2, "USD 20.00");
+        assertEquals(epoch + 2, data.epoch());
+
+        List<Customer> second = reportService.topXSimpleLTVCustomers(10, data);
+        assertEquals(2, second.size());
+        assertEquals("cache-b", second.get(0).getCustomerId());
+        assertEquals(1, cache.hits());
+        assertEquals(3, cache.misses());
+    }
+
+    @Test
+    public void testKeyedByInstance() throws Exception {
+        ReportCache cache = new ReportCache(16, 0);
+        UUID transactionId = UUID.randomUUID();
+        Data data = new Data(transactionId);
+        // same transaction id and epoch, different events
+        Data other = new Data(transactionId);
+        visitAndOrder(data, "cache-a", 1, "USD 10.00");
+        visitAndOrder(other, "cache-b", 1, "USD 10.00");
+        assertEquals(data.epoch(), other.epoch());
+
+        CustomerReportService reportService = new CustomerReportService(1, cache);
+        assertEquals("cache-a", reportService.topXSimpleLTVCustomers(10, data).get(0).getCustomerId());
+        assertEquals("cache-b", reportService.topXSimpleLTVCustomers(10, other).get(0).getCustomerId());
+        assertEquals(0, cache.hits());
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void testEviction() throws Exception {
+        AtomicLong now = new AtomicLong();
+        ReportCache cache = new ReportCache(2, Long.MAX_VALUE, 1000, now::get);
+        Data data = new Data(UUID.randomUUID());
+        AtomicInteger computed = new AtomicInteger();
+
+        cache.get("report", data, computed::incrementAndGet, 1);
+        cache.get("report", data, computed::incrementAndGet, 2);
+        cache.get("report", data, computed::incrementAndGet, 1);
+        assertEquals(2, computed.get());
+
+        // 2 is the least recently used
+        cache.get("report", data, computed::incrementAndGet, 3);
+        assertEquals(2, cache.size());
+        cache.get("report", data, computed::incrementAndGet, 1);
+        assertEquals(3, computed.get());
+        cache.get("report", data, computed::incrementAndGet, 2);
+        assertEquals(4, computed.get());
+
+        // expired
+        now.addAndGet(1000);
+        cache.get("report", data, computed::incrementAndGet, 2);
+        assertEquals(5, computed.get());
+    }
+
+    @Test
+    public void testWeight() throws Exception {
+        ReportCache cache = new ReportCache(16, 10, 0);
+        Data data = new Data(UUID.randomUUID());
+
+        cache.get("report", data, () -> Arrays.asList(1, 2, 3, 4), "a");
+        cache.get("report", data, () -> Arrays.asList(1, 2, 3, 4), "b");
+        assertEquals(8, cache.weight());
+        // a is the least recently used, evicted to make room
+        cache.get("report", data, () -> Arrays.asList(1, 2, 3), "c");
+        assertEquals(2, cache.size());
+        assertEquals(7, cache.weight());
+
+        // too heavy to cache at all, nothing else is evicted for it
+        AtomicInteger computed = new AtomicInteger();
+        cache.get("report", data, () -> Collections.nCopies(10 + computed.incrementAndGet(), 0), "d");
+        assertEquals(2, cache.size());
+        assertEquals(12, cache.<List<?>>get("report", data, () -> Collections.nCopies(10 + computed.incrementAndGet(), 0), "d").size());
+
+        cache.clear();
+        assertEquals(0, cache.weight());
+
+        // a ranking weighs its customers
+        visitAndOrder(data, "cache-a", 1, "USD 10.00");
+        visitAndOrder(data, "cache-b", 2, "USD 20.00");
+        new CustomerReportService(1, cache).rankLTVCustomers(data);
+        assertEquals(1, cache.size());
+        assertEquals(2, cache.weight());
+    }
+}
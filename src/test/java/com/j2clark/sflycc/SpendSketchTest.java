@@ -0,0 +1,131 @@
+package com.j2clark.sflycc;
+
+import com.j2clark.sflycc.domain.Data;
+import com.j2clark.sflycc.domain.EventBuilder;
+import com.j2clark.sflycc.domain.EventType;
+import com.j2clark.sflycc.domain.EventVerb;
+import com.j2clark.sflycc.reports.CustomerReportService;
+import com.j2clark.sflycc.reports.SpendSketch;
+import com.j2clark.sflycc.reports.SpenderEstimate;
+
+import org.joda.money.CurrencyMismatchException;
+import org.joda.money.CurrencyUnit;
+import org.joda.money.Money;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SpendSketchTest {
+
+    @Test
+    public void testErrorBounds() {
+        Random random = new Random(19);
+        SpendSketch sketch = new SpendSketch(100);
+        Map<String, Long> actual = new HashMap<>();
+        for (int i = 0; i < 100000; i++) {
+            // a few big spenders in a long tail of small ones
+            String customerId = random.nextInt(2) == 0 ? "big-" + random.nextInt(10) : "small-" + random.nextInt(20000);
+            long spend = 1 + random.nextInt(1000);
+            sketch.add(customerId, Money.ofMinor(CurrencyUnit.USD, spend));
+            actual.merge(customerId, spend, Long::sum);
+        }
+
+        assertTrue(sketch.maxError() <= sketch.total() / sketch.capacity());
+        List<SpenderEstimate> top = sketch.topX(10);
+        assertEquals(10, top.size());
+        for (SpenderEstimate estimate : top) {
+            assertTrue(estimate.getCustomerId().startsWith("big-"));
+            assertTrue(estimate.isGuaranteed());
+            long spend = actual.get(estimate.getCustomerId());
+            assertTrue(estimate.getSpend().getAmountMinorLong() >= spend);
+            assertTrue(estimate.getSpend().getAmountMinorLong() - estimate.getError().getAmountMinorLong() <= spend);
+        }
+    }
+
+    @Test
+    public void testTopXOrder() {
+        Random random = new Random(7);
+        SpendSketch sketch = new SpendSketch(500);
+        for (int i = 0; i < 20000; i++) {
+            // plenty of ties, so the customer id has to break them
+            sketch.add("order-" + random.nextInt(2000), Money.ofMinor(CurrencyUnit.USD, 1 + random.nextInt(5)));
+        }
+
+        List<SpenderEstimate> all = sketch.topX(sketch.capacity());
+        assertEquals(sketch.capacity(), all.size());
+        for (int i = 1; i < all.size(); i++) {
+            SpenderEstimate previous = all.get(i - 1);
+            SpenderEstimate estimate = all.get(i);
+            int order = estimate.getSpend().compareTo(previous.getSpend());
+            assertTrue(order < 0 || order == 0 && previous.getCustomerId().compareTo(estimate.getCustomerId()) < 0);
+        }
+        // a prefix of the full ranking
+        for (int count : new int[] {0, 1, 10, 499}) {
+            assertEquals(all.subList(0, count).stream().map(SpenderEstimate::getCustomerId).collect(Collectors.toList()),
+                         sketch.topX(count).stream().map(SpenderEstimate::getCustomerId).collect(Collectors.toList()));
+        }
+    }
+
+    @Test
+    public void testRefundsAndHugeAmounts() {
+        SpendSketch sketch = new SpendSketch(2);
+        sketch.add("refund-a", Money.ofMinor(CurrencyUnit.USD, 500));
+        sketch.add("refund-b", Money.ofMinor(CurrencyUnit.USD, 300));
+        // a refund would have to shrink a counter, which the sketch can not do - it is left out
+        sketch.add("refund-a", Money.ofMinor(CurrencyUnit.USD, -450));
+        sketch.add("refund-c", Money.ofMinor(CurrencyUnit.USD, 100));
+        assertEquals(900, sketch.total());
+
+        List<SpenderEstimate> top = sketch.topX(2);
+        assertEquals("refund-a", top.get(0).getCustomerId());
+        assertEquals("refund-c", top.get(1).getCustomerId());
+        assertEquals(Money.ofMinor(CurrencyUnit.USD, 400), top.get(1).getSpend());
+        assertEquals(Money.ofMinor(CurrencyUnit.USD, 300), top.get(1).getError());
+
+        // more minor units than a long holds, counted as Long.MAX_VALUE rather than failing
+        sketch.add("refund-d", Money.of(CurrencyUnit.USD, new BigDecimal("1e30")));
+        assertEquals(Long.MAX_VALUE, sketch.total());
+        assertEquals("refund-d", sketch.topX(1).get(0).getCustomerId());
+    }
+
+    @Test
+    public void testExactUnderCapacity() throws Exception {
+        Data data = new Data(UUID.randomUUID());
+        // events already in the data are counted on follow, later ones as they are appended
+        SpendSketch sketch = SpendSketch.withError(0.01);
+        for (int i = 0; i < 30; i++) {
+            if (i == 10) {
+                sketch.follow(data);
+            }
+            data.append(new EventBuilder().withType(EventType.ORDER).withVerb(EventVerb.NEW).withKey("o" + i).withTimestamp(i)
+                            .withAttribute("customer_id", "sketch-" + (i % 3))
+                            .withAttribute("total_amount", Money.ofMinor(CurrencyUnit.USD, 100 * (i % 3 + 1))).build());
+        }
+
+        List<SpenderEstimate> top = new CustomerReportService().approximateTopXSpenders(2, sketch);
+        assertEquals(2, top.size());
+        assertEquals("sketch-2", top.get(0).getCustomerId());
+        assertEquals(Money.ofMinor(CurrencyUnit.USD, 3000), top.get(0).getSpend());
+        assertEquals(Money.zero(CurrencyUnit.USD), top.get(0).getError());
+        assertEquals("sketch-1", top.get(1).getCustomerId());
+    }
+
+    @Test(expected = CurrencyMismatchException.class)
+    public void testCurrencyMismatch() throws Exception {
+        SpendSketch sketch = SpendSketch.withMemory(1);
+        sketch.add(new EventBuilder().withType(EventType.ORDER).withVerb(EventVerb.NEW).withKey("o1").withTimestamp(1L)
+                       .withAttribute("customer_id", "sketch-a").withAttribute("total_amount", Money.parse("USD 10.00")).build());
+        sketch.add(new EventBuilder().withType(EventType.ORDER).withVerb(EventVerb.NEW).withKey("o2").withTimestamp(1L)
+                       .withAttribute("customer_id", "sketch-a").withAttribute("total_amount", Money.parse("EUR 10.00")).build());
+        sketch.topX(1);
+    }
+}
@@ -0,0 +1,123 @@
+package com.j2clark.sflycc;
+
+import com.j2clark.sflycc.domain.Data;
+import com.j2clark.sflycc.domain.DictionaryAttribute;
+import com.j2clark.sflycc.domain.Event;
+import com.j2clark.sflycc.domain.EventBuilder;
+import com.j2clark.sflycc.domain.EventType;
+import com.j2clark.sflycc.domain.EventVerb;
+import com.j2clark.sflycc.domain.StringDictionaries;
+import com.j2clark.sflycc.domain.StringDictionary;
+import com.j2clark.sflycc.processors.IngestProcessorRegistry;
+import com.j2clark.sflycc.services.IngestService;
+import com.j2clark.sflycc.store.ColumnarEventStore;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class StringDictionaryTest extends AbstractServiceTest {
+
+    @Test
+    public void testEncodeDecode() {
+        StringDictionaries dictionaries = new StringDictionaries();
+        StringDictionary dictionary = dictionaries.forAttribute("test-encode-decode");
+        assertSame(dictionary, dictionaries.forAttribute("test-encode-decode"));
+        assertNotSame(dictionary, new StringDictionaries().forAttribute("test-encode-decode"));
+
+        assertEquals(-1, dictionary.lookup("a"));
+        assertEquals(0, dictionary.encode("a"));
+        assertEquals(1, dictionary.encode("b"));
+        assertEquals(0, dictionary.encode(new String("a")));
+        assertEquals(1, dictionary.lookup("b"));
+        assertEquals("b", dictionary.decode(1));
+        assertEquals(2, dictionary.size());
+
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i + 2, dictionary.encode("value-" + i));
+        }
+        assertEquals("value-999", dictionary.decode(1001));
+    }
+
+    @Test
+    public void testConcurrentEncode() throws Exception {
+        StringDictionary dictionary = new StringDictionary("test-concurrent-encode");
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<int[]>> results = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                results.add(executor.submit(() -> {
+                    int[] ids = new int[5000];
+                    for (int i = 0; i < ids.length; i++) {
+                        ids[i] = dictionary.encode("customer-" + i);
+                    }
+                    return ids;
+                }));
+            }
+            int[] expected = results.get(0).get();
+            for (Future<int[]> result : results) {
+                int[] ids = result.get();
+                for (int i = 0; i < ids.length; i++) {
+                    assertEquals(expected[i], ids[i]);
+                    assertEquals("customer-" + i, dictionary.decode(ids[i]));
+                }
+            }
+            assertEquals(5000, dictionary.size());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testEncodedAtIngest() throws Exception {
+        IngestService ingestService = new IngestService(withAllProcessors(new IngestProcessorRegistry()));
+
+        Data data = ingestService.ingest(UUID.randomUUID(), readJson("topX.json"));
+
+        // encoded in dictionaries of the request's own store
+        StringDictionary customerIds = data.store().dictionaries().forAttribute("customer_id");
+        assertNotSame(customerIds, ingestService.ingest(UUID.randomUUID(), readJson("topX.json")).store().dictionaries().forAttribute("customer_id"));
+        for (Event event : data.getEvents()) {
+            if (event.getType() == EventType.ORDER || event.getType() == EventType.SITE_VISIT) {
+                Event.Attribute attribute = event.getAttribute("customer_id");
+                assertTrue(attribute instanceof DictionaryAttribute);
+                DictionaryAttribute encoded = (DictionaryAttribute) attribute;
+                assertSame(customerIds, encoded.dictionary());
+                assertEquals(encoded.getValue(), customerIds.decode(encoded.id()));
+            }
+        }
+
+        ColumnarEventStore store = (ColumnarEventStore) data.store();
+        int id = store.segment(EventType.ORDER).dictionaryId(0, "customer_id");
+        assertEquals(store.segment(EventType.ORDER).attribute(0, "customer_id"), customerIds.decode(id));
+        assertEquals(-1, store.segment(EventType.ORDER).dictionaryId(0, "total_amount"));
+    }
+
+    @Test
+    public void testNullFirstColumn() throws Exception {
+        Data data = new Data(UUID.randomUUID());
+        StringDictionary states = data.store().dictionaries().forAttribute("adr_state");
+        data.append(new EventBuilder().withType(EventType.CUSTOMER)
+                        .withVerb(EventVerb.NEW).withKey("c1").withTimestamp(1L)
+                        .withAttribute(DictionaryAttribute.of("adr_state", states, null)).build());
+        data.append(new EventBuilder().withType(EventType.CUSTOMER)
+                        .withVerb(EventVerb.NEW).withKey("c2").withTimestamp(2L)
+                        .withAttribute("adr_state", "CA").build());
+
+        ColumnarEventStore store = (ColumnarEventStore) data.store();
+        assertEquals(-1, store.segment(EventType.CUSTOMER).dictionaryId(0, "adr_state"));
+        assertNull(store.segment(EventType.CUSTOMER).attribute(0, "adr_state"));
+        assertEquals(states.lookup("CA"), store.segment(EventType.CUSTOMER).dictionaryId(1, "adr_state"));
+    }
+}
@@ -0,0 +1,82 @@
+package com.j2clark.sflycc;
+
+import com.j2clark.sflycc.domain.StringDictionary;
+import com.j2clark.sflycc.reports.TopK;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class TopKTest {
+
+    private final StringDictionary customerIds = new StringDictionary("customer_id");
+
+    private int customer(String customerId) {
+        return customerIds.encode(customerId);
+    }
+
+    private List<String> ranking(TopK top) {
+        List<String> ranking = new ArrayList<>();
+        for (int i : top.ranked()) {
+            ranking.add(customerIds.decode(top.customerId(i)) + "=" + top.ltv(i));
+        }
+        return ranking;
+    }
+
+    @Test
+    public void testTiesBrokenByCustomerId() {
+        // encoded out of order, so dictionary ids do not follow the strings
+        int c = customer("topk-c");
+        int b = customer("topk-b");
+        int a = customer("topk-a");
+        int d = customer("topk-d");
+
+        TopK top = new TopK(3, customerIds);
+        top.offer(100, c, 0);
+        top.offer(50, d, 1);
+        top.offer(100, a, 2);
+        top.offer(100, b, 3);
+
+        assertEquals(3, top.size());
+        assertEquals("[topk-a=100, topk-b=100, topk-c=100]", ranking(top).toString());
+    }
+
+    @Test
+    public void testMergedPartitionsMatchSingle() {
+        Random random = new Random(15);
+        TopK single = new TopK(10, customerIds);
+        List<TopK> partitions = new ArrayList<>();
+        for (int p = 0; p < 4; p++) {
+            partitions.add(new TopK(10, customerIds));
+        }
+        for (int i = 0; i < 1000; i++) {
+            // narrow range, so plenty of ties
+            long ltv = random.nextInt(50);
+            int customerId = customer("topk-" + i);
+            single.offer(ltv, customerId, i);
+            partitions.get(i % partitions.size()).offer(ltv, customerId, i);
+        }
+
+        // merge order should not matter either
+        Collections.shuffle(partitions, random);
+        TopK merged = new TopK(10, customerIds);
+        for (TopK partition : partitions) {
+            merged.merge(partition);
+        }
+        assertEquals(ranking(single), ranking(merged));
+    }
+
+    @Test
+    public void testEmpty() {
+        TopK top = new TopK(0, customerIds);
+        assertFalse(top.offer(100, customer("topk-a"), 0));
+        assertEquals(0, top.size());
+        assertEquals(0, top.ranked().length);
+    }
+}
@@ -0,0 +1,84 @@
+package com.j2clark.sflycc;
+
+import com.j2clark.sflycc.domain.Event;
+import com.j2clark.sflycc.domain.EventBuilder;
+import com.j2clark.sflycc.domain.EventType;
+import com.j2clark.sflycc.domain.EventVerb;
+import com.j2clark.sflycc.store.WriteAheadLog;
+
+import org.joda.money.CurrencyUnit;
+import org.joda.money.Money;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Requests per second through the WriteAheadLog, for each durability mode, with 8 concurrent requests of 10 events
+ *
+ * Not run as part of the build, run with:
+ *      mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=com.j2clark.sflycc.WriteAheadLogBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(8)
+@Fork(1)
+public class WriteAheadLogBenchmark {
+
+    @Param({"PER_REQUEST", "INTERVAL", "NONE"})
+    public WriteAheadLog.Durability durability;
+
+    private Path directory;
+    private WriteAheadLog wal;
+    private List<Event> request;
+
+    @Setup
+    public void setup() throws Exception {
+        directory = Files.createTempDirectory("wal-benchmark");
+        wal = WriteAheadLog.open(directory, durability, 10);
+        request = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            request.add(new EventBuilder().withType(EventType.ORDER).withVerb(EventVerb.NEW).withKey("order-" + i)
+                            .withTimestamp(System.currentTimeMillis())
+                            .withAttribute("customer_id", "customer-" + i)
+                            .withAttribute("total_amount", Money.ofMinor(CurrencyUnit.USD, 1234)).build());
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        wal.close();
+        Files.walk(directory).sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+    }
+
+    @Benchmark
+    public long append() {
+        return wal.append(UUID.randomUUID(), request);
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder().include(WriteAheadLogBenchmark.class.getSimpleName()).build()).run();
+    }
+}
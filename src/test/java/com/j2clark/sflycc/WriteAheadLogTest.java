@@ -0,0 +1,248 @@
+package com.j2clark.sflycc;
+
+import com.j2clark.sflycc.domain.Event;
+import com.j2clark.sflycc.domain.EventBuilder;
+import com.j2clark.sflycc.domain.EventType;
+import com.j2clark.sflycc.domain.EventVerb;
+import com.j2clark.sflycc.processors.IngestProcessorRegistry;
+import com.j2clark.sflycc.services.IngestService;
+import com.j2clark.sflycc.store.EventStoreFactory;
+import com.j2clark.sflycc.store.WriteAheadLog;
+
+import org.joda.money.CurrencyUnit;
+import org.joda.money.Money;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class WriteAheadLogTest extends AbstractServiceTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Event order(int i) throws Exception {
+        return new EventBuilder().withType(EventType.ORDER).withVerb(EventVerb.NEW).withKey("o" + i).withTimestamp(i)
+            .withAttribute("customer_id", "c" + (i % 5)).withAttribute("total_amount", Money.ofMinor(CurrencyUnit.USD, i))
+            .build();
+    }
+
+    private List<Long> replayedLsns(WriteAheadLog wal, long afterLsn) throws Exception {
+        List<Long> lsns = new ArrayList<>();
+        wal.replay(afterLsn, (lsn, transactionId, event) -> lsns.add(lsn));
+        return lsns;
+    }
+
+    @Test
+    public void testAppendReplayAndReopen() throws Exception {
+        Path directory = folder.newFolder("wal").toPath();
+        UUID transactionId = UUID.randomUUID();
+
+        // small segments so we roll over
+        WriteAheadLog wal = new WriteAheadLog(directory, WriteAheadLog.Durability.PER_REQUEST, 0, 512);
+        for (int i = 1; i <= 50; i++) {
+            assertEquals(i, wal.append(transactionId, Collections.singletonList(order(i))));
+        }
+        wal.close();
+        assertTrue(Files.list(directory).count() > 1);
+
+        wal = new WriteAheadLog(directory, WriteAheadLog.Durability.PER_REQUEST, 0, 512);
+        assertEquals(50, wal.lastLsn());
+
+        List<Event> replayed = new ArrayList<>();
+        wal.replay(0, (lsn, txn, event) -> {
+            assertEquals(transactionId, txn);
+            replayed.add(event);
+        });
+        assertEquals(50, replayed.size());
+        for (int i = 1; i <= 50; i++) {
+            Event event = replayed.get(i - 1);
+            assertEquals("o" + i, event.getKey().getValue());
+            assertEquals(Money.ofMinor(CurrencyUnit.USD, i), event.getAttribute("total_amount").getValue());
+        }
+
+        assertEquals(10, replayedLsns(wal, 40).size());
+        assertEquals(Long.valueOf(41), replayedLsns(wal, 40).get(0));
+
+        assertEquals(51, wal.append(transactionId, Collections.singletonList(order(51))));
+        wal.close();
+    }
+
+    @Test
+    public void testTornTailIsTruncated() throws Exception {
+        Path directory = folder.newFolder("wal").toPath();
+        WriteAheadLog wal = new WriteAheadLog(directory, WriteAheadLog.Durability.NONE, 0, WriteAheadLog.DEFAULT_SEGMENT_BYTES);
+        List<Event> events = new ArrayList<>();
+        for (int i = 1; i <= 10; i++) {
+            events.add(order(i));
+        }
+        wal.append(UUID.randomUUID(), events);
+        wal.close();
+
+        // simulate a crash part way through the last record
+        Path segment = Files.list(directory).collect(Collectors.toList()).get(0);
+        try (RandomAccessFile file = new RandomAccessFile(segment.toFile(), "rw")) {
+            file.setLength(file.length() - 3);
+        }
+
+        wal = new WriteAheadLog(directory, WriteAheadLog.Durability.NONE, 0, WriteAheadLog.DEFAULT_SEGMENT_BYTES);
+        assertEquals(9, wal.lastLsn());
+        assertEquals(9, replayedLsns(wal, 0).size());
+
+        // and the log carries on from there
+        assertEquals(10, wal.append(UUID.randomUUID(), Collections.singletonList(order(10))));
+        assertEquals(10, replayedLsns(wal, 0).size());
+        wal.close();
+    }
+
+    /**
+     * A log whose fsyncs take a while, as they do on a real disk, and which can be made to fail
+     */
+    private static class SlowLog extends WriteAheadLog {
+        private volatile boolean failing = false;
+
+        SlowLog(Path directory, long segmentBytes) throws IOException {
+            super(directory, Durability.PER_REQUEST, 0, segmentBytes);
+        }
+
+        @Override
+        protected void force(FileChannel channel) throws IOException {
+            if (failing) {
+                throw new IOException("simulated fsync failure");
+            }
+            try {
+                Thread.sleep(2);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            super.force(channel);
+        }
+    }
+
+    @Test
+    public void testGroupCommit() throws Exception {
+        Path directory = folder.newFolder("wal").toPath();
+        WriteAheadLog wal = new SlowLog(directory, 4096);
+        List<Long> published = Collections.synchronizedList(new ArrayList<>());
+        wal.follow(0, (lsn, transactionId, event) -> { }, (lastLsn, transactionId, events) -> published.add(lastLsn));
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                futures.add(executor.submit(() -> {
+                    UUID transactionId = UUID.randomUUID();
+                    for (int i = 0; i < 50; i++) {
+                        long lsn = wal.append(transactionId, Collections.singletonList(order(i)));
+                        // published before append returns
+                        assertTrue(published.contains(lsn));
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(400, wal.lastLsn());
+        // requests waiting at the same time share an fsync
+        assertTrue("syncs[" + wal.syncs() + "]", wal.syncs() < 200);
+
+        List<Long> lsns = replayedLsns(wal, 0);
+        assertEquals(400, lsns.size());
+        for (int i = 0; i < lsns.size(); i++) {
+            assertEquals(Long.valueOf(i + 1), lsns.get(i));
+            assertEquals(Long.valueOf(i + 1), published.get(i));
+        }
+        wal.close();
+    }
+
+    @Test
+    public void testFailedSync() throws Exception {
+        Path directory = folder.newFolder("wal").toPath();
+        SlowLog wal = new SlowLog(directory, WriteAheadLog.DEFAULT_SEGMENT_BYTES);
+        List<Long> published = new ArrayList<>();
+        wal.follow(0, (lsn, transactionId, event) -> { }, (lastLsn, transactionId, events) -> published.add(lastLsn));
+
+        assertEquals(1, wal.append(UUID.randomUUID(), Collections.singletonList(order(1))));
+
+        // an event which can not be encoded takes no lsn
+        Event unencodable = new EventBuilder().withType(EventType.ORDER).withVerb(EventVerb.NEW).withKey("bad").withTimestamp(0)
+            .withAttribute(new Event.Attribute<>("count", 42)).build();
+        try {
+            wal.append(UUID.randomUUID(), Arrays.asList(order(2), unencodable));
+            fail("expected the event to be refused");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        assertEquals(2, wal.append(UUID.randomUUID(), Collections.singletonList(order(2))));
+
+        // once a sync fails, the request fails and its events are never published
+        wal.failing = true;
+        try {
+            wal.append(UUID.randomUUID(), Collections.singletonList(order(3)));
+            fail("expected the sync to fail");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        assertEquals(Arrays.asList(1L, 2L), published);
+        // nor does the log take any more
+        wal.failing = false;
+        try {
+            wal.append(UUID.randomUUID(), Collections.singletonList(order(4)));
+            fail("expected a failed log");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        wal.close();
+        try {
+            wal.sync(3);
+            fail("expected a closed log");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+
+        // the unsynced record was dropped, so does not come back on replay
+        WriteAheadLog reopened = new WriteAheadLog(directory, WriteAheadLog.Durability.PER_REQUEST, 0,
+            WriteAheadLog.DEFAULT_SEGMENT_BYTES);
+        assertEquals(Arrays.asList(1L, 2L), replayedLsns(reopened, 0));
+        reopened.close();
+    }
+
+    @Test
+    public void testIngestThroughLog() throws Exception {
+        WriteAheadLog wal = WriteAheadLog.open(folder.newFolder("wal").toPath(), WriteAheadLog.Durability.INTERVAL, 5);
+        IngestService ingestService = new IngestService(
+            withAllProcessors(new IngestProcessorRegistry()), 1, EventStoreFactory.heap(), Optional.of(wal));
+
+        UUID transactionId = UUID.randomUUID();
+        int ingested = ingestService.ingest(transactionId, readJson("topX.json")).getEvents().size();
+        wal.close();
+
+        List<UUID> logged = new ArrayList<>();
+        wal.replay(0, (lsn, txn, event) -> logged.add(txn));
+        assertEquals(ingested, logged.size());
+        assertTrue(logged.stream().allMatch(transactionId::equals));
+    }
+}